@@ -0,0 +1,105 @@
+package src.bench;
+
+/*-- KeyConsumptionBenchmark.java ------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import src.KeyPad;
+
+/**
+ * Measures consuming a small message's worth of key from pads of several
+ * sizes. Before key pads kept a consumed offset, this step moved the whole
+ * rest of the key, so its cost grew with the key size; it should now be flat
+ * across keySize.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KeyConsumptionBenchmark
+{
+	@Param({"16777216", "1073741824"})
+	public long keySize;
+
+	@Param({"4096", "65536"})
+	public int messageSize;
+
+	private File keyFile;
+	private KeyPad pad;
+
+	@Setup
+	public void setUp () throws IOException
+	{
+		keyFile = File.createTempFile("cryptomni-bench", ".key");
+		resetKey();
+	}
+
+	@TearDown
+	public void tearDown () throws IOException
+	{
+		pad.close();
+		keyFile.delete();
+	}
+
+	@Benchmark
+	public long consume () throws IOException
+	{
+		if (pad.remaining() < 2L * messageSize)
+		{
+			pad.close();
+			resetKey();
+		}
+		pad.consume(messageSize);
+		return pad.offset();
+	}
+
+	// Turns the key file back into an unused key of keySize bytes. The
+	// contents do not matter for consumption, so the file may be sparse.
+	private void resetKey () throws IOException
+	{
+		try (RandomAccessFile raf = new RandomAccessFile(keyFile, "rw"))
+		{
+			raf.setLength(0);
+			raf.setLength(keySize);
+		}
+		pad = KeyPad.open(keyFile);
+	}
+}
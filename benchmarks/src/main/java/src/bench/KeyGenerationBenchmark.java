@@ -0,0 +1,80 @@
+package src.bench;
+
+/*-- KeyGenerationBenchmark.java -------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import src.Cryptomni;
+
+/**
+ * Measures Cryptomni.createKey at several key sizes and thread counts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KeyGenerationBenchmark
+{
+	@Param({"1048576", "16777216", "134217728"})
+	public long size;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	private File keyFile;
+
+	@Setup
+	public void setUp () throws IOException
+	{
+		keyFile = File.createTempFile("cryptomni-bench", ".key");
+	}
+
+	@TearDown
+	public void tearDown ()
+	{
+		keyFile.delete();
+	}
+
+	@Benchmark
+	public boolean createKey ()
+	{
+		return Cryptomni.createKey(keyFile, size, threads);
+	}
+}
@@ -0,0 +1,103 @@
+package src.bench;
+
+/*-- TransformBenchmark.java -----------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import src.Cryptomni;
+import src.KeyChannel;
+import src.TransformEngine;
+
+/**
+ * Measures the transform engines on files of several sizes. The key is read
+ * but not consumed, so every invocation transforms the same bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransformBenchmark
+{
+	@Param({"stream", "mapped", "parallel", "pipelined"})
+	public String engineName;
+
+	@Param({"65536", "16777216", "268435456"})
+	public long fileSize;
+
+	private File inputFile, keyFile, outputFile;
+	private FileChannel in, out;
+	private KeyChannel key;
+	private TransformEngine engine;
+
+	@Setup
+	public void setUp () throws IOException
+	{
+		inputFile = File.createTempFile("cryptomni-bench", ".in");
+		keyFile = File.createTempFile("cryptomni-bench", ".key");
+		outputFile = File.createTempFile("cryptomni-bench", ".out");
+		Cryptomni.createKey(inputFile, fileSize);
+		Cryptomni.createKey(keyFile, fileSize);
+		in = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+		key = KeyChannel.of(FileChannel.open(keyFile.toPath(),
+				StandardOpenOption.READ));
+		out = FileChannel.open(outputFile.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		engine = TransformEngine.forName(engineName);
+	}
+
+	@TearDown
+	public void tearDown () throws IOException
+	{
+		in.close();
+		key.close();
+		out.close();
+		inputFile.delete();
+		keyFile.delete();
+		outputFile.delete();
+	}
+
+	@Benchmark
+	public void transform () throws IOException
+	{
+		engine.transform(in, key, 0, out, fileSize);
+	}
+}
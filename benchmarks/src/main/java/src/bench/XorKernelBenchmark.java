@@ -0,0 +1,93 @@
+package src.bench;
+
+/*-- XorKernelBenchmark.java -----------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import src.XorKernel;
+
+/**
+ * Measures the XOR kernels on heap arrays and on direct buffers, without
+ * any I/O.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class XorKernelBenchmark
+{
+	@Param({"scalar", "long", "vector"})
+	public String kernelName;
+
+	@Param({"4096", "262144"})
+	public int size;
+
+	private XorKernel kernel;
+	private byte[] dataArray, keyArray;
+	private ByteBuffer dataBuffer, keyBuffer;
+
+	@Setup
+	public void setUp ()
+	{
+		kernel = XorKernel.forName(kernelName);
+		dataArray = new byte[size];
+		keyArray = new byte[size];
+		ThreadLocalRandom.current().nextBytes(dataArray);
+		ThreadLocalRandom.current().nextBytes(keyArray);
+		dataBuffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+		keyBuffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+		dataBuffer.put(dataArray).clear();
+		keyBuffer.put(keyArray).clear();
+	}
+
+	@Benchmark
+	public byte[] arrays ()
+	{
+		kernel.xor(dataArray, 0, keyArray, 0, size);
+		return dataArray;
+	}
+
+	@Benchmark
+	public ByteBuffer directBuffers ()
+	{
+		kernel.xor(dataBuffer, keyBuffer, size);
+		return dataBuffer;
+	}
+}
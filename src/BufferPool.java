@@ -0,0 +1,116 @@
+package src;
+
+/*-- BufferPool.java -------------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pool of direct byte buffers of one size. Direct buffers are expensive to
+ * allocate and are only freed by the garbage collector, so the transform
+ * engines borrow them from here and give them back when they are done. Once
+ * the pool is warm, encrypting a file allocates no buffers at all.
+ * Buffers hold key and plain text bytes, so they are zeroed when they are
+ * given back.
+ */
+final class BufferPool
+{
+	/** The size of the buffers in the shared pool. */
+	static final int BUFFER_SIZE = 262144;
+
+	private static final BufferPool SHARED = new BufferPool(BUFFER_SIZE, 64);
+
+	private final int bufferSize;
+	private final BlockingQueue<ByteBuffer> free;
+
+	/**
+	 * Creates a pool.
+	 *
+	 * @param  bufferSize the capacity of each buffer.
+	 * @param  maxPooled  the largest number of idle buffers kept for reuse.
+	 */
+	BufferPool (int bufferSize, int maxPooled)
+	{
+		this.bufferSize = bufferSize;
+		free = new ArrayBlockingQueue<ByteBuffer>(maxPooled);
+	}
+
+	/** Returns the pool shared by the transform engines. */
+	static BufferPool shared ()
+	{
+		return SHARED;
+	}
+
+	/** Returns the capacity of the buffers in this pool. */
+	int bufferSize ()
+	{
+		return bufferSize;
+	}
+
+	/** Returns a cleared buffer in native byte order. */
+	ByteBuffer acquire ()
+	{
+		ByteBuffer buffer = free.poll();
+		if (buffer == null)
+		{
+			buffer = ByteBuffer.allocateDirect(bufferSize)
+					.order(ByteOrder.nativeOrder());
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/** Zeroes a buffer and gives it back to the pool. */
+	void release (ByteBuffer buffer)
+	{
+		if (buffer == null)
+		{
+			return;
+		}
+		zero(buffer, buffer.capacity());
+		if (buffer.capacity() == bufferSize)
+		{
+			free.offer(buffer);
+		}
+	}
+
+	/**
+	 * Zeroes the first length bytes of a buffer, so that key bytes do not
+	 * stay in memory. The buffer is left cleared.
+	 */
+	static void zero (ByteBuffer buffer, int length)
+	{
+		buffer.clear();
+		int i = 0;
+		for (; i + 8 <= length; i += 8)
+		{
+			buffer.putLong(i, 0L);
+		}
+		for (; i < length; i++)
+		{
+			buffer.put(i, (byte) 0);
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package src;
+
+/*-- CancellationToken.java ------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+/**
+ * Asks a running operation to stop. The operation checks the token between
+ * chunks, cleans up and fails with an {@link java.io.InterruptedIOException}.
+ * A token may be cancelled from any thread, and stays cancelled.
+ */
+public class CancellationToken
+{
+	private volatile boolean cancelled;
+
+	/** Asks the operations that use this token to stop. */
+	public void cancel ()
+	{
+		cancelled = true;
+	}
+
+	/** Returns true if {@link #cancel} has been called. */
+	public boolean isCancelled ()
+	{
+		return cancelled;
+	}
+}
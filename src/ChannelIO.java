@@ -0,0 +1,108 @@
+package src;
+
+/*-- ChannelIO.java --------------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Helpers for reading and writing whole buffers through channels, which may
+ * transfer fewer bytes than asked for.
+ */
+final class ChannelIO
+{
+	private ChannelIO ()
+	{
+	}
+
+	/**
+	 * Reads from a file position until the buffer is full.
+	 *
+	 * @throws EOFException if the end of the file is reached first.
+	 */
+	static void readFully (FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			int bytesRead = channel.read(buffer, position);
+			if (bytesRead < 0)
+			{
+				throw new EOFException();
+			}
+			position += bytesRead;
+		}
+	}
+
+	/**
+	 * Reads from a key position until the buffer is full.
+	 *
+	 * @throws EOFException if the end of the key is reached first.
+	 */
+	static void readFully (KeyChannel channel, ByteBuffer buffer, long position)
+			throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			int bytesRead = channel.read(buffer, position);
+			if (bytesRead < 0)
+			{
+				throw new EOFException();
+			}
+			position += bytesRead;
+		}
+	}
+
+	/** Writes the whole buffer at the current position of the channel. */
+	static void writeFully (WritableByteChannel channel, ByteBuffer buffer)
+			throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+
+	/** Writes the whole buffer at a file position. */
+	static void writeFully (FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/** Writes the whole buffer at a key position. */
+	static void writeFully (KeyChannel channel, ByteBuffer buffer, long position)
+			throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			position += channel.write(buffer, position);
+		}
+	}
+}
@@ -0,0 +1,514 @@
+package src;
+
+/*-- Container.java --------------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A single file holding several encrypted files. The container starts with
+ * an index that records, for every entry, its name, its length, where its
+ * data starts in the container and the position in the key pad of the key
+ * bytes it was encrypted with. Because each entry carries its own key
+ * position, any entry can be decrypted on its own, in any order, without
+ * replaying the others.
+ * <p>
+ * Layout: magic number (8 bytes), version (4 bytes), entry count (4 bytes),
+ * then for each entry the length of its UTF-8 name (2 bytes), the name, the
+ * entry length, the key position and the data position (8 bytes each), then
+ * a CRC-32 of everything before it (4 bytes). The entry data follows.
+ * <p>
+ * A container created with MACs has version 2, and each entry of its index
+ * also holds the {@link OneTimeMac} tag of the entry's data (16 bytes). The
+ * key bytes of such an entry start with the key of its MAC.
+ */
+public class Container
+{
+	private static final long MAGIC = 0x434D4E49434E5431L; // "CMNICNT1"
+	private static final int VERSION = 1;
+	private static final int MAC_VERSION = 2;
+
+	/** An entry of a container. */
+	public static class Entry
+	{
+		private final String name;
+		private final long length, keyPosition, dataPosition;
+		private byte[] tag; // Set once the entry has been encrypted, if MACed.
+
+		Entry (String name, long length, long keyPosition, long dataPosition,
+				byte[] tag)
+		{
+			this.name = name;
+			this.length = length;
+			this.keyPosition = keyPosition;
+			this.dataPosition = dataPosition;
+			this.tag = tag;
+		}
+
+		/** Returns the file name of the entry. */
+		public String getName ()
+		{
+			return name;
+		}
+
+		/** Returns the number of bytes in the entry. */
+		public long getLength ()
+		{
+			return length;
+		}
+
+		/** Returns the position in the key pad of the entry's first key byte. */
+		public long getKeyPosition ()
+		{
+			return keyPosition;
+		}
+
+		/** Returns the position in the container of the entry's first byte. */
+		public long getDataPosition ()
+		{
+			return dataPosition;
+		}
+
+		/** Returns true if the entry carries the tag of a MAC. */
+		public boolean hasTag ()
+		{
+			return tag != null;
+		}
+
+		// Returns the position in the key pad of the entry's data key.
+		private long dataKeyPosition ()
+		{
+			return tag == null ? keyPosition : keyPosition + OneTimeMac.KEY_SIZE;
+		}
+	}
+
+	private Container ()
+	{
+	}
+
+	/**
+	 * Encrypts files into a new container, using consecutive unused key bytes
+	 * of a key pad. The key is consumed only once the whole container has
+	 * been written. If anything fails, the container is deleted and no key
+	 * is consumed.
+	 *
+	 * @param  sourceFiles   the files to encrypt. Their names must be unique.
+	 * @param  pad 			 the key pad.
+	 * @param  containerFile the location to write the container.
+	 * @param  engine 		 the engine that applies the key.
+	 * @throws IOException if the key is too short or a file cannot be read
+	 * 					   or written.
+	 */
+	public static void create (List<File> sourceFiles, KeyPad pad,
+			File containerFile, TransformEngine engine) throws IOException
+	{
+		create(sourceFiles, pad, containerFile, engine, false);
+	}
+
+	/**
+	 * Encrypts files into a new container, optionally storing a one-time MAC
+	 * tag for every entry, computed in the same pass as the encryption. Each
+	 * MAC uses {@link OneTimeMac#KEY_SIZE} more key bytes.
+	 *
+	 * @param  sourceFiles   the files to encrypt. Their names must be unique.
+	 * @param  pad 			 the key pad.
+	 * @param  containerFile the location to write the container.
+	 * @param  engine 		 the engine that applies the key.
+	 * @param  mac 			 true to store a MAC tag for every entry.
+	 * @throws IOException if the key is too short, the engine cannot compute
+	 * 					   a MAC or a file cannot be read or written.
+	 */
+	public static void create (List<File> sourceFiles, KeyPad pad,
+			File containerFile, TransformEngine engine, boolean mac)
+			throws IOException
+	{
+		long start = System.nanoTime();
+		if (mac && !engine.supportsMac())
+		{
+			throw new IOException("The " + engine.name() +
+					" engine cannot compute a MAC.");
+		}
+		List<String> names = new ArrayList<String>();
+		for (File sourceFile : sourceFiles)
+		{
+			names.add(sourceFile.getName());
+		}
+		List<Entry> entries = new ArrayList<Entry>();
+		Set<String> unique = new HashSet<String>();
+		long keyPosition = pad.offset();
+		long dataStart = indexSize(names, mac);
+		long dataPosition = dataStart;
+		byte[] noTag = mac ? new byte[OneTimeMac.TAG_SIZE] : null;
+		for (File sourceFile : sourceFiles)
+		{
+			if (!unique.add(sourceFile.getName()))
+			{
+				throw new IOException("Two files are named " +
+						sourceFile.getName());
+			}
+			long length = sourceFile.length();
+			entries.add(new Entry(sourceFile.getName(), length, keyPosition,
+					dataPosition, noTag));
+			keyPosition += (mac ? OneTimeMac.KEY_SIZE : 0) + length;
+			dataPosition += length;
+		}
+		if (keyPosition > pad.length())
+		{
+			throw new EOFException("Key file is shorter than the files.");
+		}
+		pad.reserveTo(keyPosition);
+
+		long used = pad.offset(); // Key bytes before this may have been used.
+		try (FileChannel out = FileChannel.open(containerFile.toPath(),
+				StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			for (int i = 0; i < entries.size(); i++)
+			{
+				Entry entry = entries.get(i);
+				try (FileChannel in = FileChannel.open(
+						sourceFiles.get(i).toPath(), StandardOpenOption.READ))
+				{
+					if (in.size() != entry.length)
+					{
+						throw new IOException(sourceFiles.get(i) +
+								" changed while it was being encrypted.");
+					}
+					used = entry.dataKeyPosition() + entry.length;
+					OneTimeMac entryMac = mac ? OneTimeMac.forEncryption(
+							pad.channel(), entry.keyPosition) : null;
+					engine.transform(in, 0, pad.channel(),
+							entry.dataKeyPosition(), out, entry.dataPosition,
+							entry.length, Progress.NONE, entryMac);
+					if (entryMac != null)
+					{
+						entry.tag = entryMac.tag();
+					}
+				}
+			}
+			// The index is written last, once every tag is known.
+			writeIndex(out, entries, mac);
+		}
+		catch (IOException e)
+		{
+			containerFile.delete();
+			// The key bytes of the entries started so far may have been
+			// used, so they must not be given back when the pad closes.
+			try
+			{
+				pad.consume(used - pad.offset());
+			}
+			catch (IOException f)
+			{
+				e.addSuppressed(f);
+			}
+			throw e;
+		}
+		pad.consume(keyPosition - pad.offset());
+		Metrics.shared().transformed(Metrics.Operation.CONTAINER,
+				dataPosition - dataStart, System.nanoTime() - start);
+	}
+
+	/**
+	 * Decrypts entries of a container into a directory. The key range of each
+	 * entry is reserved before it is decrypted, and marked as used and wiped
+	 * only once the entry has been written and, if it carries a MAC tag,
+	 * verified. Marking a range as used also marks the key bytes before it,
+	 * so they are never handed out again, but entries that are not
+	 * decrypted keep their key bytes and can be decrypted later. An entry
+	 * that fails its MAC is deleted and stops the extraction, and its key
+	 * range is given back when the key pad is closed, so a damaged or forged
+	 * container cannot use up the key. Only the key ranges of containers
+	 * with MACs are authenticated; the index of any container is checked
+	 * against the key and the container's layout first.
+	 *
+	 * @param  containerFile the container.
+	 * @param  pad 			 the key pad the container was encrypted with.
+	 * @param  names 		 the names of the entries to decrypt, or null for all
+	 * 						 entries.
+	 * @param  directory 	 the directory to write the decrypted entries to.
+	 * @param  engine 		 the engine that applies the key.
+	 * @throws IOException if an entry does not exist, the container is
+	 * 					   corrupted, a MAC does not match, the engine cannot
+	 * 					   compute a MAC or a file cannot be read or written.
+	 */
+	public static void extract (File containerFile, KeyPad pad,
+			List<String> names, File directory, TransformEngine engine)
+			throws IOException
+	{
+		long start = System.nanoTime();
+		long bytes = 0;
+		try (FileChannel in = FileChannel.open(containerFile.toPath(),
+				StandardOpenOption.READ))
+		{
+			List<Entry> entries = readIndex(in);
+			List<Entry> selected = new ArrayList<Entry>();
+			long keyEnd = 0;
+			for (Entry entry : entries)
+			{
+				keyEnd = Math.max(keyEnd, entry.dataKeyPosition() + entry.length);
+				if (names == null || names.contains(entry.name))
+				{
+					selected.add(entry);
+				}
+			}
+			if (names != null && selected.size() != new HashSet<String>(names).size())
+			{
+				throw new IOException("Entry not found in " + containerFile);
+			}
+			if (keyEnd > pad.length())
+			{
+				throw new EOFException("Key file is shorter than the container.");
+			}
+			if (!entries.isEmpty() && entries.get(0).hasTag() &&
+					!engine.supportsMac())
+			{
+				throw new IOException("The " + engine.name() +
+						" engine cannot compute a MAC.");
+			}
+			if (!directory.isDirectory() && !directory.mkdirs())
+			{
+				throw new IOException("Cannot create " + directory);
+			}
+
+			for (Entry entry : selected)
+			{
+				long entryEnd = entry.dataKeyPosition() + entry.length;
+				// The key bytes are in use from here on, even if the program
+				// stops before the entry is done.
+				pad.reserveTo(entryEnd);
+				File outputFile = new File(directory, entry.name);
+				try (FileChannel out = FileChannel.open(outputFile.toPath(),
+						StandardOpenOption.READ, StandardOpenOption.WRITE,
+						StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING))
+				{
+					OneTimeMac entryMac = entry.hasTag() ? OneTimeMac.forDecryption(
+							pad.channel(), entry.keyPosition) : null;
+					engine.transform(in, entry.dataPosition, pad.channel(),
+							entry.dataKeyPosition(), out, 0, entry.length,
+							Progress.NONE, entryMac);
+					if (entryMac != null && !entryMac.verify(entry.tag))
+					{
+						throw new IOException("The MAC of " + entry.name +
+								" does not match. The container is damaged or " +
+								"was encrypted with another key.");
+					}
+				}
+				catch (IOException e)
+				{
+					outputFile.delete();
+					throw e;
+				}
+				pad.skipTo(entryEnd);
+				pad.wipe(entry.keyPosition, entryEnd - entry.keyPosition);
+				bytes += entry.length;
+			}
+		}
+		Metrics.shared().transformed(Metrics.Operation.CONTAINER, bytes,
+				System.nanoTime() - start);
+	}
+
+	/**
+	 * Reads the index of a container.
+	 *
+	 * @param  in the container.
+	 * @return 	  the entries, in the order they are stored.
+	 * @throws IOException if the file is not a container or is corrupted.
+	 */
+	public static List<Entry> readIndex (FileChannel in) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(16);
+		ChannelIO.readFully(in, header, 0);
+		header.flip();
+		if (header.getLong() != MAGIC)
+		{
+			throw new IOException("Not a Cryptomni container.");
+		}
+		int version = header.getInt();
+		if (version != VERSION && version != MAC_VERSION)
+		{
+			throw new IOException("Unsupported container version.");
+		}
+		int fieldSize = version == MAC_VERSION ? 24 + OneTimeMac.TAG_SIZE : 24;
+		int count = header.getInt();
+		if (count < 0)
+		{
+			throw new IOException("Container index is corrupted.");
+		}
+
+		CRC32 crc = new CRC32();
+		header.flip();
+		crc.update(header);
+		long position = 16;
+		List<Entry> entries = new ArrayList<Entry>();
+		ByteBuffer field = ByteBuffer.allocate(2 + fieldSize);
+		for (int i = 0; i < count; i++)
+		{
+			field.clear().limit(2);
+			ChannelIO.readFully(in, field, position);
+			int nameLength = field.getShort(0) & 0xFFFF;
+			ByteBuffer name = ByteBuffer.allocate(nameLength);
+			ChannelIO.readFully(in, name, position + 2);
+			field.limit(2 + fieldSize);
+			ChannelIO.readFully(in, field, position + 2 + nameLength);
+			field.flip();
+			crc.update(field.array(), 0, 2);
+			crc.update(name.array());
+			crc.update(field.array(), 2, fieldSize);
+			String entryName = new String(name.array(), StandardCharsets.UTF_8);
+			field.position(2);
+			long length = field.getLong();
+			long keyPosition = field.getLong();
+			long dataPosition = field.getLong();
+			byte[] tag = null;
+			if (version == MAC_VERSION)
+			{
+				tag = new byte[OneTimeMac.TAG_SIZE];
+				field.get(tag);
+			}
+			entries.add(new Entry(checkName(entryName), length, keyPosition,
+					dataPosition, tag));
+			position += 2 + nameLength + fieldSize;
+		}
+		field.clear().limit(4);
+		ChannelIO.readFully(in, field, position);
+		if (field.getInt(0) != (int) crc.getValue())
+		{
+			throw new IOException("Container index is corrupted.");
+		}
+		checkLayout(entries, position + 4, in.size());
+		return Collections.unmodifiableList(entries);
+	}
+
+	// The CRC only catches accidents, so the index is also checked against
+	// the layout that create writes: entry data back to back from the end
+	// of the index to the end of the file, key ranges back to back, and no
+	// name twice. A damaged or forged index therefore cannot claim a key
+	// range larger than the container's data and its MAC keys.
+	private static void checkLayout (List<Entry> entries, long dataStart,
+			long fileSize) throws IOException
+	{
+		long dataPosition = dataStart;
+		long keyPosition = entries.isEmpty() ? 0 : entries.get(0).keyPosition;
+		Set<String> names = new HashSet<String>();
+		for (Entry entry : entries)
+		{
+			if (entry.length < 0 || entry.dataPosition != dataPosition ||
+					entry.keyPosition != keyPosition || keyPosition < 0 ||
+					entry.length > fileSize - dataPosition ||
+					!names.add(entry.name))
+			{
+				throw new IOException("Container index is corrupted.");
+			}
+			dataPosition += entry.length;
+			keyPosition = entry.dataKeyPosition() + entry.length;
+			if (keyPosition < 0)
+			{
+				throw new IOException("Container index is corrupted.");
+			}
+		}
+		if (dataPosition != fileSize)
+		{
+			throw new IOException("Container index is corrupted.");
+		}
+	}
+
+	// Writes the index at the start of a container.
+	private static void writeIndex (FileChannel out, List<Entry> entries,
+			boolean mac) throws IOException
+	{
+		List<String> names = new ArrayList<String>();
+		for (Entry entry : entries)
+		{
+			names.add(entry.name);
+		}
+		ByteBuffer index = ByteBuffer.allocate((int) indexSize(names, mac));
+		index.putLong(MAGIC);
+		index.putInt(mac ? MAC_VERSION : VERSION);
+		index.putInt(entries.size());
+		for (Entry entry : entries)
+		{
+			byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+			index.putShort((short) name.length);
+			index.put(name);
+			index.putLong(entry.length);
+			index.putLong(entry.keyPosition);
+			index.putLong(entry.dataPosition);
+			if (mac)
+			{
+				index.put(entry.tag);
+			}
+		}
+		CRC32 crc = new CRC32();
+		crc.update(index.array(), 0, index.position());
+		index.putInt((int) crc.getValue());
+		index.flip();
+		ChannelIO.writeFully(out, index, 0);
+	}
+
+	// Returns the number of bytes in the index of a container with entries
+	// of the given names.
+	private static long indexSize (List<String> names, boolean mac)
+			throws IOException
+	{
+		long size = 16 + 4;
+		for (String name : names)
+		{
+			int nameLength = checkName(name).getBytes(StandardCharsets.UTF_8).length;
+			if (nameLength > 0xFFFF)
+			{
+				throw new IOException("File name is too long: " + name);
+			}
+			size += 2 + nameLength + 24 + (mac ? OneTimeMac.TAG_SIZE : 0);
+		}
+		if (size > Integer.MAX_VALUE)
+		{
+			throw new IOException("Too many files for one container.");
+		}
+		return size;
+	}
+
+	// Entry names become file names when extracted, so they must not point
+	// anywhere else.
+	private static String checkName (String name) throws IOException
+	{
+		if (name.isEmpty() || name.equals(".") || name.equals("..") ||
+				name.indexOf('/') >= 0 || name.indexOf('\\') >= 0)
+		{
+			throw new IOException("Invalid entry name: " + name);
+		}
+		return name;
+	}
+}
@@ -23,15 +23,30 @@ package src;
 --------------------------------------------------------------------------------*/
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.security.SecureRandom;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 /** 
  * Cryptomni is a program which can encrypt and decrypt files using the one-time 
@@ -43,9 +58,29 @@ import java.security.SecureRandom;
  */
 public class Cryptomni
 {
+	// The number of bytes read from a stream at a time.
+	private static final int STREAM_BUFFER_SIZE = 65536;
+	// The number of bytes each source generates in a self-test.
+	private static final long SELF_TEST_SIZE = 64 * 1048576;
+	// The number of used key bytes wiped between progress reports.
+	private static final long WIPE_CHUNK_SIZE = 64 * 1048576;
+	// What transformFile does with a one-time MAC.
+	private static final int NO_MAC = 0, ADD_MAC = 1, CHECK_MAC = 2;
+	// Options that take no value.
+	private static final List<String> FLAGS = Arrays.asList("--mac", "--selftest",
+			"--direct");
+
 	public static void main(String[] args)
 	{
 		// Display program information:
+		// When a file is written to standard output, keep it free of messages 
+		// by sending them to standard error instead.
+		boolean streaming = Arrays.asList(args).contains("-");
+		if (streaming)
+		{
+			System.setOut(System.err);
+		}
+		
 		System.out.println("Cryptomni Version 1.1");
 		System.out.println("Copyright (C) 2015 Byron Knoll\n");
 		
@@ -53,13 +88,64 @@ public class Cryptomni
 		// arguments are used.
 		boolean displayHelp = false;
 		
+		// Separate "--name value" options from the other arguments.
+		Map<String, String> options = new HashMap<String, String>();
+		args = parseOptions(args, options);
+		if (options.containsKey("--metrics"))
+		{
+			writeMetricsOnExit(new File(options.remove("--metrics")));
+		}
+		// Set how every key pad of the run overwrites used key bytes. Invalid
+		// values stay among the options, which no command accepts.
+		int wipePasses = 1;
+		if (options.containsKey("--wipe-passes") || 
+				options.containsKey("--wipe-rate"))
+		{
+			try
+			{
+				wipePasses = Integer.parseInt(options.getOrDefault(
+						"--wipe-passes", "1"));
+				long wipeRate = options.containsKey("--wipe-rate") ? 
+						parseSize(options.get("--wipe-rate")) : 
+						KeyPad.FOREGROUND_WIPE;
+				KeyPad.setDefaultWipe(wipePasses, wipeRate);
+				options.remove("--wipe-passes");
+				options.remove("--wipe-rate");
+			}
+			catch (IllegalArgumentException e)
+			{
+				wipePasses = 1;
+			}
+		}
+		
 		if (args.length == 0)
 		{
+			Metrics.shared().register();
 			new CryptomniGUI(); // Open a graphical user interface.
 		}
 		else if (args.length == 1)
 		{
-			if (args[0].equals("-i")) 
+			if (args[0].equals("-c") && options.containsKey("--selftest") &&
+					allowOptions(options, "--selftest", "--source", "--threads"))
+			{
+				try
+				{
+					int threads = Integer.parseInt(options.getOrDefault(
+							"--threads", "1"));
+					List<EntropySource> sources = options.containsKey("--source") ?
+							selfTestSources(EntropySource.forName(
+									options.get("--source"))) :
+							EntropySource.candidates();
+					selfTest(sources, threads);
+				}
+				catch (IllegalArgumentException e)
+				{
+					// Also thrown for a number of threads that is not valid.
+					System.out.println(e.getMessage() + "\n");
+					displayHelp = true;
+				}
+			}
+			else if (args[0].equals("-i")) 
 			{
         		String aboutString =
             	"Cryptomni is a program which can encrypt and decrypt files"+
@@ -83,16 +169,137 @@ public class Cryptomni
 				displayHelp = true;
 			}
 		}
+		else if (args.length == 2)
+		{
+			if (args[0].equals("-e") && options.containsKey("--batch") &&
+					options.containsKey("--container") &&
+					allowOptions(options, "--batch", "--container", "--engine", 
+							"--threads", "--mac"))
+			{
+				TransformEngine engine = engineFromOptions(options);
+				List<File> files = null;
+				try
+				{
+					files = readBatch(new File(options.get("--batch")));
+				}
+				catch (IOException e)
+				{
+					System.out.println("Could not read the batch: " + 
+							e.getMessage() + "\n");
+				}
+				if (engine == null || files == null)
+				{
+					displayHelp = true;
+				}
+				// Attempt to encrypt the files into a container.
+				else if (encryptContainer(files, new File(args[1]), 
+						new File(options.get("--container")), engine,
+						options.containsKey("--mac")))
+				{
+					System.out.println(files.size() + 
+							" files encrypted successfully.");
+				}
+				else
+				{
+					System.out.println("Container encryption failed.\n");
+					displayHelp = true;
+				}
+			}
+			else if (args[0].equals("-s") && allowOptions(options))
+			{
+				// Serve requests until the process is stopped.
+				if (!runDaemon(new File(args[1]).toPath()))
+				{
+					System.exit(1);
+				}
+			}
+			else if (args[0].equals("-m") && allowOptions(options))
+			{
+				// Print the metrics of a running daemon.
+				try (DaemonClient client = new DaemonClient(
+						new File(args[1]).toPath()))
+				{
+					System.out.print(client.metrics());
+				}
+				catch (IOException e)
+				{
+					System.err.println("Error: " + e.getMessage());
+					System.exit(1);
+				}
+			}
+			else if (args[0].equals("-w") && allowOptions(options))
+			{
+				// Attempt to overwrite the used part of the key.
+				if (wipeUsedKey(new File(args[1]), wipePasses, statusLine()))
+				{
+					System.out.println("Used key bytes wiped successfully.");
+				}
+				else
+				{
+					System.out.println("Key wipe failed.\n");
+					displayHelp = true;
+				}
+			}
+			else if (args[0].equals("-l") && allowOptions(options))
+			{
+				// List the entries of a container.
+				try (FileChannel in = FileChannel.open(new File(args[1]).toPath(),
+						StandardOpenOption.READ))
+				{
+					for (Container.Entry entry : Container.readIndex(in))
+					{
+						System.out.println(entry.getName() + " (" + 
+								entry.getLength() + " bytes, key position " + 
+								entry.getKeyPosition() + ")");
+					}
+				}
+				catch (IOException e)
+				{
+					System.out.println("Could not read the container: " + 
+							e.getMessage() + "\n");
+					displayHelp = true;
+				}
+			}
+			else displayHelp = true;
+		}
 		else if (args.length == 3)
 		{
-			if (args[0].equals("-c")) 
+			if (args[0].equals("-c") && allowOptions(options, "--threads", 
+					"--shards", "--source", "--direct")) 
 			{
 			    try 
 			    {
-			    	// Attempt to convert the third argument to an integer.
-			    	int size = Integer.parseInt(args[2]);
-			    	// Attempt to create the Cryptomni key.
-			    	if (createKey(new File(args[1]), size))
+			    	// Attempt to convert the third argument to a size in bytes.
+			    	long size = parseSize(args[2]);
+			    	int threads = Integer.parseInt(options.getOrDefault(
+			    			"--threads", "1"));
+			    	if (threads < 1)
+			    	{
+			    		throw new NumberFormatException();
+			    	}
+			    	EntropySource source = EntropySource.forName(
+			    			options.getOrDefault("--source", "drbg"));
+			    	KeyGenerator generator = new KeyGenerator(threads, source,
+			    			options.containsKey("--direct"));
+			    	// Attempt to create the Cryptomni key, split across the 
+			    	// listed directories if --shards is given.
+			    	boolean created;
+			    	if (options.containsKey("--shards"))
+			    	{
+			    		List<File> directories = new ArrayList<File>();
+			    		for (String directory : options.get("--shards").split(","))
+			    		{
+			    			directories.add(new File(directory));
+			    		}
+			    		created = createShardedKey(new File(args[1]), size, 
+			    				directories, generator, statusLine());
+			    	}
+			    	else
+			    	{
+			    		created = createKey(new File(args[1]), size, generator, 
+			    				statusLine());
+			    	}
+			    	if (created)
 			    	{
 			    		System.out.println("Cryptomni key successfully created.");
 			    	}
@@ -104,19 +311,187 @@ public class Cryptomni
 			    } 
 			    catch (NumberFormatException e) 
 			    {
-			    	// The third argument must be an integer.
+			    	// The third argument must be a size in bytes and the 
+			    	// number of threads must be a positive integer.
 			        displayHelp = true;
 			    }
+			    catch (IllegalArgumentException e)
+			    {
+			    	// The entropy source is unknown or listed twice.
+			    	System.out.println(e.getMessage() + "\n");
+			    	displayHelp = true;
+			    }
+			}
+			else if ((args[0].equals("-e") || args[0].equals("-d")) && 
+					options.containsKey("--batch") &&
+					allowOptions(options, "--batch", "--engine", "--threads"))
+			{
+				TransformEngine engine = engineFromOptions(options);
+				boolean encrypt = args[0].equals("-e");
+				List<File> files = null;
+				try
+				{
+					files = readBatch(new File(options.get("--batch")));
+				}
+				catch (IOException e)
+				{
+					System.out.println("Could not read the batch: " + 
+							e.getMessage() + "\n");
+				}
+				if (engine == null || files == null)
+				{
+					displayHelp = true;
+				}
+				// Attempt to encrypt or decrypt all files of the batch.
+				else if (transformFiles(files, new File(args[1]), 
+						new File(args[2]), engine, statusLine()))
+				{
+					System.out.println(files.size() + (encrypt ? 
+							" files encrypted successfully." : 
+							" files decrypted successfully."));
+				}
+				else
+				{
+					System.out.println(encrypt ? "Batch encryption failed.\n" : 
+							"Batch decryption failed.\n");
+					displayHelp = true;
+				}
+			}
+			else if ((args[0].equals("-e") || args[0].equals("-d")) && 
+					options.containsKey("--tree") && options.containsKey("--mac"))
+			{
+				// The manifest of a tree has no room for tags.
+				fail(Metrics.Cause.INVALID, "A directory tree cannot carry a " +
+						"MAC. Use a container with --mac instead.");
+				displayHelp = true;
+			}
+			else if ((args[0].equals("-e") || args[0].equals("-d")) && 
+					options.containsKey("--tree") &&
+					allowOptions(options, "--tree", "--engine", "--threads", 
+							"--workers", "--budget"))
+			{
+				TransformEngine engine = engineFromOptions(options);
+				boolean encrypt = args[0].equals("-e");
+				int workers = 0;
+				long budget = 0;
+				try
+				{
+					workers = Integer.parseInt(options.getOrDefault("--workers",
+							String.valueOf(TreeTransform.DEFAULT_WORKERS)));
+					budget = options.containsKey("--budget") ? 
+							parseSize(options.get("--budget")) : 
+							TreeTransform.DEFAULT_BUDGET;
+				}
+				catch (NumberFormatException e)
+				{
+					// Left invalid, which is reported below.
+				}
+				if (engine == null || workers < 1 || budget < 1 || 
+						budget > Integer.MAX_VALUE)
+				{
+					displayHelp = true;
+				}
+				// Attempt to encrypt or decrypt the directory tree.
+				else if (encrypt ? encryptTree(new File(options.get("--tree")), 
+						new File(args[1]), new File(args[2]), engine, workers, 
+						(int) budget, statusLine()) : 
+						decryptTree(new File(options.get("--tree")), 
+						new File(args[1]), new File(args[2]), engine, workers, 
+						(int) budget, statusLine()))
+				{
+					System.out.println(encrypt ? "Tree encrypted successfully." : 
+							"Tree decrypted successfully.");
+				}
+				else
+				{
+					System.out.println(encrypt ? "Tree encryption failed.\n" : 
+							"Tree decryption failed.\n");
+					displayHelp = true;
+				}
+			}
+			else if (args[0].equals("-d") && options.containsKey("--container") &&
+					allowOptions(options, "--container", "--entry", "--engine", 
+							"--threads"))
+			{
+				TransformEngine engine = engineFromOptions(options);
+				List<String> entries = null;
+				if (options.containsKey("--entry"))
+				{
+					entries = Collections.singletonList(options.get("--entry"));
+				}
+				if (engine == null)
+				{
+					displayHelp = true;
+				}
+				// Attempt to decrypt the container.
+				else if (decryptContainer(new File(options.get("--container")), 
+						new File(args[1]), new File(args[2]), entries, engine))
+				{
+					System.out.println("Container decrypted successfully.");
+				}
+				else
+				{
+					System.out.println("Container decryption failed.\n");
+					displayHelp = true;
+				}
 			}
 			else displayHelp = true;
 		}
 		else if (args.length == 4)
 		{
-			if (args[0].equals("-e"))
+			TransformEngine engine = null;
+			boolean mac = options.containsKey("--mac");
+			if (allowOptions(options, "--engine", "--threads", "--mac") &&
+					!(mac && streaming))
+			{
+				engine = engineFromOptions(options);
+			}
+			if (options.containsKey("--socket") && allowOptions(options, 
+					"--socket") && (args[0].equals("-e") || args[0].equals("-d")))
+			{
+				// Attempt to have a running daemon encrypt or decrypt.
+				boolean encrypt = args[0].equals("-e");
+				if (transformWithDaemon(new File(options.get("--socket")).toPath(),
+						encrypt, args[1], new File(args[2]), args[3]))
+				{
+					System.out.println(encrypt ? "Encrypted successfully." : 
+							"Decrypted successfully.");
+				}
+				else
+				{
+					System.out.println(encrypt ? "Encryption failed." : 
+							"Decryption failed.");
+					System.exit(1);
+				}
+			}
+			else if (engine == null)
+			{
+				displayHelp = true;
+			}
+			else if (streaming && (args[0].equals("-e") || args[0].equals("-d")))
+			{
+				// Attempt to encrypt or decrypt between standard input/output 
+				// and files.
+				if (transformStreams(args[1], new File(args[2]), args[3]))
+				{
+					System.out.println(args[0].equals("-e") ? 
+							"Stream encrypted successfully." : 
+							"Stream decrypted successfully.");
+				}
+				else
+				{
+					// Report the failure to the rest of the pipeline.
+					System.out.println(args[0].equals("-e") ? 
+							"Stream encryption failed." : 
+							"Stream decryption failed.");
+					System.exit(1);
+				}
+			}
+			else if (args[0].equals("-e"))
 			{
 				// Attempt to encrypt the file.
 				if (encryptFile(new File(args[1]), new File (args[2]), 
-						new File (args[3])))
+						new File (args[3]), engine, statusLine(), mac))
 		    	{
 		    		System.out.println("File encrypted successfully.");
 		    	}
@@ -130,7 +505,7 @@ public class Cryptomni
 			{
 				// Attempt to decrypt the file.
 				if (decryptFile(new File(args[1]), new File (args[2]), 
-						new File (args[3])))
+						new File (args[3]), engine, statusLine(), mac))
 		    	{
 		    		System.out.println("File decrypted successfully.");
 		    	}
@@ -155,15 +530,121 @@ public class Cryptomni
 							   "command-line arguments are provided.\n");
 			System.out.println("-i");
 			System.out.println("Display program information.\n");
-			System.out.println("-c <filename> <size>");
+			System.out.println("-c <filename> <size> [--threads <count>] " +
+							   "[--shards <dir>,<dir>,...]\n" +
+							   "   [--source <source>,<source>,...] [--direct]");
 			System.out.println("Create a Cryptomni key with the specified " +
-							   "number of bytes.\n");
-			System.out.println("-e <source file> <key file> <destination file>");
+							   "number of bytes.\nThe size may end in K, M, G or T " +
+							   "(multiples of 1024), for example 64G.\n" +
+							   "--threads sets the number of threads that " +
+							   "generate the key.\n--shards splits the key " +
+							   "into one shard file per listed directory,\n" +
+							   "striped round-robin, and writes a manifest " +
+							   "that is used as the key file.\n" +
+							   "--source chooses where the random bytes come from: " +
+							   "drbg (the default),\ndrbg-pr (with prediction " +
+							   "resistance), securerandom, securerandom:<algorithm>\n" +
+							   "or file:<device or file>. Several sources are " +
+							   "mixed by XORing them.\n" +
+							   "--direct writes with direct I/O, bypassing the " +
+							   "page cache, so that a large key\ndoes not evict " +
+							   "other data from memory.\n");
+			System.out.println("-c --selftest [--source <source>,...] " +
+							   "[--threads <count>]");
+			System.out.println("Measure how fast each entropy source generates " +
+							   "key bytes on this host.\nWithout --source, the " +
+							   "usual sources are measured.\n");
+			System.out.println("-e <source file> <key file> <destination file> " +
+							   "[--mac]");
 			System.out.println("Encrypt a file using the specified Cryptomni " +
-					           "key.\nThe used portion of the key is deleted.\n");
-			System.out.println("-d <encrypted file> <key file> <destination file>");
+					           "key.\nThe used portion of the key is wiped.\n" +
+					           "--mac appends a 16-byte one-time MAC tag, keyed " +
+					           "with 32 more key bytes.\n");
+			System.out.println("-d <encrypted file> <key file> <destination file> " +
+							   "[--mac]");
 			System.out.println("Decrypt a file using the specified Cryptomni " +
-					           "key.\nThe used portion of the key is deleted.\n");
+					           "key.\nThe used portion of the key is wiped.\n" +
+					           "--mac verifies the tag at the end of the file " +
+					           "and fails if it does not\nmatch.\n");
+			System.out.println("Use - as the source or destination of -e and -d " +
+							   "to read from standard\ninput or write to standard " +
+							   "output. The key is consumed as data arrives.\n");
+			System.out.println("-e --batch <manifest|directory> <key file> " +
+							   "<destination directory>");
+			System.out.println("-d --batch <manifest|directory> <key file> " +
+							   "<destination directory>");
+			System.out.println("Encrypt or decrypt many files in one pass. A " +
+							   "manifest lists one file per\nline; a directory " +
+							   "means all files in it, in name order. Decrypt in " +
+							   "the\nsame order the files were encrypted.\n");
+			System.out.println("-e --batch <manifest|directory> --container " +
+							   "<container> <key file> [--mac]");
+			System.out.println("Encrypt many files into a single container that " +
+							   "records where in the key\neach file starts. " +
+							   "--mac stores a MAC tag for every entry, which is\n" +
+							   "verified when the entry is decrypted.\n");
+			System.out.println("-d --container <container> <key file> " +
+							   "<destination directory> [--entry <name>]");
+			System.out.println("Decrypt all entries of a container, or only the " +
+							   "named entry. Containers\nand entries may be " +
+							   "decrypted in any order.\n");
+			System.out.println("-e --tree <directory> <key file> " +
+							   "<destination directory> [--workers <count>]\n" +
+							   "   [--budget <size>]");
+			System.out.println("-d --tree <encrypted directory> <key file> " +
+							   "<destination directory>\n" +
+							   "   [--workers <count>] [--budget <size>]");
+			System.out.println("Encrypt or decrypt every file below a directory, " +
+							   "several files at once.\nEach file gets its own " +
+							   "part of the key, recorded in " + 
+							   TreeTransform.MANIFEST_NAME + "\nat the root of " +
+							   "the encrypted tree. --workers sets the number of " +
+							   "files in\nflight and --budget the total size of " +
+							   "the files in flight (default 256M).\n");
+			System.out.println("-s <socket>");
+			System.out.println("Run as a daemon that serves encrypt and decrypt " +
+							   "requests on a Unix-domain\nsocket, keeping key " +
+							   "files open and the next part of each key in " +
+							   "memory.\n");
+			System.out.println("-e <source> <key file> <destination> --socket " +
+							   "<socket>");
+			System.out.println("-d <source> <key file> <destination> --socket " +
+							   "<socket>");
+			System.out.println("Have the daemon listening on the socket encrypt " +
+							   "or decrypt a message of\nup to 64 MiB. - may be " +
+							   "used as the source or destination.\n");
+			System.out.println("-m <socket>");
+			System.out.println("Print the metrics of the daemon listening on the " +
+							   "socket in the Prometheus\ntext format. The daemon " +
+							   "and the graphical user interface also publish\n" +
+							   "them through JMX as " + Metrics.OBJECT_NAME + ".\n");
+			System.out.println("-w <key file>");
+			System.out.println("Overwrite every used byte of a key, for example " +
+							   "after a program stopped\nbefore its background " +
+							   "wipe finished. The unused part of the key stays " +
+							   "usable.\nKey bytes of container entries or tree " +
+							   "files not yet decrypted are lost.\n");
+			System.out.println("-l <container>");
+			System.out.println("List the entries of a container.\n");
+			System.out.println("-e and -d accept --engine " +
+					           "<stream|mapped|parallel|pipelined> to choose how " +
+					           "the key\nis applied. The default is stream. mapped " +
+					           "memory-maps the files. parallel\nsplits the file " +
+					           "across --threads <count> threads (one per processor " +
+					           "by\ndefault). pipelined overlaps reading, XOR and " +
+					           "writing on separate threads. --mac cannot be used " +
+					           "with\nparallel.\n");
+			System.out.println("Any command accepts --metrics <file>, which writes " +
+							   "the bytes transformed,\nthroughput, time per " +
+							   "phase, failures by cause and key use of the run to\n" +
+							   "the file in the Prometheus text format when it ends.\n");
+			System.out.println("Any command accepts --wipe-passes <count>, which " +
+							   "overwrites used key bytes\nthat many times, with " +
+							   "random bytes and then zeros, and --wipe-rate " +
+							   "<size>,\nwhich overwrites them on a background " +
+							   "thread at up to size bytes per second\n(0 for no " +
+							   "limit) in large batches, instead of before each " +
+							   "message is done.\n");
 		}
 	}
 	
@@ -177,106 +658,1169 @@ public class Cryptomni
 	 */
 	public static boolean createKey (File filename, int byteSize)
 	{
-		// Create random bytes using a cryptographically strong random 
-		// number generator.
-		SecureRandom random  = new SecureRandom();
-		byte[] pseudoRandom = new byte [byteSize];
-		random.nextBytes(pseudoRandom);
-		
-        try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(filename, false)))
-        {
-		// Write random bytes to the file.
-            out.write(pseudoRandom);
-        }
-        catch (IOException e)
-        {
-            // Return false because of the IOException.
-            return false;
-        }
-        // Return true since the operation was successful.
+		return createKey(filename, (long) byteSize);
+	}
+
+	/** 
+	 * Attempts to create a Cryptomni key with the specified number of bytes.
+	 * The key is generated and written in chunks, so its size is limited by
+	 * disk space rather than by the heap.
+	 * 
+	 * @param  filename the location to create the Cryptomni key file.
+	 * @param  byteSize the number of bytes of the Cryptomni key file.
+	 * @return 			a boolean that is true if the Cryptomni key was 
+	 * 					successfully created, or false if an IOException occurred.
+	 */
+	public static boolean createKey (File filename, long byteSize)
+	{
+		return createKey(filename, byteSize, 1);
+	}
+
+	/** 
+	 * Attempts to create a Cryptomni key with the specified number of bytes,
+	 * using several threads that each have their own SecureRandom.
+	 * 
+	 * @param  filename the location to create the Cryptomni key file.
+	 * @param  byteSize the number of bytes of the Cryptomni key file.
+	 * @param  threads  the number of threads that generate the key.
+	 * @return 			a boolean that is true if the Cryptomni key was 
+	 * 					successfully created, or false if an IOException occurred.
+	 */
+	public static boolean createKey (File filename, long byteSize, int threads)
+	{
+		return createKey(filename, byteSize, threads, Progress.NONE);
+	}
+
+	/** 
+	 * Attempts to create a Cryptomni key, reporting to a progress. If the 
+	 * progress is cancelled, the incomplete key file is deleted.
+	 * 
+	 * @param  filename the location to create the Cryptomni key file.
+	 * @param  byteSize the number of bytes of the Cryptomni key file.
+	 * @param  threads  the number of threads that generate the key.
+	 * @param  progress the progress to report to.
+	 * @return 			a boolean that is true if the Cryptomni key was 
+	 * 					successfully created, or false if an IOException occurred
+	 * 					or the progress was cancelled.
+	 */
+	public static boolean createKey (File filename, long byteSize, int threads,
+			Progress progress)
+	{
+		return createKey(filename, byteSize, threads, EntropySource.DEFAULT,
+				progress);
+	}
+
+	/** 
+	 * Attempts to create a Cryptomni key from the given entropy source, 
+	 * reporting to a progress. If the progress is cancelled, the incomplete 
+	 * key file is deleted.
+	 * 
+	 * @param  filename the location to create the Cryptomni key file.
+	 * @param  byteSize the number of bytes of the Cryptomni key file.
+	 * @param  threads  the number of threads that generate the key.
+	 * @param  source   where the random bytes come from.
+	 * @param  progress the progress to report to.
+	 * @return 			a boolean that is true if the Cryptomni key was 
+	 * 					successfully created, or false if an IOException occurred
+	 * 					or the progress was cancelled.
+	 */
+	public static boolean createKey (File filename, long byteSize, int threads,
+			EntropySource source, Progress progress)
+	{
+		if (threads < 1)
+		{
+			return false;
+		}
+		return createKey(filename, byteSize, new KeyGenerator(threads, source),
+				progress);
+	}
+
+	/** 
+	 * Attempts to create a Cryptomni key with the given key generator, 
+	 * reporting to a progress. If the progress is cancelled, the incomplete 
+	 * key file is deleted.
+	 * 
+	 * @param  filename  the location to create the Cryptomni key file.
+	 * @param  byteSize  the number of bytes of the Cryptomni key file.
+	 * @param  generator the key generator, which may write with direct I/O.
+	 * @param  progress  the progress to report to.
+	 * @return 			 a boolean that is true if the Cryptomni key was 
+	 * 					 successfully created, or false if an IOException 
+	 * 					 occurred or the progress was cancelled.
+	 */
+	public static boolean createKey (File filename, long byteSize,
+			KeyGenerator generator, Progress progress)
+	{
+		if (byteSize < 0)
+		{
+			return false;
+		}
+		progress.start(byteSize);
+		try
+		{
+			generator.generate(filename, byteSize, progress);
+		}
+		catch (IOException e)
+		{
+			if (!(e instanceof InterruptedIOException))
+			{
+				fail(e);
+			}
+			// A partial key must not be mistaken for a complete one.
+			filename.delete();
+			return false;
+		}
+		finally
+		{
+			progress.finish();
+		}
+		// Return true since the operation was successful.
+		return true;
+	}
+
+	/** 
+	 * Attempts to create a sharded Cryptomni key, with one shard in each of 
+	 * the given directories. The manifest can then be used anywhere a key 
+	 * file is expected.
+	 * 
+	 * @param  manifest    the location to write the manifest.
+	 * @param  byteSize    the total number of key bytes.
+	 * @param  directories the directories of the shards, in stripe order.
+	 * @param  threads     the number of threads that generate each shard.
+	 * @return 			   a boolean that is true if the sharded key was 
+	 * 					   successfully created, or false if an IOException 
+	 * 					   occurred.
+	 */
+	public static boolean createShardedKey (File manifest, long byteSize,
+			List<File> directories, int threads)
+	{
+		return createShardedKey(manifest, byteSize, directories, threads,
+				Progress.NONE);
+	}
+
+	/** 
+	 * Attempts to create a sharded Cryptomni key, reporting to a progress. If 
+	 * the progress is cancelled, the shards written so far are deleted.
+	 * 
+	 * @param  manifest    the location to write the manifest.
+	 * @param  byteSize    the total number of key bytes.
+	 * @param  directories the directories of the shards, in stripe order.
+	 * @param  threads     the number of threads that generate each shard.
+	 * @param  progress    the progress to report to.
+	 * @return 			   a boolean that is true if the sharded key was 
+	 * 					   successfully created.
+	 */
+	public static boolean createShardedKey (File manifest, long byteSize,
+			List<File> directories, int threads, Progress progress)
+	{
+		return createShardedKey(manifest, byteSize, directories, threads,
+				EntropySource.DEFAULT, progress);
+	}
+
+	/** 
+	 * Attempts to create a sharded Cryptomni key from the given entropy 
+	 * source, reporting to a progress.
+	 * 
+	 * @param  manifest    the location to write the manifest.
+	 * @param  byteSize    the total number of key bytes.
+	 * @param  directories the directories of the shards, in stripe order.
+	 * @param  threads     the number of threads that generate each shard.
+	 * @param  source      where the random bytes come from.
+	 * @param  progress    the progress to report to.
+	 * @return 			   a boolean that is true if the sharded key was 
+	 * 					   successfully created.
+	 */
+	public static boolean createShardedKey (File manifest, long byteSize,
+			List<File> directories, int threads, EntropySource source,
+			Progress progress)
+	{
+		if (threads < 1)
+		{
+			return false;
+		}
+		return createShardedKey(manifest, byteSize, directories,
+				new KeyGenerator(threads, source), progress);
+	}
+
+	/** 
+	 * Attempts to create a sharded Cryptomni key with the given key 
+	 * generator, reporting to a progress.
+	 * 
+	 * @param  manifest    the location to write the manifest.
+	 * @param  byteSize    the total number of key bytes.
+	 * @param  directories the directories of the shards, in stripe order.
+	 * @param  generator   the key generator of every shard.
+	 * @param  progress    the progress to report to.
+	 * @return 			   a boolean that is true if the sharded key was 
+	 * 					   successfully created.
+	 */
+	public static boolean createShardedKey (File manifest, long byteSize,
+			List<File> directories, KeyGenerator generator, Progress progress)
+	{
+		if (byteSize < 0 || directories.isEmpty())
+		{
+			return false;
+		}
+		progress.start(byteSize);
+		try
+		{
+			ShardedKeyStore.create(manifest, byteSize, directories, generator,
+					progress);
+		}
+		catch (IOException e)
+		{
+			fail(e);
+			return false;
+		}
+		finally
+		{
+			progress.finish();
+		}
+		return true;
+	}
+
+	/** 
+	 * Attempts to overwrite every used byte of a Cryptomni key, including 
+	 * bytes that a program stopped before wiping. The unused part of the key 
+	 * stays usable. Key bytes of container entries or tree files that have 
+	 * not been decrypted yet count as used and are lost.
+	 * 
+	 * @param  keyFile  the Cryptomni key file.
+	 * @param  passes   the number of times each byte is overwritten.
+	 * @param  progress the progress to report to.
+	 * @return 			a boolean that is true if the used key bytes were 
+	 * 					wiped, or false if an IOException occurred or the 
+	 * 					progress was cancelled.
+	 */
+	public static boolean wipeUsedKey (File keyFile, int passes, 
+			Progress progress)
+	{
+		try (KeyPad pad = KeyPad.open(keyFile))
+		{
+			pad.setWipe(passes, KeyPad.FOREGROUND_WIPE);
+			long used = pad.offset();
+			progress.start(used);
+			for (long position = 0; position < used; position += WIPE_CHUNK_SIZE)
+			{
+				long bytes = Math.min(WIPE_CHUNK_SIZE, used - position);
+				pad.wipe(position, bytes);
+				progress.advance(bytes);
+			}
+		}
+		catch (IOException e)
+		{
+			if (!(e instanceof InterruptedIOException))
+			{
+				fail(e);
+			}
+			return false;
+		}
+		finally
+		{
+			progress.finish();
+		}
 		return true;
 	}
+
+	// Returns the sources a self-test measures for a --source option: each
+	// source of a mix, then the mix itself.
+	private static List<EntropySource> selfTestSources (EntropySource source)
+	{
+		List<EntropySource> sources = new ArrayList<EntropySource>(source.parts());
+		if (sources.size() > 1)
+		{
+			sources.add(source);
+		}
+		return sources;
+	}
+
+	// Generates SELF_TEST_SIZE bytes from each source without writing them
+	// and prints how fast each was, after a short warm-up so that the first
+	// source is not measured while the JIT compiler is still at work. A
+	// source that fails is reported and skipped.
+	private static void selfTest (List<EntropySource> sources, int threads)
+	{
+		System.out.println("Generating " + (SELF_TEST_SIZE >> 20) + " MiB from " +
+				"each source with " + threads + 
+				(threads == 1 ? " thread." : " threads."));
+		for (EntropySource source : sources)
+		{
+			String rate;
+			try
+			{
+				KeyGenerator generator = new KeyGenerator(threads, source);
+				generator.measure(SELF_TEST_SIZE / 16);
+				rate = String.format(Locale.ROOT, "%.1f MiB/s", 
+						generator.measure(SELF_TEST_SIZE) / 1048576);
+			}
+			catch (IOException e)
+			{
+				rate = "failed: " + e.getMessage();
+			}
+			System.out.println(String.format(Locale.ROOT, "  %-40s %s", 
+					source.name(), rate));
+		}
+	}
+
+	// Returns a progress that prints a status line to standard error about
+	// once a second and that is cancelled by Ctrl-C. The shutdown hook waits
+	// for a running operation to clean up, so that the key is rolled back
+	// before the JVM exits.
+	private static Progress statusLine ()
+	{
+		final CancellationToken token = new CancellationToken();
+		final StatusLine statusLine = new StatusLine();
+		final Progress progress = new Progress(statusLine, token);
+		Runtime.getRuntime().addShutdownHook(new Thread()
+		{
+			public void run ()
+			{
+				token.cancel();
+				if (progress.total() > 0)
+				{
+					statusLine.awaitFinish(30000);
+				}
+			}
+		});
+		return progress;
+	}
+
+	// Prints progress reports on one line of standard error, which stays
+	// free of the data when standard output is used for it. Short operations
+	// print nothing.
+	private static class StatusLine implements ProgressListener
+	{
+		private static final long INTERVAL_MILLIS = 1000;
+
+		private long nextPrint = System.currentTimeMillis() + INTERVAL_MILLIS;
+		private boolean printed, finished;
+
+		public synchronized void progressed (Progress progress)
+		{
+			long now = System.currentTimeMillis();
+			if (progress.isFinished())
+			{
+				if (printed)
+				{
+					System.err.println("\r" + progress + "   ");
+				}
+				if (progress.isCancelled())
+				{
+					System.err.println("Cancelled.");
+				}
+				finished = true;
+				notifyAll();
+			}
+			else if (now >= nextPrint)
+			{
+				System.err.print("\r" + progress + "   ");
+				printed = true;
+				nextPrint = now + INTERVAL_MILLIS;
+			}
+		}
+
+		// Waits until the final report has been printed.
+		synchronized void awaitFinish (long millis)
+		{
+			long deadline = System.currentTimeMillis() + millis;
+			long wait;
+			while (!finished && (wait = deadline - System.currentTimeMillis()) > 0)
+			{
+				try
+				{
+					wait(wait);
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+			}
+		}
+	}
+
+	// Writes the metrics to a file when the JVM exits. The file is replaced
+	// in one step, so a collector never reads half of it.
+	private static void writeMetricsOnExit (final File file)
+	{
+		Runtime.getRuntime().addShutdownHook(new Thread()
+		{
+			public void run ()
+			{
+				File temporary = new File(file.getPath() + ".tmp");
+				try
+				{
+					Files.write(temporary.toPath(), Metrics.shared()
+							.prometheusText().getBytes(StandardCharsets.UTF_8));
+					Files.move(temporary.toPath(), file.toPath(),
+							StandardCopyOption.REPLACE_EXISTING,
+							StandardCopyOption.ATOMIC_MOVE);
+				}
+				catch (IOException e)
+				{
+					System.err.println("Error: Could not write the metrics: " +
+							e.getMessage());
+				}
+			}
+		});
+	}
+
+	// Reports an error on standard error and counts it in the metrics.
+	private static void fail (Metrics.Cause cause, String message)
+	{
+		Metrics.shared().failed(cause);
+		System.err.println("Error: " + message);
+	}
+
+	private static void fail (IOException e)
+	{
+		fail(Metrics.Cause.of(e), e.getMessage());
+	}
+
+	// Moves every "--name value" pair from args into options and returns the
+	// remaining arguments. Flags, and an option at the end without a value,
+	// are given an empty value.
+	private static String[] parseOptions (String[] args, Map<String, String> options)
+	{
+		List<String> remaining = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++)
+		{
+			if (FLAGS.contains(args[i]))
+			{
+				options.put(args[i], "");
+			}
+			else if (args[i].startsWith("--"))
+			{
+				options.put(args[i], i + 1 < args.length ? args[++i] : "");
+			}
+			else
+			{
+				remaining.add(args[i]);
+			}
+		}
+		return remaining.toArray(new String[remaining.size()]);
+	}
+
+	// Returns the transform engine named by the --engine option, or null if
+	// the options are not valid. --threads sets the parallelism of the
+	// parallel engine.
+	private static TransformEngine engineFromOptions (Map<String, String> options)
+	{
+		try
+		{
+			String name = options.getOrDefault("--engine", "stream");
+			if (options.containsKey("--threads"))
+			{
+				if (!name.equals("parallel"))
+				{
+					throw new IllegalArgumentException(
+							"--threads requires --engine parallel");
+				}
+				return new ParallelEngine(Integer.parseInt(options.get("--threads")));
+			}
+			return TransformEngine.forName(name);
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.out.println(e.getMessage() + "\n");
+			return null;
+		}
+	}
+
+	// Returns true if every option given is one of the allowed options.
+	private static boolean allowOptions (Map<String, String> options, String... allowed)
+	{
+		return Arrays.asList(allowed).containsAll(options.keySet());
+	}
+
+	/**
+	 * Parses a size in bytes. The size may end in K, M, G or T (optionally 
+	 * followed by "iB" or "B"), which multiply it by powers of 1024.
+	 * 
+	 * @param  size the size to parse, for example "4096" or "64G".
+	 * @return 		the number of bytes.
+	 * @throws NumberFormatException if the size is not valid.
+	 */
+	public static long parseSize (String size)
+	{
+		String s = size.trim().toUpperCase(Locale.ROOT);
+		if (s.endsWith("IB"))
+		{
+			s = s.substring(0, s.length() - 2);
+		}
+		else if (s.endsWith("B"))
+		{
+			s = s.substring(0, s.length() - 1);
+		}
+		int shift = 0;
+		if (!s.isEmpty())
+		{
+			int unit = "KMGT".indexOf(s.charAt(s.length() - 1));
+			if (unit >= 0)
+			{
+				shift = 10 * (unit + 1);
+				s = s.substring(0, s.length() - 1);
+			}
+		}
+		long value = Long.parseLong(s);
+		if (value < 0 || value > (Long.MAX_VALUE >> shift))
+		{
+			throw new NumberFormatException("Invalid size: " + size);
+		}
+		return value << shift;
+	}
 	
-	private static boolean transformFile(File inputFile, File keyFile, File outputFile) {
-        if (inputFile.length() > keyFile.length()) {
-            System.err.println("Error: Key file is shorter than the input file. Aborting.");
-            return false;
+	// Transforms one file with its own range of the key. If the transform
+	// fails or the progress is cancelled, the output is deleted and the key
+	// range is rolled back: the part that may have been used is committed
+	// and the rest is given back.
+	// With ADD_MAC the output ends with the tag of a one-time MAC, and with
+	// CHECK_MAC the input must end with one, which is verified.
+	private static boolean transformFile(File inputFile, File keyFile, File outputFile,
+            TransformEngine engine, Progress progress, int mac) {
+        long start = System.nanoTime();
+        progress.start(inputFile.length());
+        try {
+            boolean transformed = transformFileWithKey(inputFile, keyFile, outputFile,
+                    engine, progress, mac);
+            if (transformed) {
+                Metrics.shared().transformed(Metrics.Operation.FILE, inputFile.length(),
+                        System.nanoTime() - start);
+            }
+            return transformed;
+        } finally {
+            progress.finish();
         }
+    }
 
-        final int BUFFER_SIZE = 8192;
-        try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(inputFile));
-             BufferedInputStream key = new BufferedInputStream(new FileInputStream(keyFile));
-             BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile, false))) {
-
-            byte[] inputBuffer = new byte[BUFFER_SIZE];
-            byte[] keyBuffer = new byte[BUFFER_SIZE];
-            int bytesRead;
+    private static boolean transformFileWithKey(File inputFile, File keyFile,
+            File outputFile, TransformEngine engine, Progress progress, int mac) {
+        if (mac != NO_MAC && !engine.supportsMac()) {
+            fail(Metrics.Cause.INVALID, "The " + engine.name() + " engine cannot compute a MAC.");
+            return false;
+        }
+        // The key of the MAC comes right before the key of the data.
+        int macKeySize = mac == NO_MAC ? 0 : OneTimeMac.KEY_SIZE;
+        int tagSize = mac == CHECK_MAC ? OneTimeMac.TAG_SIZE : 0;
+        if (inputFile.length() < tagSize) {
+            fail(Metrics.Cause.INVALID, "The file is too short to carry a MAC.");
+            return false;
+        }
+        // Progress.NONE counts nothing, but the count tells a failed transform
+        // which key bytes were used.
+        if (progress == Progress.NONE) {
+            progress = new Progress(null, null);
+        }
+        // The key pad is shared with other threads of this JVM that use the
+        // same key, and each transform gets its own range of it.
+        try (KeyPadManager.Handle pad = KeyPadManager.open(keyFile)) {
+            long reserved = inputFile.length() - tagSize + macKeySize;
+            long keyPosition;
+            try {
+                keyPosition = pad.reserve(reserved);
+            } catch (EOFException e) {
+                fail(Metrics.Cause.KEY_EXHAUSTED, "Key file is shorter than the input file. Aborting.");
+                return false;
+            }
 
-            while ((bytesRead = in.read(inputBuffer)) != -1) {
-                int keyBytesRead = key.read(keyBuffer, 0, bytesRead);
-                if (keyBytesRead < bytesRead) {
-                    System.err.println("Error: Key stream ended prematurely. This should not happen.");
-                    out.close();
-                    outputFile.delete();
-                    return false;
+            boolean verified = true;
+            try (FileChannel in = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(outputFile.toPath(), StandardOpenOption.READ,
+                         StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                long dataLength = in.size() - tagSize;
+                if (dataLength + macKeySize > reserved) {
+                    // Never read past the range reserved for this file.
+                    throw new IOException("The input file grew.");
                 }
-
-                byte[] outputBuffer = new byte[bytesRead];
-                for (int i = 0; i < bytesRead; i++) {
-                    outputBuffer[i] = (byte) (inputBuffer[i] ^ keyBuffer[i]);
+                OneTimeMac oneTimeMac = null;
+                if (mac == ADD_MAC) {
+                    oneTimeMac = OneTimeMac.forEncryption(pad.channel(), keyPosition);
+                } else if (mac == CHECK_MAC) {
+                    oneTimeMac = OneTimeMac.forDecryption(pad.channel(), keyPosition);
+                }
+                engine.transform(in, 0, pad.channel(), keyPosition + macKeySize, out, 0,
+                        dataLength, progress, oneTimeMac);
+                if (mac == ADD_MAC) {
+                    ChannelIO.writeFully(out, ByteBuffer.wrap(oneTimeMac.tag()), dataLength);
+                } else if (mac == CHECK_MAC) {
+                    ByteBuffer tag = ByteBuffer.allocate(OneTimeMac.TAG_SIZE);
+                    ChannelIO.readFully(in, tag, dataLength);
+                    verified = oneTimeMac.verify(tag.array());
                 }
-                out.write(outputBuffer, 0, bytesRead);
+            } catch (IOException e) {
+                if (e instanceof InterruptedIOException) {
+                    Metrics.shared().failed(Metrics.Cause.CANCELLED);
+                } else if (e instanceof EOFException) {
+                    fail(Metrics.Cause.IO, "Key stream ended prematurely. This should not happen.");
+                } else {
+                    fail(e);
+                }
+                outputFile.delete();
+                // Key bytes the engine may have used are never handed out
+                // again, whether the transform was cancelled or failed.
+                pad.rollback(keyPosition, reserved, engine.inOrder() ?
+                        macKeySize + progress.done() : reserved);
+                return false;
+            }
+
+            // Mark the used part of the key as consumed. Only the used range is
+            // touched, so this does not depend on the size of the rest of the key.
+            pad.commit(keyPosition, reserved);
+            if (!verified) {
+                // The key stays consumed, because the file may be a damaged
+                // copy of one that really was encrypted with it.
+                fail(Metrics.Cause.MAC_MISMATCH, "The MAC does not match. The file is " +
+                        "damaged, truncated or was encrypted with another key.");
+                outputFile.delete();
+                return false;
             }
         } catch (IOException e) {
-            outputFile.delete();
+            fail(e);
+            return false;
+        }
+        return true;
+    }
+
+	// Transforms several files with consecutive ranges of one key. The key
+	// is opened once and its consumption is committed once at the end, so the
+	// cost per file is only opening the input and output. If any file fails,
+	// every output of the batch is deleted. A failed or cancelled batch is
+	// rolled back like a single file: the key that may have been used is
+	// committed and the rest is given back.
+	private static boolean transformFiles(List<File> inputFiles, File keyFile,
+            File outputDirectory, TransformEngine engine, Progress progress) {
+        // Output files are named after their inputs, so names must be unique.
+        Set<String> names = new HashSet<String>();
+        long totalLength = 0;
+        for (File inputFile : inputFiles) {
+            if (!names.add(inputFile.getName())) {
+                fail(Metrics.Cause.INVALID, "Two files in the batch are named " +
+                        inputFile.getName() + ". Aborting.");
+                return false;
+            }
+            totalLength += inputFile.length();
+        }
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            fail(Metrics.Cause.IO, "Cannot create " + outputDirectory);
             return false;
         }
 
-        // Shrink or delete the key
+        long start = System.nanoTime();
+        progress.start(totalLength);
         try {
-            long inputLength = inputFile.length();
-            long keyLength = keyFile.length();
-
-            if (inputLength < keyLength) {
-                try (RandomAccessFile raf = new RandomAccessFile(keyFile, "rw")) {
-                    FileChannel channel = raf.getChannel();
-                    long newSize = keyLength - inputLength;
-
-                    ByteBuffer buffer = ByteBuffer.allocate(8192);
-                    long readPos = inputLength;
-                    long writePos = 0;
-
-                    while (readPos < keyLength) {
-                        buffer.clear();
-                        int bytesRead = channel.read(buffer, readPos);
-                        if (bytesRead <= 0) {
-                            break;
+            boolean transformed = transformFilesWithKey(inputFiles, keyFile,
+                    outputDirectory, engine, progress, totalLength);
+            if (transformed) {
+                Metrics.shared().transformed(Metrics.Operation.BATCH, totalLength,
+                        System.nanoTime() - start);
+            }
+            return transformed;
+        } finally {
+            progress.finish();
+        }
+    }
+
+    private static boolean transformFilesWithKey(List<File> inputFiles, File keyFile,
+            File outputDirectory, TransformEngine engine, Progress progress,
+            long totalLength) {
+        // Progress.NONE counts nothing, but the count tells a failed batch
+        // which key bytes were used.
+        if (progress == Progress.NONE) {
+            progress = new Progress(null, null);
+        }
+        try (KeyPadManager.Handle pad = KeyPadManager.open(keyFile)) {
+            long firstPosition;
+            try {
+                firstPosition = pad.reserve(totalLength);
+            } catch (EOFException e) {
+                fail(Metrics.Cause.KEY_EXHAUSTED, "Key file is shorter than the batch. Aborting.");
+                return false;
+            }
+
+            List<File> outputFiles = new ArrayList<File>();
+            long keyPosition = firstPosition;
+            File current = null;
+            try {
+                for (File inputFile : inputFiles) {
+                    current = inputFile;
+                    File outputFile = new File(outputDirectory, inputFile.getName());
+                    outputFiles.add(outputFile);
+                    try (FileChannel in = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ);
+                         FileChannel out = FileChannel.open(outputFile.toPath(), StandardOpenOption.READ,
+                                 StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                                 StandardOpenOption.TRUNCATE_EXISTING)) {
+                        long length = in.size();
+                        if (keyPosition + length > firstPosition + totalLength) {
+                            throw new EOFException("The file grew, so the key reserved " +
+                                    "for the batch ran out.");
                         }
-                        buffer.flip();
-                        int bytesWritten = channel.write(buffer, writePos);
-                        readPos += bytesWritten;
-                        writePos += bytesWritten;
+                        engine.transform(in, pad.channel(), keyPosition, out, length,
+                                progress);
+                        keyPosition += length;
                     }
-                    channel.truncate(newSize);
                 }
+            } catch (IOException e) {
+                for (File outputFile : outputFiles) {
+                    outputFile.delete();
+                }
+                if (e instanceof InterruptedIOException) {
+                    Metrics.shared().failed(Metrics.Cause.CANCELLED);
+                } else {
+                    fail(Metrics.Cause.of(e), "Could not transform " + current + ": " +
+                            (e.getMessage() == null ? e.toString() : e.getMessage()));
+                }
+                // Whatever ended the batch, the key bytes that may have been
+                // used are never handed out again.
+                pad.rollback(firstPosition, totalLength, engine.inOrder() ?
+                        progress.done() : totalLength);
+                return false;
+            }
+
+            // Commit the key used by the whole batch at once.
+            pad.commit(firstPosition, totalLength);
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+        return true;
+    }
+
+    // Returns the files listed in a manifest, one per line, or the regular
+    // files in a directory sorted by name. Blank manifest lines and lines
+    // starting with # are skipped, and relative paths are resolved against
+    // the directory of the manifest.
+    private static List<File> readBatch(File manifestOrDirectory) throws IOException {
+        List<File> files = new ArrayList<File>();
+        if (manifestOrDirectory.isDirectory()) {
+            File[] entries = manifestOrDirectory.listFiles();
+            if (entries == null) {
+                throw new IOException("Cannot list " + manifestOrDirectory);
+            }
+            Arrays.sort(entries);
+            for (File entry : entries) {
+                if (entry.isFile()) {
+                    files.add(entry);
+                }
+            }
+            return files;
+        }
+        File base = manifestOrDirectory.getAbsoluteFile().getParentFile();
+        for (String line : Files.readAllLines(manifestOrDirectory.toPath(),
+                StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            File file = new File(line);
+            files.add(file.isAbsolute() ? file : new File(base, line));
+        }
+        return files;
+    }
+
+    // Transforms between named files and standard input/output, where "-"
+    // names standard input or standard output. A partial output file is
+    // deleted if the transform fails.
+    private static boolean transformStreams(String input, File keyFile, String output) {
+        boolean transformed = false;
+        try (InputStream in = input.equals("-") ? new FileInputStream(FileDescriptor.in)
+                    : new FileInputStream(input);
+             OutputStream out = output.equals("-") ? new FileOutputStream(FileDescriptor.out)
+                    : new FileOutputStream(output, false)) {
+            transformed = transformStream(in, keyFile, out);
+        } catch (IOException e) {
+            fail(e);
+        }
+        if (!transformed && !output.equals("-")) {
+            new File(output).delete();
+        }
+        return transformed;
+    }
+
+    // Runs a daemon on the socket until the process is stopped.
+    private static boolean runDaemon(Path socket) {
+        final CryptomniDaemon daemon = new CryptomniDaemon(socket);
+        Metrics.shared().register();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                try {
+                    daemon.close();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+        try {
+            daemon.bind();
+            System.out.println("Listening on " + socket + ".");
+            daemon.run();
+            return true;
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+    }
+
+    // Sends one message to a daemon and writes the result, where "-" names
+    // standard input or standard output. Nothing is written if the daemon
+    // reports an error.
+    private static boolean transformWithDaemon(Path socket, boolean encrypt, String input,
+            File keyFile, String output) {
+        try (DaemonClient client = new DaemonClient(socket)) {
+            byte[] data = input.equals("-") ? System.in.readAllBytes()
+                    : Files.readAllBytes(new File(input).toPath());
+            byte[] result = encrypt ? client.encrypt(keyFile, data)
+                    : client.decrypt(keyFile, data);
+            if (output.equals("-")) {
+                OutputStream out = new FileOutputStream(FileDescriptor.out);
+                out.write(result);
+                out.flush();
             } else {
-                // If the key is used up exactly, delete it.
-                keyFile.delete();
+                Files.write(new File(output).toPath(), result);
             }
+            return true;
         } catch (IOException e) {
-            // If shrinking fails, the key might be in a corrupted state.
+            fail(e);
+            return false;
+        }
+    }
+
+    // Transforms everything read from in and writes it to out through a
+    // OneTimePadOutputStream, which consumes each chunk's key bytes before
+    // the chunk is written. Output that has left the program is therefore
+    // never produced from key bytes that still look unused. The length of
+    // the input does not need to be known in advance.
+    private static boolean transformStream(InputStream in, File keyFile, OutputStream out)
+            throws IOException {
+        long start = System.nanoTime();
+        long total = 0;
+        try (KeyPad pad = KeyPad.open(keyFile)) {
+            // Read the key ahead while waiting for input.
+            pad.prefetch(KeyPad.DEFAULT_PREFETCH_SIZE);
+            OutputStream padOut = new OneTimePadOutputStream(out, pad);
+            byte[] data = new byte[STREAM_BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = in.read(data)) != -1) {
+                padOut.write(data, 0, bytesRead);
+                total += bytesRead;
+            }
+            padOut.flush();
+        } catch (EOFException e) {
+            fail(Metrics.Cause.KEY_EXHAUSTED, "The key ran out before the end of the input.");
             return false;
         }
+        Metrics.shared().transformed(Metrics.Operation.STREAM, total,
+                System.nanoTime() - start);
         return true;
     }
 
+	/** 
+	 * Encrypts everything read from a stream, such as standard input, and 
+	 * writes it to another stream. The key is consumed as the bytes arrive, 
+	 * so the length of the input does not need to be known in advance. If 
+	 * the key runs out, the output written so far is left in place and false 
+	 * is returned.
+	 * 
+	 * @param  source      the stream to encrypt.
+	 * @param  keyFile     the Cryptomni key file.
+	 * @param  destination the stream to write the encrypted bytes to.
+	 * @return 			   true if the whole stream was encrypted.
+	 */
+	public static boolean encryptStream (InputStream source, File keyFile,
+			OutputStream destination) {
+		try {
+			return transformStream(source, keyFile, destination);
+		} catch (IOException e) {
+			fail(e);
+			return false;
+		}
+	}
+
+	/** 
+	 * Decrypts everything read from a stream and writes it to another 
+	 * stream, consuming the key as the bytes arrive.
+	 * 
+	 * @param  source      the stream to decrypt.
+	 * @param  keyFile     the Cryptomni key file.
+	 * @param  destination the stream to write the decrypted bytes to.
+	 * @return 			   true if the whole stream was decrypted.
+	 */
+	public static boolean decryptStream (InputStream source, File keyFile,
+			OutputStream destination) {
+		try {
+			return transformStream(source, keyFile, destination);
+		} catch (IOException e) {
+			fail(e);
+			return false;
+		}
+	}
+
+	/** 
+	 * Encrypts several files with consecutive ranges of one key. The 
+	 * encrypted files are written to the destination directory under the 
+	 * names of the source files. They must be decrypted in the same order.
+	 * 
+	 * @param  sourceFiles          the files to encrypt.
+	 * @param  keyFile              the Cryptomni key file.
+	 * @param  destinationDirectory the directory to write the encrypted files to.
+	 * @param  engine               the engine that applies the key.
+	 * @return 				        true if every file was encrypted.
+	 */
+	public static boolean encryptFiles (List<File> sourceFiles, File keyFile,
+			File destinationDirectory, TransformEngine engine) {
+		return transformFiles(sourceFiles, keyFile, destinationDirectory, engine,
+				Progress.NONE);
+	}
+
+	/** 
+	 * Decrypts several files with consecutive ranges of one key, in the 
+	 * order they were encrypted.
+	 * 
+	 * @param  encryptedFiles       the files to decrypt.
+	 * @param  keyFile              the Cryptomni key file.
+	 * @param  destinationDirectory the directory to write the decrypted files to.
+	 * @param  engine               the engine that applies the key.
+	 * @return 				        true if every file was decrypted.
+	 */
+	public static boolean decryptFiles (List<File> encryptedFiles, File keyFile,
+			File destinationDirectory, TransformEngine engine) {
+		return transformFiles(encryptedFiles, keyFile, destinationDirectory, engine,
+				Progress.NONE);
+	}
+
+	/** 
+	 * Encrypts several files into a single container. The container records 
+	 * which key bytes each file was encrypted with, so its entries can later 
+	 * be decrypted one at a time and in any order.
+	 * 
+	 * @param  sourceFiles   the files to encrypt. Their names must be unique.
+	 * @param  keyFile       the Cryptomni key file.
+	 * @param  containerFile the location to write the container.
+	 * @param  engine        the engine that applies the key.
+	 * @return 				 true if the container was written.
+	 */
+	public static boolean encryptContainer (List<File> sourceFiles, File keyFile,
+			File containerFile, TransformEngine engine) {
+		return encryptContainer(sourceFiles, keyFile, containerFile, engine, false);
+	}
+
+	/** 
+	 * Encrypts files into a single container, optionally storing a one-time 
+	 * MAC tag for every entry. Tagged entries are verified when decrypted.
+	 * 
+	 * @param  sourceFiles   the files to encrypt.
+	 * @param  keyFile       the Cryptomni key file.
+	 * @param  containerFile the location to write the container.
+	 * @param  engine        the engine that applies the key.
+	 * @param  mac           true to store a MAC tag for every entry.
+	 * @return 				 true if the container was written.
+	 */
+	public static boolean encryptContainer (List<File> sourceFiles, File keyFile,
+			File containerFile, TransformEngine engine, boolean mac) {
+		try (KeyPad pad = KeyPad.open(keyFile)) {
+			Container.create(sourceFiles, pad, containerFile, engine, mac);
+		} catch (IOException e) {
+			fail(e);
+			return false;
+		}
+		return true;
+	}
+
+	/** 
+	 * Encrypts every file below a directory into another directory, several 
+	 * files at once. Each file is encrypted with its own range of the key, 
+	 * and a manifest of the ranges is written at the root of the encrypted 
+	 * tree.
+	 * 
+	 * @param  sourceDirectory      the directory to encrypt.
+	 * @param  keyFile              the Cryptomni key file.
+	 * @param  destinationDirectory the directory to write the encrypted tree to.
+	 * @param  engine               the engine that applies the key.
+	 * @param  workers              the number of files encrypted at once.
+	 * @param  budget               the number of bytes of files in flight at once.
+	 * @param  progress             the progress to report to.
+	 * @return 				        true if every file was encrypted.
+	 */
+	public static boolean encryptTree (File sourceDirectory, File keyFile,
+			File destinationDirectory, TransformEngine engine, int workers,
+			int budget, Progress progress) {
+		try {
+			new TreeTransform(engine, workers, budget).encrypt(sourceDirectory,
+					keyFile, destinationDirectory, progress);
+		} catch (IOException e) {
+			fail(e);
+			return false;
+		}
+		return true;
+	}
+
+	/** 
+	 * Decrypts a directory tree encrypted by {@link #encryptTree} into 
+	 * another directory, several files at once.
+	 * 
+	 * @param  encryptedDirectory   the root of the encrypted tree.
+	 * @param  keyFile              the Cryptomni key file.
+	 * @param  destinationDirectory the directory to write the decrypted tree to.
+	 * @param  engine               the engine that applies the key.
+	 * @param  workers              the number of files decrypted at once.
+	 * @param  budget               the number of bytes of files in flight at once.
+	 * @param  progress             the progress to report to.
+	 * @return 				        true if every file was decrypted.
+	 */
+	public static boolean decryptTree (File encryptedDirectory, File keyFile,
+			File destinationDirectory, TransformEngine engine, int workers,
+			int budget, Progress progress) {
+		try {
+			new TreeTransform(engine, workers, budget).decrypt(encryptedDirectory,
+					keyFile, destinationDirectory, progress);
+		} catch (IOException e) {
+			fail(e);
+			return false;
+		}
+		return true;
+	}
+
+	/** 
+	 * Decrypts entries of a container. Only the key bytes of the requested 
+	 * entries are read, so one entry of a large container can be decrypted 
+	 * without touching the others.
+	 * 
+	 * @param  containerFile        the container.
+	 * @param  keyFile              the Cryptomni key file.
+	 * @param  destinationDirectory the directory to write the decrypted entries to.
+	 * @param  entryNames           the entries to decrypt, or null for all entries.
+	 * @param  engine               the engine that applies the key.
+	 * @return 				        true if the entries were decrypted.
+	 */
+	public static boolean decryptContainer (File containerFile, File keyFile,
+			File destinationDirectory, List<String> entryNames, 
+			TransformEngine engine) {
+		try (KeyPad pad = KeyPad.open(keyFile)) {
+			Container.extract(containerFile, pad, entryNames, destinationDirectory,
+					engine);
+		} catch (IOException e) {
+			fail(e);
+			return false;
+		}
+		return true;
+	}
+
 	public static boolean encryptFile (File sourceFile, File keyFile,
 			File destinationFile) {
-		return transformFile(sourceFile, keyFile, destinationFile);
+		return encryptFile(sourceFile, keyFile, destinationFile,
+				TransformEngine.DEFAULT);
+	}
+
+	/** 
+	 * Encrypts a file with the specified transform engine.
+	 * 
+	 * @param  sourceFile      the file to encrypt.
+	 * @param  keyFile         the Cryptomni key file.
+	 * @param  destinationFile the location to write the encrypted file.
+	 * @param  engine          the engine that applies the key.
+	 * @return 				   true if the file was encrypted.
+	 */
+	public static boolean encryptFile (File sourceFile, File keyFile,
+			File destinationFile, TransformEngine engine) {
+		return encryptFile(sourceFile, keyFile, destinationFile, engine,
+				Progress.NONE);
+	}
+
+	/** 
+	 * Encrypts a file, reporting to a progress. If the progress is cancelled, 
+	 * the partial output is deleted and the key bytes that were not used are 
+	 * given back where possible.
+	 * 
+	 * @param  sourceFile      the file to encrypt.
+	 * @param  keyFile         the Cryptomni key file.
+	 * @param  destinationFile the location to write the encrypted file.
+	 * @param  engine          the engine that applies the key.
+	 * @param  progress        the progress to report to.
+	 * @return 				   true if the file was encrypted.
+	 */
+	public static boolean encryptFile (File sourceFile, File keyFile,
+			File destinationFile, TransformEngine engine, Progress progress) {
+		return encryptFile(sourceFile, keyFile, destinationFile, engine, 
+				progress, false);
+	}
+
+	/** 
+	 * Encrypts a file, optionally appending the tag of a one-time MAC that 
+	 * is computed in the same pass. The MAC uses 32 more key bytes and the 
+	 * tag makes the encrypted file 16 bytes longer. Only engines that 
+	 * support a MAC can be used with one.
+	 * 
+	 * @param  sourceFile      the file to encrypt.
+	 * @param  keyFile         the Cryptomni key file.
+	 * @param  destinationFile the location to write the encrypted file.
+	 * @param  engine          the engine that applies the key.
+	 * @param  progress        the progress to report to.
+	 * @param  mac             true to append a MAC tag.
+	 * @return 				   true if the file was encrypted.
+	 */
+	public static boolean encryptFile (File sourceFile, File keyFile,
+			File destinationFile, TransformEngine engine, Progress progress,
+			boolean mac) {
+		return transformFile(sourceFile, keyFile, destinationFile, engine, 
+				progress, mac ? ADD_MAC : NO_MAC);
 	}
 
 	public static boolean decryptFile (File encryptedFile, File keyFile,
 			File destinationFile) {
-		return transformFile(encryptedFile, keyFile, destinationFile);
+		return decryptFile(encryptedFile, keyFile, destinationFile,
+				TransformEngine.DEFAULT);
+	}
+
+	/** 
+	 * Decrypts a file with the specified transform engine.
+	 * 
+	 * @param  encryptedFile   the file to decrypt.
+	 * @param  keyFile         the Cryptomni key file.
+	 * @param  destinationFile the location to write the decrypted file.
+	 * @param  engine          the engine that applies the key.
+	 * @return 				   true if the file was decrypted.
+	 */
+	public static boolean decryptFile (File encryptedFile, File keyFile,
+			File destinationFile, TransformEngine engine) {
+		return decryptFile(encryptedFile, keyFile, destinationFile, engine,
+				Progress.NONE);
+	}
+
+	/** 
+	 * Decrypts a file, reporting to a progress. If the progress is cancelled, 
+	 * the partial output is deleted and the key bytes that were not used are 
+	 * given back where possible.
+	 * 
+	 * @param  encryptedFile   the file to decrypt.
+	 * @param  keyFile         the Cryptomni key file.
+	 * @param  destinationFile the location to write the decrypted file.
+	 * @param  engine          the engine that applies the key.
+	 * @param  progress        the progress to report to.
+	 * @return 				   true if the file was decrypted.
+	 */
+	public static boolean decryptFile (File encryptedFile, File keyFile,
+			File destinationFile, TransformEngine engine, Progress progress) {
+		return decryptFile(encryptedFile, keyFile, destinationFile, engine, 
+				progress, false);
+	}
+
+	/** 
+	 * Decrypts a file, optionally verifying the one-time MAC tag at its end 
+	 * in the same pass. If the tag does not match, the decrypted file is 
+	 * deleted. The key bytes stay consumed either way.
+	 * 
+	 * @param  encryptedFile   the file to decrypt.
+	 * @param  keyFile         the Cryptomni key file.
+	 * @param  destinationFile the location to write the decrypted file.
+	 * @param  engine          the engine that applies the key.
+	 * @param  progress        the progress to report to.
+	 * @param  mac             true if the file ends with a MAC tag.
+	 * @return 				   true if the file was decrypted and, with a MAC, 
+	 * 						   verified.
+	 */
+	public static boolean decryptFile (File encryptedFile, File keyFile,
+			File destinationFile, TransformEngine engine, Progress progress,
+			boolean mac) {
+		return transformFile(encryptedFile, keyFile, destinationFile, engine, 
+				progress, mac ? CHECK_MAC : NO_MAC);
 	}
 }
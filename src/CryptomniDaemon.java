@@ -0,0 +1,452 @@
+package src;
+
+/*-- CryptomniDaemon.java --------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A long-running Cryptomni process that serves encrypt and decrypt requests
+ * over a Unix-domain socket. Starting a JVM and opening the key file for
+ * every small message costs far more than the XOR itself, so the daemon
+ * keeps every key pad it has used open and has a background thread read the
+ * next unused key bytes into memory ahead of use (see
+ * {@link KeyPad#prefetch}). A request is then a memory XOR; the trailer is
+ * written and used key bytes overwritten once a megabyte (see
+ * {@link KeyPad#next}).
+ * <p>
+ * Each connection may send any number of requests, one after another. A
+ * request is an operation byte ({@link #ENCRYPT} or {@link #DECRYPT}), the
+ * length and UTF-8 bytes of the key file path, and the length and bytes of
+ * the data. A response is a status byte ({@link #OK} or {@link #ERROR})
+ * followed by the length and bytes of the result or of an error message.
+ * Lengths are big-endian ints. {@link DaemonClient} speaks this protocol.
+ * A {@link #METRICS} request returns the daemon's metrics, which are also
+ * registered with JMX.
+ * <p>
+ * The socket is bound inside a new directory that only its owner can
+ * enter, made readable and writable by its owner only, and then moved into
+ * place, because anyone who can connect can use every key file the daemon
+ * can open. No other user can connect in between. Key
+ * files stay locked while the daemon has them open, so other processes
+ * cannot use them until the daemon is stopped.
+ */
+public class CryptomniDaemon implements Closeable
+{
+	/** Operation byte of an encrypt request. */
+	public static final byte ENCRYPT = 'E';
+	/** Operation byte of a decrypt request. */
+	public static final byte DECRYPT = 'D';
+	/**
+	 * Operation byte of a request for the daemon's {@link Metrics}, which
+	 * are returned in the Prometheus text format. The key file path and the
+	 * data of the request are ignored.
+	 */
+	public static final byte METRICS = 'M';
+	/** Status byte of a successful response. */
+	public static final byte OK = 0;
+	/** Status byte of a failed response. */
+	public static final byte ERROR = 1;
+	/** The largest message accepted in one request. */
+	public static final int MAX_MESSAGE_SIZE = 64 * 1048576;
+	/** The number of key bytes read ahead into memory for each key pad. */
+	public static final int PREFETCH_SIZE = KeyPad.DEFAULT_PREFETCH_SIZE;
+
+	private static final int MAX_PATH_SIZE = 4096;
+	private static final int KEY_BUFFER_SIZE = 65536;
+
+	private final Path socket;
+	private final Map<String, Session> sessions =
+			new ConcurrentHashMap<String, Session>();
+	private final ExecutorService workers = Executors.newCachedThreadPool(
+			new ThreadFactory()
+			{
+				public Thread newThread (Runnable task)
+				{
+					Thread thread = new Thread(task, "cryptomni-daemon");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	private ServerSocketChannel server;
+
+	/**
+	 * Creates a daemon that will listen on the given socket path.
+	 *
+	 * @param  socket the path of the Unix-domain socket.
+	 */
+	public CryptomniDaemon (Path socket)
+	{
+		this.socket = socket;
+	}
+
+	/**
+	 * Creates the socket. A stale socket file left behind by a daemon that is
+	 * no longer running is replaced.
+	 *
+	 * @throws IOException if the socket cannot be created, for example
+	 * 					   because another daemon is already listening on it.
+	 */
+	public synchronized void bind () throws IOException
+	{
+		if (Files.exists(socket))
+		{
+			if (isListening(socket))
+			{
+				throw new IOException("A daemon is already listening on " +
+						socket);
+			}
+			Files.delete(socket);
+		}
+		ServerSocketChannel channel =
+				ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try
+		{
+			bindPrivately(channel);
+		}
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+		server = channel;
+	}
+
+	// Binds the channel to the socket path, restricting the socket to its
+	// owner before anyone else can reach it.
+	private void bindPrivately (ServerSocketChannel channel) throws IOException
+	{
+		Path directory;
+		try
+		{
+			directory = Files.createTempDirectory(
+					socket.toAbsolutePath().getParent(), ".cryptomni-",
+					PosixFilePermissions.asFileAttribute(
+							PosixFilePermissions.fromString("rwx------")));
+		}
+		catch (UnsupportedOperationException e)
+		{
+			// Not a POSIX file system; rely on the directory's permissions.
+			channel.bind(UnixDomainSocketAddress.of(socket));
+			return;
+		}
+		Path staging = directory.resolve("socket");
+		try
+		{
+			channel.bind(UnixDomainSocketAddress.of(staging));
+			Files.setPosixFilePermissions(staging,
+					PosixFilePermissions.fromString("rw-------"));
+			// The listening socket follows its file, so clients connect
+			// through the new name.
+			Files.move(staging, socket, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			Files.deleteIfExists(staging);
+			Files.delete(directory);
+		}
+	}
+
+	/**
+	 * Serves connections until the daemon is closed, creating the socket
+	 * first if {@link #bind} has not been called.
+	 *
+	 * @throws IOException if the socket cannot be created or accepting a
+	 * 					   connection fails.
+	 */
+	public void run () throws IOException
+	{
+		synchronized (this)
+		{
+			if (server == null)
+			{
+				bind();
+			}
+		}
+		try
+		{
+			while (true)
+			{
+				final SocketChannel connection = server.accept();
+				workers.execute(new Runnable()
+				{
+					public void run ()
+					{
+						serve(connection);
+					}
+				});
+			}
+		}
+		catch (IOException e)
+		{
+			if (server.isOpen())
+			{
+				throw e;
+			}
+			// Closed by close().
+		}
+	}
+
+	/**
+	 * Stops listening, closes every cached key pad and removes the socket
+	 * file if this daemon created it.
+	 */
+	public void close () throws IOException
+	{
+		boolean bound;
+		synchronized (this)
+		{
+			bound = server != null;
+			if (bound)
+			{
+				server.close();
+			}
+		}
+		workers.shutdownNow();
+		for (Session session : sessions.values())
+		{
+			session.close();
+		}
+		sessions.clear();
+		// Leave the socket alone if it belongs to another daemon.
+		if (bound)
+		{
+			Files.deleteIfExists(socket);
+		}
+	}
+
+	private static boolean isListening (Path socket)
+	{
+		try
+		{
+			SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+			return true;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	// Answers requests on one connection until the client hangs up.
+	private void serve (SocketChannel connection)
+	{
+		try (SocketChannel channel = connection;
+			 DataInputStream in = new DataInputStream(new BufferedInputStream(
+					 Channels.newInputStream(channel)));
+			 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					 Channels.newOutputStream(channel))))
+		{
+			int operation;
+			while ((operation = in.read()) != -1)
+			{
+				int pathLength = in.readInt();
+				if (pathLength < 0 || pathLength > MAX_PATH_SIZE)
+				{
+					throw new IOException("Malformed request.");
+				}
+				byte[] path = new byte[pathLength];
+				in.readFully(path);
+				int dataLength = in.readInt();
+				if (dataLength < 0 || dataLength > MAX_MESSAGE_SIZE)
+				{
+					writeResponse(out, ERROR, ("Messages are limited to " +
+							MAX_MESSAGE_SIZE + " bytes.").getBytes(
+							StandardCharsets.UTF_8));
+					return;
+				}
+				byte[] data = new byte[dataLength];
+				in.readFully(data);
+				if (operation == METRICS)
+				{
+					writeResponse(out, OK, Metrics.shared().prometheusText()
+							.getBytes(StandardCharsets.UTF_8));
+					continue;
+				}
+				if (operation != ENCRYPT && operation != DECRYPT)
+				{
+					writeResponse(out, ERROR, "Unknown operation.".getBytes(
+							StandardCharsets.UTF_8));
+					continue;
+				}
+				try
+				{
+					transform(new String(path, StandardCharsets.UTF_8), data);
+				}
+				catch (IOException e)
+				{
+					String message = e.getMessage() == null ? e.toString() :
+							e.getMessage();
+					writeResponse(out, ERROR, message.getBytes(
+							StandardCharsets.UTF_8));
+					continue;
+				}
+				writeResponse(out, OK, data);
+			}
+		}
+		catch (IOException e)
+		{
+			// The client went away or sent garbage; drop the connection.
+		}
+	}
+
+	// Transforms data with the cached session of a key file, opening it on
+	// first use. A session whose key is used up is dropped, so a new key file
+	// created at the same path is opened afresh.
+	private void transform (String path, byte[] data) throws IOException
+	{
+		String canonical = new File(path).getCanonicalPath();
+		Session session;
+		synchronized (sessions)
+		{
+			session = sessions.get(canonical);
+			if (session == null || !session.isOpen())
+			{
+				session = new Session(KeyPad.open(new File(canonical)));
+				sessions.put(canonical, session);
+			}
+		}
+		try
+		{
+			session.transform(data);
+		}
+		finally
+		{
+			if (!session.isOpen())
+			{
+				sessions.remove(canonical, session);
+			}
+		}
+	}
+
+	private static void writeResponse (DataOutputStream out, byte status, byte[] payload)
+			throws IOException
+	{
+		out.writeByte(status);
+		out.writeInt(payload.length);
+		out.write(payload);
+		out.flush();
+	}
+
+	// An open key pad that reads unused key bytes ahead on a background
+	// thread. Requests for the same key are served one at a time so that each
+	// gets its own key bytes.
+	private static class Session
+	{
+		private final KeyPad pad;
+		private final XorKernel kernel = XorKernel.get();
+		private final byte[] key = new byte[KEY_BUFFER_SIZE];
+		private boolean open = true;
+
+		// Takes over the key pad, closing it if reading ahead cannot start.
+		Session (KeyPad pad) throws IOException
+		{
+			this.pad = pad;
+			try
+			{
+				pad.prefetch(PREFETCH_SIZE);
+			}
+			catch (IOException e)
+			{
+				pad.close();
+				throw e;
+			}
+		}
+
+		synchronized boolean isOpen ()
+		{
+			return open;
+		}
+
+		// Replaces data with its XOR with the next unused key bytes, which
+		// are consumed before the result can leave the daemon.
+		synchronized void transform (byte[] data) throws IOException
+		{
+			if (!open)
+			{
+				throw new IOException("The key pad is closed.");
+			}
+			if (data.length > pad.remaining())
+			{
+				throw new EOFException("The key ran out.");
+			}
+			long start = System.nanoTime();
+			try
+			{
+				int done = 0;
+				while (done < data.length)
+				{
+					int length = Math.min(data.length - done, key.length);
+					pad.next(ByteBuffer.wrap(key, 0, length));
+					long xorStart = System.nanoTime();
+					kernel.xor(data, done, key, 0, length);
+					Metrics.shared().time(Metrics.Phase.XOR,
+							System.nanoTime() - xorStart);
+					done += length;
+				}
+			}
+			finally
+			{
+				// Used key bytes do not stay on the heap.
+				Arrays.fill(key, (byte) 0);
+			}
+			Metrics.shared().transformed(Metrics.Operation.DAEMON, data.length,
+					System.nanoTime() - start);
+			if (pad.remaining() == 0)
+			{
+				// The key pad deleted the key file when its last byte was
+				// consumed.
+				open = false;
+			}
+		}
+
+		synchronized void close () throws IOException
+		{
+			open = false;
+			pad.close();
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package src;
+
+/*-- DaemonClient.java -----------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * A connection to a {@link CryptomniDaemon}. The connection stays open
+ * between requests, so a program that sends many small messages pays for
+ * connecting only once. A client must not be used by more than one thread
+ * at a time.
+ */
+public class DaemonClient implements Closeable
+{
+	private final SocketChannel channel;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+
+	/**
+	 * Connects to a daemon.
+	 *
+	 * @param  socket the path of the daemon's Unix-domain socket.
+	 * @throws IOException if no daemon is listening on the socket.
+	 */
+	public DaemonClient (Path socket) throws IOException
+	{
+		channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+		in = new DataInputStream(new BufferedInputStream(
+				Channels.newInputStream(channel)));
+		out = new DataOutputStream(new BufferedOutputStream(
+				Channels.newOutputStream(channel)));
+	}
+
+	/**
+	 * Encrypts a message with a key file held open by the daemon.
+	 *
+	 * @param  keyFile the Cryptomni key file, as seen by the daemon.
+	 * @param  data    the message.
+	 * @return 		   the encrypted message.
+	 * @throws IOException if the daemon reports an error or cannot be
+	 * 					   reached.
+	 */
+	public byte[] encrypt (File keyFile, byte[] data) throws IOException
+	{
+		return request(CryptomniDaemon.ENCRYPT, path(keyFile), data);
+	}
+
+	/**
+	 * Decrypts a message with a key file held open by the daemon.
+	 *
+	 * @param  keyFile the Cryptomni key file, as seen by the daemon.
+	 * @param  data    the encrypted message.
+	 * @return 		   the decrypted message.
+	 * @throws IOException if the daemon reports an error or cannot be
+	 * 					   reached.
+	 */
+	public byte[] decrypt (File keyFile, byte[] data) throws IOException
+	{
+		return request(CryptomniDaemon.DECRYPT, path(keyFile), data);
+	}
+
+	/**
+	 * Returns the daemon's metrics in the Prometheus text format.
+	 *
+	 * @return the metrics, as returned by {@link Metrics#prometheusText}.
+	 * @throws IOException if the daemon cannot be reached.
+	 */
+	public String metrics () throws IOException
+	{
+		return new String(request(CryptomniDaemon.METRICS, new byte[0],
+				new byte[0]), StandardCharsets.UTF_8);
+	}
+
+	private static byte[] path (File keyFile)
+	{
+		return keyFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private byte[] request (byte operation, byte[] path, byte[] data)
+			throws IOException
+	{
+		if (data.length > CryptomniDaemon.MAX_MESSAGE_SIZE)
+		{
+			throw new IOException("Messages are limited to " +
+					CryptomniDaemon.MAX_MESSAGE_SIZE + " bytes.");
+		}
+		out.writeByte(operation);
+		out.writeInt(path.length);
+		out.write(path);
+		out.writeInt(data.length);
+		out.write(data);
+		out.flush();
+
+		byte status = in.readByte();
+		byte[] payload = new byte[in.readInt()];
+		in.readFully(payload);
+		if (status != CryptomniDaemon.OK)
+		{
+			throw new IOException(new String(payload, StandardCharsets.UTF_8));
+		}
+		return payload;
+	}
+
+	public void close () throws IOException
+	{
+		channel.close();
+	}
+}
@@ -0,0 +1,573 @@
+package src;
+
+/*-- EntropySource.java ----------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DrbgParameters;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Where the random bytes of a key come from. {@link KeyGenerator} asks the
+ * source for one {@link Generator} per worker thread, so workers never share
+ * a random number generator, and fills a whole region of the key from it at
+ * a time.
+ * <p>
+ * Sources are chosen by name with {@link #forName(String)}, which is how the
+ * command line --source option selects them:
+ * <ul>
+ * <li>"drbg", the default: a DRBG with 256-bit security strength, reseeded
+ * only when it needs to be. The DRBG mechanism can be chosen with the
+ * standard securerandom.drbg.config security property.
+ * <li>"drbg-pr": the same DRBG with prediction resistance, which reseeds it
+ * from the platform's entropy before every request. It is much slower.
+ * <li>"securerandom" for the platform default SecureRandom, or
+ * "securerandom:&lt;algorithm&gt;" for a named one, such as
+ * NativePRNGNonBlocking.
+ * <li>"file:&lt;path&gt;": the bytes of a device such as /dev/hwrng, or of a
+ * file such as the dump of a hardware random number generator, read from
+ * the start. The workers share the file, so every byte is used once. For a
+ * regular file, the number of bytes used is kept in a file next to it named
+ * after it with {@link #USED_SUFFIX} appended, so a later key starts where
+ * the last one stopped.
+ * </ul>
+ * A comma-separated list of names mixes the sources by XORing them, which
+ * is at least as unpredictable as the best of them as long as they are
+ * independent. A source may appear in the list only once: a file mixed with
+ * itself would cancel out to zeros.
+ */
+public abstract class EntropySource
+{
+	/** The source used when none is specified. */
+	public static final EntropySource DEFAULT = new DrbgSource(false);
+	/**
+	 * The suffix of the file that records how many bytes of a regular file
+	 * source have been used.
+	 */
+	public static final String USED_SUFFIX = ".used";
+
+	/**
+	 * Returns the source with the given name, or the mix of the sources in a
+	 * comma-separated list.
+	 *
+	 * @param  name the name of the source, as described above.
+	 * @return 		the source.
+	 * @throws IllegalArgumentException if there is no source with that name,
+	 * 		   or a list names a source twice.
+	 */
+	public static EntropySource forName (String name)
+	{
+		if (name.indexOf(',') >= 0)
+		{
+			List<EntropySource> sources = new ArrayList<EntropySource>();
+			Set<String> identities = new HashSet<String>();
+			for (String part : name.split(","))
+			{
+				EntropySource source = forName(part.trim());
+				if (!identities.add(identity(source)))
+				{
+					throw new IllegalArgumentException("The entropy source " +
+							source.name() + " is listed twice.");
+				}
+				sources.add(source);
+			}
+			return new MixedSource(sources);
+		}
+		if (name.equals("drbg"))
+		{
+			return new DrbgSource(false);
+		}
+		if (name.equals("drbg-pr"))
+		{
+			return new DrbgSource(true);
+		}
+		if (name.equals("securerandom"))
+		{
+			return new SecureRandomSource(null);
+		}
+		if (name.startsWith("securerandom:") && name.length() > 13)
+		{
+			return new SecureRandomSource(name.substring(13));
+		}
+		if (name.startsWith("file:") && name.length() > 5)
+		{
+			return new FileSource(new File(name.substring(5)));
+		}
+		throw new IllegalArgumentException("Unknown entropy source: " + name);
+	}
+
+	// Returns what makes a source the same as another: the real path of a
+	// file, so that two names for one file are caught, or else the name.
+	private static String identity (EntropySource source)
+	{
+		if (source instanceof FileSource)
+		{
+			File file = ((FileSource) source).file;
+			try
+			{
+				return "file:" + file.getCanonicalPath();
+			}
+			catch (IOException e)
+			{
+				return "file:" + file.getAbsolutePath();
+			}
+		}
+		return source.name();
+	}
+
+	/**
+	 * Returns the sources that the self-test measures when none are named:
+	 * both DRBGs, the platform default, NativePRNGNonBlocking where it
+	 * exists and /dev/urandom where it exists.
+	 */
+	public static List<EntropySource> candidates ()
+	{
+		List<EntropySource> sources = new ArrayList<EntropySource>();
+		sources.add(new DrbgSource(false));
+		sources.add(new DrbgSource(true));
+		sources.add(new SecureRandomSource(null));
+		try
+		{
+			SecureRandom.getInstance("NativePRNGNonBlocking");
+			sources.add(new SecureRandomSource("NativePRNGNonBlocking"));
+		}
+		catch (GeneralSecurityException e)
+		{
+			// Not on this platform.
+		}
+		File urandom = new File("/dev/urandom");
+		if (urandom.exists())
+		{
+			sources.add(new FileSource(urandom));
+		}
+		return sources;
+	}
+
+	/** Returns the name of this source, as accepted by {@link #forName}. */
+	public abstract String name ();
+
+	/**
+	 * Returns the sources this source is made of: the sources it mixes, or
+	 * only itself.
+	 */
+	public List<EntropySource> parts ()
+	{
+		return Arrays.asList(this);
+	}
+
+	/**
+	 * Opens a generator for one worker thread. Each generator must be closed.
+	 *
+	 * @param  worker the number of the worker, starting at 0.
+	 * @return 		  the generator.
+	 * @throws IOException if the source is not available.
+	 */
+	public abstract Generator open (int worker) throws IOException;
+
+	/** Random bytes for one worker thread. */
+	public interface Generator extends Closeable
+	{
+		/**
+		 * Fills an array with random bytes.
+		 *
+		 * @throws IOException if the source cannot be read or has run out.
+		 */
+		void nextBytes (byte[] bytes) throws IOException;
+	}
+
+	// A SecureRandom of a named algorithm, or the platform default.
+	private static class SecureRandomSource extends EntropySource
+	{
+		private final String algorithm;
+
+		SecureRandomSource (String algorithm)
+		{
+			this.algorithm = algorithm;
+		}
+
+		public String name ()
+		{
+			return algorithm == null ? "securerandom" :
+					"securerandom:" + algorithm;
+		}
+
+		public Generator open (int worker) throws IOException
+		{
+			try
+			{
+				return new RandomGenerator(algorithm == null ? new SecureRandom() :
+						SecureRandom.getInstance(algorithm));
+			}
+			catch (GeneralSecurityException e)
+			{
+				throw new IOException("SecureRandom algorithm not available: " +
+						algorithm, e);
+			}
+		}
+	}
+
+	// A DRBG for each worker. Each is given a personalization string so that
+	// no two workers share a seed, even if the platform hands out identical
+	// entropy.
+	private static class DrbgSource extends EntropySource
+	{
+		private final boolean predictionResistance;
+
+		DrbgSource (boolean predictionResistance)
+		{
+			this.predictionResistance = predictionResistance;
+		}
+
+		public String name ()
+		{
+			return predictionResistance ? "drbg-pr" : "drbg";
+		}
+
+		public Generator open (int worker) throws IOException
+		{
+			byte[] personalization = ("Cryptomni worker " + worker + " " +
+					System.nanoTime()).getBytes(StandardCharsets.UTF_8);
+			try
+			{
+				final SecureRandom random = SecureRandom.getInstance("DRBG",
+						DrbgParameters.instantiation(256, predictionResistance ?
+								DrbgParameters.Capability.PR_AND_RESEED :
+								DrbgParameters.Capability.RESEED_ONLY,
+								personalization));
+				if (!predictionResistance)
+				{
+					return new RandomGenerator(random);
+				}
+				return new Generator()
+				{
+					public void nextBytes (byte[] bytes)
+					{
+						random.nextBytes(bytes, DrbgParameters.nextBytes(256,
+								true, null));
+					}
+
+					public void close ()
+					{
+					}
+				};
+			}
+			catch (GeneralSecurityException e)
+			{
+				throw new IOException("SecureRandom algorithm not available: " +
+						"DRBG", e);
+			}
+		}
+	}
+
+	private static class RandomGenerator implements Generator
+	{
+		private final SecureRandom random;
+
+		RandomGenerator (SecureRandom random)
+		{
+			this.random = random;
+		}
+
+		public void nextBytes (byte[] bytes)
+		{
+			random.nextBytes(bytes);
+		}
+
+		public void close ()
+		{
+		}
+	}
+
+	// The bytes of a file or device, shared by all workers so that each byte
+	// is handed out once. The file is open while any generator is, and a
+	// regular file is read on from where the last generator stopped, so that
+	// the shards of one key do not get the same bytes. For a regular file,
+	// the offset is recorded in the used file before the bytes are read, a
+	// step ahead of them as the trailer of a key pad is, so no later run gets
+	// the same bytes even if this one is killed. Closing the last generator
+	// records the exact offset.
+	private static class FileSource extends EntropySource
+	{
+		// The number of bytes recorded as used ahead of those read.
+		private static final long RESERVE_SIZE = 64L * 1048576;
+
+		private final File file;
+		private final File usedFile;
+		private FileChannel channel; // Guarded by this.
+		private int generators; // Guarded by this.
+		private long used; // Guarded by this.
+		private long reserved; // Guarded by this.
+
+		FileSource (File file)
+		{
+			this.file = file;
+			usedFile = new File(file.getPath() + USED_SUFFIX);
+		}
+
+		public String name ()
+		{
+			return "file:" + file.getPath();
+		}
+
+		public synchronized Generator open (int worker) throws IOException
+		{
+			if (channel == null)
+			{
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				if (file.isFile())
+				{
+					try
+					{
+						used = readUsed();
+					}
+					catch (IOException e)
+					{
+						channel.close();
+						channel = null;
+						throw e;
+					}
+					reserved = used;
+					channel.position(used);
+				}
+			}
+			generators++;
+			return new Generator()
+			{
+				private boolean closed;
+
+				public void nextBytes (byte[] bytes) throws IOException
+				{
+					read(bytes);
+				}
+
+				public void close () throws IOException
+				{
+					synchronized (FileSource.this)
+					{
+						if (!closed)
+						{
+							closed = true;
+							release();
+						}
+					}
+				}
+			};
+		}
+
+		// Reads the next bytes of the file. Reads are serialized so that a
+		// region is one contiguous run of the file.
+		private synchronized void read (byte[] bytes) throws IOException
+		{
+			if (file.isFile() && used + bytes.length > reserved)
+			{
+				reserved = Math.max(used + bytes.length, used + RESERVE_SIZE);
+				writeUsed(reserved);
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while (buffer.hasRemaining())
+			{
+				int bytesRead = channel.read(buffer);
+				if (bytesRead < 0)
+				{
+					throw new EOFException("The entropy source " + file +
+							" ran out.");
+				}
+				used += bytesRead;
+			}
+		}
+
+		private void release () throws IOException
+		{
+			if (--generators == 0)
+			{
+				try
+				{
+					if (reserved > used)
+					{
+						// Give back the bytes recorded ahead but never read.
+						writeUsed(used);
+						reserved = used;
+					}
+				}
+				finally
+				{
+					channel.close();
+					channel = null;
+				}
+			}
+		}
+
+		// Returns the offset recorded in the used file, or 0 if there is none.
+		private long readUsed () throws IOException
+		{
+			if (!usedFile.exists())
+			{
+				return 0;
+			}
+			String text = new String(Files.readAllBytes(usedFile.toPath()),
+					StandardCharsets.UTF_8).trim();
+			try
+			{
+				long offset = Long.parseLong(text);
+				if (offset >= 0)
+				{
+					return offset;
+				}
+			}
+			catch (NumberFormatException e)
+			{
+				// Reported below.
+			}
+			throw new IOException("The used file " + usedFile +
+					" of the entropy source is damaged.");
+		}
+
+		// Replaces the used file in one step, so that it always holds a whole
+		// offset.
+		private void writeUsed (long offset) throws IOException
+		{
+			File temporary = new File(usedFile.getPath() + ".tmp");
+			try (FileChannel out = FileChannel.open(temporary.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING))
+			{
+				ChannelIO.writeFully(out, ByteBuffer.wrap((offset + "\n")
+						.getBytes(StandardCharsets.UTF_8)));
+				out.force(true);
+			}
+			Files.move(temporary.toPath(), usedFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	// The XOR of several sources.
+	private static class MixedSource extends EntropySource
+	{
+		private final List<EntropySource> sources;
+
+		MixedSource (List<EntropySource> sources)
+		{
+			this.sources = sources;
+		}
+
+		public String name ()
+		{
+			StringBuilder name = new StringBuilder();
+			for (EntropySource source : sources)
+			{
+				if (name.length() > 0)
+				{
+					name.append(',');
+				}
+				name.append(source.name());
+			}
+			return name.toString();
+		}
+
+		public List<EntropySource> parts ()
+		{
+			return sources;
+		}
+
+		public Generator open (int worker) throws IOException
+		{
+			final List<Generator> generators = new ArrayList<Generator>();
+			try
+			{
+				for (EntropySource source : sources)
+				{
+					generators.add(source.open(worker));
+				}
+			}
+			catch (IOException e)
+			{
+				for (Generator generator : generators)
+				{
+					generator.close();
+				}
+				throw e;
+			}
+			final XorKernel kernel = XorKernel.get();
+			return new Generator()
+			{
+				private byte[] mix = new byte[0];
+
+				public void nextBytes (byte[] bytes) throws IOException
+				{
+					generators.get(0).nextBytes(bytes);
+					if (mix.length != bytes.length)
+					{
+						mix = new byte[bytes.length];
+					}
+					try
+					{
+						for (int i = 1; i < generators.size(); i++)
+						{
+							generators.get(i).nextBytes(mix);
+							kernel.xor(bytes, 0, mix, 0, bytes.length);
+						}
+					}
+					finally
+					{
+						Arrays.fill(mix, (byte) 0);
+					}
+				}
+
+				public void close () throws IOException
+				{
+					IOException failure = null;
+					for (Generator generator : generators)
+					{
+						try
+						{
+							generator.close();
+						}
+						catch (IOException e)
+						{
+							failure = e;
+						}
+					}
+					if (failure != null)
+					{
+						throw failure;
+					}
+				}
+			};
+		}
+	}
+}
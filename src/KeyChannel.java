@@ -0,0 +1,121 @@
+package src;
+
+/*-- KeyChannel.java -------------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The key bytes of a Cryptomni key, read and written only at explicit
+ * positions. This is all that the engines and {@link KeyPad} need, so a key
+ * stored in one file and a key striped across several files look the same
+ * to them. Positional calls may be made by several threads at once.
+ */
+public interface KeyChannel extends Closeable
+{
+	/**
+	 * Reads key bytes starting at a position into the remaining space of a
+	 * buffer, as {@link FileChannel#read(ByteBuffer, long)} does. Fewer
+	 * bytes than asked for may be read.
+	 *
+	 * @return the number of bytes read, or -1 if the position is at or past
+	 * 		   the end of the key.
+	 */
+	int read (ByteBuffer dst, long position) throws IOException;
+
+	/**
+	 * Writes the remaining bytes of a buffer to the key starting at a
+	 * position, as {@link FileChannel#write(ByteBuffer, long)} does. Fewer
+	 * bytes than asked for may be written.
+	 *
+	 * @return the number of bytes written.
+	 */
+	int write (ByteBuffer src, long position) throws IOException;
+
+	/** Returns the number of bytes in the channel. */
+	long size () throws IOException;
+
+	/** Forces every write to the key to disk. */
+	void force (boolean metaData) throws IOException;
+
+	/** Returns true unless the channel has been closed. */
+	boolean isOpen ();
+
+	/**
+	 * Returns the file channel that holds the key bytes at the same
+	 * positions, or null if they are spread over several files. Engines that
+	 * need more than positional reads and writes, such as memory mapping,
+	 * use it.
+	 */
+	FileChannel fileChannel ();
+
+	/**
+	 * Returns a key channel for a key stored in one file. Closing the key
+	 * channel closes the file channel.
+	 *
+	 * @param  channel the key file.
+	 * @return 		   the key channel.
+	 */
+	static KeyChannel of (final FileChannel channel)
+	{
+		return new KeyChannel()
+		{
+			public int read (ByteBuffer dst, long position) throws IOException
+			{
+				return channel.read(dst, position);
+			}
+
+			public int write (ByteBuffer src, long position) throws IOException
+			{
+				return channel.write(src, position);
+			}
+
+			public long size () throws IOException
+			{
+				return channel.size();
+			}
+
+			public void force (boolean metaData) throws IOException
+			{
+				channel.force(metaData);
+			}
+
+			public boolean isOpen ()
+			{
+				return channel.isOpen();
+			}
+
+			public FileChannel fileChannel ()
+			{
+				return channel;
+			}
+
+			public void close () throws IOException
+			{
+				channel.close();
+			}
+		};
+	}
+}
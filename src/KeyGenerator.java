@@ -0,0 +1,362 @@
+package src;
+
+/*-- KeyGenerator.java -----------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import com.sun.nio.file.ExtendedOpenOption;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes Cryptomni key files using one or more worker threads. The key file
+ * is divided into regions of {@link #REGION_SIZE} bytes. Each worker takes
+ * the next free region, fills it from its own generator of an
+ * {@link EntropySource} and writes it with a positional write, so workers
+ * never share a random number generator or a file position.
+ * <p>
+ * The source defaults to a DRBG. {@link #measure} generates without writing,
+ * to compare how fast the sources of a host are.
+ * <p>
+ * Before anything is written, the free space of the file system is checked,
+ * so that a large key fails at once rather than when the disk fills up.
+ * Java cannot preallocate a file, but the regions are handed out in order
+ * and are aligned to {@link #REGION_SIZE}, so the file is written front to
+ * back in large aligned chunks, which lets the file system allocate it in
+ * long extents. A direct key generator writes with
+ * {@link ExtendedOpenOption#DIRECT}, bypassing the page cache, so that
+ * creating a huge key does not evict everything else from memory.
+ */
+public class KeyGenerator
+{
+	/** The default SecureRandom algorithm. */
+	public static final String DEFAULT_ALGORITHM = "DRBG";
+	/** The number of random bytes generated and written at a time. */
+	public static final int REGION_SIZE = 1048576;
+
+	private final int threads;
+	private final EntropySource source;
+	private final boolean direct;
+
+	/**
+	 * Creates a key generator.
+	 *
+	 * @param  threads   the number of worker threads.
+	 * @param  algorithm the SecureRandom algorithm, or null for the platform
+	 * 					 default.
+	 */
+	public KeyGenerator (int threads, String algorithm)
+	{
+		this(threads, algorithm == null ? EntropySource.forName("securerandom") :
+				algorithm.equals(DEFAULT_ALGORITHM) ? EntropySource.DEFAULT :
+				EntropySource.forName("securerandom:" + algorithm));
+	}
+
+	/**
+	 * Creates a key generator.
+	 *
+	 * @param  threads the number of worker threads.
+	 * @param  source  where the random bytes come from.
+	 */
+	public KeyGenerator (int threads, EntropySource source)
+	{
+		this(threads, source, false);
+	}
+
+	/**
+	 * Creates a key generator that may bypass the page cache.
+	 *
+	 * @param  threads the number of worker threads.
+	 * @param  source  where the random bytes come from.
+	 * @param  direct  true to write with direct I/O. The file system must
+	 * 				   support it.
+	 */
+	public KeyGenerator (int threads, EntropySource source, boolean direct)
+	{
+		if (threads < 1)
+		{
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+		this.threads = threads;
+		this.source = source;
+		this.direct = direct;
+	}
+
+	/**
+	 * Writes a new Cryptomni key file, replacing any existing file.
+	 *
+	 * @param  file     the location to create the Cryptomni key file.
+	 * @param  byteSize the number of bytes of the Cryptomni key file.
+	 * @throws IOException if the key file cannot be written or the random
+	 * 					   number generator is not available.
+	 */
+	public void generate (File file, long byteSize) throws IOException
+	{
+		generate(file, byteSize, Progress.NONE);
+	}
+
+	/**
+	 * Writes a new Cryptomni key file, reporting every region written to a
+	 * progress. If the progress is cancelled, the workers stop after their
+	 * current region and the incomplete key file is left for the caller to
+	 * delete.
+	 *
+	 * @param  file     the location to create the Cryptomni key file.
+	 * @param  byteSize the number of bytes of the Cryptomni key file.
+	 * @param  progress the progress to advance, or {@link Progress#NONE}.
+	 * @throws java.io.InterruptedIOException if the progress is cancelled.
+	 * @throws IOException if there is not enough free space, the key file
+	 * 					   cannot be written, direct I/O was asked for and is
+	 * 					   not supported or the random number generator is
+	 * 					   not available.
+	 */
+	public void generate (File file, long byteSize, Progress progress)
+			throws IOException
+	{
+		if (byteSize < 0)
+		{
+			throw new IllegalArgumentException("byteSize must not be negative");
+		}
+		checkSpace(file, byteSize);
+		try (FileChannel out = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			if (!direct)
+			{
+				run(out, out, 0, byteSize, progress);
+				return;
+			}
+			int blockSize = (int) Files.getFileStore(file.toPath()).getBlockSize();
+			FileChannel directOut;
+			try
+			{
+				if (REGION_SIZE % blockSize != 0)
+				{
+					throw new IOException("block size " + blockSize);
+				}
+				directOut = FileChannel.open(file.toPath(),
+						StandardOpenOption.WRITE, ExtendedOpenOption.DIRECT);
+			}
+			catch (IOException | UnsupportedOperationException e)
+			{
+				throw new IOException("Direct I/O is not supported for " + file +
+						" (" + e.getMessage() + ").", e);
+			}
+			try (FileChannel channel = directOut)
+			{
+				run(channel, out, blockSize, byteSize, progress);
+			}
+		}
+	}
+
+	// Fails before anything is written if the key cannot fit, rather than
+	// part way through a large key. A file that is replaced frees its space.
+	private static void checkSpace (File file, long byteSize) throws IOException
+	{
+		File absolute = file.getAbsoluteFile();
+		File directory = absolute.getParentFile();
+		if (directory == null || !directory.isDirectory())
+		{
+			return; // Opening the file will fail.
+		}
+		long usable = directory.getUsableSpace() +
+				(absolute.isFile() ? absolute.length() : 0);
+		if (usable < byteSize)
+		{
+			throw new IOException("Not enough free space in " + directory +
+					" for a key of " + byteSize + " bytes: " + usable +
+					" bytes are available.");
+		}
+	}
+
+	/**
+	 * Generates random bytes the way {@link #generate} does, with the same
+	 * threads and regions, but without writing them anywhere.
+	 *
+	 * @param  byteSize the number of bytes to generate.
+	 * @return 			the number of bytes generated per second.
+	 * @throws IOException if the source is not available or runs out.
+	 */
+	public double measure (long byteSize) throws IOException
+	{
+		long start = System.nanoTime();
+		run(null, null, 0, byteSize, Progress.NONE);
+		return byteSize * 1e9 / Math.max(1, System.nanoTime() - start);
+	}
+
+	// Has the workers fill regions until byteSize bytes have been generated,
+	// writing them to out unless it is null. With a block size, out is open
+	// for direct I/O and the end of the key that is not a whole block is
+	// written to tail instead.
+	private void run (FileChannel out, FileChannel tail, int blockSize,
+			long byteSize, Progress progress) throws IOException
+	{
+		AtomicLong nextRegion = new AtomicLong();
+		int workers = (int) Math.max(1, Math.min(threads,
+				(byteSize + REGION_SIZE - 1) / REGION_SIZE));
+		List<Worker> tasks = new ArrayList<Worker>();
+		try
+		{
+			for (int i = 0; i < workers; i++)
+			{
+				tasks.add(new Worker(out, tail, blockSize, byteSize, nextRegion,
+						source.open(i), progress));
+			}
+			if (workers == 1)
+			{
+				// Avoid the thread pool when there is nothing to share.
+				tasks.get(0).call();
+				return;
+			}
+			ExecutorService pool = Executors.newFixedThreadPool(workers);
+			try
+			{
+				for (Future<Void> result : pool.invokeAll(tasks))
+				{
+					result.get();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException("Key generation was interrupted.", e);
+			}
+			catch (ExecutionException e)
+			{
+				if (e.getCause() instanceof IOException)
+				{
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+			finally
+			{
+				pool.shutdownNow();
+			}
+		}
+		finally
+		{
+			for (Worker task : tasks)
+			{
+				task.random.close();
+			}
+		}
+	}
+
+	// Returns the smallest multiple of a block size that is at least length.
+	private static int roundUp (int length, int blockSize)
+	{
+		return (length + blockSize - 1) / blockSize * blockSize;
+	}
+
+	// Fills and writes regions until the key is complete.
+	private static class Worker implements Callable<Void>
+	{
+		private final FileChannel out, tail;
+		private final int blockSize; // 0 unless out is open for direct I/O.
+		private final long byteSize;
+		private final AtomicLong nextRegion;
+		private final EntropySource.Generator random;
+		private final Progress progress;
+
+		Worker (FileChannel out, FileChannel tail, int blockSize, long byteSize,
+				AtomicLong nextRegion, EntropySource.Generator random,
+				Progress progress)
+		{
+			this.out = out;
+			this.tail = tail;
+			this.blockSize = blockSize;
+			this.byteSize = byteSize;
+			this.nextRegion = nextRegion;
+			this.random = random;
+			this.progress = progress;
+		}
+
+		public Void call () throws IOException
+		{
+			byte[] pseudoRandom = new byte[(int) Math.min(REGION_SIZE,
+					Math.max(byteSize, 1))];
+			// Direct I/O needs a buffer aligned to the block size. Aligning
+			// cuts the buffer to whole blocks, so a region shorter than a
+			// block still needs one whole block.
+			ByteBuffer buffer = blockSize == 0 ? ByteBuffer.wrap(pseudoRandom)
+					: ByteBuffer.allocateDirect(roundUp(pseudoRandom.length,
+							blockSize) + blockSize).alignedSlice(blockSize);
+			try
+			{
+				long position;
+				while ((position = nextRegion.getAndIncrement() * REGION_SIZE)
+						< byteSize)
+				{
+					random.nextBytes(pseudoRandom);
+					int length = (int) Math.min(pseudoRandom.length,
+							byteSize - position);
+					if (out != null && blockSize == 0)
+					{
+						buffer.clear();
+						buffer.limit(length);
+						ChannelIO.writeFully(out, buffer, position);
+					}
+					else if (out != null)
+					{
+						buffer.clear();
+						buffer.put(pseudoRandom, 0, length);
+						// Direct writes must cover whole blocks, so the end
+						// of a key that is not a whole block goes through the
+						// page cache.
+						int whole = length - length % blockSize;
+						buffer.flip();
+						buffer.limit(whole);
+						ChannelIO.writeFully(out, buffer, position);
+						buffer.limit(length);
+						ChannelIO.writeFully(tail, buffer, position + whole);
+					}
+					progress.advance(length);
+				}
+			}
+			finally
+			{
+				// Do not leave key material lying around on the heap.
+				Arrays.fill(pseudoRandom, (byte) 0);
+				if (blockSize != 0)
+				{
+					buffer.clear();
+					buffer.put(new byte[buffer.capacity()]);
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,957 @@
+package src;
+
+/*-- KeyPad.java -----------------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An open Cryptomni key file. Rather than moving the unused part of the key
+ * to the front of the file after every use, a KeyPad records how many bytes
+ * have been consumed in a small trailer at the end of the file. Consuming
+ * key bytes advances that offset and overwrites the used range, so the cost
+ * depends on the size of the message and not on the size of the key.
+ * <p>
+ * A freshly created key contains only random bytes. The trailer is appended
+ * when the key is first opened. The file may also be the manifest of a
+ * {@link ShardedKeyStore}, in which case the key bytes are read from the
+ * shards and the trailer is appended to the manifest.
+ * <p>
+ * The trailer is a small journal. Besides the consumed offset it records
+ * how far key bytes may be in use, and that mark is forced to disk before
+ * any of them are used. If the program stops without settling, the next
+ * open treats everything up to the mark as used, so a crash or power loss
+ * can waste a few megabytes of key but never hands out used key bytes
+ * again. The trailer is written to two slots in turn, so a torn write
+ * leaves the previous state readable, and only the trailer is ever forced.
+ * <p>
+ * Used key bytes are overwritten with zeros before {@link #consume} returns.
+ * {@link #setWipe} can overwrite them several times instead, or hand them to
+ * a {@link KeyWiper} that overwrites them on a background thread at a
+ * limited rate. Closing the key pad waits until they have been overwritten.
+ * <p>
+ * {@link #next}, which hands out many small pieces of key, does no key file
+ * I/O of its own for each piece. It moves the offset in memory, and only
+ * once a megabyte has been handed out does it write the trailer and have
+ * the bytes overwritten, by the background thread that reads the key ahead
+ * if there is one. The bytes handed out are always below the reserved mark,
+ * so a crash before then still never hands them out again.
+ */
+public class KeyPad implements Closeable
+{
+	/** The number of key bytes a prefetching key pad keeps in memory. */
+	public static final int DEFAULT_PREFETCH_SIZE = 4 * 1048576;
+
+	/** The rate of {@link #setWipe} that overwrites used key bytes at once. */
+	public static final long FOREGROUND_WIPE = -1;
+
+	// Trailer layout: two slots of 32 bytes, then a footer of 16 bytes. A
+	// slot holds a sequence number (8 bytes), the consumed offset (8 bytes),
+	// the reserved offset (8 bytes), the CRC-32 of those (4 bytes) and 4
+	// unused bytes. The newest valid slot wins. The footer holds the format
+	// version (4 bytes), 4 unused bytes and the magic number (8 bytes).
+	// Version 1 trailers are 24 bytes: consumed offset (8 bytes), version
+	// (4 bytes), CRC-32 of the offset and version (4 bytes), magic number.
+	static final int TRAILER_SIZE = 80;
+	private static final int SLOT_SIZE = 32;
+	private static final int FOOTER_SIZE = 16;
+	private static final int VERSION_1_TRAILER_SIZE = 24;
+	private static final long MAGIC = 0x4F5450414454524CL; // "OTPADTRL"
+	private static final int VERSION = 2;
+	// Journal layout: key text length (8 bytes), consumed offset (8 bytes),
+	// CRC-32 of those (4 bytes), magic number (8 bytes).
+	private static final int JOURNAL_SIZE = 28;
+	private static final long JOURNAL_MAGIC = 0x4F545041444A4E4CL; // "OTPADJNL"
+	private static final String JOURNAL_SUFFIX = ".journal";
+	// How far past the bytes about to be used the reserved offset is moved,
+	// so that the trailer is forced once every few megabytes.
+	private static final long RESERVE_AHEAD = 4 * 1048576;
+	// How many key bytes next() hands out before the offset is written to
+	// the trailer and the bytes are overwritten.
+	private static final long SETTLE_BATCH = 1048576;
+
+	// How key pads opened from now on overwrite used key bytes.
+	private static int defaultWipePasses = 1; // Guarded by KeyPad.class.
+	private static long defaultWipeRate = FOREGROUND_WIPE; // Guarded by KeyPad.class.
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final KeyChannel channel; // The key bytes.
+	private final List<File> shards = new ArrayList<File>(); // If sharded.
+	private final long length; // The number of key bytes, excluding the trailer.
+	private final long trailerPosition; // Where the trailer is in the file.
+	private long offset; // The number of key bytes consumed so far.
+	private long settled; // Bytes before this are in the trailer and wiped.
+	private long reserved; // Key bytes before this may be in use.
+	private long sequence; // The sequence number of the newest trailer slot.
+	private KeyPrefetcher prefetcher; // Reads unused key bytes ahead, if set.
+	private final Metrics.KeyStats stats; // What the metrics know of this key.
+	private volatile int wipePasses; // How often used key bytes are overwritten.
+	private volatile KeyWiper wiper; // Overwrites them in the background, if set.
+
+	private KeyPad (File file) throws IOException
+	{
+		this.file = file;
+		stats = Metrics.shared().key(file);
+		int passes;
+		long rate;
+		synchronized (KeyPad.class)
+		{
+			passes = defaultWipePasses;
+			rate = defaultWipeRate;
+		}
+		wipePasses = passes;
+		if (!file.isFile())
+		{
+			throw new FileNotFoundException("Key file not found: " + file);
+		}
+		raf = new RandomAccessFile(file, "rw");
+		FileChannel fileChannel = raf.getChannel();
+		KeyChannel keyChannel = null;
+		try
+		{
+			// Hold the key for as long as it is open, so that no other
+			// process reads the same key bytes.
+			FileLock lock;
+			try
+			{
+				lock = fileChannel.tryLock();
+			}
+			catch (OverlappingFileLockException e)
+			{
+				lock = null; // Already open in this JVM.
+			}
+			if (lock == null)
+			{
+				throw new IOException("Key file is in use: " + file);
+			}
+			recoverJournal(fileChannel);
+			long fileSize = fileChannel.size();
+			Trailer trailer = readTrailer(file, fileChannel, fileSize);
+			// A key without a trailer has not been used yet.
+			trailerPosition = trailer == null ? fileSize :
+					fileSize - trailer.size;
+			if (ShardedKeyStore.isManifest(fileChannel))
+			{
+				keyChannel = ShardedKeyStore.open(file, fileChannel,
+						trailerPosition, shards);
+				length = keyChannel.size();
+			}
+			else
+			{
+				keyChannel = KeyChannel.of(fileChannel);
+				length = trailerPosition;
+			}
+			channel = keyChannel;
+			if (trailer != null)
+			{
+				sequence = trailer.sequence;
+				offset = trailer.offset;
+				reserved = trailer.reserved;
+			}
+			if (offset < 0 || offset > reserved || reserved > length)
+			{
+				throw new IOException("Key trailer is corrupted: " + file);
+			}
+			if (trailer == null || trailer.size != TRAILER_SIZE)
+			{
+				upgradeTrailer(fileChannel);
+			}
+			if (reserved > offset)
+			{
+				// The last program to use the key stopped without saying
+				// which of these bytes it used, so treat them all as used.
+				wipe(offset, reserved - offset);
+				writeTrailer(reserved, reserved, true);
+				moveOffset(reserved);
+			}
+			settled = offset;
+			stats.remaining(remaining());
+			setWipe(passes, rate);
+		}
+		catch (IOException e)
+		{
+			if (!shards.isEmpty() && keyChannel != null)
+			{
+				keyChannel.close();
+			}
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a Cryptomni key file for reading and consumption. The key file is
+	 * locked until the key pad is closed. Threads that need the same key at
+	 * the same time should share it through {@link KeyPadManager}.
+	 *
+	 * @param  file the Cryptomni key file.
+	 * @return 		the opened key pad.
+	 * @throws IOException if the key file cannot be opened, is already open,
+	 * 					   or its trailer is corrupted.
+	 */
+	public static KeyPad open (File file) throws IOException
+	{
+		return new KeyPad(file);
+	}
+
+	/**
+	 * Sets how every key pad opened from now on overwrites used key bytes.
+	 *
+	 * @see #setWipe
+	 */
+	public static synchronized void setDefaultWipe (int passes,
+			long bytesPerSecond)
+	{
+		checkWipe(passes, bytesPerSecond);
+		defaultWipePasses = passes;
+		defaultWipeRate = bytesPerSecond;
+	}
+
+	/**
+	 * Sets how used key bytes are overwritten. Each byte is overwritten the
+	 * given number of times, with random bytes and then with zeros. With a
+	 * rate of {@link #FOREGROUND_WIPE} the bytes are overwritten before the
+	 * call that used them returns. Otherwise they are overwritten on a
+	 * background thread, in large writes, at no more than the given number
+	 * of bytes per second. Bytes still waiting to be overwritten when the
+	 * program stops are left as they are.
+	 *
+	 * @param  passes         the number of times each byte is overwritten.
+	 * @param  bytesPerSecond the most bytes written per second, counting
+	 * 						  every pass, 0 for no limit or
+	 * 						  {@link #FOREGROUND_WIPE}.
+	 * @throws IOException if bytes handed to the previous background wiper
+	 * 					   could not be overwritten.
+	 */
+	public void setWipe (int passes, long bytesPerSecond) throws IOException
+	{
+		checkWipe(passes, bytesPerSecond);
+		stopWiper();
+		wipePasses = passes;
+		if (bytesPerSecond != FOREGROUND_WIPE)
+		{
+			wiper = new KeyWiper(channel, passes, bytesPerSecond);
+		}
+	}
+
+	private static void checkWipe (int passes, long bytesPerSecond)
+	{
+		if (passes < 1)
+		{
+			throw new IllegalArgumentException("passes must be at least 1");
+		}
+		if (bytesPerSecond < 0 && bytesPerSecond != FOREGROUND_WIPE)
+		{
+			throw new IllegalArgumentException("bytesPerSecond must not be negative");
+		}
+	}
+
+	// Overwrites everything handed to the background wiper and stops it.
+	private void stopWiper () throws IOException
+	{
+		KeyWiper current = wiper;
+		if (current != null)
+		{
+			wiper = null;
+			current.close();
+		}
+	}
+
+	/**
+	 * Returns the number of unused bytes in a Cryptomni key file. Bytes
+	 * reserved through {@link KeyPadManager} count as used.
+	 *
+	 * @param  file the Cryptomni key file.
+	 * @return 		the number of unused key bytes, or -1 if the key file could
+	 * 				not be read or another process is using it.
+	 */
+	public static long remaining (File file)
+	{
+		return KeyPadManager.remaining(file);
+	}
+
+	/**
+	 * Returns the number of unused bytes in a Cryptomni key file without
+	 * changing it: the trailer is neither appended, upgraded nor recovered,
+	 * and nothing is wiped. Bytes that the next open would treat as used
+	 * count as used.
+	 *
+	 * @param  file the Cryptomni key file.
+	 * @return 		the number of unused key bytes.
+	 * @throws IOException if the key file cannot be read, its trailer is
+	 * 					   corrupted or it is in use.
+	 */
+	static long probe (File file) throws IOException
+	{
+		if (!file.isFile())
+		{
+			throw new FileNotFoundException("Key file not found: " + file);
+		}
+		try (FileChannel fileChannel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ))
+		{
+			// A shared lock fails while a key pad holds the key.
+			FileLock lock;
+			try
+			{
+				lock = fileChannel.tryLock(0, Long.MAX_VALUE, true);
+			}
+			catch (OverlappingFileLockException e)
+			{
+				lock = null;
+			}
+			if (lock == null)
+			{
+				throw new IOException("Key file is in use: " + file);
+			}
+			long textLength, offset, reserved;
+			ByteBuffer record = unfinishedUpgrade(file, fileChannel);
+			if (record != null)
+			{
+				textLength = record.getLong(0);
+				offset = record.getLong(8);
+				reserved = offset;
+			}
+			else
+			{
+				long fileSize = fileChannel.size();
+				Trailer trailer = readTrailer(file, fileChannel, fileSize);
+				textLength = trailer == null ? fileSize : fileSize - trailer.size;
+				offset = trailer == null ? 0 : trailer.offset;
+				reserved = trailer == null ? 0 : trailer.reserved;
+			}
+			long length = ShardedKeyStore.isManifest(fileChannel) ?
+					ShardedKeyStore.length(file, fileChannel, textLength) :
+					textLength;
+			if (offset < 0 || offset > reserved || reserved > length)
+			{
+				throw new IOException("Key trailer is corrupted: " + file);
+			}
+			return length - reserved;
+		}
+	}
+
+	/** Returns the key file. */
+	public File getFile ()
+	{
+		return file;
+	}
+
+	/** Returns the total number of key bytes, used or not. */
+	public long length ()
+	{
+		return length;
+	}
+
+	/** Returns the position of the first unused key byte. */
+	public long offset ()
+	{
+		return offset;
+	}
+
+	/** Returns the number of unused key bytes. */
+	public long remaining ()
+	{
+		return length - offset;
+	}
+
+	/**
+	 * Returns the position before which key bytes may be in use. If the
+	 * program stops before they are consumed, the next open consumes them.
+	 */
+	public long reserved ()
+	{
+		return reserved;
+	}
+
+	/**
+	 * Returns the channel of the key bytes. Key bytes should be read with
+	 * positional reads starting at {@link #offset()}. For a sharded key this
+	 * channel stripes reads and writes across the shards.
+	 */
+	public KeyChannel channel ()
+	{
+		return channel;
+	}
+
+	/**
+	 * Marks the next key bytes as used. The new offset is written to the
+	 * trailer before the used range is overwritten, and the bytes are
+	 * reserved first if they are not already, so an interrupted call never
+	 * leaves used key bytes looking unused. Bytes handed out by
+	 * {@link #next} and not yet settled are settled first. If the whole key
+	 * has been used, the key file is deleted.
+	 *
+	 * @param  bytes the number of key bytes to consume.
+	 * @throws IOException if there are not enough unused key bytes or the key
+	 * 					   file cannot be written.
+	 */
+	public void consume (long bytes) throws IOException
+	{
+		if (bytes < 0 || bytes > remaining())
+		{
+			throw new IOException("Not enough unused key bytes.");
+		}
+		settle();
+		long start = offset;
+		long end = offset + bytes;
+		reserveTo(end);
+		if (end < length)
+		{
+			writeTrailer(end, reserved, false);
+		}
+		wipe(start, bytes);
+		moveOffset(end);
+		settled = end;
+		if (end == length)
+		{
+			// The key is used up, so delete it.
+			delete();
+			return;
+		}
+		// Bytes read ahead no longer follow the offset.
+		restartPrefetch();
+	}
+
+	// Writes the offset of the bytes handed out by next() to the trailer and
+	// has them overwritten: by the background wiper if there is one, else by
+	// the thread that reads ahead if there is one, else at once.
+	private void settle () throws IOException
+	{
+		if (settled == offset)
+		{
+			return;
+		}
+		long start = settled;
+		long bytes = offset - settled;
+		if (offset < length)
+		{
+			writeTrailer(offset, reserved, false);
+		}
+		settled = offset;
+		if (wiper == null && prefetcher != null)
+		{
+			prefetcher.wipe(start, bytes, wipePasses);
+		}
+		else
+		{
+			wipe(start, bytes);
+		}
+	}
+
+	/**
+	 * Fills the remaining space of a buffer with the next unused key bytes
+	 * and consumes them. If {@link #prefetch} has been called, the bytes are
+	 * copied from memory instead of being read from the key file. The bytes
+	 * are reserved before they are handed out, but the trailer is written
+	 * and they are overwritten only once a megabyte has been handed out,
+	 * and when the key pad is closed or the key is consumed any other way.
+	 *
+	 * @param  buffer the buffer to fill.
+	 * @throws EOFException if there are fewer unused key bytes than the
+	 * 						buffer has room for. Nothing is consumed then.
+	 * @throws IOException if the key file cannot be read or written.
+	 */
+	public void next (ByteBuffer buffer) throws IOException
+	{
+		int bytes = buffer.remaining();
+		if (bytes > remaining())
+		{
+			throw new EOFException("The key ran out.");
+		}
+		long end = offset + bytes;
+		reserveTo(end);
+		long start = System.nanoTime();
+		if (prefetcher == null)
+		{
+			ChannelIO.readFully(channel, buffer, offset);
+		}
+		else
+		{
+			try
+			{
+				prefetcher.read(buffer);
+			}
+			catch (IOException e)
+			{
+				// The bytes read ahead may no longer match the offset, so
+				// read the key file directly from now on.
+				try
+				{
+					stopPrefetch();
+				}
+				catch (IOException f)
+				{
+					e.addSuppressed(f);
+				}
+				throw e;
+			}
+		}
+		Metrics.shared().time(Metrics.Phase.KEY_READ, System.nanoTime() - start);
+		moveOffset(end);
+		if (end == length)
+		{
+			// The key is used up, so delete it.
+			settle();
+			delete();
+		}
+		else if (offset - settled >= SETTLE_BATCH)
+		{
+			settle();
+		}
+	}
+
+	/**
+	 * Starts reading unused key bytes ahead of their use on a background
+	 * thread, so that {@link #next} copies them from memory. This pays off
+	 * when many small messages are encrypted with the same key pad. Key
+	 * bytes consumed any other way make the key pad discard what it has read
+	 * ahead and start again.
+	 *
+	 * @param  bytes the number of key bytes to keep in memory, or 0 to stop
+	 * 				 reading ahead.
+	 * @throws IOException if used key bytes handed to the previous reading
+	 * 					   thread could not be overwritten.
+	 */
+	public void prefetch (int bytes) throws IOException
+	{
+		settle();
+		stopPrefetch();
+		if (bytes > 0 && remaining() > 0)
+		{
+			prefetcher = new KeyPrefetcher(channel, offset, length, bytes);
+		}
+	}
+
+	// Has the thread that reads ahead continue at the offset, after key
+	// bytes were consumed some other way.
+	private void restartPrefetch ()
+	{
+		if (prefetcher != null)
+		{
+			prefetcher.seek(offset);
+		}
+	}
+
+	// Waits for the thread that reads ahead to overwrite what was handed to
+	// it, and stops it.
+	private void stopPrefetch () throws IOException
+	{
+		KeyPrefetcher current = prefetcher;
+		if (current != null)
+		{
+			prefetcher = null;
+			current.close();
+		}
+	}
+
+
+	/**
+	 * Marks every key byte before a position as possibly in use, and forces
+	 * that to disk, so that they are never handed out again even if the
+	 * program stops before they are consumed. This must be called before
+	 * unused key bytes are read at the channel and used; {@link #next} and
+	 * {@link #consume} do it themselves. The mark is moved a few megabytes
+	 * further than needed, so that it is forced once for many small uses.
+	 * Closing the key pad gives back what was reserved but not consumed, so
+	 * a caller that may have used reserved bytes must consume or skip them,
+	 * even if its transform failed.
+	 *
+	 * @param  position the position of the first key byte that is not in use.
+	 * @throws IOException if the position is past the end of the key or the
+	 * 					   key file cannot be written.
+	 */
+	public void reserveTo (long position) throws IOException
+	{
+		if (position > length)
+		{
+			throw new IOException("Not enough key bytes.");
+		}
+		if (position > reserved)
+		{
+			long newReserved = Math.min(length, position + RESERVE_AHEAD);
+			writeTrailer(offset, newReserved, true);
+			reserved = newReserved;
+		}
+	}
+
+	/**
+	 * Marks every key byte before a position as used, without overwriting
+	 * anything. This is used when key ranges are read out of order: bytes
+	 * skipped over are never handed out again, but can still be read until
+	 * they are wiped.
+	 *
+	 * @param  position the position of the first key byte that stays unused.
+	 * @throws IOException if the position is past the end of the key or the
+	 * 					   key file cannot be written.
+	 */
+	public void skipTo (long position) throws IOException
+	{
+		if (position > length)
+		{
+			throw new IOException("Not enough key bytes.");
+		}
+		if (position > offset)
+		{
+			settle();
+			reserveTo(position);
+			writeTrailer(position, reserved, false);
+			moveOffset(position);
+			settled = position;
+			restartPrefetch();
+		}
+	}
+
+	/**
+	 * Overwrites a range of the key file as set by {@link #setWipe}: with
+	 * zeros at once unless set otherwise.
+	 *
+	 * @param  position the position of the first key byte to overwrite.
+	 * @param  bytes 	the number of key bytes to overwrite.
+	 * @throws IOException if the key file cannot be written, or bytes handed
+	 * 					   to the background wiper earlier could not be.
+	 */
+	public void wipe (long position, long bytes) throws IOException
+	{
+		if (position < 0 || bytes < 0 || position + bytes > length)
+		{
+			throw new IOException("Range is outside the key.");
+		}
+		KeyWiper current = wiper;
+		if (current != null)
+		{
+			current.add(position, bytes);
+			return;
+		}
+		long start = System.nanoTime();
+		KeyWiper.overwrite(channel, position, bytes, wipePasses, null);
+		Metrics.shared().time(Metrics.Phase.KEY_COMMIT, System.nanoTime() - start);
+	}
+
+	// Moves the offset forward and counts the key bytes consumed.
+	private void moveOffset (long newOffset)
+	{
+		stats.consumed(newOffset - offset);
+		offset = newOffset;
+		stats.remaining(remaining());
+	}
+
+	public void close () throws IOException
+	{
+		try
+		{
+			settle();
+		}
+		finally
+		{
+			try
+			{
+				stopPrefetch();
+			}
+			finally
+			{
+				closeFile();
+			}
+		}
+	}
+
+	// Overwrites what the background wiper still has, gives back the slack
+	// reserved ahead and closes the key file.
+	private void closeFile () throws IOException
+	{
+		try
+		{
+			stopWiper();
+		}
+		finally
+		{
+			if (reserved > offset && raf.getChannel().isOpen())
+			{
+				// Callers consume or skip every byte they may have used, and
+				// KeyPadManager skips ranges reserved through a handle that
+				// were never committed, so only the slack reserved ahead of
+				// them is given back.
+				writeTrailer(offset, offset, true);
+				reserved = offset;
+			}
+			if (!shards.isEmpty())
+			{
+				channel.close();
+			}
+			raf.close();
+		}
+	}
+
+	// Closes the key pad and deletes the key file and any shards.
+	void delete () throws IOException
+	{
+		close();
+		for (File shard : shards)
+		{
+			shard.delete();
+		}
+		file.delete();
+	}
+
+	// The state read from a trailer.
+	private static class Trailer
+	{
+		int size;
+		long sequence, offset, reserved;
+	}
+
+	// Returns the trailer of the key file, or null if it has none.
+	private static Trailer readTrailer (File file, FileChannel fileChannel,
+			long fileSize) throws IOException
+	{
+		if (fileSize < FOOTER_SIZE)
+		{
+			return null;
+		}
+		ByteBuffer footer = read(fileChannel, fileSize - FOOTER_SIZE,
+				FOOTER_SIZE);
+		if (footer.getLong(8) != MAGIC)
+		{
+			return null;
+		}
+		Trailer trailer = new Trailer();
+		int version = footer.getInt(0);
+		if (version == 1 && fileSize >= VERSION_1_TRAILER_SIZE)
+		{
+			ByteBuffer buffer = read(fileChannel,
+					fileSize - VERSION_1_TRAILER_SIZE, VERSION_1_TRAILER_SIZE);
+			if (buffer.getInt(12) != checksum(buffer, 0, 12))
+			{
+				throw new IOException("Key trailer is corrupted: " + file);
+			}
+			trailer.size = VERSION_1_TRAILER_SIZE;
+			trailer.offset = buffer.getLong(0);
+			trailer.reserved = trailer.offset;
+			return trailer;
+		}
+		if (version != VERSION || fileSize < TRAILER_SIZE)
+		{
+			throw new IOException("Key trailer is corrupted: " + file);
+		}
+		ByteBuffer buffer = read(fileChannel, fileSize - TRAILER_SIZE,
+				TRAILER_SIZE);
+		trailer.size = TRAILER_SIZE;
+		trailer.sequence = -1;
+		for (int slot = 0; slot < 2; slot++)
+		{
+			int start = slot * SLOT_SIZE;
+			long slotSequence = buffer.getLong(start);
+			// A slot that was being written when the program stopped fails
+			// its checksum, and the other slot is used.
+			if (buffer.getInt(start + 24) == checksum(buffer, start, 24) &&
+					slotSequence > trailer.sequence)
+			{
+				trailer.sequence = slotSequence;
+				trailer.offset = buffer.getLong(start + 8);
+				trailer.reserved = buffer.getLong(start + 16);
+			}
+		}
+		if (trailer.sequence < 0)
+		{
+			throw new IOException("Key trailer is corrupted: " + file);
+		}
+		return trailer;
+	}
+
+	// Writes the next trailer slot, over the older of the two.
+	private void writeTrailer (long newOffset, long newReserved, boolean force)
+			throws IOException
+	{
+		long start = System.nanoTime();
+		long newSequence = sequence + 1;
+		ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+		putSlot(slot, newSequence, newOffset, newReserved);
+		slot.flip();
+		FileChannel fileChannel = raf.getChannel();
+		ChannelIO.writeFully(fileChannel, slot,
+				trailerPosition + (newSequence % 2) * SLOT_SIZE);
+		if (force)
+		{
+			fileChannel.force(false);
+		}
+		sequence = newSequence;
+		Metrics.shared().time(Metrics.Phase.KEY_COMMIT, System.nanoTime() - start);
+	}
+
+	private static void putSlot (ByteBuffer buffer, long slotSequence,
+			long slotOffset, long slotReserved)
+	{
+		int start = buffer.position();
+		buffer.putLong(slotSequence);
+		buffer.putLong(slotOffset);
+		buffer.putLong(slotReserved);
+		buffer.putInt(checksum(buffer, start, 24));
+		buffer.putInt(0);
+	}
+
+	// Replaces a version 1 trailer, or no trailer, with a new trailer. The
+	// file grows, and a torn append could be mistaken for key bytes, so the
+	// old state is first saved to a journal file from which the next open
+	// can redo the change.
+	private void upgradeTrailer (FileChannel fileChannel) throws IOException
+	{
+		File journal = new File(file.getPath() + JOURNAL_SUFFIX);
+		ByteBuffer record = ByteBuffer.allocate(JOURNAL_SIZE);
+		record.putLong(trailerPosition);
+		record.putLong(offset);
+		record.putInt(checksum(record, 0, 16));
+		record.putLong(JOURNAL_MAGIC);
+		record.flip();
+		try (FileChannel journalChannel = FileChannel.open(journal.toPath(),
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			ChannelIO.writeFully(journalChannel, record, 0);
+			journalChannel.force(true);
+		}
+		forceDirectory(journal);
+		writeNewTrailer(fileChannel, trailerPosition, offset);
+		sequence = 1;
+		reserved = offset;
+		Files.delete(journal.toPath());
+	}
+
+	// Finishes an upgrade of the trailer that was interrupted. A journal
+	// left behind after the upgrade finished is simply deleted.
+	private void recoverJournal (FileChannel fileChannel) throws IOException
+	{
+		File journal = new File(file.getPath() + JOURNAL_SUFFIX);
+		if (!journal.exists())
+		{
+			return;
+		}
+		ByteBuffer record = unfinishedUpgrade(file, fileChannel);
+		if (record != null)
+		{
+			writeNewTrailer(fileChannel, record.getLong(0), record.getLong(8));
+		}
+		Files.delete(journal.toPath());
+	}
+
+	// Returns the journal record of an upgrade of the trailer that did not
+	// finish, or null if there is none. The record holds the key text
+	// length and the consumed offset. A torn journal means the key file had
+	// not been touched yet.
+	private static ByteBuffer unfinishedUpgrade (File file,
+			FileChannel fileChannel) throws IOException
+	{
+		File journal = new File(file.getPath() + JOURNAL_SUFFIX);
+		if (!journal.exists())
+		{
+			return null;
+		}
+		ByteBuffer record = ByteBuffer.wrap(Files.readAllBytes(journal.toPath()));
+		if (record.limit() != JOURNAL_SIZE ||
+				record.getLong(20) != JOURNAL_MAGIC ||
+				record.getInt(16) != checksum(record, 0, 16))
+		{
+			return null;
+		}
+		long textLength = record.getLong(0);
+		long fileSize = fileChannel.size();
+		if (fileSize == textLength + TRAILER_SIZE)
+		{
+			try
+			{
+				Trailer trailer = readTrailer(file, fileChannel, fileSize);
+				if (trailer != null && trailer.size == TRAILER_SIZE)
+				{
+					return null;
+				}
+			}
+			catch (IOException e)
+			{
+				// The new trailer was being written.
+			}
+		}
+		return record;
+	}
+
+	// Writes a trailer with both slots set to an offset at the given
+	// position, cuts the file off after it and forces it to disk.
+	private static void writeNewTrailer (FileChannel fileChannel,
+			long position, long newOffset) throws IOException
+	{
+		ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+		putSlot(trailer, 0, newOffset, newOffset);
+		putSlot(trailer, 1, newOffset, newOffset);
+		trailer.putInt(VERSION);
+		trailer.putInt(0);
+		trailer.putLong(MAGIC);
+		trailer.flip();
+		ChannelIO.writeFully(fileChannel, trailer, position);
+		fileChannel.truncate(position + TRAILER_SIZE);
+		fileChannel.force(true);
+	}
+
+	// Forces the directory entry of a new file to disk. Not every platform
+	// can open a directory, so this is only an attempt.
+	private static void forceDirectory (File file)
+	{
+		File directory = file.getAbsoluteFile().getParentFile();
+		try (FileChannel directoryChannel = FileChannel.open(directory.toPath(),
+				StandardOpenOption.READ))
+		{
+			directoryChannel.force(true);
+		}
+		catch (IOException e)
+		{
+			// The journal is still written, only less surely.
+		}
+	}
+
+	private static ByteBuffer read (FileChannel fileChannel, long position,
+			int size) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		ChannelIO.readFully(fileChannel, buffer, position);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static int checksum (ByteBuffer buffer, int start, int size)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), buffer.arrayOffset() + start, size);
+		return (int) crc.getValue();
+	}
+}
@@ -0,0 +1,349 @@
+package src;
+
+/*-- KeyPadManager.java ----------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares open key pads between the threads of one JVM and hands out key
+ * ranges that never overlap. Every key file is opened once, as a
+ * {@link KeyPad} that holds an exclusive lock on the file, so no other
+ * process can use the key at the same time. Callers in this JVM get
+ * reference-counted {@link Handle}s to the same key pad.
+ * <p>
+ * A caller first reserves the key bytes it needs. Reserving is a
+ * compare-and-set on an in-memory counter, so many threads can reserve and
+ * transform at once. Only when a range passes the reserved offset recorded
+ * in the trailer does it force a new one to disk, which moves the mark a few
+ * megabytes ahead. Afterwards the caller commits its range:
+ * the trailer is brought up to date and the range is wiped. Trailer writes
+ * are grouped, so a commit that finds its range already covered by another
+ * thread's trailer write does not write the trailer again.
+ * <p>
+ * A range whose transform fails is rolled back: the part that may have been
+ * used is committed and only an unused end is given back. A range that is
+ * never settled is recorded as used when the last handle closes, so it is
+ * never handed out again, and the consumed offset in the trailer only ever
+ * moves forward. If the JVM stops without closing the key pad, the next
+ * open treats every reserved range as used.
+ */
+public final class KeyPadManager
+{
+	private static final Map<String, Shared> PADS = new HashMap<String, Shared>();
+
+	private KeyPadManager ()
+	{
+	}
+
+	/**
+	 * Opens a key file, or shares the key pad that this JVM already has open
+	 * for it.
+	 *
+	 * @param  file the Cryptomni key file.
+	 * @return 		a handle that must be closed when the caller is done.
+	 * @throws IOException if the key file cannot be opened or another
+	 * 					   process is using it.
+	 */
+	public static Handle open (File file) throws IOException
+	{
+		String path = file.getCanonicalPath();
+		synchronized (PADS)
+		{
+			Shared shared = PADS.get(path);
+			if (shared == null)
+			{
+				shared = new Shared(path, KeyPad.open(file));
+				PADS.put(path, shared);
+			}
+			shared.references++;
+			return new Handle(shared);
+		}
+	}
+
+	/**
+	 * Returns the number of unreserved bytes in a Cryptomni key file, looking
+	 * at the shared key pad if this JVM has the key file open.
+	 *
+	 * @param  file the Cryptomni key file.
+	 * @return 		the number of unreserved key bytes, or -1 if the key file
+	 * 				could not be read.
+	 * @see    #unreserved
+	 */
+	public static long remaining (File file)
+	{
+		try
+		{
+			return unreserved(file);
+		}
+		catch (IOException e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the number of unreserved bytes in a Cryptomni key file, looking
+	 * at the shared key pad if this JVM has the key file open. Otherwise the
+	 * trailer is only read: the key file is not changed in any way.
+	 *
+	 * @param  file the Cryptomni key file.
+	 * @return 		the number of unreserved key bytes.
+	 * @throws IOException if the key file cannot be read, its trailer is
+	 * 					   corrupted or another process is using it.
+	 */
+	public static long unreserved (File file) throws IOException
+	{
+		String path = file.getCanonicalPath();
+		synchronized (PADS)
+		{
+			Shared shared = PADS.get(path);
+			if (shared != null)
+			{
+				return shared.length - shared.next.get();
+			}
+			return KeyPad.probe(file);
+		}
+	}
+
+	// Closes the key pad when its last handle is released. The key pad is
+	// closed while PADS is held, so that a concurrent open waits for the
+	// file lock to be released instead of failing because it is in use.
+	private static void release (Shared shared) throws IOException
+	{
+		synchronized (PADS)
+		{
+			if (--shared.references > 0)
+			{
+				return;
+			}
+			PADS.remove(shared.path);
+			try
+			{
+				long handedOut = shared.next.get();
+				if (handedOut > shared.committed)
+				{
+					// A range reserved through a handle but never committed
+					// may have been used, so it is recorded as used before
+					// the key pad gives back its reservation.
+					long from = shared.committed;
+					shared.pad.skipTo(handedOut);
+					shared.committed = handedOut;
+					shared.pad.wipe(from, handedOut - from);
+				}
+			}
+			finally
+			{
+				if (shared.committed == shared.length)
+				{
+					// The key is used up, so delete it.
+					shared.pad.delete();
+				}
+				else
+				{
+					shared.pad.close();
+				}
+			}
+		}
+	}
+
+	// The state of one key file shared by all of its handles.
+	private static class Shared
+	{
+		final String path;
+		final KeyPad pad;
+		final long length;
+		final AtomicLong next; // The first key byte not yet reserved.
+		final Object commitLock = new Object();
+		volatile long committed; // The offset recorded in the trailer.
+		volatile long reserved; // The reserved offset recorded in the trailer.
+		int references; // Guarded by PADS.
+
+		Shared (String path, KeyPad pad)
+		{
+			this.path = path;
+			this.pad = pad;
+			length = pad.length();
+			next = new AtomicLong(pad.offset());
+			committed = pad.offset();
+			reserved = pad.reserved();
+		}
+	}
+
+	/**
+	 * One caller's use of a shared key pad. A handle may be used by several
+	 * threads at once.
+	 */
+	public static final class Handle implements Closeable
+	{
+		private final Shared shared;
+		private boolean closed;
+
+		private Handle (Shared shared)
+		{
+			this.shared = shared;
+		}
+
+		/** Returns the key file. */
+		public File getFile ()
+		{
+			return shared.pad.getFile();
+		}
+
+		/** Returns the total number of key bytes, used or not. */
+		public long length ()
+		{
+			return shared.length;
+		}
+
+		/** Returns the number of key bytes that have not been reserved. */
+		public long remaining ()
+		{
+			return shared.length - shared.next.get();
+		}
+
+		/**
+		 * Returns the channel of the key file. Reserved ranges should be read
+		 * with positional reads.
+		 */
+		public KeyChannel channel ()
+		{
+			return shared.pad.channel();
+		}
+
+		/**
+		 * Reserves the next unreserved key bytes for the caller alone. Once
+		 * this returns, the bytes are recorded on disk as possibly in use.
+		 *
+		 * @param  bytes the number of key bytes to reserve.
+		 * @return 		 the position of the first reserved key byte.
+		 * @throws EOFException if there are not enough unreserved key bytes.
+		 * @throws IOException if the key file cannot be written.
+		 */
+		public long reserve (long bytes) throws IOException
+		{
+			if (bytes < 0)
+			{
+				throw new IllegalArgumentException("bytes must not be negative");
+			}
+			while (true)
+			{
+				long start = shared.next.get();
+				if (bytes > shared.length - start)
+				{
+					throw new EOFException("The key ran out.");
+				}
+				if (shared.next.compareAndSet(start, start + bytes))
+				{
+					long end = start + bytes;
+					if (shared.reserved < end)
+					{
+						synchronized (shared.commitLock)
+						{
+							shared.pad.reserveTo(end);
+							shared.reserved = shared.pad.reserved();
+						}
+					}
+					return start;
+				}
+			}
+		}
+
+		/**
+		 * Records a reserved range as used and wipes it. The trailer is
+		 * written before the range is overwritten, and is only written if
+		 * no other commit has already moved it past the range.
+		 *
+		 * @param  position the position returned by {@link #reserve}.
+		 * @param  bytes    the number of key bytes reserved.
+		 * @throws IOException if the key file cannot be written.
+		 */
+		public void commit (long position, long bytes) throws IOException
+		{
+			long end = position + bytes;
+			if (shared.committed < end)
+			{
+				synchronized (shared.commitLock)
+				{
+					if (shared.committed < end)
+					{
+						// Cover every range reserved so far, not only this
+						// one, so that concurrent commits can skip the write.
+						long target = shared.next.get();
+						shared.pad.skipTo(target);
+						shared.committed = target;
+					}
+				}
+			}
+			shared.pad.wipe(position, bytes);
+		}
+
+		/**
+		 * Settles a reservation whose transform was cancelled or failed part
+		 * way. The first used bytes are committed, because output was made
+		 * from them. The rest of the range is given back if nothing has been
+		 * reserved after it; otherwise it stays reserved and is never handed
+		 * out again.
+		 *
+		 * @param  position the position returned by {@link #reserve}.
+		 * @param  bytes    the number of key bytes reserved.
+		 * @param  used     the number of key bytes at the start of the range
+		 * 					that may have been used.
+		 * @throws IOException if the key file cannot be written.
+		 */
+		public void rollback (long position, long bytes, long used)
+				throws IOException
+		{
+			used = Math.max(0, Math.min(used, bytes));
+			if (used < bytes)
+			{
+				// Give back the unused end first, so that the commit below
+				// does not record it as used.
+				shared.next.compareAndSet(position + bytes, position + used);
+			}
+			if (used > 0)
+			{
+				commit(position, used);
+			}
+		}
+
+		/** Releases the handle, closing the key pad when no handles remain. */
+		public void close () throws IOException
+		{
+			synchronized (this)
+			{
+				if (closed)
+				{
+					return;
+				}
+				closed = true;
+			}
+			release(shared);
+		}
+	}
+}
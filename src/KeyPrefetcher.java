@@ -0,0 +1,391 @@
+package src;
+
+/*-- KeyPrefetcher.java ----------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+/**
+ * Reads key bytes ahead of their use on a background thread. The thread
+ * fills a fixed set of chunks with consecutive key bytes and queues them;
+ * the consumer copies key bytes out of the queued chunks and hands emptied
+ * chunks back to be refilled. Encrypting a small message then only copies
+ * bytes that are already in memory.
+ * <p>
+ * The same thread overwrites ranges of used key bytes handed to it with
+ * {@link #wipe}, between reads, so that the consumer does not wait for
+ * those writes either.
+ * <p>
+ * A prefetcher knows nothing about key consumption. {@link KeyPad} owns it,
+ * and moves it with {@link #seek} whenever the key is consumed by any other
+ * route. The thread lives as long as the prefetcher, waits on this object's
+ * monitor while there is nothing to do, and is never interrupted, because
+ * interrupting a thread blocked on a FileChannel closes the channel.
+ */
+final class KeyPrefetcher implements Closeable
+{
+	/** The number of key bytes read at a time. */
+	static final int CHUNK_SIZE = 65536;
+
+	private final KeyChannel channel;
+	private final long end;
+	private final byte[][] chunks;
+	private final Thread thread;
+	// The rest is guarded by this.
+	private final Queue<byte[]> free = new ArrayDeque<byte[]>();
+	private final Queue<ByteBuffer> filled = new ArrayDeque<ByteBuffer>();
+	private final Queue<long[]> wipes = new ArrayDeque<long[]>();
+	private long position; // The next key byte the thread reads.
+	private long generation; // Counts seeks; chunks read before one are dropped.
+	private boolean closed;
+	private boolean stopped; // The thread has finished.
+	private IOException failure; // Why reading ahead failed, if it did.
+	private IOException wipeFailure; // Why a wipe failed, if one did.
+	private ByteBuffer current; // The chunk being copied from, if any.
+
+	/**
+	 * Starts reading key bytes ahead.
+	 *
+	 * @param  channel  the key file.
+	 * @param  start    the position of the first key byte to read.
+	 * @param  end      the position after the last key byte.
+	 * @param  capacity the number of key bytes to keep in memory, rounded up
+	 * 					to a whole number of chunks.
+	 */
+	KeyPrefetcher (KeyChannel channel, long start, long end, int capacity)
+	{
+		this.channel = channel;
+		this.end = end;
+		int count = Math.max(1, (capacity + CHUNK_SIZE - 1) / CHUNK_SIZE);
+		chunks = new byte[count][CHUNK_SIZE];
+		free.addAll(Arrays.asList(chunks));
+		position = start;
+		thread = new Thread("cryptomni-key-prefetch")
+		{
+			public void run ()
+			{
+				work();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Copies the next key bytes into the remaining space of a buffer,
+	 * waiting for the background thread if they have not been read yet. The
+	 * caller must not ask for bytes past the end of the key.
+	 *
+	 * @throws IOException if the background thread failed to read the key
+	 * 					   or to overwrite used key bytes.
+	 */
+	synchronized void read (ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			if (current == null || !current.hasRemaining())
+			{
+				recycle();
+				current = take();
+			}
+			int n = Math.min(buffer.remaining(), current.remaining());
+			buffer.put(current.array(), current.position(), n);
+			current.position(current.position() + n);
+		}
+	}
+
+	/**
+	 * Drops every key byte read ahead and continues reading at another
+	 * position.
+	 *
+	 * @param  newPosition the position of the next key byte to hand out.
+	 */
+	synchronized void seek (long newPosition)
+	{
+		generation++;
+		recycle();
+		ByteBuffer chunk;
+		while ((chunk = filled.poll()) != null)
+		{
+			Arrays.fill(chunk.array(), (byte) 0);
+			free.add(chunk.array());
+		}
+		position = newPosition;
+		notifyAll();
+	}
+
+	/**
+	 * Hands a range of used key bytes to the background thread to be
+	 * overwritten. {@link #close} waits until it has been.
+	 *
+	 * @param  start  the position of the first key byte to overwrite.
+	 * @param  bytes  the number of key bytes to overwrite.
+	 * @param  passes the number of times each byte is overwritten.
+	 */
+	synchronized void wipe (long start, long bytes, int passes)
+	{
+		wipes.add(new long[] {start, bytes, passes});
+		notifyAll();
+	}
+
+	/**
+	 * Overwrites every range handed to {@link #wipe}, stops the background
+	 * thread and clears every chunk.
+	 *
+	 * @throws IOException if a range could not be overwritten.
+	 */
+	public void close () throws IOException
+	{
+		synchronized (this)
+		{
+			closed = true;
+			notifyAll();
+		}
+		boolean interrupted = false;
+		while (thread.isAlive())
+		{
+			try
+			{
+				thread.join();
+			}
+			catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this)
+		{
+			current = null;
+			for (byte[] chunk : chunks)
+			{
+				Arrays.fill(chunk, (byte) 0);
+			}
+			// Overwrite here what a failed thread left behind.
+			long[] range;
+			while (wipeFailure == null && (range = wipes.poll()) != null)
+			{
+				try
+				{
+					KeyWiper.overwrite(channel, range[0], range[1],
+							(int) range[2], null);
+				}
+				catch (IOException e)
+				{
+					wipeFailure = e;
+				}
+			}
+			if (wipeFailure != null)
+			{
+				throw new IOException("Used key bytes could not be overwritten.",
+						wipeFailure);
+			}
+		}
+	}
+
+	// Clears the chunk that has just been used up and returns it for
+	// refilling.
+	private void recycle ()
+	{
+		if (current != null)
+		{
+			Arrays.fill(current.array(), (byte) 0);
+			free.add(current.array());
+			current = null;
+			notifyAll();
+		}
+	}
+
+	private ByteBuffer take () throws IOException
+	{
+		boolean interrupted = false;
+		try
+		{
+			while (filled.isEmpty())
+			{
+				if (failure != null)
+				{
+					throw new IOException("Reading the key ahead failed.",
+							failure);
+				}
+				if (wipeFailure != null)
+				{
+					throw new IOException("Used key bytes could not be overwritten.",
+							wipeFailure);
+				}
+				if (closed || stopped)
+				{
+					throw new IOException("No more key bytes were read ahead.");
+				}
+				try
+				{
+					wait();
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+			return filled.remove();
+		}
+		finally
+		{
+			if (interrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// The background thread: reads consecutive chunks while there is room
+	// for them and overwrites used ranges, until closed. Reads come first,
+	// because the consumer may be waiting for them.
+	private void work ()
+	{
+		try
+		{
+			while (true)
+			{
+				byte[] chunk = null;
+				long[] range = null;
+				long chunkPosition = 0;
+				long chunkGeneration = 0;
+				synchronized (this)
+				{
+					while (!closed && wipes.isEmpty() && !canRead())
+					{
+						wait();
+					}
+					if (wipeFailure != null)
+					{
+						return;
+					}
+					if (!closed && canRead())
+					{
+						chunk = free.remove();
+						chunkPosition = position;
+						chunkGeneration = generation;
+						position += Math.min(CHUNK_SIZE, end - position);
+					}
+					else if (!wipes.isEmpty())
+					{
+						range = wipes.remove();
+					}
+					else
+					{
+						return;
+					}
+				}
+				if (chunk != null)
+				{
+					fill(chunk, chunkPosition, chunkGeneration);
+				}
+				else
+				{
+					overwrite(range);
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// Nothing interrupts this thread; stop if something does.
+		}
+		finally
+		{
+			synchronized (this)
+			{
+				stopped = true;
+				notifyAll();
+			}
+		}
+	}
+
+	// Whether there is room for another chunk and key left to read into it.
+	// After a failed read nothing more is read, so that no later chunk is
+	// handed out in place of the one that failed.
+	private boolean canRead ()
+	{
+		return failure == null && !free.isEmpty() && position < end;
+	}
+
+	private void fill (byte[] chunk, long chunkPosition, long chunkGeneration)
+	{
+		int length = (int) Math.min(CHUNK_SIZE, end - chunkPosition);
+		ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+		IOException error = null;
+		try
+		{
+			ChannelIO.readFully(channel, buffer, chunkPosition);
+		}
+		catch (IOException e)
+		{
+			error = e;
+		}
+		buffer.flip();
+		synchronized (this)
+		{
+			if (chunkGeneration != generation)
+			{
+				// A seek came in while the chunk was read.
+				Arrays.fill(chunk, (byte) 0);
+				free.add(chunk);
+			}
+			else if (error != null)
+			{
+				failure = error;
+				free.add(chunk);
+			}
+			else
+			{
+				filled.add(buffer);
+			}
+			notifyAll();
+		}
+	}
+
+	private void overwrite (long[] range)
+	{
+		try
+		{
+			KeyWiper.overwrite(channel, range[0], range[1], (int) range[2],
+					null);
+		}
+		catch (IOException e)
+		{
+			synchronized (this)
+			{
+				// Stop here; close() reports it.
+				wipeFailure = e;
+				wipes.add(range);
+				notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,315 @@
+package src;
+
+/*-- KeyWiper.java ---------------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Overwrites used key bytes on a background thread, so that wiping does not
+ * hold up the next message. Ranges handed to the wiper are merged with the
+ * ranges still waiting, and a short range is given a moment to grow, so
+ * many small messages become a few large sequential writes.
+ * <p>
+ * Each range is overwritten a number of times: random bytes first and zeros
+ * last. Every pass but the last is forced to disk, otherwise the page cache
+ * would fold the passes into a single write of zeros. A token bucket limits
+ * the bytes written per second, so wiping does not compete with encryption
+ * for the disk. Closing the wiper overwrites whatever is still waiting at
+ * full speed.
+ * <p>
+ * Waiting ranges live only in memory. If the program stops before they are
+ * overwritten, they stay on disk until the used part of the key is wiped
+ * again.
+ */
+final class KeyWiper implements Closeable
+{
+	/** The most bytes overwritten by one write. */
+	static final int BATCH_SIZE = 1048576;
+
+	// How long a range shorter than a batch waits for more to be added.
+	private static final long LINGER_NANOS = 100000000L;
+	// How long the thread sleeps at most before checking for close(). The
+	// thread is never interrupted, because interrupting a thread blocked on
+	// a FileChannel closes the channel.
+	private static final long POLL_MILLIS = 10;
+	private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(
+			BATCH_SIZE).asReadOnlyBuffer();
+
+	private final KeyChannel channel;
+	private final int passes;
+	private final long bytesPerSecond; // 0 for no limit.
+	private final TreeMap<Long, Long> waiting = new TreeMap<Long, Long>(); // Start to end.
+	private final Thread thread;
+	private long waitingSince; // When the oldest waiting range was added.
+	private volatile boolean closed;
+	private IOException failure; // Guarded by this.
+
+	/**
+	 * Starts a wiper.
+	 *
+	 * @param  channel        the key bytes.
+	 * @param  passes         the number of times each byte is overwritten.
+	 * @param  bytesPerSecond the most bytes written per second, counting
+	 * 						  every pass, or 0 for no limit.
+	 */
+	KeyWiper (KeyChannel channel, int passes, long bytesPerSecond)
+	{
+		if (passes < 1)
+		{
+			throw new IllegalArgumentException("passes must be at least 1");
+		}
+		if (bytesPerSecond < 0)
+		{
+			throw new IllegalArgumentException("bytesPerSecond must not be negative");
+		}
+		this.channel = channel;
+		this.passes = passes;
+		this.bytesPerSecond = bytesPerSecond;
+		thread = new Thread("cryptomni-key-wipe")
+		{
+			public void run ()
+			{
+				work();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queues a range to be overwritten.
+	 *
+	 * @throws IOException if an earlier range could not be overwritten.
+	 */
+	synchronized void add (long position, long bytes) throws IOException
+	{
+		checkFailure();
+		if (bytes == 0)
+		{
+			return;
+		}
+		if (closed)
+		{
+			throw new IOException("The key wiper is closed.");
+		}
+		if (waiting.isEmpty())
+		{
+			waitingSince = System.nanoTime();
+		}
+		long start = position;
+		long end = position + bytes;
+		Map.Entry<Long, Long> before = waiting.floorEntry(start);
+		if (before != null && before.getValue() >= start)
+		{
+			start = before.getKey();
+			end = Math.max(end, before.getValue());
+		}
+		Map.Entry<Long, Long> after;
+		while ((after = waiting.ceilingEntry(start)) != null &&
+				after.getKey() <= end)
+		{
+			end = Math.max(end, after.getValue());
+			waiting.remove(after.getKey());
+		}
+		waiting.put(start, end);
+		notifyAll();
+	}
+
+	/**
+	 * Overwrites every waiting range at full speed and stops the background
+	 * thread.
+	 *
+	 * @throws IOException if a range could not be overwritten.
+	 */
+	public void close () throws IOException
+	{
+		synchronized (this)
+		{
+			closed = true;
+			notifyAll();
+		}
+		boolean interrupted = false;
+		while (thread.isAlive())
+		{
+			try
+			{
+				thread.join();
+			}
+			catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this)
+		{
+			checkFailure();
+		}
+	}
+
+	private void checkFailure () throws IOException
+	{
+		if (failure != null)
+		{
+			throw new IOException("Wiping used key bytes failed.", failure);
+		}
+	}
+
+	// The background thread: takes a batch at a time off the front of the
+	// waiting ranges until closed with nothing left.
+	private void work ()
+	{
+		byte[] noise = passes > 1 ? new byte[BATCH_SIZE] : null;
+		double tokens = 0;
+		long refilled = System.nanoTime();
+		try
+		{
+			while (true)
+			{
+				long start, end;
+				synchronized (this)
+				{
+					while (!closed && !ready())
+					{
+						wait(POLL_MILLIS);
+					}
+					if (waiting.isEmpty())
+					{
+						return;
+					}
+					Map.Entry<Long, Long> first = waiting.pollFirstEntry();
+					start = first.getKey();
+					end = Math.min(first.getValue(), start + BATCH_SIZE);
+					if (end < first.getValue())
+					{
+						waiting.put(end, first.getValue());
+					}
+					else if (!waiting.isEmpty())
+					{
+						waitingSince = System.nanoTime();
+					}
+				}
+				long cost = (end - start) * passes;
+				if (bytesPerSecond > 0)
+				{
+					// Refill the bucket, which holds at most one batch, and
+					// wait until it covers this one. Closing ends the wait.
+					while (true)
+					{
+						long now = System.nanoTime();
+						tokens = Math.min(tokens + (now - refilled) *
+								(bytesPerSecond / 1e9), (double) BATCH_SIZE * passes);
+						refilled = now;
+						if (tokens >= cost || closed)
+						{
+							break;
+						}
+						Thread.sleep(Math.max(1, Math.min(POLL_MILLIS,
+								(long) ((cost - tokens) * 1000 / bytesPerSecond))));
+					}
+					tokens = Math.max(0, tokens - cost);
+				}
+				long begin = System.nanoTime();
+				overwrite(channel, start, end - start, passes, noise);
+				Metrics.shared().time(Metrics.Phase.WIPE, System.nanoTime() - begin);
+			}
+		}
+		catch (IOException e)
+		{
+			fail(e);
+		}
+		catch (InterruptedException e)
+		{
+			fail(new IOException("The key wiper was interrupted.", e));
+		}
+	}
+
+	// Returns whether the first waiting range should be overwritten now: it
+	// fills a batch, others wait behind it or it has waited long enough.
+	private boolean ready ()
+	{
+		if (waiting.isEmpty())
+		{
+			return false;
+		}
+		Map.Entry<Long, Long> first = waiting.firstEntry();
+		return first.getValue() - first.getKey() >= BATCH_SIZE ||
+				waiting.size() > 1 ||
+				System.nanoTime() - waitingSince >= LINGER_NANOS;
+	}
+
+	private synchronized void fail (IOException e)
+	{
+		failure = e;
+		waiting.clear();
+	}
+
+	/**
+	 * Overwrites a range of a channel the given number of times, with random
+	 * bytes and then zeros, forcing every pass but the last to disk.
+	 *
+	 * @param  noise a buffer of at least {@link #BATCH_SIZE} bytes for the
+	 * 				 random passes, or null to allocate one if needed.
+	 */
+	static void overwrite (KeyChannel channel, long position, long bytes,
+			int passes, byte[] noise) throws IOException
+	{
+		if (passes > 1 && noise == null)
+		{
+			noise = new byte[(int) Math.min(BATCH_SIZE, Math.max(bytes, 1))];
+		}
+		for (int pass = 1; pass <= passes; pass++)
+		{
+			long written = 0;
+			while (written < bytes)
+			{
+				int length = (int) Math.min(BATCH_SIZE, bytes - written);
+				ByteBuffer buffer;
+				if (pass == passes)
+				{
+					buffer = ZEROS.duplicate();
+					buffer.limit(length);
+				}
+				else
+				{
+					ThreadLocalRandom.current().nextBytes(noise);
+					buffer = ByteBuffer.wrap(noise, 0, length);
+				}
+				ChannelIO.writeFully(channel, buffer, position + written);
+				written += length;
+			}
+			if (pass < passes)
+			{
+				channel.force(false);
+			}
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package src;
+
+/*-- MappedEngine.java -----------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-maps the input, the key and the output and XORs directly between
+ * the mappings, so no bytes are copied through read or write calls. A single
+ * mapping cannot exceed 2 GiB, so files are processed in windows of
+ * {@link #DEFAULT_WINDOW_SIZE} bytes. A key that is not stored in one file,
+ * such as a sharded key, cannot be mapped, and is transformed the way
+ * {@link StreamEngine} does it instead.
+ */
+public class MappedEngine extends TransformEngine
+{
+	/** The default number of bytes mapped at a time. */
+	public static final int DEFAULT_WINDOW_SIZE = 67108864;
+
+	private final int windowSize;
+
+	/** Creates a mapped engine with the default window size. */
+	public MappedEngine ()
+	{
+		this(DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * Creates a mapped engine.
+	 *
+	 * @param  windowSize the number of bytes mapped at a time.
+	 */
+	public MappedEngine (int windowSize)
+	{
+		if (windowSize < 1)
+		{
+			throw new IllegalArgumentException("windowSize must be positive");
+		}
+		this.windowSize = windowSize;
+	}
+
+	public String name ()
+	{
+		return "mapped";
+	}
+
+	public void transform (FileChannel in, long inPosition, KeyChannel key,
+			long keyPosition, FileChannel out, long outPosition, long length,
+			Progress progress) throws IOException
+	{
+		transform(in, inPosition, key, keyPosition, out, outPosition, length,
+				progress, null);
+	}
+
+	public void transform (FileChannel in, long inPosition, KeyChannel key,
+			long keyPosition, FileChannel out, long outPosition, long length,
+			Progress progress, OneTimeMac mac) throws IOException
+	{
+		if (in.size() - inPosition < length || key.size() - keyPosition < length)
+		{
+			throw new EOFException();
+		}
+		FileChannel keyFile = key.fileChannel();
+		if (keyFile == null)
+		{
+			StreamEngine.transformRange(BufferPool.shared(), in, inPosition, key,
+					keyPosition, out, outPosition, 0, length, progress, mac);
+			return;
+		}
+		XorKernel kernel = XorKernel.get();
+		long position = 0;
+		while (position < length)
+		{
+			int size = (int) Math.min(windowSize, length - position);
+			MappedByteBuffer source = in.map(FileChannel.MapMode.READ_ONLY,
+					inPosition + position, size);
+			MappedByteBuffer keyData = keyFile.map(FileChannel.MapMode.READ_ONLY,
+					keyPosition + position, size);
+			MappedByteBuffer destination = out.map(FileChannel.MapMode.READ_WRITE,
+					outPosition + position, size);
+			source.order(ByteOrder.nativeOrder());
+			keyData.order(ByteOrder.nativeOrder());
+			destination.order(ByteOrder.nativeOrder());
+			// Reading and writing happen as the mappings are touched, so
+			// they are counted as XOR time.
+			// The XOR writes the output, so count the bytes first.
+			progress.advance(size);
+			long start = System.nanoTime();
+			kernel.xor(source, keyData, destination, size);
+			if (mac != null)
+			{
+				mac.updateInput(source);
+				mac.updateOutput(destination);
+			}
+			Metrics.shared().time(Metrics.Phase.XOR, System.nanoTime() - start);
+			position += size;
+		}
+	}
+
+	public boolean supportsMac ()
+	{
+		return true;
+	}
+}
@@ -0,0 +1,523 @@
+package src;
+
+/*-- Metrics.java ----------------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts what Cryptomni does, for monitoring: the bytes transformed and the
+ * throughput of every operation, the time spent in each phase of a
+ * transform, failures by cause, and for every key file the bytes left and
+ * how fast they are being used. Counters are {@link LongAdder}s, so threads
+ * that record at the same time do not contend.
+ * <p>
+ * The metrics can be read through JMX once {@link #register} has been
+ * called, which the daemon and the GUI do, or as Prometheus text through
+ * {@link #prometheusText}, which the command line can write to a file for a
+ * textfile collector.
+ */
+public final class Metrics implements MetricsMXBean
+{
+	/** The name the metrics are registered under with JMX. */
+	public static final String OBJECT_NAME = "cryptomni:type=Metrics";
+
+	/** A kind of operation whose bytes and throughput are counted. */
+	public enum Operation
+	{
+		FILE, BATCH, TREE, CONTAINER, STREAM, DAEMON;
+
+		String label ()
+		{
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	/** A phase of a transform whose time is counted. */
+	public enum Phase
+	{
+		/** Reading input. */
+		READ,
+		/** Reading key bytes. */
+		KEY_READ,
+		/** XORing, and for memory-mapped files the paging that comes with it. */
+		XOR,
+		/** Writing output. */
+		WRITE,
+		/** Recording used key bytes in the trailer and wiping them. */
+		KEY_COMMIT,
+		/** Overwriting used key bytes on a background thread. */
+		WIPE;
+
+		String label ()
+		{
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	/** Why an operation failed. */
+	public enum Cause
+	{
+		/** There were not enough unused key bytes. */
+		KEY_EXHAUSTED,
+		/** A MAC tag did not match. */
+		MAC_MISMATCH,
+		/** The operation was cancelled. */
+		CANCELLED,
+		/** A file did not exist. */
+		NOT_FOUND,
+		/** The request was not valid, for example two files with one name. */
+		INVALID,
+		/** Reading or writing failed. */
+		IO;
+
+		String label ()
+		{
+			return name().toLowerCase(Locale.ROOT);
+		}
+
+		/**
+		 * Returns the cause of an exception: {@link #CANCELLED} for an
+		 * {@link InterruptedIOException}, {@link #KEY_EXHAUSTED} for an
+		 * {@link EOFException}, which is what running out of key throws,
+		 * {@link #NOT_FOUND} for a missing file and {@link #IO} otherwise.
+		 */
+		public static Cause of (IOException e)
+		{
+			if (e instanceof InterruptedIOException)
+			{
+				return CANCELLED;
+			}
+			if (e instanceof EOFException)
+			{
+				return KEY_EXHAUSTED;
+			}
+			if (e instanceof FileNotFoundException ||
+					e instanceof NoSuchFileException)
+			{
+				return NOT_FOUND;
+			}
+			return IO;
+		}
+	}
+
+	// Throughput buckets: bucket i holds rates from 2^i to 2^(i+1) bytes a
+	// second. The Prometheus text shows the buckets from 64 KiB/s to 64 GiB/s.
+	private static final int BUCKETS = 64;
+	private static final int FIRST_EXPORTED_BUCKET = 16;
+	private static final int LAST_EXPORTED_BUCKET = 36;
+
+	private static final Metrics SHARED = new Metrics();
+
+	private final Map<Operation, OperationStats> operations =
+			new EnumMap<Operation, OperationStats>(Operation.class);
+	private final Map<Phase, LongAdder> phases =
+			new EnumMap<Phase, LongAdder>(Phase.class);
+	private final Map<Cause, LongAdder> failures =
+			new EnumMap<Cause, LongAdder>(Cause.class);
+	private final ConcurrentMap<String, KeyStats> keys =
+			new ConcurrentHashMap<String, KeyStats>();
+	private boolean registered; // Guarded by this.
+
+	private Metrics ()
+	{
+		// The maps are filled once, so reading them needs no locking.
+		for (Operation operation : Operation.values())
+		{
+			operations.put(operation, new OperationStats());
+		}
+		for (Phase phase : Phase.values())
+		{
+			phases.put(phase, new LongAdder());
+		}
+		for (Cause cause : Cause.values())
+		{
+			failures.put(cause, new LongAdder());
+		}
+	}
+
+	/** Returns the metrics of this JVM. */
+	public static Metrics shared ()
+	{
+		return SHARED;
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server, if they are not
+	 * registered yet. Starting the MBean server takes a moment, so short
+	 * command-line runs do not do this.
+	 */
+	public synchronized void register ()
+	{
+		if (registered)
+		{
+			return;
+		}
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName(OBJECT_NAME));
+			registered = true;
+		}
+		catch (JMException e)
+		{
+			System.err.println("Error: Could not register the metrics: " +
+					e.getMessage());
+		}
+	}
+
+	/**
+	 * Records a completed operation.
+	 *
+	 * @param  operation the kind of operation.
+	 * @param  bytes 	 the number of bytes transformed.
+	 * @param  nanos 	 how long the operation took.
+	 */
+	public void transformed (Operation operation, long bytes, long nanos)
+	{
+		operations.get(operation).add(bytes, nanos);
+	}
+
+	/**
+	 * Records time spent in a phase of a transform.
+	 *
+	 * @param  phase the phase.
+	 * @param  nanos the time spent, from {@link System#nanoTime}.
+	 */
+	public void time (Phase phase, long nanos)
+	{
+		phases.get(phase).add(nanos);
+	}
+
+	/** Records a failed operation. */
+	public void failed (Cause cause)
+	{
+		failures.get(cause).increment();
+	}
+
+	// Returns the statistics of a key file, which KeyPad keeps up to date.
+	KeyStats key (File file)
+	{
+		String path = file.getAbsolutePath();
+		KeyStats stats = keys.get(path);
+		if (stats == null)
+		{
+			keys.putIfAbsent(path, new KeyStats());
+			stats = keys.get(path);
+		}
+		return stats;
+	}
+
+	public Map<String, Long> getTransformedBytes ()
+	{
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (Map.Entry<Operation, OperationStats> entry : operations.entrySet())
+		{
+			result.put(entry.getKey().label(), entry.getValue().bytes.sum());
+		}
+		return result;
+	}
+
+	public Map<String, Long> getOperations ()
+	{
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (Map.Entry<Operation, OperationStats> entry : operations.entrySet())
+		{
+			result.put(entry.getKey().label(), entry.getValue().count.sum());
+		}
+		return result;
+	}
+
+	public Map<String, long[]> getThroughputHistograms ()
+	{
+		Map<String, long[]> result = new LinkedHashMap<String, long[]>();
+		for (Map.Entry<Operation, OperationStats> entry : operations.entrySet())
+		{
+			long[] histogram = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++)
+			{
+				histogram[i] = entry.getValue().throughput.get(i);
+			}
+			result.put(entry.getKey().label(), histogram);
+		}
+		return result;
+	}
+
+	public Map<String, Double> getPhaseSeconds ()
+	{
+		Map<String, Double> result = new LinkedHashMap<String, Double>();
+		for (Map.Entry<Phase, LongAdder> entry : phases.entrySet())
+		{
+			result.put(entry.getKey().label(), entry.getValue().sum() / 1e9);
+		}
+		return result;
+	}
+
+	public Map<String, Long> getFailures ()
+	{
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (Map.Entry<Cause, LongAdder> entry : failures.entrySet())
+		{
+			result.put(entry.getKey().label(), entry.getValue().sum());
+		}
+		return result;
+	}
+
+	public Map<String, Long> getKeyRemainingBytes ()
+	{
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, KeyStats> entry : keys.entrySet())
+		{
+			result.put(entry.getKey(), entry.getValue().remaining);
+		}
+		return result;
+	}
+
+	public Map<String, Long> getKeyConsumedBytes ()
+	{
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, KeyStats> entry : keys.entrySet())
+		{
+			result.put(entry.getKey(), entry.getValue().consumed.sum());
+		}
+		return result;
+	}
+
+	public Map<String, Double> getKeyConsumptionRates ()
+	{
+		Map<String, Double> result = new TreeMap<String, Double>();
+		for (Map.Entry<String, KeyStats> entry : keys.entrySet())
+		{
+			result.put(entry.getKey(), entry.getValue().rate());
+		}
+		return result;
+	}
+
+	public Map<String, Double> getKeySecondsLeft ()
+	{
+		Map<String, Double> result = new TreeMap<String, Double>();
+		for (Map.Entry<String, KeyStats> entry : keys.entrySet())
+		{
+			double rate = entry.getValue().rate();
+			if (rate > 0)
+			{
+				result.put(entry.getKey(), entry.getValue().remaining / rate);
+			}
+		}
+		return result;
+	}
+
+	public String prometheusText ()
+	{
+		StringBuilder text = new StringBuilder();
+		header(text, "cryptomni_transformed_bytes_total", "counter",
+				"Bytes encrypted or decrypted.");
+		for (Map.Entry<Operation, OperationStats> entry : operations.entrySet())
+		{
+			sample(text, "cryptomni_transformed_bytes_total", "operation",
+					entry.getKey().label(), entry.getValue().bytes.sum());
+		}
+		header(text, "cryptomni_throughput_bytes_per_second", "histogram",
+				"Throughput of completed operations.");
+		for (Map.Entry<Operation, OperationStats> entry : operations.entrySet())
+		{
+			OperationStats stats = entry.getValue();
+			String operation = "operation=\"" + entry.getKey().label() + "\"";
+			long cumulative = 0;
+			for (int i = 0; i < BUCKETS; i++)
+			{
+				cumulative += stats.throughput.get(i);
+				if (i >= FIRST_EXPORTED_BUCKET && i <= LAST_EXPORTED_BUCKET)
+				{
+					text.append("cryptomni_throughput_bytes_per_second_bucket{")
+							.append(operation).append(",le=\"")
+							.append(1L << (i + 1)).append("\"} ")
+							.append(cumulative).append('\n');
+				}
+			}
+			text.append("cryptomni_throughput_bytes_per_second_bucket{")
+					.append(operation).append(",le=\"+Inf\"} ")
+					.append(stats.count.sum()).append('\n');
+			text.append("cryptomni_throughput_bytes_per_second_sum{")
+					.append(operation).append("} ")
+					.append(stats.rateSum.sum()).append('\n');
+			text.append("cryptomni_throughput_bytes_per_second_count{")
+					.append(operation).append("} ")
+					.append(stats.count.sum()).append('\n');
+		}
+		header(text, "cryptomni_phase_seconds_total", "counter",
+				"Time spent in each phase of a transform.");
+		for (Map.Entry<String, Double> entry : getPhaseSeconds().entrySet())
+		{
+			sample(text, "cryptomni_phase_seconds_total", "phase",
+					entry.getKey(), entry.getValue());
+		}
+		header(text, "cryptomni_failures_total", "counter",
+				"Failed operations by cause.");
+		for (Map.Entry<String, Long> entry : getFailures().entrySet())
+		{
+			sample(text, "cryptomni_failures_total", "cause",
+					entry.getKey(), entry.getValue());
+		}
+		header(text, "cryptomni_key_remaining_bytes", "gauge",
+				"Unused bytes of each key file.");
+		for (Map.Entry<String, Long> entry : getKeyRemainingBytes().entrySet())
+		{
+			sample(text, "cryptomni_key_remaining_bytes", "key",
+					entry.getKey(), entry.getValue());
+		}
+		header(text, "cryptomni_key_consumed_bytes_total", "counter",
+				"Key bytes consumed from each key file.");
+		for (Map.Entry<String, Long> entry : getKeyConsumedBytes().entrySet())
+		{
+			sample(text, "cryptomni_key_consumed_bytes_total", "key",
+					entry.getKey(), entry.getValue());
+		}
+		header(text, "cryptomni_key_consumption_bytes_per_second", "gauge",
+				"Key bytes consumed per second over the last minute.");
+		for (Map.Entry<String, Double> entry : getKeyConsumptionRates().entrySet())
+		{
+			sample(text, "cryptomni_key_consumption_bytes_per_second", "key",
+					entry.getKey(), entry.getValue());
+		}
+		return text.toString();
+	}
+
+	private static void header (StringBuilder text, String name, String type,
+			String help)
+	{
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample (StringBuilder text, String name, String label,
+			String value, Object sample)
+	{
+		text.append(name).append('{').append(label).append("=\"");
+		for (int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"')
+			{
+				text.append('\\').append(c);
+			}
+			else if (c == '\n')
+			{
+				text.append("\\n");
+			}
+			else
+			{
+				text.append(c);
+			}
+		}
+		text.append("\"} ").append(sample).append('\n');
+	}
+
+	// The counters of one kind of operation.
+	private static class OperationStats
+	{
+		final LongAdder bytes = new LongAdder();
+		final LongAdder count = new LongAdder();
+		final LongAdder rateSum = new LongAdder();
+		final AtomicLongArray throughput = new AtomicLongArray(BUCKETS);
+
+		void add (long transformed, long nanos)
+		{
+			bytes.add(transformed);
+			count.increment();
+			long rate = (long) (transformed * 1e9 / Math.max(1, nanos));
+			rateSum.add(rate);
+			throughput.incrementAndGet(63 - Long.numberOfLeadingZeros(
+					Math.max(1, rate)));
+		}
+	}
+
+	// The use of one key file: its unused bytes, the bytes consumed in
+	// total, and the bytes consumed in each of the last 60 seconds.
+	static class KeyStats
+	{
+		private static final int WINDOW_SECONDS = 60;
+
+		volatile long remaining;
+		final LongAdder consumed = new LongAdder();
+		private final long[] perSecond = new long[WINDOW_SECONDS];
+		private final long[] second = new long[WINDOW_SECONDS];
+
+		KeyStats ()
+		{
+			Arrays.fill(second, Long.MIN_VALUE);
+		}
+
+		// Records that the key pad now has the given number of unused bytes.
+		void remaining (long bytes)
+		{
+			remaining = bytes;
+		}
+
+		// Records consumed key bytes.
+		synchronized void consumed (long bytes)
+		{
+			consumed.add(bytes);
+			long now = System.nanoTime() / 1000000000L;
+			int slot = Math.floorMod(now, WINDOW_SECONDS);
+			if (second[slot] != now)
+			{
+				second[slot] = now;
+				perSecond[slot] = 0;
+			}
+			perSecond[slot] += bytes;
+		}
+
+		// Returns the bytes consumed per second over the last minute.
+		synchronized double rate ()
+		{
+			long now = System.nanoTime() / 1000000000L;
+			long total = 0;
+			for (int i = 0; i < WINDOW_SECONDS; i++)
+			{
+				if (second[i] > now - WINDOW_SECONDS)
+				{
+					total += perSecond[i];
+				}
+			}
+			return (double) total / WINDOW_SECONDS;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package src;
+
+/*-- MetricsMXBean.java ----------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link Metrics}, registered with the platform
+ * MBean server as {@link Metrics#OBJECT_NAME}. Maps are keyed by operation,
+ * phase, cause or key file, and show up as tables in JMX consoles.
+ */
+public interface MetricsMXBean
+{
+	/** Returns the number of bytes transformed, by operation. */
+	Map<String, Long> getTransformedBytes ();
+
+	/** Returns the number of operations that completed, by operation. */
+	Map<String, Long> getOperations ();
+
+	/**
+	 * Returns the throughput of completed operations as log2 histograms, by
+	 * operation. Entry i counts operations that ran at between 2^i and
+	 * 2^(i+1) bytes per second.
+	 */
+	Map<String, long[]> getThroughputHistograms ();
+
+	/**
+	 * Returns the seconds spent reading input, reading key bytes, XORing,
+	 * writing output and recording and wiping used key bytes.
+	 */
+	Map<String, Double> getPhaseSeconds ();
+
+	/** Returns the number of failed operations, by cause. */
+	Map<String, Long> getFailures ();
+
+	/** Returns the number of unused bytes of every key file opened, by path. */
+	Map<String, Long> getKeyRemainingBytes ();
+
+	/** Returns the number of key bytes consumed, by key file. */
+	Map<String, Long> getKeyConsumedBytes ();
+
+	/** Returns the key bytes consumed per second over the last minute, by key file. */
+	Map<String, Double> getKeyConsumptionRates ();
+
+	/**
+	 * Returns how many seconds each key file lasts at its consumption rate,
+	 * for key files that were used in the last minute.
+	 */
+	Map<String, Double> getKeySecondsLeft ();
+
+	/** Returns every metric in the Prometheus text format. */
+	String prometheusText ();
+}
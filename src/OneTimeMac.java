@@ -0,0 +1,246 @@
+package src;
+
+/*-- OneTimeMac.java -------------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * A one-time message authentication code keyed with pad bytes, so that
+ * decrypting a file that was corrupted, truncated, tampered with or
+ * encrypted with another key is detected. It is a Carter-Wegman MAC: the
+ * message is split into 7-byte blocks that are evaluated as a polynomial
+ * modulo the prime 2^61 - 1 at a secret point, and the result is masked
+ * with a secret value. Two independent lanes give a 16-byte tag, and a
+ * forgery succeeds with a probability of about (blocks / 2^61)^2.
+ * <p>
+ * Like the pad itself, the {@link #KEY_SIZE} key bytes of a MAC must never
+ * be used twice. The MAC is fed the ciphertext: the output of an encrypting
+ * transform or the input of a decrypting one. Engines that support it
+ * update it as they XOR, so no second pass over the data is needed.
+ */
+public final class OneTimeMac
+{
+	/** The number of key bytes a MAC uses. */
+	public static final int KEY_SIZE = 32;
+
+	/** The number of bytes in a tag. */
+	public static final int TAG_SIZE = 16;
+
+	private static final long P = (1L << 61) - 1;
+	private static final int BLOCK_SIZE = 7;
+	private static final long BLOCK_MASK = (1L << 56) - 1;
+	private static final long FULL_BLOCK = 1L << 56; // Marks a whole block.
+
+	private final boolean input; // Authenticates the input, else the output.
+	private long r1, s1, r2, s2; // The point and the mask of each lane.
+	private long h1, h2; // The polynomial of each lane so far.
+	private final byte[] pending = new byte[BLOCK_SIZE + 1];
+	private int pendingSize;
+	private boolean finished;
+
+	private OneTimeMac (ByteBuffer key, boolean input)
+	{
+		this.input = input;
+		r1 = key.getLong(0) & P;
+		s1 = Long.remainderUnsigned(key.getLong(8), P);
+		r2 = key.getLong(16) & P;
+		s2 = Long.remainderUnsigned(key.getLong(24), P);
+	}
+
+	/**
+	 * Returns a MAC for an encrypting transform, which authenticates the
+	 * output.
+	 *
+	 * @param  key 		   the key file.
+	 * @param  keyPosition the position of the {@link #KEY_SIZE} key bytes.
+	 * @throws IOException if the key bytes cannot be read.
+	 */
+	public static OneTimeMac forEncryption (KeyChannel key, long keyPosition)
+			throws IOException
+	{
+		return new OneTimeMac(readKey(key, keyPosition), false);
+	}
+
+	/**
+	 * Returns a MAC for a decrypting transform, which authenticates the
+	 * input.
+	 *
+	 * @param  key 		   the key file.
+	 * @param  keyPosition the position of the {@link #KEY_SIZE} key bytes.
+	 * @throws IOException if the key bytes cannot be read.
+	 */
+	public static OneTimeMac forDecryption (KeyChannel key, long keyPosition)
+			throws IOException
+	{
+		return new OneTimeMac(readKey(key, keyPosition), true);
+	}
+
+	private static ByteBuffer readKey (KeyChannel key, long keyPosition)
+			throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(KEY_SIZE);
+		ChannelIO.readFully(key, buffer, keyPosition);
+		ByteBuffer copy = ByteBuffer.wrap(buffer.array().clone());
+		Arrays.fill(buffer.array(), (byte) 0);
+		return copy;
+	}
+
+	/**
+	 * Adds the remaining bytes of a buffer to the message. The position of
+	 * the buffer is not changed.
+	 *
+	 * @param  data the bytes to add.
+	 */
+	public void update (ByteBuffer data)
+	{
+		if (finished)
+		{
+			throw new IllegalStateException("The tag has already been computed.");
+		}
+		ByteBuffer buffer = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int position = buffer.position();
+		int limit = buffer.limit();
+		// Complete the block left over from the last update.
+		while (pendingSize > 0 && position < limit)
+		{
+			addPending(buffer.get(position++));
+		}
+		// Each read takes 8 bytes for a 7-byte block, so stop one byte early.
+		while (limit - position > BLOCK_SIZE)
+		{
+			block((buffer.getLong(position) & BLOCK_MASK) | FULL_BLOCK);
+			position += BLOCK_SIZE;
+		}
+		while (position < limit)
+		{
+			addPending(buffer.get(position++));
+		}
+	}
+
+	// Adds the input of a transform, if that is what this MAC authenticates.
+	void updateInput (ByteBuffer data)
+	{
+		if (input)
+		{
+			update(data);
+		}
+	}
+
+	// Adds the output of a transform, if that is what this MAC authenticates.
+	void updateOutput (ByteBuffer data)
+	{
+		if (!input)
+		{
+			update(data);
+		}
+	}
+
+	private void addPending (byte b)
+	{
+		pending[pendingSize++] = b;
+		if (pendingSize == BLOCK_SIZE)
+		{
+			block(littleEndian(pending, BLOCK_SIZE) | FULL_BLOCK);
+			pendingSize = 0;
+		}
+	}
+
+	private void block (long m)
+	{
+		h1 = multiply(h1 + m, r1);
+		h2 = multiply(h2 + m, r2);
+	}
+
+	/**
+	 * Finishes the message and returns its tag. The key is forgotten, so
+	 * the MAC cannot be used again.
+	 *
+	 * @return the {@link #TAG_SIZE}-byte tag.
+	 */
+	public byte[] tag ()
+	{
+		if (finished)
+		{
+			throw new IllegalStateException("The tag has already been computed.");
+		}
+		if (pendingSize > 0)
+		{
+			// A final short block ends with a 1 byte instead of the marker
+			// of a whole block, so that messages of every length differ.
+			pending[pendingSize] = 1;
+			block(littleEndian(pending, pendingSize + 1));
+		}
+		ByteBuffer tag = ByteBuffer.allocate(TAG_SIZE);
+		tag.putLong(reduce(h1 + s1));
+		tag.putLong(reduce(h2 + s2));
+		finished = true;
+		r1 = s1 = r2 = s2 = h1 = h2 = 0;
+		Arrays.fill(pending, (byte) 0);
+		return tag.array();
+	}
+
+	/**
+	 * Finishes the message and compares its tag with an expected tag in
+	 * constant time.
+	 *
+	 * @param  expected the tag that was stored with the message.
+	 * @return 			true if the tags are equal.
+	 */
+	public boolean verify (byte[] expected)
+	{
+		return MessageDigest.isEqual(tag(), expected);
+	}
+
+	private static long littleEndian (byte[] bytes, int size)
+	{
+		long value = 0;
+		for (int i = size - 1; i >= 0; i--)
+		{
+			value = (value << 8) | (bytes[i] & 0xFF);
+		}
+		return value;
+	}
+
+	// Returns a number below 2^61 + 4 that equals a * b mod P, for a below
+	// 2^62 and b below 2^61. Leaving it partly reduced keeps a branch out of
+	// the loop; the sum with the next block still stays below 2^62.
+	private static long multiply (long a, long b)
+	{
+		long high = Math.multiplyHigh(a, b);
+		long low = a * b;
+		// 2^61 = 1 mod P, so the bits above bit 61 fold back onto the bottom.
+		long x = (low & P) + ((low >>> 61) | (high << 3));
+		return (x & P) + (x >>> 61);
+	}
+
+	// Returns x mod P, for x below 2^63.
+	private static long reduce (long x)
+	{
+		x = (x & P) + (x >>> 61);
+		return x >= P ? x - P : x;
+	}
+}
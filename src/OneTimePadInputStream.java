@@ -0,0 +1,182 @@
+package src;
+
+/*-- OneTimePadInputStream.java --------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An input stream that applies a one-time pad to everything read through
+ * it. Key bytes are taken from a {@link KeyPad} and consumed as bytes are
+ * read, so encrypted data from a socket, a buffer or a database can be
+ * decrypted without being staged in a file first.
+ * <p>
+ * Reading a single byte decrypts a block ahead, and later reads are served
+ * from that block first, so reading a byte at a time does not take key
+ * bytes one at a time. The key for a block is consumed when the block is
+ * read, even if the caller has not taken all of it yet.
+ * <p>
+ * The key pad is not closed when the stream is closed. Used key bytes are
+ * zeroed after each block. Marks are not supported, because key bytes cannot
+ * be used twice. A stream must not be used by more than one thread at a time.
+ */
+public class OneTimePadInputStream extends FilterInputStream
+{
+	private static final int BUFFER_SIZE = 8192;
+
+	private final KeyPad pad;
+	private final XorKernel kernel = XorKernel.get();
+	private final byte[] key = new byte[BUFFER_SIZE];
+	private final byte[] block = new byte[BUFFER_SIZE];
+	private int position; // The next decrypted byte in block.
+	private int count; // The end of the decrypted bytes in block.
+
+	/**
+	 * Creates a one-time pad input stream.
+	 *
+	 * @param  in  the stream to read encrypted bytes from.
+	 * @param  pad the key pad to take key bytes from.
+	 */
+	public OneTimePadInputStream (InputStream in, KeyPad pad)
+	{
+		super(in);
+		this.pad = pad;
+	}
+
+	/**
+	 * Returns the next decrypted byte, reading and decrypting a block if
+	 * none is left.
+	 *
+	 * @throws java.io.EOFException if the key has run out.
+	 */
+	public int read () throws IOException
+	{
+		while (position == count)
+		{
+			int bytesRead = transformAndRead(block, 0, BUFFER_SIZE);
+			if (bytesRead < 0)
+			{
+				return -1;
+			}
+			position = 0;
+			count = bytesRead;
+		}
+		int b = block[position] & 0xFF;
+		block[position++] = 0;
+		return b;
+	}
+
+	/**
+	 * Reads and decrypts up to len bytes, starting with any left over from
+	 * an earlier single-byte read.
+	 *
+	 * @throws java.io.EOFException if the key runs out.
+	 */
+	public int read (byte[] b, int off, int len) throws IOException
+	{
+		if (position < count)
+		{
+			int chunk = Math.min(len, count - position);
+			System.arraycopy(block, position, b, off, chunk);
+			Arrays.fill(block, position, position + chunk, (byte) 0);
+			position += chunk;
+			return chunk;
+		}
+		return transformAndRead(b, off, len);
+	}
+
+	public int available () throws IOException
+	{
+		return count - position + in.available();
+	}
+
+	private int transformAndRead (byte[] b, int off, int len) throws IOException
+	{
+		int bytesRead = in.read(b, off, Math.min(len, BUFFER_SIZE));
+		if (bytesRead > 0)
+		{
+			try
+			{
+				pad.next(ByteBuffer.wrap(key, 0, bytesRead));
+				kernel.xor(b, off, key, 0, bytesRead);
+			}
+			finally
+			{
+				// Used key bytes do not stay on the heap.
+				Arrays.fill(key, 0, bytesRead, (byte) 0);
+			}
+		}
+		return bytesRead;
+	}
+
+	/** Closes the underlying stream and zeroes the buffers. */
+	public void close () throws IOException
+	{
+		try
+		{
+			super.close();
+		}
+		finally
+		{
+			Arrays.fill(block, (byte) 0);
+			Arrays.fill(key, (byte) 0);
+			position = 0;
+			count = 0;
+		}
+	}
+
+	/** Skipping would leave key bytes out of step, so it reads instead. */
+	public long skip (long n) throws IOException
+	{
+		byte[] discard = new byte[(int) Math.min(Math.max(n, 0), BUFFER_SIZE)];
+		long skipped = 0;
+		while (skipped < n)
+		{
+			int bytesRead = read(discard, 0, (int) Math.min(discard.length,
+					n - skipped));
+			if (bytesRead < 0)
+			{
+				break;
+			}
+			skipped += bytesRead;
+		}
+		return skipped;
+	}
+
+	public boolean markSupported ()
+	{
+		return false;
+	}
+
+	public void mark (int readlimit)
+	{
+	}
+
+	public void reset () throws IOException
+	{
+		throw new IOException("mark/reset not supported");
+	}
+}
@@ -0,0 +1,152 @@
+package src;
+
+/*-- OneTimePadOutputStream.java -------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An output stream that applies a one-time pad to everything written to it
+ * before passing it on. Key bytes are taken from a {@link KeyPad} and
+ * consumed before the bytes they protect are written, so data can be
+ * encrypted on its way to a socket, a buffer or a database without being
+ * staged in a file first.
+ * <p>
+ * Single bytes are collected into a block, which is encrypted and passed on
+ * when it fills up, when an array is written or when the stream is flushed
+ * or closed, so writing a byte at a time does not take key bytes one at a
+ * time.
+ * <p>
+ * The key pad is not closed when the stream is closed. Used key bytes are
+ * zeroed after each block. A stream must not be used by more than one thread
+ * at a time.
+ */
+public class OneTimePadOutputStream extends FilterOutputStream
+{
+	private static final int BUFFER_SIZE = 8192;
+
+	private final KeyPad pad;
+	private final XorKernel kernel = XorKernel.get();
+	private final byte[] data = new byte[BUFFER_SIZE];
+	private final byte[] key = new byte[BUFFER_SIZE];
+	private int count; // Single bytes waiting in data.
+
+	/**
+	 * Creates a one-time pad output stream.
+	 *
+	 * @param  out the stream to write encrypted bytes to.
+	 * @param  pad the key pad to take key bytes from.
+	 */
+	public OneTimePadOutputStream (OutputStream out, KeyPad pad)
+	{
+		super(out);
+		this.pad = pad;
+	}
+
+	/**
+	 * Adds one byte to the block, encrypting and writing the block if it is
+	 * full.
+	 *
+	 * @throws java.io.EOFException if the key has run out.
+	 */
+	public void write (int b) throws IOException
+	{
+		data[count++] = (byte) b;
+		if (count == BUFFER_SIZE)
+		{
+			writePending();
+		}
+	}
+
+	/**
+	 * Encrypts and writes part of an array, after any single bytes written
+	 * before it. The array is not modified.
+	 *
+	 * @throws java.io.EOFException if the key runs out. Bytes written before
+	 * 								that point have already been passed on.
+	 */
+	public void write (byte[] b, int off, int len) throws IOException
+	{
+		writePending();
+		while (len > 0)
+		{
+			int chunk = Math.min(len, BUFFER_SIZE);
+			System.arraycopy(b, off, data, 0, chunk);
+			transformAndWrite(chunk);
+			off += chunk;
+			len -= chunk;
+		}
+	}
+
+	/** Encrypts and writes any single bytes, then flushes the stream. */
+	public void flush () throws IOException
+	{
+		writePending();
+		out.flush();
+	}
+
+	/**
+	 * Writes any single bytes, closes the underlying stream and zeroes the
+	 * buffers.
+	 */
+	public void close () throws IOException
+	{
+		try
+		{
+			super.close();
+		}
+		finally
+		{
+			Arrays.fill(data, (byte) 0);
+			Arrays.fill(key, (byte) 0);
+		}
+	}
+
+	private void writePending () throws IOException
+	{
+		if (count > 0)
+		{
+			int length = count;
+			count = 0;
+			transformAndWrite(length);
+		}
+	}
+
+	private void transformAndWrite (int length) throws IOException
+	{
+		try
+		{
+			pad.next(ByteBuffer.wrap(key, 0, length));
+			kernel.xor(data, 0, key, 0, length);
+		}
+		finally
+		{
+			// Used key bytes do not stay on the heap.
+			Arrays.fill(key, 0, length, (byte) 0);
+		}
+		out.write(data, 0, length);
+	}
+}
@@ -0,0 +1,201 @@
+package src;
+
+/*-- PadChannels.java ------------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel versions of {@link OneTimePadInputStream} and
+ * {@link OneTimePadOutputStream}. The returned channels apply a one-time pad
+ * to the bytes that pass through them, taking key bytes from a
+ * {@link KeyPad}. Used key bytes are zeroed after each block. Closing a
+ * channel closes the wrapped channel but not the key pad. The channels must
+ * not be used by more than one thread at a time.
+ */
+public final class PadChannels
+{
+	private static final int BUFFER_SIZE = 65536;
+
+	private PadChannels ()
+	{
+	}
+
+	/**
+	 * Returns a channel that encrypts bytes written to it and writes them to
+	 * another channel. The buffers passed to it are not modified.
+	 *
+	 * @param  out the channel to write encrypted bytes to.
+	 * @param  pad the key pad to take key bytes from.
+	 * @return 	   the encrypting channel.
+	 */
+	public static WritableByteChannel newWritableChannel (
+			WritableByteChannel out, KeyPad pad)
+	{
+		return new Writable(out, pad);
+	}
+
+	/**
+	 * Returns a channel that reads bytes from another channel and decrypts
+	 * them.
+	 *
+	 * @param  in  the channel to read encrypted bytes from.
+	 * @param  pad the key pad to take key bytes from.
+	 * @return 	   the decrypting channel.
+	 */
+	public static ReadableByteChannel newReadableChannel (
+			ReadableByteChannel in, KeyPad pad)
+	{
+		return new Readable(in, pad);
+	}
+
+	private static class Writable implements WritableByteChannel
+	{
+		private final WritableByteChannel out;
+		private final KeyPad pad;
+		private final XorKernel kernel = XorKernel.get();
+		private final ByteBuffer data = ByteBuffer.allocateDirect(BUFFER_SIZE)
+				.order(ByteOrder.nativeOrder());
+		private final ByteBuffer key = ByteBuffer.allocateDirect(BUFFER_SIZE)
+				.order(ByteOrder.nativeOrder());
+
+		Writable (WritableByteChannel out, KeyPad pad)
+		{
+			this.out = out;
+			this.pad = pad;
+		}
+
+		public int write (ByteBuffer src) throws IOException
+		{
+			int written = 0;
+			while (src.hasRemaining())
+			{
+				int chunk = Math.min(src.remaining(), BUFFER_SIZE);
+				ByteBuffer slice = src.duplicate();
+				slice.limit(slice.position() + chunk);
+				data.clear();
+				data.put(slice).flip();
+				key.clear().limit(chunk);
+				try
+				{
+					pad.next(key);
+					key.flip();
+					kernel.xor(data, key, chunk);
+				}
+				finally
+				{
+					BufferPool.zero(key, chunk);
+				}
+				ChannelIO.writeFully(out, data);
+				src.position(src.position() + chunk);
+				written += chunk;
+			}
+			return written;
+		}
+
+		public boolean isOpen ()
+		{
+			return out.isOpen();
+		}
+
+		public void close () throws IOException
+		{
+			try
+			{
+				out.close();
+			}
+			finally
+			{
+				BufferPool.zero(key, BUFFER_SIZE);
+			}
+		}
+	}
+
+	private static class Readable implements ReadableByteChannel
+	{
+		private final ReadableByteChannel in;
+		private final KeyPad pad;
+		private final XorKernel kernel = XorKernel.get();
+		private final ByteBuffer key = ByteBuffer.allocateDirect(BUFFER_SIZE)
+				.order(ByteOrder.nativeOrder());
+
+		Readable (ReadableByteChannel in, KeyPad pad)
+		{
+			this.in = in;
+			this.pad = pad;
+		}
+
+		public int read (ByteBuffer dst) throws IOException
+		{
+			int start = dst.position();
+			int limit = dst.limit();
+			dst.limit(start + Math.min(dst.remaining(), BUFFER_SIZE));
+			int bytesRead;
+			try
+			{
+				bytesRead = in.read(dst);
+			}
+			finally
+			{
+				dst.limit(limit);
+			}
+			if (bytesRead > 0)
+			{
+				key.clear().limit(bytesRead);
+				try
+				{
+					pad.next(key);
+					key.flip();
+					ByteBuffer region = dst.duplicate().order(key.order());
+					region.position(start);
+					kernel.xor(region, key, bytesRead);
+				}
+				finally
+				{
+					BufferPool.zero(key, bytesRead);
+				}
+			}
+			return bytesRead;
+		}
+
+		public boolean isOpen ()
+		{
+			return in.isOpen();
+		}
+
+		public void close () throws IOException
+		{
+			try
+			{
+				in.close();
+			}
+			finally
+			{
+				BufferPool.zero(key, BUFFER_SIZE);
+			}
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package src;
+
+/*-- ParallelEngine.java ---------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Transforms a file on several threads at once. The one-time pad has no
+ * chaining, so every range of the output depends only on the same range of
+ * the input and the key. The file is split in half until ranges are at most
+ * {@link #CHUNK_SIZE} bytes, and the ranges are processed by a fork/join
+ * pool using positional reads and writes. Range boundaries are multiples of
+ * the pooled buffer size, so every read and write stays buffer-aligned.
+ * Each engine keeps one pool for all of its calls. The pool's threads are
+ * daemon threads that exit after a while without work, so an engine needs
+ * no closing.
+ */
+public class ParallelEngine extends TransformEngine
+{
+	/** The largest range that a single task transforms. */
+	public static final long CHUNK_SIZE = 16L * BufferPool.BUFFER_SIZE;
+
+	private final int parallelism;
+	private final ForkJoinPool pool;
+
+	/** Creates a parallel engine with one thread per processor. */
+	public ParallelEngine ()
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a parallel engine.
+	 *
+	 * @param  parallelism the number of threads.
+	 */
+	public ParallelEngine (int parallelism)
+	{
+		if (parallelism < 1)
+		{
+			throw new IllegalArgumentException("parallelism must be at least 1");
+		}
+		this.parallelism = parallelism;
+		pool = parallelism == 1 ? null : new ForkJoinPool(parallelism);
+	}
+
+	public String name ()
+	{
+		return "parallel";
+	}
+
+	/** Returns the number of threads used by this engine. */
+	public int parallelism ()
+	{
+		return parallelism;
+	}
+
+	/** Ranges finish in any order, so progress is not a prefix. */
+	public boolean inOrder ()
+	{
+		return false;
+	}
+
+	public void transform (FileChannel in, long inPosition, KeyChannel key,
+			long keyPosition, FileChannel out, long outPosition, long length,
+			Progress progress) throws IOException
+	{
+		if (parallelism == 1 || length <= CHUNK_SIZE)
+		{
+			StreamEngine.transformRange(BufferPool.shared(), in, inPosition,
+					key, keyPosition, out, outPosition, 0, length, progress, null);
+			return;
+		}
+		try
+		{
+			pool.invoke(new RangeTask(in, inPosition, key, keyPosition, out,
+					outPosition, 0, length, progress));
+		}
+		catch (UncheckedIOException e)
+		{
+			throw e.getCause();
+		}
+	}
+
+	// Transforms one range, splitting it first if it is too large.
+	private static class RangeTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private final FileChannel in, out;
+		private final KeyChannel key;
+		private final long inPosition, keyPosition, outPosition, start, end;
+		private final Progress progress;
+
+		RangeTask (FileChannel in, long inPosition, KeyChannel key,
+				long keyPosition, FileChannel out, long outPosition, long start,
+				long end, Progress progress)
+		{
+			this.in = in;
+			this.inPosition = inPosition;
+			this.key = key;
+			this.keyPosition = keyPosition;
+			this.out = out;
+			this.outPosition = outPosition;
+			this.start = start;
+			this.end = end;
+			this.progress = progress;
+		}
+
+		protected void compute ()
+		{
+			if (end - start <= CHUNK_SIZE)
+			{
+				try
+				{
+					StreamEngine.transformRange(BufferPool.shared(), in,
+							inPosition, key, keyPosition, out, outPosition,
+							start, end, progress, null);
+				}
+				catch (IOException e)
+				{
+					throw new UncheckedIOException(e);
+				}
+				return;
+			}
+			// Split in the middle, rounded down to a whole number of buffers.
+			long middle = start + (end - start) / 2;
+			middle -= middle % BufferPool.BUFFER_SIZE;
+			if (middle <= start)
+			{
+				middle = start + BufferPool.BUFFER_SIZE;
+			}
+			invokeAll(new RangeTask(in, inPosition, key, keyPosition, out,
+					outPosition, start, middle, progress),
+					new RangeTask(in, inPosition, key, keyPosition, out,
+					outPosition, middle, end, progress));
+		}
+	}
+}
@@ -0,0 +1,442 @@
+package src;
+
+/*-- PipelinedEngine.java --------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Overlaps reading, XORing and writing. Four stages run on their own
+ * threads: one reads the input, one reads the key, one XORs and one writes
+ * the output. They pass a fixed set of buffer slots to each other through
+ * bounded queues, so while one slot is being written the next can be XORed
+ * and the ones after it read. With the default depth of three slots this is
+ * triple buffering. The stages block on their queues while they wait, and
+ * run on threads that each engine keeps for all of its calls.
+ * <p>
+ * A failing stage stops the others by putting a marker on every queue
+ * rather than by interrupting them, because interrupting a thread that is
+ * blocked on a FileChannel closes the channel, and the key channel belongs
+ * to the caller.
+ */
+public class PipelinedEngine extends TransformEngine
+{
+	/** The default number of buffer slots. */
+	public static final int DEFAULT_DEPTH = 3;
+
+	private static final int STAGES = 4;
+
+	private final int depth;
+	// Each transform needs all four stages running at once, and a file tree
+	// runs several transforms at a time, so the pool grows as needed. Idle
+	// threads exit after a minute, so an engine needs no closing.
+	private final ExecutorService threads = Executors.newCachedThreadPool(
+			new ThreadFactory()
+			{
+				public Thread newThread (Runnable task)
+				{
+					Thread thread = new Thread(task, "cryptomni-pipeline");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/** Creates a pipelined engine with the default depth. */
+	public PipelinedEngine ()
+	{
+		this(DEFAULT_DEPTH);
+	}
+
+	/**
+	 * Creates a pipelined engine.
+	 *
+	 * @param  depth the number of buffer slots in flight.
+	 */
+	public PipelinedEngine (int depth)
+	{
+		if (depth < 2)
+		{
+			throw new IllegalArgumentException("depth must be at least 2");
+		}
+		this.depth = depth;
+	}
+
+	public String name ()
+	{
+		return "pipelined";
+	}
+
+	public void transform (FileChannel in, long inPosition, KeyChannel key,
+			long keyPosition, FileChannel out, long outPosition, long length,
+			Progress progress) throws IOException
+	{
+		transform(in, inPosition, key, keyPosition, out, outPosition, length,
+				progress, null);
+	}
+
+	public void transform (FileChannel in, long inPosition, KeyChannel key,
+			long keyPosition, FileChannel out, long outPosition, long length,
+			Progress progress, OneTimeMac mac) throws IOException
+	{
+		BufferPool pool = BufferPool.shared();
+		if (length <= pool.bufferSize())
+		{
+			// There is nothing to overlap.
+			StreamEngine.transformRange(pool, in, inPosition, key, keyPosition,
+					out, outPosition, 0, length, progress, mac);
+			return;
+		}
+		new Pipeline(pool, in, inPosition, key, keyPosition, out, outPosition,
+				length, depth, progress, mac).run(threads);
+	}
+
+	public boolean supportsMac ()
+	{
+		return true;
+	}
+
+	// A chunk of the file on its way through the pipeline.
+	private static class Slot
+	{
+		final ByteBuffer data, key;
+		long position;
+
+		Slot (ByteBuffer data, ByteBuffer key)
+		{
+			this.data = data;
+			this.key = key;
+		}
+	}
+
+	// The state of one transform.
+	private static class Pipeline
+	{
+		private static final Slot END = new Slot(null, null);
+		private static final Slot ABORT = new Slot(null, null);
+
+		private final BufferPool pool;
+		private final FileChannel in, out;
+		private final KeyChannel key;
+		private final long inPosition, keyPosition, outPosition, length;
+		private final Progress progress;
+		private final OneTimeMac mac; // Updated by the XOR stage, or null.
+		private final List<Slot> slots = new ArrayList<Slot>();
+		private final BlockingQueue<Slot> free, read, keyed, xored;
+		private volatile boolean aborted;
+
+		Pipeline (BufferPool pool, FileChannel in, long inPosition,
+				KeyChannel key, long keyPosition, FileChannel out,
+				long outPosition, long length, int depth, Progress progress,
+				OneTimeMac mac)
+		{
+			this.pool = pool;
+			this.progress = progress;
+			this.mac = mac;
+			this.in = in;
+			this.inPosition = inPosition;
+			this.key = key;
+			this.keyPosition = keyPosition;
+			this.out = out;
+			this.outPosition = outPosition;
+			this.length = length;
+			// Room for every slot, END and ABORT, so putting never blocks.
+			free = new ArrayBlockingQueue<Slot>(depth + 1);
+			read = new ArrayBlockingQueue<Slot>(depth + 2);
+			keyed = new ArrayBlockingQueue<Slot>(depth + 2);
+			xored = new ArrayBlockingQueue<Slot>(depth + 2);
+			for (int i = 0; i < depth; i++)
+			{
+				Slot slot = new Slot(pool.acquire(), pool.acquire());
+				slots.add(slot);
+				free.add(slot);
+			}
+		}
+
+		void run (ExecutorService threads) throws IOException
+		{
+			CompletionService<Void> stages =
+					new ExecutorCompletionService<Void>(threads);
+			stages.submit(new Callable<Void>()
+			{
+				public Void call () throws Exception
+				{
+					try
+					{
+						readInput();
+					}
+					catch (Exception e)
+					{
+						abort();
+						throw e;
+					}
+					return null;
+				}
+			});
+			stages.submit(new Callable<Void>()
+			{
+				public Void call () throws Exception
+				{
+					try
+					{
+						readKey();
+					}
+					catch (Exception e)
+					{
+						abort();
+						throw e;
+					}
+					return null;
+				}
+			});
+			stages.submit(new Callable<Void>()
+			{
+				public Void call () throws Exception
+				{
+					try
+					{
+						xor();
+					}
+					catch (Exception e)
+					{
+						abort();
+						throw e;
+					}
+					return null;
+				}
+			});
+			stages.submit(new Callable<Void>()
+			{
+				public Void call () throws Exception
+				{
+					try
+					{
+						writeOutput();
+					}
+					catch (Exception e)
+					{
+						abort();
+						throw e;
+					}
+					return null;
+				}
+			});
+
+			// Wait for every stage, even after a failure or an interrupt, so
+			// that no stage still uses a buffer once it goes back to the pool.
+			Throwable failure = null;
+			boolean interrupted = false;
+			int running = STAGES;
+			while (running > 0)
+			{
+				try
+				{
+					Future<Void> stage = stages.take();
+					running--;
+					stage.get();
+				}
+				catch (ExecutionException e)
+				{
+					if (failure == null)
+					{
+						failure = e.getCause();
+					}
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+					abort();
+					if (failure == null)
+					{
+						failure = e;
+					}
+				}
+			}
+			if (interrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+			for (Slot slot : slots)
+			{
+				pool.release(slot.data);
+				pool.release(slot.key);
+			}
+
+			if (failure instanceof IOException)
+			{
+				throw (IOException) failure;
+			}
+			if (failure != null)
+			{
+				throw new IOException("Pipelined transform failed.", failure);
+			}
+		}
+
+		private void readInput () throws IOException
+		{
+			long position = 0;
+			while (position < length)
+			{
+				Slot slot = take(free);
+				slot.position = position;
+				slot.data.clear();
+				slot.data.limit((int) Math.min(slot.data.capacity(),
+						length - position));
+				long start = System.nanoTime();
+				while (slot.data.hasRemaining())
+				{
+					if (in.read(slot.data, inPosition + position +
+							slot.data.position()) < 0)
+					{
+						throw new EOFException();
+					}
+				}
+				slot.data.flip();
+				Metrics.shared().time(Metrics.Phase.READ, System.nanoTime() - start);
+				position += slot.data.limit();
+				put(read, slot);
+			}
+			put(read, END);
+		}
+
+		private void readKey () throws IOException
+		{
+			Slot slot;
+			while ((slot = take(read)) != END)
+			{
+				long start = System.nanoTime();
+				slot.key.clear();
+				slot.key.limit(slot.data.limit());
+				ChannelIO.readFully(key, slot.key, keyPosition + slot.position);
+				slot.key.flip();
+				Metrics.shared().time(Metrics.Phase.KEY_READ, System.nanoTime() - start);
+				put(keyed, slot);
+			}
+			put(keyed, END);
+		}
+
+		private void xor () throws IOException
+		{
+			XorKernel kernel = XorKernel.get();
+			Slot slot;
+			while ((slot = take(keyed)) != END)
+			{
+				// Slots reach this stage in order, so the MAC sees the bytes
+				// in order.
+				long start = System.nanoTime();
+				if (mac != null)
+				{
+					mac.updateInput(slot.data);
+				}
+				kernel.xor(slot.data, slot.key, slot.data.limit());
+				if (mac != null)
+				{
+					mac.updateOutput(slot.data);
+				}
+				Metrics.shared().time(Metrics.Phase.XOR, System.nanoTime() - start);
+				put(xored, slot);
+			}
+			put(xored, END);
+		}
+
+		private void writeOutput () throws IOException
+		{
+			Slot slot;
+			while ((slot = take(xored)) != END)
+			{
+				// Only this stage writes, and in order, so progress is a
+				// prefix. The bytes are counted before they are written, as in
+				// StreamEngine, because a failed write may leave some behind.
+				progress.advance(slot.data.limit());
+				long start = System.nanoTime();
+				ChannelIO.writeFully(out, slot.data, outPosition + slot.position);
+				Metrics.shared().time(Metrics.Phase.WRITE, System.nanoTime() - start);
+				put(free, slot);
+			}
+		}
+
+		// Waits for the next slot, giving up if another stage has failed.
+		private Slot take (BlockingQueue<Slot> queue) throws IOException
+		{
+			checkAborted();
+			Slot slot;
+			try
+			{
+				slot = queue.take();
+			}
+			catch (InterruptedException e)
+			{
+				abort();
+				throw new IOException("Pipelined transform was interrupted.", e);
+			}
+			if (slot == ABORT)
+			{
+				throw new IOException("Pipelined transform was aborted.");
+			}
+			return slot;
+		}
+
+		// Hands a slot to the next stage. The queues have room for every
+		// slot, so this never waits.
+		private void put (BlockingQueue<Slot> queue, Slot slot) throws IOException
+		{
+			checkAborted();
+			queue.add(slot);
+		}
+
+		// Stops every stage: those waiting on a queue wake up to the marker,
+		// and the others notice the flag before their next step.
+		private synchronized void abort ()
+		{
+			if (!aborted)
+			{
+				aborted = true;
+				free.offer(ABORT);
+				read.offer(ABORT);
+				keyed.offer(ABORT);
+				xored.offer(ABORT);
+			}
+		}
+
+		private void checkAborted () throws IOException
+		{
+			if (aborted)
+			{
+				throw new IOException("Pipelined transform was aborted.");
+			}
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package src;
+
+/*-- Progress.java ---------------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.InterruptedIOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks how many bytes an operation has processed and passes that on to a
+ * {@link ProgressListener}, together with the rate and the estimated time
+ * remaining. It also carries the operation's {@link CancellationToken}:
+ * every call to {@link #advance} checks it, so engines and key generation
+ * stop at the next chunk once the token is cancelled.
+ * <p>
+ * Several threads may advance the same progress at once.
+ */
+public class Progress
+{
+	/** A progress that reports nothing and cannot be cancelled. */
+	public static final Progress NONE = new Progress(null, null)
+	{
+		public void start (long total)
+		{
+		}
+
+		public void advance (long bytes)
+		{
+		}
+
+		public void finish ()
+		{
+		}
+	};
+
+	private static final long REPORT_INTERVAL_NANOS = 250000000L;
+
+	private final ProgressListener listener;
+	private final CancellationToken token;
+	private final AtomicLong done = new AtomicLong();
+	private final AtomicLong nextReport = new AtomicLong();
+	private volatile long total;
+	private volatile long startNanos = System.nanoTime();
+	private volatile boolean finished;
+
+	/**
+	 * Creates a progress.
+	 *
+	 * @param  listener the listener to report to, or null.
+	 * @param  token    the token that cancels the operation, or null.
+	 */
+	public Progress (ProgressListener listener, CancellationToken token)
+	{
+		this.listener = listener;
+		this.token = token;
+	}
+
+	/**
+	 * Starts tracking an operation. Called by the operation itself.
+	 *
+	 * @param  total the number of bytes the operation will process.
+	 */
+	public void start (long total)
+	{
+		this.total = total;
+		done.set(0);
+		finished = false;
+		startNanos = System.nanoTime();
+		nextReport.set(startNanos + REPORT_INTERVAL_NANOS);
+	}
+
+	/**
+	 * Records processed bytes, reports if a report is due, and stops the
+	 * operation if it has been cancelled.
+	 *
+	 * @param  bytes the number of bytes processed since the last call.
+	 * @throws InterruptedIOException if the operation has been cancelled.
+	 */
+	public void advance (long bytes) throws InterruptedIOException
+	{
+		done.addAndGet(bytes);
+		long now = System.nanoTime();
+		long due = nextReport.get();
+		// Only one thread reports each interval.
+		if (now - due >= 0 && nextReport.compareAndSet(due,
+				now + REPORT_INTERVAL_NANOS) && listener != null)
+		{
+			listener.progressed(this);
+		}
+		check();
+	}
+
+	/**
+	 * Stops the operation if it has been cancelled.
+	 *
+	 * @throws InterruptedIOException if the operation has been cancelled.
+	 */
+	public void check () throws InterruptedIOException
+	{
+		if (isCancelled())
+		{
+			throw new InterruptedIOException("Cancelled.");
+		}
+	}
+
+	/** Marks the operation as finished and sends a final report. */
+	public void finish ()
+	{
+		finished = true;
+		if (listener != null)
+		{
+			listener.progressed(this);
+		}
+	}
+
+	/** Returns true if the operation's token has been cancelled. */
+	public boolean isCancelled ()
+	{
+		return token != null && token.isCancelled();
+	}
+
+	/** Returns true once the operation has finished, successfully or not. */
+	public boolean isFinished ()
+	{
+		return finished;
+	}
+
+	/** Returns the number of bytes processed so far. */
+	public long done ()
+	{
+		return done.get();
+	}
+
+	/** Returns the number of bytes the operation will process. */
+	public long total ()
+	{
+		return total;
+	}
+
+	/** Returns the fraction of the bytes processed so far, from 0 to 1. */
+	public double fraction ()
+	{
+		long t = total;
+		return t <= 0 ? (finished ? 1 : 0) : Math.min(1, (double) done() / t);
+	}
+
+	/** Returns the average number of bytes processed per second so far. */
+	public double rate ()
+	{
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		return seconds <= 0 ? 0 : done() / seconds;
+	}
+
+	/**
+	 * Returns the estimated number of seconds until the operation finishes,
+	 * or -1 if nothing has been processed yet.
+	 */
+	public long secondsRemaining ()
+	{
+		double rate = rate();
+		if (rate <= 0)
+		{
+			return -1;
+		}
+		return (long) Math.ceil(Math.max(0, total - done()) / rate);
+	}
+
+	/** Returns a one-line summary, such as "45%  120.3 MiB/s  0:01:23 left". */
+	public String toString ()
+	{
+		long seconds = secondsRemaining();
+		String eta = seconds < 0 ? "--:--:--" : String.format(Locale.ROOT,
+				"%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+		return String.format(Locale.ROOT, "%d%%  %.1f MiB/s  %s left",
+				(int) (fraction() * 100), rate() / 1048576, eta);
+	}
+}
@@ -0,0 +1,39 @@
+package src;
+
+/*-- ProgressListener.java -------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+/**
+ * Receives progress reports from a long-running operation. Reports arrive
+ * on the threads doing the work, at most a few times a second, and once more
+ * when the operation finishes.
+ */
+public interface ProgressListener
+{
+	/**
+	 * Called when the operation has made progress or has finished.
+	 *
+	 * @param  progress the operation's progress, with its rate and estimated
+	 * 					time remaining.
+	 */
+	void progressed (Progress progress);
+}
@@ -0,0 +1,116 @@
+package src;
+
+/*-- ProgressPanel.java ----------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
+
+/**
+ * A progress bar with a Cancel button, shown at the bottom of each tab.
+ * The bar shows the percentage done, the rate and the time remaining of
+ * the running operation, and the button cancels it.
+ */
+public class ProgressPanel extends JPanel implements ProgressListener
+{
+	private static final long serialVersionUID = 1L;
+	private static final int STEPS = 1000;
+
+	private final JProgressBar bar = new JProgressBar(0, STEPS);
+	private final JButton cancelButton = new JButton("Cancel");
+	private CancellationToken token;
+
+	public ProgressPanel ()
+	{
+		super(new BorderLayout(5, 0));
+		setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+		bar.setStringPainted(true);
+		bar.setString("");
+		cancelButton.setEnabled(false);
+		cancelButton.addActionListener(new ActionListener()
+		{
+			public void actionPerformed (ActionEvent e)
+			{
+				if (token != null)
+				{
+					token.cancel();
+					cancelButton.setEnabled(false);
+					bar.setString("Cancelling...");
+				}
+			}
+		});
+		add(bar, BorderLayout.CENTER);
+		add(cancelButton, BorderLayout.LINE_END);
+	}
+
+	/**
+	 * Prepares the panel for a new operation. Must be called on the event
+	 * dispatch thread.
+	 *
+	 * @return the progress to pass to the operation.
+	 */
+	public Progress start ()
+	{
+		token = new CancellationToken();
+		bar.setValue(0);
+		bar.setString("Starting...");
+		cancelButton.setEnabled(true);
+		return new Progress(this, token);
+	}
+
+	/**
+	 * Resets the panel after an operation. Must be called on the event
+	 * dispatch thread.
+	 */
+	public void stop ()
+	{
+		token = null;
+		bar.setValue(0);
+		bar.setString("");
+		cancelButton.setEnabled(false);
+	}
+
+	public void progressed (final Progress progress)
+	{
+		final int value = (int) (progress.fraction() * STEPS);
+		final String text = progress.toString();
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			public void run ()
+			{
+				// Ignore reports that arrive after the panel was reset.
+				if (token != null && !token.isCancelled())
+				{
+					bar.setValue(value);
+					bar.setString(text);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,369 @@
+package src;
+
+/*-- ShardedKeyStore.java --------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A key split across several shard files, which may sit on different disks.
+ * The key is described by a manifest: a small text file that Cryptomni
+ * accepts anywhere a key file is expected. For example:
+ * <pre>
+ * cryptomni-shards 1
+ * stripe 1048576
+ * shard /mnt/disk1/key.shard0
+ * shard /mnt/disk2/key.shard1
+ * </pre>
+ * The key bytes are striped round-robin: the first stripe is in shard 0,
+ * the second in shard 1, and so on. A key can then be larger than any one
+ * volume. The shards are generated at the same time, each by its own
+ * {@link KeyGenerator}, so creating the key writes to every disk at once.
+ * When the key is used, the parallel engine's threads work on different
+ * ranges and so read from several disks at once; the stream, mapped and
+ * pipelined engines read the key in order, one stripe and so one disk at a
+ * time. Relative shard paths are resolved against the directory of the
+ * manifest. Consumption is recorded in a trailer appended to the manifest,
+ * so the shards hold only key bytes.
+ * <p>
+ * The key bytes are reached through a {@link KeyChannel}. Sharded keys
+ * cannot be memory-mapped, so the mapped engine reads them the way the
+ * stream engine does.
+ */
+public final class ShardedKeyStore
+{
+	/** The first line of every manifest. */
+	public static final String HEADER = "cryptomni-shards 1";
+	/** The number of consecutive key bytes stored in one shard. */
+	public static final int STRIPE_SIZE = 1048576;
+
+	private ShardedKeyStore ()
+	{
+	}
+
+	/**
+	 * Creates a sharded key with one shard in each of the given directories.
+	 * A directory may be listed more than once. Shard i is named after the
+	 * manifest with ".shard" and i appended. The shards are generated at the
+	 * same time.
+	 *
+	 * @param  manifest    the location to write the manifest.
+	 * @param  byteSize    the total number of key bytes.
+	 * @param  directories the directories of the shards, in stripe order.
+	 * @param  threads     the number of threads that generate each shard.
+	 * @throws IOException if a shard or the manifest cannot be written.
+	 */
+	public static void create (File manifest, long byteSize,
+			List<File> directories, int threads) throws IOException
+	{
+		create(manifest, byteSize, directories, threads, Progress.NONE);
+	}
+
+	/**
+	 * Creates a sharded key, reporting every region written to a progress.
+	 * If the progress is cancelled, the shards written so far are deleted.
+	 *
+	 * @param  manifest    the location to write the manifest.
+	 * @param  byteSize    the total number of key bytes.
+	 * @param  directories the directories of the shards, in stripe order.
+	 * @param  threads     the number of threads that generate each shard.
+	 * @param  progress    the progress to advance.
+	 * @throws java.io.InterruptedIOException if the progress is cancelled.
+	 * @throws IOException if a shard or the manifest cannot be written.
+	 */
+	public static void create (File manifest, long byteSize,
+			List<File> directories, int threads, Progress progress)
+			throws IOException
+	{
+		create(manifest, byteSize, directories, threads, EntropySource.DEFAULT,
+				progress);
+	}
+
+	/**
+	 * Creates a sharded key from the given entropy source, reporting every
+	 * region written to a progress.
+	 *
+	 * @param  source the source of the random bytes of every shard.
+	 * @see    #create(File, long, List, int, Progress)
+	 */
+	public static void create (File manifest, long byteSize,
+			List<File> directories, int threads, EntropySource source,
+			Progress progress) throws IOException
+	{
+		create(manifest, byteSize, directories, new KeyGenerator(threads,
+				source), progress);
+	}
+
+	/**
+	 * Creates a sharded key with the given key generator, reporting every
+	 * region written to a progress.
+	 *
+	 * @param  generator the key generator of every shard.
+	 * @see    #create(File, long, List, int, Progress)
+	 */
+	public static void create (File manifest, long byteSize,
+			List<File> directories, final KeyGenerator generator,
+			final Progress progress) throws IOException
+	{
+		if (directories.isEmpty())
+		{
+			throw new IllegalArgumentException("At least one shard is needed.");
+		}
+		List<File> shards = new ArrayList<File>();
+		StringBuilder text = new StringBuilder(HEADER + "\n");
+		text.append("stripe ").append(STRIPE_SIZE).append('\n');
+		try
+		{
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (int i = 0; i < directories.size(); i++)
+			{
+				final File shard = new File(directories.get(i),
+						manifest.getName() + ".shard" + i).getAbsoluteFile();
+				final long length = shardLength(byteSize, directories.size(),
+						STRIPE_SIZE, i);
+				shards.add(shard);
+				tasks.add(new Callable<Void>()
+				{
+					public Void call () throws IOException
+					{
+						generator.generate(shard, length, progress);
+						return null;
+					}
+				});
+				text.append("shard ").append(shard.getPath()).append('\n');
+			}
+			generateAll(tasks);
+			// Write the manifest last, so that a failed store is never usable.
+			Files.write(manifest.toPath(), text.toString().getBytes(
+					StandardCharsets.UTF_8));
+		}
+		catch (IOException e)
+		{
+			for (File shard : shards)
+			{
+				shard.delete();
+			}
+			throw e;
+		}
+	}
+
+	// Generates every shard, each on its own thread.
+	private static void generateAll (List<Callable<Void>> tasks)
+			throws IOException
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(tasks.size());
+		try
+		{
+			for (Future<Void> result : pool.invokeAll(tasks))
+			{
+				result.get();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Key generation was interrupted.", e);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException)
+			{
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Returns true if a file is the manifest of a sharded key rather than a
+	 * plain key file.
+	 */
+	public static boolean isManifest (File file)
+	{
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ))
+		{
+			return isManifest(channel);
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	static boolean isManifest (FileChannel channel) throws IOException
+	{
+		byte[] header = HEADER.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer start = ByteBuffer.allocate(header.length + 1);
+		while (start.hasRemaining())
+		{
+			if (channel.read(start, start.position()) < 0)
+			{
+				return false;
+			}
+		}
+		byte last = start.get(header.length);
+		start.flip().limit(header.length);
+		return start.equals(ByteBuffer.wrap(header)) &&
+				(last == '\n' || last == '\r');
+	}
+
+	/**
+	 * Opens the shards listed in a manifest as one striped channel, checking
+	 * that their sizes fit together.
+	 *
+	 * @param  manifest   the manifest file.
+	 * @param  channel    the open manifest.
+	 * @param  textLength the length of the manifest text, excluding any
+	 * 					  trailer.
+	 * @param  files      receives the shard files.
+	 */
+	static KeyChannel open (File manifest, FileChannel channel,
+			long textLength, List<File> files) throws IOException
+	{
+		int stripeSize = parse(manifest, channel, textLength, files);
+		FileChannel[] shards = new FileChannel[files.size()];
+		try
+		{
+			long total = 0;
+			for (int i = 0; i < shards.length; i++)
+			{
+				shards[i] = FileChannel.open(files.get(i).toPath(),
+						StandardOpenOption.READ, StandardOpenOption.WRITE);
+				total += shards[i].size();
+			}
+			for (int i = 0; i < shards.length; i++)
+			{
+				if (shards[i].size() != shardLength(total, shards.length,
+						stripeSize, i))
+				{
+					throw new IOException("Shard has the wrong size: " +
+							files.get(i));
+				}
+			}
+			return new StripedChannel(shards, stripeSize);
+		}
+		catch (IOException e)
+		{
+			for (FileChannel shard : shards)
+			{
+				if (shard != null)
+				{
+					shard.close();
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the number of key bytes of a sharded key from the sizes of its
+	 * shards, without opening them.
+	 *
+	 * @see    #open(File, FileChannel, long, List)
+	 */
+	static long length (File manifest, FileChannel channel, long textLength)
+			throws IOException
+	{
+		List<File> files = new ArrayList<File>();
+		parse(manifest, channel, textLength, files);
+		long total = 0;
+		for (File shard : files)
+		{
+			if (!shard.isFile())
+			{
+				throw new FileNotFoundException("Shard not found: " + shard);
+			}
+			total += shard.length();
+		}
+		return total;
+	}
+
+	// Reads the shard files of a manifest into files and returns the stripe
+	// size.
+	private static int parse (File manifest, FileChannel channel,
+			long textLength, List<File> files) throws IOException
+	{
+		ByteBuffer text = ByteBuffer.allocate((int) textLength);
+		ChannelIO.readFully(channel, text, 0);
+		String[] lines = new String(text.array(), StandardCharsets.UTF_8)
+				.split("\r?\n");
+		int stripeSize = 0;
+		File directory = manifest.getAbsoluteFile().getParentFile();
+		for (int i = 1; i < lines.length; i++)
+		{
+			String line = lines[i].trim();
+			if (line.isEmpty() || line.startsWith("#"))
+			{
+				continue;
+			}
+			if (line.startsWith("stripe "))
+			{
+				stripeSize = Integer.parseInt(line.substring(7).trim());
+			}
+			else if (line.startsWith("shard "))
+			{
+				File shard = new File(line.substring(6).trim());
+				files.add(shard.isAbsolute() ? shard : new File(directory,
+						shard.getPath()));
+			}
+			else
+			{
+				throw new IOException("Malformed shard manifest: " + manifest);
+			}
+		}
+		if (stripeSize <= 0 || files.isEmpty())
+		{
+			throw new IOException("Malformed shard manifest: " + manifest);
+		}
+		return stripeSize;
+	}
+
+	// Returns the number of bytes of a key of the given size that fall in
+	// one shard.
+	static long shardLength (long byteSize, int shards, int stripeSize,
+			int index)
+	{
+		long round = (long) stripeSize * shards;
+		long partial = byteSize % round - (long) index * stripeSize;
+		return byteSize / round * stripeSize +
+				Math.max(0, Math.min(stripeSize, partial));
+	}
+}
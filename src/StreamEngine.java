@@ -0,0 +1,152 @@
+package src;
+
+/*-- StreamEngine.java -----------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the input and the key a buffer at a time, XORs in place and writes
+ * the result. Two pooled direct buffers are reused for the whole file, so
+ * nothing is allocated per chunk. This is the default engine and works with
+ * any file.
+ */
+public class StreamEngine extends TransformEngine
+{
+	private final BufferPool pool;
+
+	/** Creates a stream engine that uses the shared buffer pool. */
+	public StreamEngine ()
+	{
+		pool = BufferPool.shared();
+	}
+
+	/**
+	 * Creates a stream engine with its own buffers of the given size.
+	 *
+	 * @param  bufferSize the number of bytes read and written at a time.
+	 */
+	public StreamEngine (int bufferSize)
+	{
+		if (bufferSize < 1)
+		{
+			throw new IllegalArgumentException("bufferSize must be positive");
+		}
+		pool = new BufferPool(bufferSize, 4);
+	}
+
+	public String name ()
+	{
+		return "stream";
+	}
+
+	public void transform (FileChannel in, long inPosition, KeyChannel key,
+			long keyPosition, FileChannel out, long outPosition, long length,
+			Progress progress) throws IOException
+	{
+		transform(in, inPosition, key, keyPosition, out, outPosition, length,
+				progress, null);
+	}
+
+	public void transform (FileChannel in, long inPosition, KeyChannel key,
+			long keyPosition, FileChannel out, long outPosition, long length,
+			Progress progress, OneTimeMac mac) throws IOException
+	{
+		transformRange(pool, in, inPosition, key, keyPosition, out, outPosition,
+				0, length, progress, mac);
+	}
+
+	public boolean supportsMac ()
+	{
+		return true;
+	}
+
+	/**
+	 * Transforms the bytes between start and end of a range, where position
+	 * p of the range is read from inPosition + p of the input and
+	 * keyPosition + p of the key and written to outPosition + p of the
+	 * output. Only positional reads and writes are used, so several threads
+	 * may work on different ranges of the same files at once. Each chunk
+	 * written is reported to progress and, if mac is not null, added to it.
+	 */
+	static void transformRange (BufferPool pool, FileChannel in,
+			long inPosition, KeyChannel key, long keyPosition, FileChannel out,
+			long outPosition, long start, long end, Progress progress,
+			OneTimeMac mac) throws IOException
+	{
+		XorKernel kernel = XorKernel.get();
+		Metrics metrics = Metrics.shared();
+		ByteBuffer data = pool.acquire();
+		ByteBuffer keyData = pool.acquire();
+		try
+		{
+			long position = start;
+			while (position < end)
+			{
+				long t0 = System.nanoTime();
+				data.clear();
+				data.limit((int) Math.min(data.capacity(), end - position));
+				if (in.read(data, inPosition + position) < 0)
+				{
+					throw new EOFException();
+				}
+				data.flip();
+				long t1 = System.nanoTime();
+				keyData.clear();
+				keyData.limit(data.remaining());
+				ChannelIO.readFully(key, keyData, keyPosition + position);
+				keyData.flip();
+				long t2 = System.nanoTime();
+				if (mac != null)
+				{
+					mac.updateInput(data);
+					kernel.xor(data, keyData, data.remaining());
+					mac.updateOutput(data);
+				}
+				else
+				{
+					kernel.xor(data, keyData, data.remaining());
+				}
+				// Count the bytes before writing them: a write that fails
+				// part way may already have put some of them in the output,
+				// so their key must not be given back.
+				progress.advance(keyData.limit());
+				long t3 = System.nanoTime();
+				ChannelIO.writeFully(out, data, outPosition + position);
+				long t4 = System.nanoTime();
+				metrics.time(Metrics.Phase.READ, t1 - t0);
+				metrics.time(Metrics.Phase.KEY_READ, t2 - t1);
+				metrics.time(Metrics.Phase.XOR, t3 - t2);
+				metrics.time(Metrics.Phase.WRITE, t4 - t3);
+				position += keyData.limit();
+			}
+		}
+		finally
+		{
+			pool.release(data);
+			pool.release(keyData);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package src;
+
+/*-- StripedChannel.java ---------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Presents the shards of a sharded key as one channel. Consecutive stripes
+ * of the key are stored round-robin in the shards, so stripe s is stripe
+ * s / n of shard s % n. A range that crosses a stripe boundary is read or
+ * written one stripe per call. There is no single file behind the key, so
+ * {@link #fileChannel} returns null.
+ */
+final class StripedChannel implements KeyChannel
+{
+	private final FileChannel[] shards;
+	private final int stripeSize;
+	private final long size;
+
+	StripedChannel (FileChannel[] shards, int stripeSize) throws IOException
+	{
+		this.shards = shards;
+		this.stripeSize = stripeSize;
+		long total = 0;
+		for (FileChannel shard : shards)
+		{
+			total += shard.size();
+		}
+		size = total;
+	}
+
+	public int read (ByteBuffer dst, long position) throws IOException
+	{
+		if (position >= size)
+		{
+			return -1;
+		}
+		ByteBuffer part = segment(dst, position);
+		int bytesRead = shards[shard(position)].read(part, shardPosition(
+				position));
+		if (bytesRead > 0)
+		{
+			dst.position(dst.position() + bytesRead);
+		}
+		return bytesRead;
+	}
+
+	public int write (ByteBuffer src, long position) throws IOException
+	{
+		if (position + src.remaining() > size)
+		{
+			throw new IOException("A sharded key cannot grow.");
+		}
+		ByteBuffer part = segment(src, position);
+		int written = shards[shard(position)].write(part, shardPosition(
+				position));
+		src.position(src.position() + written);
+		return written;
+	}
+
+	public long size ()
+	{
+		return size;
+	}
+
+	public void force (boolean metaData) throws IOException
+	{
+		for (FileChannel shard : shards)
+		{
+			shard.force(metaData);
+		}
+	}
+
+	public boolean isOpen ()
+	{
+		return shards[0].isOpen();
+	}
+
+	public FileChannel fileChannel ()
+	{
+		return null;
+	}
+
+	public void close () throws IOException
+	{
+		IOException failure = null;
+		for (FileChannel shard : shards)
+		{
+			try
+			{
+				shard.close();
+			}
+			catch (IOException e)
+			{
+				failure = e;
+			}
+		}
+		if (failure != null)
+		{
+			throw failure;
+		}
+	}
+
+	// Returns a view of the part of a buffer that lies in the stripe
+	// holding the given position.
+	private ByteBuffer segment (ByteBuffer buffer, long position)
+	{
+		int within = (int) (position % stripeSize);
+		int length = (int) Math.min(Math.min(buffer.remaining(),
+				stripeSize - within), size - position);
+		ByteBuffer part = buffer.duplicate();
+		part.limit(part.position() + length);
+		return part;
+	}
+
+	private int shard (long position)
+	{
+		return (int) (position / stripeSize % shards.length);
+	}
+
+	private long shardPosition (long position)
+	{
+		return position / stripeSize / shards.length * stripeSize +
+				position % stripeSize;
+	}
+}
@@ -28,6 +28,7 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.io.File;
+import java.io.IOException;
 
 import javax.swing.BorderFactory;
 import javax.swing.ImageIcon;
@@ -51,9 +52,13 @@ public class TabbedPane extends JPanel
 	// Class variables:
 	private static final long serialVersionUID = 1L;
 	private JFileChooser fc;
-	private JSpinner spinner;
+	private JSpinner spinner, threadSpinner;
 	private JComboBox sizeList;
 	private ImageIcon saveIcon, dirIcon;
+	// Progress bars with Cancel buttons, one per tab:
+	private final ProgressPanel keyProgress = new ProgressPanel(),
+			encryptProgress = new ProgressPanel(), 
+			decryptProgress = new ProgressPanel();
 	
 	// Class variables to keep track of file selections:
 	private File encryptFile1, encryptFile2, decryptFile1, decryptFile2;
@@ -113,8 +118,16 @@ public class TabbedPane extends JPanel
         SpinnerModel sizeModel = new SpinnerNumberModel(1,1,Integer.MAX_VALUE,1);
         spinner = new JSpinner (sizeModel);
 
+        // Create a spinner for the number of key generation threads.
+        int processors = Runtime.getRuntime().availableProcessors();
+        SpinnerModel threadModel = new SpinnerNumberModel(processors,1,
+        		Math.max(256, processors),1);
+        threadSpinner = new JSpinner (threadModel);
+        JLabel threadLabel = new JLabel("Threads:");
+
         // Create a combo box.
-        String[] sizeStrings = {"bytes (B)","kibibytes (KiB)","mebibytes (MiB)"};
+        String[] sizeStrings = {"bytes (B)","kibibytes (KiB)","mebibytes (MiB)",
+        		"gibibytes (GiB)"};
         sizeList = new JComboBox(sizeStrings);
         sizeList.setSelectedIndex(1);
         
@@ -130,33 +143,44 @@ public class TabbedPane extends JPanel
                 {
                     final File file = fc.getSelectedFile();
                     // Get the value of the spinner.
-                    int byteSize = (Integer)spinner.getValue();
+                    long byteSize = (Integer)spinner.getValue();
                     // Check the value of the combo box.
                     if (sizeList.getSelectedItem().equals("kibibytes (KiB)"))
                     {
                     	// Convert kibibytes to bytes.
-                    	byteSize *= 1024;
+                    	byteSize *= 1024L;
                     }
                     else if (sizeList.getSelectedItem().equals("mebibytes (MiB)"))
                     {
                     	// Convert mebibytes to bytes.
-                    	byteSize *= 1048576;
+                    	byteSize *= 1048576L;
+                    }
+                    else if (sizeList.getSelectedItem().equals("gibibytes (GiB)"))
+                    {
+                    	// Convert gibibytes to bytes.
+                    	byteSize *= 1073741824L;
                     }
-                    final int finalByteSize = byteSize;
+                    final long finalByteSize = byteSize;
+                    final int threads = (Integer)threadSpinner.getValue();
 
                     setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
                     keyButton.setEnabled(false);
+                    final Progress progress = keyProgress.start();
 
                     SwingWorker<Boolean, Void> worker = new SwingWorker<Boolean, Void>() {
                         @Override
                         protected Boolean doInBackground() throws Exception {
-                            return Cryptomni.createKey(file, finalByteSize);
+                            return Cryptomni.createKey(file, finalByteSize, threads, progress);
                         }
 
                         @Override
                         protected void done() {
                             try {
-                                if (get()) {
+                                if (progress.isCancelled()) {
+                                    JOptionPane.showMessageDialog(TabbedPane.this,
+                                            "Key creation was cancelled.","Cancelled",
+                                            JOptionPane.INFORMATION_MESSAGE);
+                                } else if (get()) {
                                     JOptionPane.showMessageDialog(TabbedPane.this,
                                             "Cryptomni key successfully created.","Success",
                                             JOptionPane.INFORMATION_MESSAGE);
@@ -172,6 +196,7 @@ public class TabbedPane extends JPanel
                             } finally {
                                 setCursor(Cursor.getDefaultCursor());
                                 keyButton.setEnabled(true);
+                                keyProgress.stop();
                             }
                         }
                     };
@@ -185,15 +210,20 @@ public class TabbedPane extends JPanel
         panel1.add(label1);
         panel1.add(spinner);
         panel1.add(sizeList);
+        panel1.add(threadLabel);
+        panel1.add(threadSpinner);
         JPanel panel2 = new JPanel();
         panel2.add(label2);
         JPanel buttonPanel = new JPanel();
         buttonPanel.add(keyButton);
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        bottomPanel.add(buttonPanel, BorderLayout.PAGE_START);
+        bottomPanel.add(keyProgress, BorderLayout.PAGE_END);
 
         // Add the buttons to this panel.
         panel.add(panel1, BorderLayout.PAGE_START);
         panel.add(panel2, BorderLayout.CENTER);
-        panel.add(buttonPanel, BorderLayout.PAGE_END);
+        panel.add(bottomPanel, BorderLayout.PAGE_END);
         
         return panel;
     }
@@ -214,8 +244,11 @@ public class TabbedPane extends JPanel
         {
         	public void actionPerformed(ActionEvent e) 
         	{
-        		// Display the open dialog.
+        		// Display the open dialog. A directory encrypts or decrypts 
+        		// every file below it.
+        		fc.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
                 int returnVal = fc.showOpenDialog(TabbedPane.this);
+                fc.setFileSelectionMode(JFileChooser.FILES_ONLY);
                 if (returnVal == JFileChooser.APPROVE_OPTION) 
                 {
                     encryptFile1 = fc.getSelectedFile();
@@ -262,43 +295,61 @@ public class TabbedPane extends JPanel
         		}
         		else
         		{
-        			// Check whether the key file is smaller than the source file.
-        			if (encryptFile1.length()>encryptFile2.length())
+        			// Check whether the unused key is smaller than the source file.
+        			final boolean tree = encryptFile1.isDirectory();
+        			String keyProblem = tree ? null : 
+        					keyProblem(encryptFile1, encryptFile2, "source");
+        			if (keyProblem != null)
         			{
 					// Display an error message and abort.
-					JOptionPane.showMessageDialog(TabbedPane.this,
-        					  "The source file is larger than the key file.\n" +
-							  "Please use a key that is at least as long as the source file.",
+					JOptionPane.showMessageDialog(TabbedPane.this, keyProblem,
 						  "Error",
 						  JOptionPane.ERROR_MESSAGE);
         			}
 				else
         			{
-            			// Display the save dialog.
+            			// Display the save dialog, which asks for a directory 
+            			// when a tree is transformed.
+            			if (tree)
+            			{
+            				fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+            			}
                         int returnVal = fc.showSaveDialog(TabbedPane.this);
+                        fc.setFileSelectionMode(JFileChooser.FILES_ONLY);
                         if (returnVal == JFileChooser.APPROVE_OPTION) 
                         {
                             final File file3 = fc.getSelectedFile();
 
                             setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
                             destinationButton.setEnabled(false);
+                            final Progress progress = encryptProgress.start();
 
                             SwingWorker<Boolean, Void> worker = new SwingWorker<Boolean, Void>() {
                                 @Override
                                 protected Boolean doInBackground() throws Exception {
-                                    return Cryptomni.encryptFile(encryptFile1, encryptFile2, file3);
+                                    if (tree) {
+                                        return Cryptomni.encryptTree(encryptFile1, encryptFile2, file3,
+                                                TransformEngine.DEFAULT, TreeTransform.DEFAULT_WORKERS,
+                                                TreeTransform.DEFAULT_BUDGET, progress);
+                                    }
+                                    return Cryptomni.encryptFile(encryptFile1, encryptFile2, file3,
+                                            TransformEngine.DEFAULT, progress);
                                 }
 
                                 @Override
                                 protected void done() {
                                     try {
-                                        if (get()) {
+                                        if (progress.isCancelled()) {
+                                            JOptionPane.showMessageDialog(TabbedPane.this,
+                                                    "Encryption was cancelled.","Cancelled",
+                                                    JOptionPane.INFORMATION_MESSAGE);
+                                        } else if (get()) {
                                             JOptionPane.showMessageDialog(TabbedPane.this,
-                                                    "File encrypted successfully.","Success",
+                                                    (tree ? "Tree" : "File") + " encrypted successfully.","Success",
                                                     JOptionPane.INFORMATION_MESSAGE);
                                         } else {
                                             JOptionPane.showMessageDialog(TabbedPane.this,
-                                                    "File encryption failed.","Error",
+                                                    (tree ? "Tree" : "File") + " encryption failed.","Error",
                                                     JOptionPane.ERROR_MESSAGE);
                                         }
                                     } catch (Exception ex) {
@@ -308,6 +359,7 @@ public class TabbedPane extends JPanel
                                     } finally {
                                         setCursor(Cursor.getDefaultCursor());
                                         destinationButton.setEnabled(true);
+                                        encryptProgress.stop();
                                     }
                                 }
                             };
@@ -328,6 +380,7 @@ public class TabbedPane extends JPanel
         // Add the buttons to this panel.
         panel.add(buttonPanel, BorderLayout.PAGE_START);
         panel.add(buttonPanel2, BorderLayout.CENTER);
+        panel.add(encryptProgress, BorderLayout.PAGE_END);
         
         return panel;
     }
@@ -348,8 +401,11 @@ public class TabbedPane extends JPanel
         {
         	public void actionPerformed(ActionEvent e) 
         	{
-        		// Display the open dialog.
+        		// Display the open dialog. A directory encrypts or decrypts 
+        		// every file below it.
+        		fc.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
                 int returnVal = fc.showOpenDialog(TabbedPane.this);
+                fc.setFileSelectionMode(JFileChooser.FILES_ONLY);
                 if (returnVal == JFileChooser.APPROVE_OPTION) 
                 {
                     decryptFile1 = fc.getSelectedFile();
@@ -397,43 +453,61 @@ public class TabbedPane extends JPanel
         		}
         		else
         		{
-				// Check if the key is smaller than the source file.
-        			if (decryptFile1.length()>decryptFile2.length())
+				// Check if the unused key is smaller than the source file.
+        			final boolean tree = decryptFile1.isDirectory();
+        			String keyProblem = tree ? null : 
+        					keyProblem(decryptFile1, decryptFile2, "encrypted");
+        			if (keyProblem != null)
         			{
 					// Display an error message and abort.
-					JOptionPane.showMessageDialog(TabbedPane.this,
-        					  "The encrypted file is larger than the key file.\n"+
-							  "Please use a key that is at least as long as the encrypted file.",
+					JOptionPane.showMessageDialog(TabbedPane.this, keyProblem,
 						  "Error",
 						  JOptionPane.ERROR_MESSAGE);
         			}
 				else
         			{
-            			// Display the save dialog.
+            			// Display the save dialog, which asks for a directory 
+            			// when a tree is transformed.
+            			if (tree)
+            			{
+            				fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+            			}
                         int returnVal = fc.showSaveDialog(TabbedPane.this);
+                        fc.setFileSelectionMode(JFileChooser.FILES_ONLY);
                         if (returnVal == JFileChooser.APPROVE_OPTION) 
                         {
                             final File file3 = fc.getSelectedFile();
                             
                             setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
                             destinationButton.setEnabled(false);
+                            final Progress progress = decryptProgress.start();
 
                             SwingWorker<Boolean, Void> worker = new SwingWorker<Boolean, Void>() {
                                 @Override
                                 protected Boolean doInBackground() throws Exception {
-                                    return Cryptomni.decryptFile(decryptFile1, decryptFile2, file3);
+                                    if (tree) {
+                                        return Cryptomni.decryptTree(decryptFile1, decryptFile2, file3,
+                                                TransformEngine.DEFAULT, TreeTransform.DEFAULT_WORKERS,
+                                                TreeTransform.DEFAULT_BUDGET, progress);
+                                    }
+                                    return Cryptomni.decryptFile(decryptFile1, decryptFile2, file3,
+                                            TransformEngine.DEFAULT, progress);
                                 }
 
                                 @Override
                                 protected void done() {
                                     try {
-                                        if (get()) {
+                                        if (progress.isCancelled()) {
                                             JOptionPane.showMessageDialog(TabbedPane.this,
-                                                    "File decrypted successfully.","Success",
+                                                    "Decryption was cancelled.","Cancelled",
+                                                    JOptionPane.INFORMATION_MESSAGE);
+                                        } else if (get()) {
+                                            JOptionPane.showMessageDialog(TabbedPane.this,
+                                                    (tree ? "Tree" : "File") + " decrypted successfully.","Success",
                                                     JOptionPane.INFORMATION_MESSAGE);
                                         } else {
                                             JOptionPane.showMessageDialog(TabbedPane.this,
-                                                    "File decryption failed.","Error",
+                                                    (tree ? "Tree" : "File") + " decryption failed.","Error",
                                                     JOptionPane.ERROR_MESSAGE);
                                         }
                                     } catch (Exception ex) {
@@ -443,6 +517,7 @@ public class TabbedPane extends JPanel
                                     } finally {
                                         setCursor(Cursor.getDefaultCursor());
                                         destinationButton.setEnabled(true);
+                                        decryptProgress.stop();
                                     }
                                 }
                             };
@@ -463,10 +538,31 @@ public class TabbedPane extends JPanel
         // Add the buttons to this panel.
         panel.add(buttonPanel, BorderLayout.PAGE_START);
         panel.add(buttonPanel2, BorderLayout.CENTER);
+        panel.add(decryptProgress, BorderLayout.PAGE_END);
         
         return panel;
     }
     
+    // Returns why a key cannot be used for a file, or null if it can. The 
+    // key file is only read.
+    private static String keyProblem(File file, File key, String kind) 
+    {
+        try 
+        {
+            if (file.length() > KeyPadManager.unreserved(key)) 
+            {
+                return "The " + kind + " file is larger than the key file.\n" +
+                        "Please use a key that is at least as long as the " + 
+                        kind + " file.";
+            }
+            return null;
+        } 
+        catch (IOException e) 
+        {
+            return "The key file could not be read:\n" + e.getMessage();
+        }
+    }
+    
     // Returns an ImageIcon, or null if the path was invalid.
     protected static ImageIcon createImageIcon(String path) 
     {
@@ -0,0 +1,194 @@
+package src;
+
+/*-- TransformEngine.java --------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * A way of applying the one-time pad to a file. Every engine produces the
+ * same output: byte N of the output is byte N of the input XORed with byte
+ * N of the unused key. Engines differ only in how they move the bytes.
+ * <p>
+ * Engines are chosen by name with {@link #forName(String)}, which is how the
+ * command line --engine option selects them.
+ */
+public abstract class TransformEngine
+{
+	/** The engine used when none is specified. */
+	public static final TransformEngine DEFAULT = new StreamEngine();
+
+	/**
+	 * Returns the engine with the given name.
+	 *
+	 * @param  name "stream", "mapped", "parallel" or "pipelined".
+	 * @return 		the engine.
+	 * @throws IllegalArgumentException if there is no engine with that name.
+	 */
+	public static TransformEngine forName (String name)
+	{
+		if (name.equals("stream"))
+		{
+			return new StreamEngine();
+		}
+		if (name.equals("mapped"))
+		{
+			return new MappedEngine();
+		}
+		if (name.equals("parallel"))
+		{
+			return new ParallelEngine();
+		}
+		if (name.equals("pipelined"))
+		{
+			return new PipelinedEngine();
+		}
+		throw new IllegalArgumentException("Unknown engine: " + name);
+	}
+
+	/** Returns the name of this engine. */
+	public abstract String name ();
+
+	/**
+	 * XORs the first length bytes of in with the key bytes starting at
+	 * keyPosition and writes the result to the start of out.
+	 *
+	 * @param  in 		   the input file, read from position 0.
+	 * @param  key 		   the key file.
+	 * @param  keyPosition the position of the first key byte to use.
+	 * @param  out 		   the output file, written from position 0. It must be
+	 * 					   open for reading and writing.
+	 * @param  length 	   the number of bytes to transform.
+	 * @throws java.io.EOFException if the input or the key ends early.
+	 * @throws IOException if a file cannot be read or written.
+	 */
+	public final void transform (FileChannel in, KeyChannel key,
+			long keyPosition, FileChannel out, long length) throws IOException
+	{
+		transform(in, 0, key, keyPosition, out, 0, length, Progress.NONE);
+	}
+
+	/**
+	 * Like {@link #transform(FileChannel, KeyChannel, long, FileChannel,
+	 * long)}, reporting to a progress and stopping if it is cancelled.
+	 *
+	 * @throws java.io.InterruptedIOException if the progress is cancelled.
+	 */
+	public final void transform (FileChannel in, KeyChannel key,
+			long keyPosition, FileChannel out, long length, Progress progress)
+			throws IOException
+	{
+		transform(in, 0, key, keyPosition, out, 0, length, progress);
+	}
+
+	/**
+	 * XORs length bytes of in, starting at inPosition, with the key bytes
+	 * starting at keyPosition and writes the result to out, starting at
+	 * outPosition.
+	 *
+	 * @param  in 		   the input file.
+	 * @param  inPosition  the position of the first input byte.
+	 * @param  key 		   the key file.
+	 * @param  keyPosition the position of the first key byte to use.
+	 * @param  out 		   the output file. It must be open for reading and
+	 * 					   writing.
+	 * @param  outPosition the position of the first output byte.
+	 * @param  length 	   the number of bytes to transform.
+	 * @throws java.io.EOFException if the input or the key ends early.
+	 * @throws IOException if a file cannot be read or written.
+	 */
+	public final void transform (FileChannel in, long inPosition,
+			KeyChannel key, long keyPosition, FileChannel out, long outPosition,
+			long length) throws IOException
+	{
+		transform(in, inPosition, key, keyPosition, out, outPosition, length,
+				Progress.NONE);
+	}
+
+	/**
+	 * XORs length bytes of in, starting at inPosition, with the key bytes
+	 * starting at keyPosition and writes the result to out, starting at
+	 * outPosition. Every chunk written is reported to progress, which also
+	 * stops the transform if it is cancelled. The output is then incomplete.
+	 *
+	 * @param  in 		   the input file.
+	 * @param  inPosition  the position of the first input byte.
+	 * @param  key 		   the key file.
+	 * @param  keyPosition the position of the first key byte to use.
+	 * @param  out 		   the output file. It must be open for reading and
+	 * 					   writing.
+	 * @param  outPosition the position of the first output byte.
+	 * @param  length 	   the number of bytes to transform.
+	 * @param  progress    the progress to advance, or {@link Progress#NONE}.
+	 * @throws java.io.EOFException if the input or the key ends early.
+	 * @throws java.io.InterruptedIOException if the progress is cancelled.
+	 * @throws IOException if a file cannot be read or written.
+	 */
+	public abstract void transform (FileChannel in, long inPosition,
+			KeyChannel key, long keyPosition, FileChannel out, long outPosition,
+			long length, Progress progress) throws IOException;
+
+	/**
+	 * Like {@link #transform(FileChannel, long, KeyChannel, long,
+	 * FileChannel, long, long, Progress)}, also feeding the ciphertext to a
+	 * one-time MAC in the same pass. Only engines for which
+	 * {@link #supportsMac()} returns true accept a MAC.
+	 *
+	 * @param  mac the MAC to update, or null.
+	 * @throws UnsupportedOperationException if a MAC is given and this
+	 * 		   engine cannot update it.
+	 */
+	public void transform (FileChannel in, long inPosition, KeyChannel key,
+			long keyPosition, FileChannel out, long outPosition, long length,
+			Progress progress, OneTimeMac mac) throws IOException
+	{
+		if (mac != null)
+		{
+			throw new UnsupportedOperationException("The " + name() +
+					" engine cannot compute a MAC.");
+		}
+		transform(in, inPosition, key, keyPosition, out, outPosition, length,
+				progress);
+	}
+
+	/**
+	 * Returns true if this engine can feed a {@link OneTimeMac}. A MAC must
+	 * see the bytes in order, so engines that split a file between threads
+	 * cannot.
+	 */
+	public boolean supportsMac ()
+	{
+		return false;
+	}
+
+	/**
+	 * Returns true if this engine writes the output strictly from start to
+	 * end, so that the bytes reported to a progress are always a prefix of
+	 * the range. Key bytes past that prefix have then not been used when a
+	 * transform is cancelled.
+	 */
+	public boolean inOrder ()
+	{
+		return true;
+	}
+}
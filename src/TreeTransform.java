@@ -0,0 +1,689 @@
+package src;
+
+/*-- TreeTransform.java ----------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Encrypts or decrypts a whole directory tree with one key. The tree is
+ * walked once. Every regular file is given its own range of the key as it is
+ * found, and the files are transformed on a pool of worker threads. A file is
+ * only handed to a worker while the bytes of the files in flight stay within
+ * a budget, so memory use and the number of open files stay bounded however
+ * large the tree is.
+ * <p>
+ * The key range of every file is recorded in a manifest, {@link
+ * #MANIFEST_NAME}, at the root of the encrypted tree. Because each file
+ * carries its own key position, the files can be decrypted in any order and
+ * by many threads at once. Files that are not regular files, such as
+ * symbolic links, are skipped, and empty directories are not recreated.
+ * <p>
+ * Manifest: the line {@link #HEADER}, then one line per file with its key
+ * position, its length and its path relative to the root, separated by
+ * single spaces. Paths use / as the separator. The manifest carries no MAC,
+ * so decryption trusts it only as far as it must: key ranges may not
+ * overlap or run past the key, and a file's key is given up only once the
+ * file has been decrypted.
+ */
+public class TreeTransform
+{
+	/** The name of the manifest at the root of an encrypted tree. */
+	public static final String MANIFEST_NAME = "cryptomni-manifest.txt";
+	/** The first line of a manifest. */
+	public static final String HEADER = "cryptomni-tree 1";
+	/** The default number of files transformed at once. */
+	public static final int DEFAULT_WORKERS =
+			Math.max(4, Runtime.getRuntime().availableProcessors());
+	/** The default number of bytes of files in flight at once. */
+	public static final int DEFAULT_BUDGET = 256 * 1048576;
+
+	// What a file costs besides its bytes: its task, its open files and its
+	// line in the manifest. Charging it keeps trees of tiny files bounded too.
+	private static final int FILE_OVERHEAD = 4096;
+
+	private final TransformEngine engine;
+	private final int workers;
+	private final int budget;
+
+	/**
+	 * Creates a tree transform.
+	 *
+	 * @param  engine  the engine that transforms each file.
+	 * @param  workers the number of files transformed at once.
+	 * @param  budget  the number of bytes of files in flight at once. A file
+	 * 				   larger than the budget is transformed on its own.
+	 */
+	public TreeTransform (TransformEngine engine, int workers, int budget)
+	{
+		if (workers < 1)
+		{
+			throw new IllegalArgumentException("workers must be at least 1");
+		}
+		if (budget < FILE_OVERHEAD)
+		{
+			throw new IllegalArgumentException("budget must be at least " +
+					FILE_OVERHEAD);
+		}
+		this.engine = engine;
+		this.workers = workers;
+		this.budget = budget;
+	}
+
+	/**
+	 * Encrypts every regular file below a directory into the same place below
+	 * another directory, and writes the manifest there. The key is shared
+	 * through {@link KeyPadManager} and each file's range is committed as
+	 * soon as the file is done or has failed. If a file fails, no more files
+	 * are started, the manifest still lists every file that was encrypted,
+	 * and the error is thrown once the files in flight have finished.
+	 *
+	 * @param  sourceDirectory 		the directory to encrypt.
+	 * @param  keyFile 				the Cryptomni key file.
+	 * @param  destinationDirectory the directory to write the encrypted tree
+	 * 								to. It must not be inside the source.
+	 * @param  progress 			the progress to report to.
+	 * @return 						the number of files encrypted.
+	 * @throws java.io.InterruptedIOException if the progress is cancelled.
+	 * @throws IOException if the key is too short or a file cannot be read
+	 * 					   or written.
+	 */
+	public long encrypt (File sourceDirectory, File keyFile,
+			File destinationDirectory, final Progress progress) throws IOException
+	{
+		final Path source = checkDirectories(sourceDirectory,
+				destinationDirectory);
+		final Path destination = destinationDirectory.toPath();
+		if (Files.exists(source.resolve(MANIFEST_NAME)))
+		{
+			throw new IOException(sourceDirectory + " already contains a " +
+					MANIFEST_NAME + ".");
+		}
+		Files.createDirectories(destination);
+		long start = System.nanoTime();
+		long total = treeSize(source);
+		progress.start(total);
+		try (final KeyPadManager.Handle pad = KeyPadManager.open(keyFile);
+			 final ManifestWriter manifest = new ManifestWriter(
+					 destination.resolve(MANIFEST_NAME).toFile()))
+		{
+			final Scheduler scheduler = new Scheduler();
+			final AtomicLong files = new AtomicLong();
+			try
+			{
+				Files.walkFileTree(source, new SimpleFileVisitor<Path>()
+				{
+					public FileVisitResult visitFile (Path file,
+							BasicFileAttributes attributes) throws IOException
+					{
+						progress.check();
+						if (!attributes.isRegularFile())
+						{
+							return FileVisitResult.CONTINUE;
+						}
+						final String name = manifestPath(source.relativize(file));
+						final Path input = file;
+						final Path output = destination.resolve(source.relativize(file));
+						final long reserved = attributes.size();
+						final long keyPosition;
+						try
+						{
+							keyPosition = pad.reserve(reserved);
+						}
+						catch (EOFException e)
+						{
+							throw new EOFException("Key file is shorter than the tree.");
+						}
+						boolean submitted = scheduler.submit(reserved, new FileTask()
+						{
+							public void run () throws IOException
+							{
+								long length;
+								try
+								{
+									length = transform(input, pad.channel(),
+											keyPosition, reserved, output, progress);
+								}
+								finally
+								{
+									// Some of the range may have been used even
+									// if the file failed, so it is used up.
+									pad.commit(keyPosition, reserved);
+								}
+								manifest.add(keyPosition, length, name);
+								files.incrementAndGet();
+							}
+
+							public void cancel () throws IOException
+							{
+								pad.rollback(keyPosition, reserved, 0);
+							}
+						});
+						return submitted ? FileVisitResult.CONTINUE :
+								FileVisitResult.TERMINATE;
+					}
+				});
+			}
+			catch (IOException e)
+			{
+				scheduler.fail(e);
+			}
+			scheduler.finish();
+			Metrics.shared().transformed(Metrics.Operation.TREE, total,
+					System.nanoTime() - start);
+			return files.get();
+		}
+		finally
+		{
+			progress.finish();
+		}
+	}
+
+	/**
+	 * Decrypts the files listed in the manifest of an encrypted tree into the
+	 * same place below another directory. Files may finish in any order, but
+	 * the key is used up in key order: once every file up to a point has
+	 * been decrypted, the key up to the end of the last of them is marked as
+	 * used and their key bytes are wiped. If a file fails, no more files are
+	 * started, the error is thrown once the files in flight have finished,
+	 * and the key of the failed file and of every file after it stays
+	 * unused, so the tree can be decrypted again.
+	 *
+	 * @param  encryptedDirectory 	the root of the encrypted tree.
+	 * @param  keyFile 				the Cryptomni key file.
+	 * @param  destinationDirectory the directory to write the decrypted tree
+	 * 								to. It must not be inside the source.
+	 * @param  progress 			the progress to report to.
+	 * @return 						the number of files decrypted.
+	 * @throws java.io.InterruptedIOException if the progress is cancelled.
+	 * @throws IOException if the manifest is missing or corrupted, the key is
+	 * 					   too short or a file cannot be read or written.
+	 */
+	public long decrypt (File encryptedDirectory, File keyFile,
+			File destinationDirectory, final Progress progress) throws IOException
+	{
+		Path source = checkDirectories(encryptedDirectory, destinationDirectory);
+		Path destination = destinationDirectory.toPath();
+		List<Entry> entries = readManifest(source.resolve(MANIFEST_NAME));
+		long keyEnd = 0;
+		long total = 0;
+		for (Entry entry : entries)
+		{
+			keyEnd = Math.max(keyEnd, entry.keyEnd());
+			total += entry.length;
+		}
+		Files.createDirectories(destination);
+		long start = System.nanoTime();
+		progress.start(total);
+		try (final KeyPad pad = KeyPad.open(keyFile))
+		{
+			if (keyEnd > pad.length())
+			{
+				throw new EOFException("Key file is shorter than the tree.");
+			}
+			final KeyRelease release = new KeyRelease(pad, entries);
+			Scheduler scheduler = new Scheduler();
+			final AtomicLong files = new AtomicLong();
+			try
+			{
+				for (final Entry entry : entries)
+				{
+					progress.check();
+					final Path input = source.resolve(entry.path);
+					final Path output = destination.resolve(entry.path);
+					boolean submitted = scheduler.submit(entry.length, new FileTask()
+					{
+						public void run () throws IOException
+						{
+							release.reserve(entry);
+							if (transform(input, pad.channel(), entry.keyPosition,
+									entry.length, output, progress) != entry.length)
+							{
+								Files.deleteIfExists(output);
+								throw new IOException(entry.path +
+										" does not have the length in the manifest.");
+							}
+							release.decrypted(entry);
+							files.incrementAndGet();
+						}
+
+						public void cancel ()
+						{
+						}
+					});
+					if (!submitted)
+					{
+						break;
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				scheduler.fail(e);
+			}
+			scheduler.finish();
+			Metrics.shared().transformed(Metrics.Operation.TREE, total,
+					System.nanoTime() - start);
+			return files.get();
+		}
+		finally
+		{
+			progress.finish();
+		}
+	}
+
+	// Transforms one file with its key range and returns its length. The
+	// output is deleted if anything fails.
+	private long transform (Path input, KeyChannel key, long keyPosition,
+			long reserved, Path output, Progress progress) throws IOException
+	{
+		Files.createDirectories(output.getParent());
+		try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+			 FileChannel out = FileChannel.open(output, StandardOpenOption.READ,
+					 StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					 StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			long length = in.size();
+			if (length > reserved)
+			{
+				// Never read past the range reserved for this file.
+				throw new IOException(input + " grew while it was being read.");
+			}
+			engine.transform(in, 0, key, keyPosition, out, 0, length, progress);
+			return length;
+		}
+		catch (IOException e)
+		{
+			Files.deleteIfExists(output);
+			throw e;
+		}
+	}
+
+	// Checks that the source is a directory and that the destination is not
+	// inside it, where the walk would find it.
+	private static Path checkDirectories (File sourceDirectory,
+			File destinationDirectory) throws IOException
+	{
+		Path source = sourceDirectory.toPath();
+		if (!Files.isDirectory(source))
+		{
+			throw new IOException("Not a directory: " + sourceDirectory);
+		}
+		Path real = source.toRealPath();
+		Path target = destinationDirectory.getAbsoluteFile().toPath().normalize();
+		if (target.startsWith(real) || target.startsWith(
+				source.toAbsolutePath().normalize()))
+		{
+			throw new IOException("The destination must not be inside " +
+					sourceDirectory + ".");
+		}
+		return source;
+	}
+
+	// Returns the number of bytes in the regular files below a directory.
+	private static long treeSize (Path directory) throws IOException
+	{
+		final AtomicLong size = new AtomicLong();
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>()
+		{
+			public FileVisitResult visitFile (Path file,
+					BasicFileAttributes attributes)
+			{
+				if (attributes.isRegularFile())
+				{
+					size.addAndGet(attributes.size());
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return size.get();
+	}
+
+	// Returns a relative path as it is written in a manifest.
+	private static String manifestPath (Path relative) throws IOException
+	{
+		StringBuilder path = new StringBuilder();
+		for (Path element : relative)
+		{
+			String name = element.toString();
+			if (name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0 ||
+					name.indexOf('/') >= 0)
+			{
+				throw new IOException("Cannot record the file name " + relative +
+						" in a manifest.");
+			}
+			if (path.length() > 0)
+			{
+				path.append('/');
+			}
+			path.append(name);
+		}
+		return path.toString();
+	}
+
+	// A file listed in a manifest.
+	private static class Entry
+	{
+		final long keyPosition, length;
+		final String path;
+
+		Entry (long keyPosition, long length, String path)
+		{
+			this.keyPosition = keyPosition;
+			this.length = length;
+			this.path = path;
+		}
+
+		long keyEnd ()
+		{
+			return keyPosition + length;
+		}
+	}
+
+	// Uses up the key of a tree being decrypted, in key order, as its files
+	// are decrypted. The key pad is not thread-safe, so every call to it
+	// from the workers goes through here.
+	private static class KeyRelease
+	{
+		private final KeyPad pad;
+		private final List<Entry> byKey; // Entries in key order.
+		private final Set<Entry> done = new HashSet<Entry>();
+		private int next; // The first entry in byKey not yet used up.
+
+		KeyRelease (KeyPad pad, List<Entry> entries)
+		{
+			this.pad = pad;
+			byKey = sortedByKey(entries);
+		}
+
+		// Marks a file's key as in use before it is read.
+		synchronized void reserve (Entry entry) throws IOException
+		{
+			pad.reserveTo(entry.keyEnd());
+		}
+
+		// Records a decrypted file, and uses up and wipes the key of every
+		// file from the last one used up to the first that is not done yet.
+		synchronized void decrypted (Entry entry) throws IOException
+		{
+			done.add(entry);
+			while (next < byKey.size() && done.remove(byKey.get(next)))
+			{
+				Entry first = byKey.get(next);
+				if (first.keyEnd() > pad.offset())
+				{
+					pad.skipTo(first.keyEnd());
+				}
+				pad.wipe(first.keyPosition, first.length);
+				next++;
+			}
+		}
+	}
+
+	// Returns the entries ordered by key position.
+	private static List<Entry> sortedByKey (List<Entry> entries)
+	{
+		List<Entry> sorted = new ArrayList<Entry>(entries);
+		Collections.sort(sorted, new Comparator<Entry>()
+		{
+			public int compare (Entry a, Entry b)
+			{
+				return Long.compare(a.keyPosition, b.keyPosition);
+			}
+		});
+		return sorted;
+	}
+
+	// Reads a manifest. Paths that are absolute or lead out of the tree are
+	// rejected, so that a manifest cannot make decryption write anywhere else,
+	// and so are paths listed twice and key ranges that overlap or overflow,
+	// which encryption never writes.
+	private static List<Entry> readManifest (Path manifest) throws IOException
+	{
+		if (!Files.isRegularFile(manifest))
+		{
+			throw new IOException("No " + MANIFEST_NAME + " in " +
+					manifest.getParent() + ".");
+		}
+		List<Entry> entries = new ArrayList<Entry>();
+		Set<String> paths = new HashSet<String>();
+		try (BufferedReader reader = Files.newBufferedReader(manifest,
+				StandardCharsets.UTF_8))
+		{
+			if (!HEADER.equals(reader.readLine()))
+			{
+				throw new IOException("Not a Cryptomni tree manifest: " + manifest);
+			}
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				String[] fields = line.split(" ", 3);
+				try
+				{
+					Entry entry = new Entry(Long.parseLong(fields[0]),
+							Long.parseLong(fields[1]), fields[2]);
+					if (entry.keyPosition < 0 || entry.length < 0 ||
+							entry.keyEnd() < 0 || entry.path.isEmpty() ||
+							entry.path.startsWith("/"))
+					{
+						throw new NumberFormatException();
+					}
+					for (String name : entry.path.split("/"))
+					{
+						if (name.isEmpty() || name.equals(".") || name.equals(".."))
+						{
+							throw new NumberFormatException();
+						}
+					}
+					if (!paths.add(entry.path))
+					{
+						throw new IOException("Manifest lists " + entry.path +
+								" twice.");
+					}
+					entries.add(entry);
+				}
+				catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+				{
+					throw new IOException("Manifest line is corrupted: " + line);
+				}
+			}
+		}
+		Entry previous = null;
+		for (Entry entry : sortedByKey(entries))
+		{
+			if (previous != null && entry.keyPosition < previous.keyEnd())
+			{
+				throw new IOException("Manifest gives " + previous.path +
+						" and " + entry.path + " overlapping key ranges.");
+			}
+			previous = entry;
+		}
+		return entries;
+	}
+
+	// Appends the lines of a manifest as files finish, from any worker.
+	private static class ManifestWriter implements Closeable
+	{
+		private final FileOutputStream stream;
+		private final BufferedWriter writer;
+
+		ManifestWriter (File file) throws IOException
+		{
+			stream = new FileOutputStream(file);
+			writer = new BufferedWriter(new OutputStreamWriter(stream,
+					StandardCharsets.UTF_8));
+			writer.write(HEADER + "\n");
+		}
+
+		synchronized void add (long keyPosition, long length, String path)
+				throws IOException
+		{
+			writer.write(keyPosition + " " + length + " " + path + "\n");
+		}
+
+		public synchronized void close () throws IOException
+		{
+			try
+			{
+				// Without the manifest the encrypted files cannot be
+				// decrypted, so make sure it reaches the disk.
+				writer.flush();
+				stream.getFD().sync();
+			}
+			finally
+			{
+				writer.close();
+			}
+		}
+	}
+
+	// The work for one file.
+	private interface FileTask
+	{
+		// Transforms the file.
+		void run () throws IOException;
+
+		// Gives up on the file without starting it.
+		void cancel () throws IOException;
+	}
+
+	// Runs file tasks on the worker pool, handing out a task only while the
+	// bytes of the tasks in flight stay within the budget. After the first
+	// failure, tasks that have not started are cancelled instead.
+	private class Scheduler
+	{
+		private final ExecutorService pool = Executors.newFixedThreadPool(workers);
+		private final Semaphore inFlight = new Semaphore(budget);
+		private final AtomicReference<IOException> failure =
+				new AtomicReference<IOException>();
+
+		// Waits until the budget allows a file of the given size, then hands
+		// its task to a worker. Returns false once a task has failed.
+		boolean submit (long bytes, final FileTask task) throws IOException
+		{
+			final int permits = (int) Math.min(budget, bytes + FILE_OVERHEAD);
+			try
+			{
+				inFlight.acquire(permits);
+			}
+			catch (InterruptedException e)
+			{
+				task.cancel();
+				throw new InterruptedIOException("Interrupted.");
+			}
+			if (failure.get() != null)
+			{
+				inFlight.release(permits);
+				task.cancel();
+				return false;
+			}
+			pool.execute(new Runnable()
+			{
+				public void run ()
+				{
+					try
+					{
+						if (failure.get() == null)
+						{
+							task.run();
+						}
+						else
+						{
+							task.cancel();
+						}
+					}
+					catch (IOException e)
+					{
+						fail(e);
+					}
+					finally
+					{
+						inFlight.release(permits);
+					}
+				}
+			});
+			return true;
+		}
+
+		void fail (IOException e)
+		{
+			failure.compareAndSet(null, e);
+		}
+
+		// Waits for the tasks in flight and throws the first failure.
+		void finish () throws IOException
+		{
+			pool.shutdown();
+			boolean interrupted = false;
+			while (true)
+			{
+				try
+				{
+					if (pool.awaitTermination(1, TimeUnit.SECONDS))
+					{
+						break;
+					}
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+			if (failure.get() != null)
+			{
+				throw failure.get();
+			}
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package src;
+
+/*-- VectorXorKernel.java --------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.nio.ByteBuffer;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * XORs as many bytes at a time as the widest vector registers of the CPU
+ * hold, through the incubating Vector API, with a scalar loop for the last
+ * few bytes. The JVM must be started with
+ * {@code --add-modules jdk.incubator.vector}; {@link XorKernel} only loads
+ * this class when that module is present, and checks it against the scalar
+ * kernel before using it, because incubating APIs change between JDKs.
+ */
+final class VectorXorKernel extends XorKernel
+{
+	private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+	public String name ()
+	{
+		return "vector";
+	}
+
+	public void xor (byte[] data, int dataOffset, byte[] key, int keyOffset,
+			int length)
+	{
+		int i = 0;
+		for (int end = SPECIES.loopBound(length); i < end; i += SPECIES.length())
+		{
+			ByteVector.fromArray(SPECIES, data, dataOffset + i)
+					.lanewise(VectorOperators.XOR, ByteVector.fromArray(SPECIES,
+							key, keyOffset + i))
+					.intoArray(data, dataOffset + i);
+		}
+		for (; i < length; i++)
+		{
+			data[dataOffset + i] ^= key[keyOffset + i];
+		}
+	}
+
+	public void xor (ByteBuffer source, ByteBuffer key, ByteBuffer destination,
+			int length)
+	{
+		int sourceIndex = source.position();
+		int keyIndex = key.position();
+		int destinationIndex = destination.position();
+		int i = 0;
+		for (int end = SPECIES.loopBound(length); i < end; i += SPECIES.length())
+		{
+			ByteVector.fromByteBuffer(SPECIES, source, sourceIndex + i,
+					source.order())
+					.lanewise(VectorOperators.XOR, ByteVector.fromByteBuffer(
+							SPECIES, key, keyIndex + i, key.order()))
+					.intoByteBuffer(destination, destinationIndex + i,
+							destination.order());
+		}
+		xorBytes(source, sourceIndex + i, key, keyIndex + i, destination,
+				destinationIndex + i, length - i);
+	}
+}
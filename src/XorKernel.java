@@ -0,0 +1,266 @@
+package src;
+
+/*-- XorKernel.java --------------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Combines data with key bytes. This is the whole one-time pad cipher, and
+ * every byte that Cryptomni encrypts or decrypts passes through it.
+ * <p>
+ * Three kernels are available: "scalar" handles one byte at a time, "long"
+ * handles eight bytes at a time through long views of the data, and
+ * "vector" handles a whole vector register at a time through the
+ * incubating Vector API. The kernel is picked once at startup from the
+ * cryptomni.xor system property. Without it, "vector" is used when the JVM
+ * was started with {@code --add-modules jdk.incubator.vector} and "long"
+ * otherwise. A kernel that is not available, or that does not agree with
+ * the scalar kernel on a short check, is replaced by "long", and "long" by
+ * "scalar".
+ */
+public abstract class XorKernel
+{
+	private static final String VECTOR_MODULE = "jdk.incubator.vector";
+	private static final XorKernel DEFAULT = select(System.getProperty(
+			"cryptomni.xor", ModuleLayer.boot().findModule(VECTOR_MODULE)
+					.isPresent() ? "vector" : "long"));
+
+	/** Returns the kernel selected for this JVM. */
+	public static XorKernel get ()
+	{
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns the kernel with the given name.
+	 *
+	 * @param  name "scalar", "long" or "vector".
+	 * @return 		the kernel.
+	 * @throws IllegalArgumentException if there is no kernel with that name.
+	 * @throws IllegalStateException if the vector kernel is asked for and the
+	 * 		   JVM was started without the Vector API module.
+	 */
+	public static XorKernel forName (String name)
+	{
+		if (name.equals("scalar"))
+		{
+			return new Scalar();
+		}
+		if (name.equals("long"))
+		{
+			return new Wide();
+		}
+		if (name.equals("vector"))
+		{
+			// Only touch the class that uses the Vector API when the module
+			// is there to link it against.
+			if (!ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent())
+			{
+				throw new IllegalStateException("The vector XOR kernel needs " +
+						"--add-modules " + VECTOR_MODULE + ".");
+			}
+			return new VectorXorKernel();
+		}
+		throw new IllegalArgumentException("Unknown XOR kernel: " + name);
+	}
+
+	/** Returns the name of this kernel. */
+	public abstract String name ();
+
+	/**
+	 * Replaces data[dataOffset .. dataOffset + length) with its XOR with
+	 * key[keyOffset .. keyOffset + length).
+	 */
+	public abstract void xor (byte[] data, int dataOffset, byte[] key,
+			int keyOffset, int length);
+
+	/**
+	 * Replaces the next length bytes of data with their XOR with the next
+	 * length bytes of key. The positions and limits of the buffers are not
+	 * changed.
+	 */
+	public void xor (ByteBuffer data, ByteBuffer key, int length)
+	{
+		xor(data, key, data, length);
+	}
+
+	/**
+	 * Writes the XOR of the next length bytes of source and key to the next
+	 * length bytes of destination. The destination may be the source. The
+	 * positions and limits of the buffers are not changed.
+	 */
+	public abstract void xor (ByteBuffer source, ByteBuffer key,
+			ByteBuffer destination, int length);
+
+	// One byte at a time, for buffers that cannot be read eight bytes at a time.
+	static void xorBytes (ByteBuffer source, int sourceIndex, ByteBuffer key,
+			int keyIndex, ByteBuffer destination, int destinationIndex, int length)
+	{
+		for (int i = 0; i < length; i++)
+		{
+			destination.put(destinationIndex + i,
+					(byte) (source.get(sourceIndex + i) ^ key.get(keyIndex + i)));
+		}
+	}
+
+	private static XorKernel select (String name)
+	{
+		try
+		{
+			XorKernel kernel = forName(name);
+			if (agreesWithScalar(kernel))
+			{
+				return kernel;
+			}
+		}
+		catch (RuntimeException | LinkageError e)
+		{
+			// Fall back below.
+		}
+		String fallback = name.equals("long") || name.equals("scalar") ?
+				"scalar" : "long";
+		System.err.println("XOR kernel \"" + name + "\" is not available, " +
+				"using \"" + fallback + "\".");
+		return select(fallback);
+	}
+
+	// XORs arrays and direct buffers of a few odd lengths with the kernel
+	// and with the scalar kernel, and compares the results. An incubating
+	// API that changed shape fails here rather than in the middle of a file.
+	private static boolean agreesWithScalar (XorKernel kernel)
+	{
+		if (kernel instanceof Scalar)
+		{
+			return true;
+		}
+		XorKernel scalar = new Scalar();
+		for (int length : new int[] {1, 37, 256, 1031})
+		{
+			byte[] data = new byte[length];
+			byte[] key = new byte[length];
+			for (int i = 0; i < length; i++)
+			{
+				data[i] = (byte) (i * 31 + 7);
+				key[i] = (byte) (i * 17 + 3);
+			}
+			byte[] expected = data.clone();
+			scalar.xor(expected, 0, key, 0, length);
+			byte[] actual = data.clone();
+			kernel.xor(actual, 0, key, 0, length);
+			ByteBuffer source = ByteBuffer.allocateDirect(length).put(data);
+			ByteBuffer keyBuffer = ByteBuffer.allocateDirect(length).put(key);
+			source.clear();
+			keyBuffer.clear();
+			kernel.xor(source, keyBuffer, length);
+			byte[] buffered = new byte[length];
+			source.get(buffered);
+			if (!Arrays.equals(expected, actual) ||
+					!Arrays.equals(expected, buffered))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// One byte at a time.
+	private static class Scalar extends XorKernel
+	{
+		public String name ()
+		{
+			return "scalar";
+		}
+
+		public void xor (byte[] data, int dataOffset, byte[] key, int keyOffset,
+				int length)
+		{
+			for (int i = 0; i < length; i++)
+			{
+				data[dataOffset + i] ^= key[keyOffset + i];
+			}
+		}
+
+		public void xor (ByteBuffer source, ByteBuffer key,
+				ByteBuffer destination, int length)
+		{
+			xorBytes(source, source.position(), key, key.position(),
+					destination, destination.position(), length);
+		}
+	}
+
+	// Eight bytes at a time, through a long view of byte arrays or the long
+	// accessors of byte buffers, with a scalar loop for the last few bytes.
+	private static class Wide extends XorKernel
+	{
+		private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(
+				long[].class, ByteOrder.nativeOrder());
+
+		public String name ()
+		{
+			return "long";
+		}
+
+		public void xor (byte[] data, int dataOffset, byte[] key, int keyOffset,
+				int length)
+		{
+			int i = 0;
+			for (int end = length - 7; i < end; i += 8)
+			{
+				long value = (long) LONGS.get(data, dataOffset + i) ^
+						(long) LONGS.get(key, keyOffset + i);
+				LONGS.set(data, dataOffset + i, value);
+			}
+			for (; i < length; i++)
+			{
+				data[dataOffset + i] ^= key[keyOffset + i];
+			}
+		}
+
+		public void xor (ByteBuffer source, ByteBuffer key,
+				ByteBuffer destination, int length)
+		{
+			int sourceIndex = source.position();
+			int keyIndex = key.position();
+			int destinationIndex = destination.position();
+			int i = 0;
+			// All buffers must assemble longs the same way for the bytes to
+			// line up.
+			if (source.order() == key.order() &&
+					source.order() == destination.order())
+			{
+				for (int end = length - 7; i < end; i += 8)
+				{
+					destination.putLong(destinationIndex + i,
+							source.getLong(sourceIndex + i) ^
+							key.getLong(keyIndex + i));
+				}
+			}
+			xorBytes(source, sourceIndex + i, key, keyIndex + i,
+					destination, destinationIndex + i, length - i);
+		}
+	}
+}
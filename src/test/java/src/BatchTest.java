@@ -0,0 +1,143 @@
+package src;
+
+/*-- BatchTest.java --------------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Tests encrypting and decrypting a batch of files with one key. */
+class BatchTest
+{
+	private static final int KEY_SIZE = 1048576;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void roundTripUsesConsecutiveKeyRanges () throws IOException
+	{
+		File key = write("key", KEY_SIZE, 1);
+		File keyCopy = copy(key, "key copy");
+		List<File> sources = Arrays.asList(write("a", 1000, 2),
+				write("b", 0, 3), write("c", 300000, 4));
+		File encrypted = directory.resolve("encrypted").toFile();
+		File decrypted = directory.resolve("decrypted").toFile();
+
+		assertTrue(Cryptomni.encryptFiles(sources, key, encrypted,
+				TransformEngine.DEFAULT));
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			assertEquals(301000, pad.offset());
+		}
+		List<File> encryptedFiles = Arrays.asList(new File(encrypted, "a"),
+				new File(encrypted, "b"), new File(encrypted, "c"));
+		assertTrue(Cryptomni.decryptFiles(encryptedFiles, keyCopy, decrypted,
+				TransformEngine.DEFAULT));
+		for (File source : sources)
+		{
+			assertArrayEquals(Files.readAllBytes(source.toPath()),
+					Files.readAllBytes(new File(decrypted, source.getName())
+							.toPath()));
+		}
+	}
+
+	@Test
+	void duplicateNamesAreRejected () throws IOException
+	{
+		File key = write("key", KEY_SIZE, 1);
+		File other = directory.resolve("other").toFile();
+		other.mkdir();
+		List<File> sources = Arrays.asList(write("a", 1000, 2),
+				write("other/a", 1000, 3));
+		String errors = errors(sources, key);
+		assertTrue(errors.contains("Two files in the batch are named a"), errors);
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			assertEquals(0, pad.offset());
+		}
+	}
+
+	@Test
+	void failureNamesTheFile () throws IOException
+	{
+		File key = write("key", KEY_SIZE, 1);
+		File missing = directory.resolve("missing").toFile();
+		List<File> sources = Arrays.asList(write("a", 1000, 2), missing);
+		String errors = errors(sources, key);
+		assertTrue(errors.contains("Could not transform " + missing), errors);
+		assertFalse(new File(directory.toFile(), "encrypted/a").exists());
+	}
+
+	// Encrypts a batch that is expected to fail and returns what it printed
+	// on standard error.
+	private String errors (List<File> sources, File key)
+	{
+		ByteArrayOutputStream captured = new ByteArrayOutputStream();
+		PrintStream original = System.err;
+		System.setErr(new PrintStream(captured, true));
+		try
+		{
+			assertFalse(Cryptomni.encryptFiles(sources, key,
+					directory.resolve("encrypted").toFile(),
+					TransformEngine.DEFAULT));
+		}
+		finally
+		{
+			System.setErr(original);
+		}
+		return new String(captured.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private File write (String name, int size, long seed) throws IOException
+	{
+		byte[] bytes = new byte[size];
+		new Random(seed).nextBytes(bytes);
+		File file = directory.resolve(name).toFile();
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+
+	private File copy (File file, String name) throws IOException
+	{
+		File copy = directory.resolve(name).toFile();
+		Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return copy;
+	}
+}
@@ -0,0 +1,70 @@
+package src;
+
+/*-- BufferPoolTest.java ---------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+/** Tests {@link BufferPool}. */
+class BufferPoolTest
+{
+	@Test
+	void buffersAreReusedAndZeroed ()
+	{
+		BufferPool pool = new BufferPool(1000, 2);
+		ByteBuffer buffer = pool.acquire();
+		assertEquals(1000, buffer.capacity());
+		while (buffer.hasRemaining())
+		{
+			buffer.put((byte) 0x5A);
+		}
+		buffer.limit(10);
+		pool.release(buffer);
+		ByteBuffer again = pool.acquire();
+		assertSame(buffer, again);
+		assertEquals(0, again.position());
+		assertEquals(1000, again.limit());
+		for (int i = 0; i < again.capacity(); i++)
+		{
+			assertEquals(0, again.get(i));
+		}
+	}
+
+	@Test
+	void buffersBeyondThePoolAreZeroedToo ()
+	{
+		BufferPool pool = new BufferPool(64, 1);
+		ByteBuffer first = pool.acquire();
+		ByteBuffer second = pool.acquire();
+		second.put(0, (byte) 1).put(63, (byte) 1);
+		pool.release(first);
+		// The pool is full, so this one is dropped, but zeroed first.
+		pool.release(second);
+		assertEquals(0, second.get(0));
+		assertEquals(0, second.get(63));
+	}
+}
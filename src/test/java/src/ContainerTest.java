@@ -0,0 +1,357 @@
+package src;
+
+/*-- ContainerTest.java ----------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/** Tests the version 1 and version 2 (MAC) formats of {@link Container}. */
+class ContainerTest
+{
+	private static final int[] SIZES = {0, 1, 70000, 300001};
+
+	@TempDir
+	Path directory;
+
+	@ParameterizedTest
+	@ValueSource(booleans = {false, true})
+	void roundTrip (boolean mac) throws IOException
+	{
+		List<File> sources = sources();
+		File key = write("key", randomBytes(1048576, 99));
+		File keyCopy = copy(key, "key copy");
+		File container = directory.resolve("container").toFile();
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			Container.create(sources, pad, container, TransformEngine.DEFAULT, mac);
+		}
+
+		List<Container.Entry> entries = readIndex(container);
+		assertEquals(sources.size(), entries.size());
+		long keyPosition = 0;
+		long dataPosition = entries.get(0).getDataPosition();
+		for (int i = 0; i < entries.size(); i++)
+		{
+			Container.Entry entry = entries.get(i);
+			assertEquals(sources.get(i).getName(), entry.getName());
+			assertEquals(SIZES[i], entry.getLength());
+			assertEquals(mac, entry.hasTag());
+			// Entries use consecutive key bytes, each starting with the key
+			// of its MAC, and their data follows the index back to back.
+			assertEquals(keyPosition, entry.getKeyPosition());
+			assertEquals(dataPosition, entry.getDataPosition());
+			keyPosition += (mac ? OneTimeMac.KEY_SIZE : 0) + SIZES[i];
+			dataPosition += SIZES[i];
+		}
+		assertEquals(dataPosition, container.length());
+		assertEquals(mac ? 2 : 1, version(container));
+
+		File output = directory.resolve("output").toFile();
+		try (KeyPad pad = KeyPad.open(keyCopy))
+		{
+			Container.extract(container, pad, null, output,
+					TransformEngine.DEFAULT);
+		}
+		for (File source : sources)
+		{
+			assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(
+					new File(output, source.getName()).toPath()));
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(booleans = {false, true})
+	void entriesCanBeExtractedInAnyOrder (boolean mac) throws IOException
+	{
+		List<File> sources = sources();
+		File key = write("key", randomBytes(1048576, 99));
+		File keyCopy = copy(key, "key copy");
+		File container = directory.resolve("container").toFile();
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			Container.create(sources, pad, container, TransformEngine.DEFAULT, mac);
+		}
+
+		File output = directory.resolve("output").toFile();
+		for (int i = sources.size() - 1; i >= 0; i--)
+		{
+			String name = sources.get(i).getName();
+			try (KeyPad pad = KeyPad.open(keyCopy))
+			{
+				Container.extract(container, pad, Collections.singletonList(name),
+						output, TransformEngine.DEFAULT);
+			}
+			assertArrayEquals(Files.readAllBytes(sources.get(i).toPath()),
+					Files.readAllBytes(new File(output, name).toPath()));
+		}
+	}
+
+	@Test
+	void tamperedEntryIsRejected () throws IOException
+	{
+		List<File> sources = sources();
+		File key = write("key", randomBytes(1048576, 99));
+		File keyCopy = copy(key, "key copy");
+		File container = directory.resolve("container").toFile();
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			Container.create(sources, pad, container, TransformEngine.DEFAULT, true);
+		}
+		Container.Entry entry = readIndex(container).get(2);
+		try (FileChannel channel = FileChannel.open(container.toPath(),
+				StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			// Flip one bit of the entry's data.
+			ByteBuffer flipped = ByteBuffer.allocate(1);
+			long position = entry.getDataPosition() + 100;
+			ChannelIO.readFully(channel, flipped, position);
+			flipped.put(0, (byte) (flipped.get(0) ^ 1)).rewind();
+			ChannelIO.writeFully(channel, flipped, position);
+		}
+
+		File output = directory.resolve("output").toFile();
+		try (KeyPad pad = KeyPad.open(keyCopy))
+		{
+			Container.extract(container, pad, null, output,
+					TransformEngine.DEFAULT);
+			fail("The tampered entry was accepted.");
+		}
+		catch (IOException e)
+		{
+			assertTrue(e.getMessage().contains("MAC"));
+		}
+		assertFalse(new File(output, entry.getName()).exists());
+	}
+
+	@Test
+	void corruptedIndexIsRejected () throws IOException
+	{
+		File key = write("key", randomBytes(1048576, 99));
+		File container = directory.resolve("container").toFile();
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			Container.create(sources(), pad, container, TransformEngine.DEFAULT);
+		}
+		try (FileChannel channel = FileChannel.open(container.toPath(),
+				StandardOpenOption.WRITE))
+		{
+			// The first byte of the first entry's name.
+			ChannelIO.writeFully(channel, ByteBuffer.wrap(new byte[] {'?'}), 18);
+		}
+		try
+		{
+			readIndex(container);
+			fail("The corrupted index was accepted.");
+		}
+		catch (IOException e)
+		{
+			assertTrue(e.getMessage().contains("corrupted"));
+		}
+	}
+
+	@Test
+	void forgedKeyPositionDoesNotUseUpTheKey () throws IOException
+	{
+		List<File> sources = sources();
+		File key = write("key", randomBytes(1048576, 99));
+		File keyCopy = copy(key, "key copy");
+		File container = directory.resolve("container").toFile();
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			Container.create(sources, pad, container, TransformEngine.DEFAULT, true);
+		}
+		// Move every entry to the end of the key, keeping the CRC right.
+		long total = 0;
+		for (int size : SIZES)
+		{
+			total += OneTimeMac.KEY_SIZE + size;
+		}
+		moveKeyPositions(container, true, 1048576 - total);
+
+		File output = directory.resolve("output").toFile();
+		try (KeyPad pad = KeyPad.open(keyCopy))
+		{
+			try
+			{
+				Container.extract(container, pad, null, output,
+						TransformEngine.DEFAULT);
+				fail("The forged container was accepted.");
+			}
+			catch (IOException e)
+			{
+				assertTrue(e.getMessage().contains("MAC"));
+			}
+		}
+		try (KeyPad pad = KeyPad.open(keyCopy))
+		{
+			assertEquals(0, pad.offset());
+		}
+	}
+
+	@Test
+	void keyRangesOutsideTheLayoutAreRejected () throws IOException
+	{
+		File key = write("key", randomBytes(1048576, 99));
+		File container = directory.resolve("container").toFile();
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			Container.create(sources(), pad, container, TransformEngine.DEFAULT);
+		}
+		// Only the first entry is moved, so the key ranges overlap.
+		moveKeyPositions(container, false, 500000);
+		try
+		{
+			readIndex(container);
+			fail("The overlapping key ranges were accepted.");
+		}
+		catch (IOException e)
+		{
+			assertTrue(e.getMessage().contains("corrupted"));
+		}
+	}
+
+	@Test
+	void onlyExtractedEntriesUseKey () throws IOException
+	{
+		List<File> sources = sources();
+		File key = write("key", randomBytes(1048576, 99));
+		File keyCopy = copy(key, "key copy");
+		File container = directory.resolve("container").toFile();
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			Container.create(sources, pad, container, TransformEngine.DEFAULT, true);
+		}
+		Container.Entry second = readIndex(container).get(1);
+		try (KeyPad pad = KeyPad.open(keyCopy))
+		{
+			Container.extract(container, pad, Collections.singletonList(
+					second.getName()), directory.resolve("output").toFile(),
+					TransformEngine.DEFAULT);
+		}
+		try (KeyPad pad = KeyPad.open(keyCopy))
+		{
+			assertEquals(second.getKeyPosition() + OneTimeMac.KEY_SIZE +
+					second.getLength(), pad.offset());
+		}
+	}
+
+	// Adds delta to the key position of the first entry of a container, or
+	// of every entry, and rewrites the CRC of the index to match.
+	private static void moveKeyPositions (File container, boolean all,
+			long delta) throws IOException
+	{
+		byte[] bytes = Files.readAllBytes(container.toPath());
+		ByteBuffer index = ByteBuffer.wrap(bytes);
+		boolean mac = index.getInt(8) == 2;
+		int count = index.getInt(12);
+		int position = 16;
+		for (int i = 0; i < count; i++)
+		{
+			int nameLength = index.getShort(position) & 0xFFFF;
+			int keyField = position + 2 + nameLength + 8;
+			if (all || i == 0)
+			{
+				index.putLong(keyField, index.getLong(keyField) + delta);
+			}
+			position += 2 + nameLength + 24 + (mac ? OneTimeMac.TAG_SIZE : 0);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, position);
+		index.putInt(position, (int) crc.getValue());
+		Files.write(container.toPath(), bytes);
+	}
+
+	private List<File> sources () throws IOException
+	{
+		File[] files = new File[SIZES.length];
+		for (int i = 0; i < SIZES.length; i++)
+		{
+			files[i] = write("file" + i, randomBytes(SIZES[i], i));
+		}
+		return Arrays.asList(files);
+	}
+
+	private static List<Container.Entry> readIndex (File container)
+			throws IOException
+	{
+		try (FileChannel in = FileChannel.open(container.toPath(),
+				StandardOpenOption.READ))
+		{
+			return Container.readIndex(in);
+		}
+	}
+
+	private static int version (File container) throws IOException
+	{
+		try (FileChannel in = FileChannel.open(container.toPath(),
+				StandardOpenOption.READ))
+		{
+			ByteBuffer version = ByteBuffer.allocate(4);
+			ChannelIO.readFully(in, version, 8);
+			return version.getInt(0);
+		}
+	}
+
+	private static byte[] randomBytes (int size, long seed)
+	{
+		byte[] bytes = new byte[size];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+	private File write (String name, byte[] bytes) throws IOException
+	{
+		File file = directory.resolve(name).toFile();
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+
+	private File copy (File file, String name) throws IOException
+	{
+		File copy = directory.resolve(name).toFile();
+		Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return copy;
+	}
+}
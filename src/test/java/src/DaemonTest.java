@@ -0,0 +1,197 @@
+package src;
+
+/*-- DaemonTest.java -------------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Tests the daemon and its client over a real socket. */
+class DaemonTest
+{
+	private static final int KEY_SIZE = 1048576;
+
+	@TempDir
+	Path directory;
+
+	private Path socket;
+	private CryptomniDaemon daemon;
+	private Thread thread;
+
+	@BeforeEach
+	void startDaemon () throws IOException
+	{
+		Path run = Files.createDirectory(directory.resolve("run"));
+		socket = run.resolve("cryptomni.sock");
+		daemon = new CryptomniDaemon(socket);
+		daemon.bind();
+		thread = new Thread()
+		{
+			public void run ()
+			{
+				try
+				{
+					daemon.run();
+				}
+				catch (IOException e)
+				{
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		thread.start();
+	}
+
+	@AfterEach
+	void stopDaemon () throws Exception
+	{
+		daemon.close();
+		thread.join(10000);
+	}
+
+	@Test
+	void socketIsOnlyForItsOwner () throws IOException
+	{
+		assertEquals(PosixFilePermissions.fromString("rw-------"),
+				Files.getPosixFilePermissions(socket));
+		// Nothing is left of the directory the socket was bound in.
+		assertEquals(Arrays.asList("cryptomni.sock"),
+				Arrays.asList(socket.getParent().toFile().list()));
+	}
+
+	@Test
+	void requestsUseConsecutiveKeyBytes () throws IOException
+	{
+		byte[] key = randomBytes(KEY_SIZE, 1);
+		File keyFile = write("key", key);
+		File keyCopy = copy(keyFile, "key copy");
+		byte[] first = randomBytes(1000, 2);
+		byte[] second = randomBytes(100000, 3);
+
+		try (DaemonClient client = new DaemonClient(socket))
+		{
+			byte[] firstEncrypted = client.encrypt(keyFile, first);
+			byte[] secondEncrypted = client.encrypt(keyFile, second);
+			for (int i = 0; i < first.length; i++)
+			{
+				assertEquals((byte) (first[i] ^ key[i]), firstEncrypted[i]);
+			}
+			for (int i = 0; i < second.length; i++)
+			{
+				assertEquals((byte) (second[i] ^ key[first.length + i]),
+						secondEncrypted[i]);
+			}
+
+			assertArrayEquals(first, client.decrypt(keyCopy, firstEncrypted));
+			assertArrayEquals(second, client.decrypt(keyCopy, secondEncrypted));
+			assertTrue(client.metrics().contains(
+					"cryptomni_transformed_bytes_total{operation=\"daemon\"}"));
+		}
+	}
+
+	@Test
+	void usedUpKeyIsDroppedAndReplaced () throws IOException
+	{
+		File keyFile = write("key", randomBytes(1000, 1));
+		try (DaemonClient client = new DaemonClient(socket))
+		{
+			client.encrypt(keyFile, new byte[600]);
+			try
+			{
+				client.encrypt(keyFile, new byte[600]);
+				fail("A message longer than the rest of the key should fail.");
+			}
+			catch (IOException e)
+			{
+				assertTrue(e.getMessage().contains("The key ran out"),
+						e.getMessage());
+			}
+			client.encrypt(keyFile, new byte[400]);
+			assertFalse(keyFile.exists());
+
+			// A new key at the same path is opened afresh.
+			byte[] key = randomBytes(1000, 4);
+			write("key", key);
+			assertArrayEquals(Arrays.copyOf(key, 10),
+					client.encrypt(keyFile, new byte[10]));
+		}
+	}
+
+	@Test
+	void secondDaemonOnTheSocketFails () throws IOException
+	{
+		CryptomniDaemon second = new CryptomniDaemon(socket);
+		try
+		{
+			second.bind();
+			fail("A second daemon should not take over the socket.");
+		}
+		catch (IOException e)
+		{
+			assertTrue(e.getMessage().contains("already listening"),
+					e.getMessage());
+		}
+		finally
+		{
+			second.close();
+		}
+		assertTrue(Files.exists(socket));
+	}
+
+	private static byte[] randomBytes (int size, long seed)
+	{
+		byte[] bytes = new byte[size];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+	private File write (String name, byte[] bytes) throws IOException
+	{
+		File file = directory.resolve(name).toFile();
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+
+	private File copy (File file, String name) throws IOException
+	{
+		File copy = directory.resolve(name).toFile();
+		Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return copy;
+	}
+}
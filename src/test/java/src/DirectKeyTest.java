@@ -0,0 +1,148 @@
+package src;
+
+/*-- DirectKeyTest.java ----------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Tests creating keys with direct I/O. Where the file system of the
+ * temporary directory does not support it, the tests check that this is
+ * reported and are otherwise skipped.
+ */
+class DirectKeyTest
+{
+	private static final int SOURCE_SIZE = 4 * KeyGenerator.REGION_SIZE;
+
+	@TempDir
+	Path directory;
+
+	@ParameterizedTest
+	@ValueSource(ints = {0, 100, 4096, KeyGenerator.REGION_SIZE,
+			2 * KeyGenerator.REGION_SIZE + 1234})
+	void directKeyHoldsTheSourceBytes (int size) throws IOException
+	{
+		byte[] bytes = randomBytes(SOURCE_SIZE, 1);
+		File source = write("source", bytes);
+		File key = directory.resolve("key").toFile();
+		generate(new KeyGenerator(3, EntropySource.forName("file:" + source),
+				true), key, size);
+		// The workers take regions in turn from the shared file source, so
+		// the key holds its first bytes, one region at a time in any order.
+		byte[] written = Files.readAllBytes(key.toPath());
+		assertEquals(size, written.length);
+		assertRegionsComeFrom(bytes, written);
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = {1, 3})
+	void directKeyEncryptsLikeAnyOther (int threads) throws IOException
+	{
+		File key = directory.resolve("key").toFile();
+		generate(new KeyGenerator(threads, EntropySource.DEFAULT, true), key,
+				KeyGenerator.REGION_SIZE + 5000);
+		File copy = directory.resolve("copy").toFile();
+		Files.copy(key.toPath(), copy.toPath());
+		byte[] plain = randomBytes(KeyGenerator.REGION_SIZE, 2);
+		File source = write("plain", plain);
+		File encrypted = directory.resolve("encrypted").toFile();
+		File decrypted = directory.resolve("decrypted").toFile();
+
+		assertTrue(Cryptomni.encryptFile(source, key, encrypted));
+		assertTrue(Cryptomni.decryptFile(encrypted, copy, decrypted));
+		assertArrayEquals(plain, Files.readAllBytes(decrypted.toPath()));
+	}
+
+	// Generates a key, or skips the test if direct I/O is not supported
+	// here, after checking that the failure says so.
+	private static void generate (KeyGenerator generator, File key, long size)
+			throws IOException
+	{
+		try
+		{
+			generator.generate(key, size);
+		}
+		catch (IOException e)
+		{
+			if (e.getMessage() == null ||
+					!e.getMessage().startsWith("Direct I/O is not supported"))
+			{
+				throw e;
+			}
+			assumeTrue(false, e.getMessage());
+		}
+	}
+
+	// Checks that every region of the key is a region of the source among
+	// the first regions, each used once.
+	private static void assertRegionsComeFrom (byte[] source, byte[] key)
+	{
+		int region = KeyGenerator.REGION_SIZE;
+		int regions = (key.length + region - 1) / region;
+		boolean[] used = new boolean[regions];
+		for (int position = 0; position < key.length; position += region)
+		{
+			byte[] part = Arrays.copyOfRange(key, position,
+					Math.min(key.length, position + region));
+			boolean found = false;
+			for (int i = 0; i < regions && !found; i++)
+			{
+				if (!used[i] && Arrays.equals(part, Arrays.copyOfRange(source,
+						i * region, i * region + part.length)))
+				{
+					used[i] = true;
+					found = true;
+				}
+			}
+			assertTrue(found, "Region at " + position + " is not from the source.");
+		}
+	}
+
+	private static byte[] randomBytes (int size, long seed)
+	{
+		byte[] bytes = new byte[size];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+	private File write (String name, byte[] bytes) throws IOException
+	{
+		File file = directory.resolve(name).toFile();
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+}
@@ -0,0 +1,253 @@
+package src;
+
+/*-- EntropySourceTest.java ------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Tests choosing entropy sources by name, reading file sources exactly once
+ * across runs, and mixing sources.
+ */
+class EntropySourceTest
+{
+	private static final int SOURCE_SIZE = 100000;
+
+	@TempDir
+	Path directory;
+
+	@ParameterizedTest
+	@ValueSource(strings = {"drbg", "drbg-pr", "securerandom",
+			"securerandom:SHA1PRNG"})
+	void namedSourceGivesRandomBytes (String name) throws IOException
+	{
+		EntropySource source = EntropySource.forName(name);
+		assertEquals(name, source.name());
+		byte[] bytes = new byte[1000];
+		try (EntropySource.Generator generator = source.open(0))
+		{
+			generator.nextBytes(bytes);
+		}
+		assertFalse(Arrays.equals(new byte[bytes.length], bytes));
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {"", "none", "file:", "securerandom:", "drbg,none"})
+	void unknownNameIsRejected (String name)
+	{
+		try
+		{
+			EntropySource.forName(name);
+			fail("Unknown source should be rejected: " + name);
+		}
+		catch (IllegalArgumentException e)
+		{
+			// Expected.
+		}
+	}
+
+	@Test
+	void sourceListedTwiceIsRejected () throws IOException
+	{
+		File file = write("source", randomBytes(SOURCE_SIZE, 1));
+		Files.createDirectory(directory.resolve("sub"));
+		File link = directory.resolve("link").toFile();
+		Files.createSymbolicLink(link.toPath(), file.toPath());
+		String[] names = {
+				"file:" + file + ",file:" + file,
+				// Other names for the same file.
+				"file:" + file + ",file:" + directory.resolve("sub/../source"),
+				"file:" + file + ",drbg,file:" + link,
+				"drbg,drbg"};
+		for (String name : names)
+		{
+			try
+			{
+				EntropySource.forName(name);
+				fail("A source listed twice should be rejected: " + name);
+			}
+			catch (IllegalArgumentException e)
+			{
+				// Expected.
+			}
+		}
+		assertEquals(2, EntropySource.forName("drbg,file:" + file).parts().size());
+	}
+
+	@Test
+	void fileSourceIsReadInOrderAcrossWorkers () throws IOException
+	{
+		byte[] bytes = randomBytes(SOURCE_SIZE, 1);
+		File file = write("source", bytes);
+		EntropySource source = EntropySource.forName("file:" + file);
+		byte[] first = new byte[1000];
+		byte[] second = new byte[3000];
+		byte[] third = new byte[500];
+		try (EntropySource.Generator a = source.open(0);
+			 EntropySource.Generator b = source.open(1))
+		{
+			a.nextBytes(first);
+			b.nextBytes(second);
+			a.nextBytes(third);
+		}
+		assertArrayEquals(Arrays.copyOfRange(bytes, 0, 1000), first);
+		assertArrayEquals(Arrays.copyOfRange(bytes, 1000, 4000), second);
+		assertArrayEquals(Arrays.copyOfRange(bytes, 4000, 4500), third);
+		assertEquals("4500", used(file));
+	}
+
+	@Test
+	void laterRunStartsWhereTheLastStopped () throws IOException
+	{
+		byte[] bytes = randomBytes(SOURCE_SIZE, 1);
+		File file = write("source", bytes);
+		byte[] read = new byte[1000];
+		try (EntropySource.Generator generator =
+				EntropySource.forName("file:" + file).open(0))
+		{
+			generator.nextBytes(read);
+			// Bytes are recorded as used before they are read.
+			assertTrue(Long.parseLong(used(file)) >= 1000);
+		}
+		assertEquals("1000", used(file));
+		try (EntropySource.Generator generator =
+				EntropySource.forName("file:" + file).open(0))
+		{
+			generator.nextBytes(read);
+		}
+		assertArrayEquals(Arrays.copyOfRange(bytes, 1000, 2000), read);
+		assertEquals("2000", used(file));
+	}
+
+	@Test
+	void exhaustedFileFails () throws IOException
+	{
+		File file = write("source", randomBytes(1500, 1));
+		try (EntropySource.Generator generator =
+				EntropySource.forName("file:" + file).open(0))
+		{
+			generator.nextBytes(new byte[1000]);
+			try
+			{
+				generator.nextBytes(new byte[1000]);
+				fail("Reading past the end of the source should fail.");
+			}
+			catch (EOFException e)
+			{
+				// Expected.
+			}
+		}
+	}
+
+	@Test
+	void damagedUsedFileIsReported () throws IOException
+	{
+		File file = write("source", randomBytes(SOURCE_SIZE, 1));
+		write(file.getName() + EntropySource.USED_SUFFIX,
+				"twelve\n".getBytes(StandardCharsets.UTF_8));
+		try
+		{
+			EntropySource.forName("file:" + file).open(0).close();
+			fail("A damaged used file should be reported.");
+		}
+		catch (IOException e)
+		{
+			// Expected.
+		}
+	}
+
+	@Test
+	void mixedSourceXorsItsParts () throws IOException
+	{
+		byte[] a = randomBytes(SOURCE_SIZE, 1);
+		byte[] b = randomBytes(SOURCE_SIZE, 2);
+		File fileA = write("a", a);
+		File fileB = write("b", b);
+		EntropySource mixed = EntropySource.forName("file:" + fileA +
+				", file:" + fileB);
+		assertEquals("file:" + fileA + ",file:" + fileB, mixed.name());
+		byte[] bytes = new byte[5000];
+		try (EntropySource.Generator generator = mixed.open(0))
+		{
+			generator.nextBytes(bytes);
+		}
+		for (int i = 0; i < bytes.length; i++)
+		{
+			assertEquals((byte) (a[i] ^ b[i]), bytes[i]);
+		}
+		assertEquals("5000", used(fileA));
+		assertEquals("5000", used(fileB));
+	}
+
+	@Test
+	void keyIsMadeOfTheSourceBytes () throws IOException
+	{
+		byte[] bytes = randomBytes(SOURCE_SIZE, 1);
+		File file = write("source", bytes);
+		File key = directory.resolve("key").toFile();
+		new KeyGenerator(1, EntropySource.forName("file:" + file)).generate(key,
+				SOURCE_SIZE / 2);
+		assertArrayEquals(Arrays.copyOfRange(bytes, 0, SOURCE_SIZE / 2),
+				Files.readAllBytes(key.toPath()));
+		assertEquals(Integer.toString(SOURCE_SIZE / 2), used(file));
+	}
+
+	// Returns the offset recorded in the used file of a file source.
+	private static String used (File file) throws IOException
+	{
+		return new String(Files.readAllBytes(new File(file.getPath() +
+				EntropySource.USED_SUFFIX).toPath()), StandardCharsets.UTF_8).trim();
+	}
+
+	private static byte[] randomBytes (int size, long seed)
+	{
+		byte[] bytes = new byte[size];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+	private File write (String name, byte[] bytes) throws IOException
+	{
+		File file = directory.resolve(name).toFile();
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+}
@@ -0,0 +1,169 @@
+package src;
+
+/*-- KeyPadManagerTest.java ------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Tests sharing one key between the threads of a program. */
+class KeyPadManagerTest
+{
+	private static final int KEY_SIZE = 1048576;
+	private static final int THREADS = 8;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void concurrentReservationsDoNotOverlap () throws Exception
+	{
+		final File key = write("key", KEY_SIZE);
+		final List<long[]> ranges =
+				Collections.synchronizedList(new ArrayList<long[]>());
+		final List<Throwable> failures =
+				Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < THREADS; i++)
+		{
+			final int seed = i;
+			Thread thread = new Thread()
+			{
+				public void run ()
+				{
+					Random random = new Random(seed);
+					try (KeyPadManager.Handle handle = KeyPadManager.open(key))
+					{
+						for (int j = 0; j < 50; j++)
+						{
+							long bytes = 1 + random.nextInt(1000);
+							long position = handle.reserve(bytes);
+							ranges.add(new long[] {position, bytes});
+							handle.commit(position, bytes);
+						}
+					}
+					catch (Throwable e)
+					{
+						failures.add(e);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		assertTrue(failures.isEmpty(), failures.toString());
+
+		// The ranges are back to back from the start of the key.
+		Collections.sort(ranges, new Comparator<long[]>()
+		{
+			public int compare (long[] a, long[] b)
+			{
+				return Long.compare(a[0], b[0]);
+			}
+		});
+		long next = 0;
+		for (long[] range : ranges)
+		{
+			assertEquals(next, range[0]);
+			next += range[1];
+		}
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			assertEquals(next, pad.offset());
+		}
+	}
+
+	@Test
+	void openingWhileTheLastHandleClosesSucceeds () throws Exception
+	{
+		final File key = write("key", KEY_SIZE);
+		final List<Throwable> failures =
+				Collections.synchronizedList(new ArrayList<Throwable>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < THREADS; i++)
+		{
+			Thread thread = new Thread()
+			{
+				public void run ()
+				{
+					try
+					{
+						for (int j = 0; j < 100; j++)
+						{
+							KeyPadManager.open(key).close();
+						}
+					}
+					catch (Throwable e)
+					{
+						failures.add(e);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		assertTrue(failures.isEmpty(), failures.toString());
+	}
+
+	@Test
+	void remainingCountsReservedBytesAsUsed () throws IOException
+	{
+		File key = write("key", KEY_SIZE);
+		try (KeyPadManager.Handle handle = KeyPadManager.open(key))
+		{
+			handle.reserve(1000);
+			assertEquals(KEY_SIZE - 1000, KeyPadManager.remaining(key));
+		}
+		// The reservation was never committed, so it may have been used.
+		assertEquals(KEY_SIZE - 1000, KeyPadManager.remaining(key));
+	}
+
+	private File write (String name, int size) throws IOException
+	{
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		File file = directory.resolve(name).toFile();
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+}
@@ -0,0 +1,301 @@
+package src;
+
+/*-- KeyPadTest.java -------------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests offset-based key consumption in {@link KeyPad}, and its trailer,
+ * journal and crash recovery.
+ */
+class KeyPadTest
+{
+	private static final int KEY_SIZE = 4096;
+	private static final long TRAILER_MAGIC = 0x4F5450414454524CL;
+	private static final long JOURNAL_MAGIC = 0x4F545041444A4E4CL;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void freshKeyGetsTrailerAndKeepsOffset () throws IOException
+	{
+		File key = createKey("key", KEY_SIZE);
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			assertEquals(KEY_SIZE, pad.length());
+			assertEquals(0, pad.offset());
+			pad.consume(100);
+		}
+		assertEquals(KEY_SIZE + KeyPad.TRAILER_SIZE, key.length());
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			assertEquals(100, pad.offset());
+			assertEquals(KEY_SIZE - 100, pad.remaining());
+		}
+	}
+
+	@Test
+	void nextHandsOutKeyBytesInOrderAndWipesThem () throws IOException
+	{
+		File key = createKey("key", KEY_SIZE);
+		byte[] original = Files.readAllBytes(key.toPath());
+		byte[] first = new byte[100];
+		byte[] second = new byte[200];
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			pad.next(ByteBuffer.wrap(first));
+			pad.next(ByteBuffer.wrap(second));
+			assertEquals(300, pad.offset());
+		}
+		assertArrayEquals(Arrays.copyOfRange(original, 0, 100), first);
+		assertArrayEquals(Arrays.copyOfRange(original, 100, 300), second);
+		byte[] bytes = Files.readAllBytes(key.toPath());
+		assertArrayEquals(new byte[300], Arrays.copyOf(bytes, 300));
+		assertArrayEquals(Arrays.copyOfRange(original, 300, KEY_SIZE),
+				Arrays.copyOfRange(bytes, 300, KEY_SIZE));
+	}
+
+	@Test
+	void consumingPastTheEndFails () throws IOException
+	{
+		File key = createKey("key", KEY_SIZE);
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			pad.consume(KEY_SIZE - 10);
+			try
+			{
+				pad.consume(11);
+				fail("More key bytes were consumed than the key has.");
+			}
+			catch (IOException e)
+			{
+				assertEquals(KEY_SIZE - 10, pad.offset());
+			}
+		}
+	}
+
+	@Test
+	void usedUpKeyIsDeleted () throws IOException
+	{
+		File key = createKey("key", KEY_SIZE);
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			pad.consume(KEY_SIZE);
+		}
+		assertFalse(key.exists());
+	}
+
+	@Test
+	void keyIsLockedWhileOpen () throws IOException
+	{
+		File key = createKey("key", KEY_SIZE);
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			try
+			{
+				KeyPad.open(key).close();
+				fail("The key was opened twice.");
+			}
+			catch (IOException e)
+			{
+				assertTrue(e.getMessage().startsWith("Key file is in use"));
+			}
+		}
+	}
+
+	@Test
+	void versionOneTrailerIsUpgraded () throws IOException
+	{
+		File key = createKey("key", KEY_SIZE);
+		appendVersionOneTrailer(key, 300);
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			assertEquals(KEY_SIZE, pad.length());
+			assertEquals(300, pad.offset());
+		}
+		assertEquals(KEY_SIZE + KeyPad.TRAILER_SIZE, key.length());
+		assertFalse(journal(key).exists());
+	}
+
+	@Test
+	void interruptedUpgradeIsFinishedFromJournal () throws IOException
+	{
+		File key = createKey("key", KEY_SIZE);
+		appendVersionOneTrailer(key, 300);
+		writeJournal(key, KEY_SIZE, 300);
+		// The new trailer was half written over the old one.
+		try (FileChannel channel = FileChannel.open(key.toPath(),
+				StandardOpenOption.WRITE))
+		{
+			ChannelIO.writeFully(channel, ByteBuffer.wrap(new byte[40]), KEY_SIZE);
+		}
+		assertEquals(KEY_SIZE - 300, KeyPad.probe(key));
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			assertEquals(KEY_SIZE, pad.length());
+			assertEquals(300, pad.offset());
+		}
+		assertEquals(KEY_SIZE + KeyPad.TRAILER_SIZE, key.length());
+		assertFalse(journal(key).exists());
+	}
+
+	@Test
+	void journalOfFinishedUpgradeIsIgnored () throws IOException
+	{
+		File key = createKey("key", KEY_SIZE);
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			pad.consume(500);
+		}
+		// The upgrade from an offset of 0 finished before the key was used.
+		writeJournal(key, KEY_SIZE, 0);
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			assertEquals(500, pad.offset());
+		}
+		assertFalse(journal(key).exists());
+	}
+
+	@Test
+	void reservedBytesAreUsedAfterCrash () throws IOException
+	{
+		File key = createKey("key", 8 * 1048576);
+		File crashed = directory.resolve("crashed").toFile();
+		long reserved;
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			pad.consume(100);
+			pad.reserveTo(1000);
+			reserved = pad.reserved();
+			// What the disk holds if the program stops here.
+			Files.copy(key.toPath(), crashed.toPath());
+		}
+		assertTrue(reserved >= 1000);
+		assertEquals(8 * 1048576 - reserved, KeyPad.probe(crashed));
+		try (KeyPad pad = KeyPad.open(crashed))
+		{
+			assertEquals(reserved, pad.offset());
+		}
+		byte[] bytes = Files.readAllBytes(crashed.toPath());
+		assertArrayEquals(new byte[(int) reserved],
+				Arrays.copyOf(bytes, (int) reserved));
+	}
+
+	@Test
+	void tornSlotFallsBackToOlderSlot () throws IOException
+	{
+		File key = createKey("key", KEY_SIZE);
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			pad.consume(100);
+		}
+		ByteBuffer trailer = ByteBuffer.wrap(Files.readAllBytes(key.toPath()),
+				KEY_SIZE, KeyPad.TRAILER_SIZE).slice();
+		int newest = trailer.getLong(0) > trailer.getLong(32) ? 0 : 1;
+		long olderReserved = trailer.getLong((1 - newest) * 32 + 16);
+		// Break the checksum of the newest slot, as a torn write would.
+		try (FileChannel channel = FileChannel.open(key.toPath(),
+				StandardOpenOption.WRITE))
+		{
+			ChannelIO.writeFully(channel, ByteBuffer.wrap(new byte[4]),
+					KEY_SIZE + newest * 32 + 24);
+		}
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			assertTrue(pad.offset() >= 100);
+			assertEquals(olderReserved, pad.offset());
+		}
+	}
+
+	@Test
+	void probeDoesNotChangeKey () throws IOException
+	{
+		File key = createKey("key", KEY_SIZE);
+		byte[] before = Files.readAllBytes(key.toPath());
+		assertEquals(KEY_SIZE, KeyPad.probe(key));
+		assertArrayEquals(before, Files.readAllBytes(key.toPath()));
+	}
+
+	// Writes a key that has never been opened: random bytes only.
+	private File createKey (String name, int size) throws IOException
+	{
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		File key = directory.resolve(name).toFile();
+		Files.write(key.toPath(), bytes);
+		return key;
+	}
+
+	private static File journal (File key)
+	{
+		return new File(key.getPath() + ".journal");
+	}
+
+	private static void appendVersionOneTrailer (File key, long offset)
+			throws IOException
+	{
+		ByteBuffer trailer = ByteBuffer.allocate(24);
+		trailer.putLong(offset);
+		trailer.putInt(1);
+		trailer.putInt(checksum(trailer.array(), 12));
+		trailer.putLong(TRAILER_MAGIC);
+		Files.write(key.toPath(), trailer.array(), StandardOpenOption.APPEND);
+	}
+
+	private static void writeJournal (File key, long textLength, long offset)
+			throws IOException
+	{
+		ByteBuffer record = ByteBuffer.allocate(28);
+		record.putLong(textLength);
+		record.putLong(offset);
+		record.putInt(checksum(record.array(), 16));
+		record.putLong(JOURNAL_MAGIC);
+		Files.write(journal(key).toPath(), record.array());
+	}
+
+	private static int checksum (byte[] bytes, int size)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, size);
+		return (int) crc.getValue();
+	}
+}
@@ -0,0 +1,179 @@
+package src;
+
+/*-- KeyPrefetchTest.java --------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests handing out key bytes with {@link KeyPad#next}, with and without
+ * reading ahead, and how it settles the bytes it has handed out.
+ */
+class KeyPrefetchTest
+{
+	private static final int KEY_SIZE = 3 * 1048576;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void nextSettlesInBatches () throws IOException
+	{
+		File key = createKey("key", KEY_SIZE);
+		byte[] original = Files.readAllBytes(key.toPath());
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			pad.next(ByteBuffer.allocate(1000));
+			assertTrue(pad.reserved() >= 1000);
+			// Not overwritten yet.
+			assertArrayEquals(Arrays.copyOf(original, 1000),
+					Arrays.copyOf(Files.readAllBytes(key.toPath()), 1000));
+
+			// A stop now would still never hand the bytes out again.
+			File crashed = directory.resolve("crashed").toFile();
+			Files.copy(key.toPath(), crashed.toPath());
+			try (KeyPad copy = KeyPad.open(crashed))
+			{
+				assertTrue(copy.offset() >= 1000);
+			}
+
+			// A megabyte later the first bytes are overwritten.
+			byte[] piece = new byte[4096];
+			while (pad.offset() < 1048576 + 1000)
+			{
+				pad.next(ByteBuffer.wrap(piece));
+			}
+			assertArrayEquals(new byte[1000],
+					Arrays.copyOf(Files.readAllBytes(key.toPath()), 1000));
+		}
+	}
+
+	@Test
+	void closeSettlesEverything () throws IOException
+	{
+		File key = createKey("key", KEY_SIZE);
+		byte[] original = Files.readAllBytes(key.toPath());
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			pad.prefetch(2 * KeyPrefetcher.CHUNK_SIZE);
+			pad.next(ByteBuffer.allocate(5000));
+		}
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			assertEquals(5000, pad.offset());
+			assertEquals(5000, pad.reserved());
+		}
+		byte[] bytes = Files.readAllBytes(key.toPath());
+		assertArrayEquals(new byte[5000], Arrays.copyOf(bytes, 5000));
+		assertArrayEquals(Arrays.copyOfRange(original, 5000, KEY_SIZE),
+				Arrays.copyOfRange(bytes, 5000, KEY_SIZE));
+	}
+
+	@Test
+	void prefetchedBytesFollowEveryWayOfConsuming () throws IOException
+	{
+		File key = createKey("key", KEY_SIZE);
+		byte[] original = Files.readAllBytes(key.toPath());
+		Random random = new Random(1);
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			pad.prefetch(2 * KeyPrefetcher.CHUNK_SIZE);
+			int threads = prefetchThreads();
+			while (pad.remaining() > 70000)
+			{
+				long position = pad.offset();
+				int choice = random.nextInt(4);
+				int bytes = 1 + random.nextInt(30000);
+				if (choice == 0)
+				{
+					pad.consume(bytes);
+				}
+				else if (choice == 1)
+				{
+					pad.skipTo(position + bytes);
+				}
+				else
+				{
+					byte[] piece = new byte[bytes];
+					pad.next(ByteBuffer.wrap(piece));
+					assertArrayEquals(Arrays.copyOfRange(original,
+							(int) position, (int) position + bytes), piece);
+				}
+				assertEquals(position + bytes, pad.offset());
+			}
+			// Consuming by other routes moves the thread rather than
+			// starting another one.
+			assertEquals(threads, prefetchThreads());
+		}
+	}
+
+	@Test
+	void usedUpKeyIsDeletedWhileReadingAhead () throws IOException
+	{
+		File key = createKey("key", 100000);
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			pad.prefetch(KeyPrefetcher.CHUNK_SIZE);
+			pad.next(ByteBuffer.allocate(60000));
+			pad.next(ByteBuffer.allocate(40000));
+		}
+		assertFalse(key.exists());
+	}
+
+	// Counts the threads that read key bytes ahead.
+	private static int prefetchThreads ()
+	{
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+		{
+			if (thread.getName().equals("cryptomni-key-prefetch"))
+			{
+				count++;
+			}
+		}
+		return count;
+	}
+
+	// Writes a key that has never been opened: random bytes only.
+	private File createKey (String name, int size) throws IOException
+	{
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		File key = directory.resolve(name).toFile();
+		Files.write(key.toPath(), bytes);
+		return key;
+	}
+}
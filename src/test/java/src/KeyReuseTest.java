@@ -0,0 +1,219 @@
+package src;
+
+/*-- KeyReuseTest.java -----------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Tests that key bytes a failed transform may have used are never handed
+ * out again, and that those it cannot have used are.
+ */
+class KeyReuseTest
+{
+	private static final int KEY_SIZE = 1048576;
+	private static final int FILE_SIZE = 300000;
+
+	@TempDir
+	Path directory;
+
+	@ParameterizedTest
+	@ValueSource(booleans = {true, false})
+	void failedFileKeepsUsedKey (boolean inOrder) throws IOException
+	{
+		File key = write("key", KEY_SIZE, 1);
+		File source = write("plain", FILE_SIZE, 2);
+		File encrypted = directory.resolve("encrypted").toFile();
+
+		assertFalse(Cryptomni.encryptFile(source, key, encrypted,
+				new FailingEngine(inOrder, 1)));
+		assertFalse(encrypted.exists());
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			// Half of the file was transformed before the engine failed. An
+			// engine that does not work in order may have used any of it.
+			assertTrue(pad.offset() >= (inOrder ? FILE_SIZE / 2 : FILE_SIZE));
+		}
+	}
+
+	@Test
+	void failedBatchKeepsUsedKey () throws IOException
+	{
+		File key = write("key", KEY_SIZE, 1);
+		List<File> sources = Arrays.asList(write("a", FILE_SIZE, 2),
+				write("b", FILE_SIZE, 3));
+		File output = directory.resolve("output").toFile();
+
+		assertFalse(Cryptomni.encryptFiles(sources, key, output,
+				new FailingEngine(true, 2)));
+		assertFalse(new File(output, "a").exists());
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			assertTrue(pad.offset() >= FILE_SIZE + FILE_SIZE / 2);
+		}
+	}
+
+	@Test
+	void unopenedOutputGivesKeyBack () throws IOException
+	{
+		File key = write("key", KEY_SIZE, 1);
+		File source = write("plain", FILE_SIZE, 2);
+
+		// A directory cannot be opened as the output file.
+		assertFalse(Cryptomni.encryptFile(source, key, directory.toFile()));
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			assertEquals(0, pad.offset());
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {"stream", "pipelined"})
+	void bytesAreCountedBeforeTheyAreWritten (String engine) throws IOException
+	{
+		int length = 3 * BufferPool.BUFFER_SIZE;
+		File key = write("key", length, 1);
+		File source = write("plain", length, 2);
+		File output = write("output", 0, 3);
+		Progress progress = new Progress(null, null);
+		try (FileChannel in = FileChannel.open(source.toPath(),
+					StandardOpenOption.READ);
+			 FileChannel keyChannel = FileChannel.open(key.toPath(),
+					StandardOpenOption.READ);
+			 // The output cannot be written, so the first write fails.
+			 FileChannel out = FileChannel.open(output.toPath(),
+					StandardOpenOption.READ))
+		{
+			TransformEngine.forName(engine).transform(in, 0,
+					KeyChannel.of(keyChannel), 0, out, 0, length, progress);
+			fail("Writing to a read-only channel should fail.");
+		}
+		catch (IOException | NonWritableChannelException e)
+		{
+			// Expected.
+		}
+		// The bytes of the failed write count as used.
+		assertTrue(progress.done() >= BufferPool.BUFFER_SIZE);
+	}
+
+	@Test
+	void failedContainerKeepsUsedKey () throws IOException
+	{
+		File key = write("key", KEY_SIZE, 1);
+		List<File> sources = Arrays.asList(write("a", FILE_SIZE, 2),
+				write("b", FILE_SIZE, 3), write("c", FILE_SIZE, 4));
+		File container = directory.resolve("container").toFile();
+
+		long offset;
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			try
+			{
+				Container.create(sources, pad, container,
+						new FailingEngine(true, 2));
+				fail("The failing engine was not noticed.");
+			}
+			catch (IOException e)
+			{
+				assertEquals(FailingEngine.MESSAGE, e.getMessage());
+			}
+			offset = pad.offset();
+		}
+		assertFalse(container.exists());
+		// The first two entries were started, the third was not.
+		assertEquals(2 * FILE_SIZE, offset);
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			assertEquals(offset, pad.offset());
+		}
+	}
+
+	private File write (String name, int size, long seed) throws IOException
+	{
+		byte[] bytes = new byte[size];
+		new Random(seed).nextBytes(bytes);
+		File file = directory.resolve(name).toFile();
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+
+	// An engine that fails halfway through one of its calls, after using
+	// the key for the first half of the range.
+	private static class FailingEngine extends TransformEngine
+	{
+		static final String MESSAGE = "The disk is full.";
+
+		private final boolean inOrder;
+		private final int failingCall;
+		private int calls;
+
+		FailingEngine (boolean inOrder, int failingCall)
+		{
+			this.inOrder = inOrder;
+			this.failingCall = failingCall;
+		}
+
+		public String name ()
+		{
+			return "failing";
+		}
+
+		public boolean inOrder ()
+		{
+			return inOrder;
+		}
+
+		public void transform (FileChannel in, long inPosition, KeyChannel key,
+				long keyPosition, FileChannel out, long outPosition, long length,
+				Progress progress) throws IOException
+		{
+			if (++calls < failingCall)
+			{
+				DEFAULT.transform(in, inPosition, key, keyPosition, out,
+						outPosition, length, progress);
+				return;
+			}
+			DEFAULT.transform(in, inPosition, key, keyPosition, out,
+					outPosition, length / 2, progress);
+			throw new IOException(MESSAGE);
+		}
+	}
+}
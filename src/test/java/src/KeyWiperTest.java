@@ -0,0 +1,304 @@
+package src;
+
+/*-- KeyWiperTest.java -----------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Tests overwriting used key bytes, in the foreground and on the background
+ * thread of a {@link KeyWiper}.
+ */
+class KeyWiperTest
+{
+	private static final int KEY_SIZE = 4 * KeyWiper.BATCH_SIZE;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void closeOverwritesWaitingRanges () throws IOException
+	{
+		byte[] bytes = randomBytes(KEY_SIZE, 1);
+		File key = write("key", bytes);
+		try (FileChannel channel = open(key))
+		{
+			KeyWiper wiper = new KeyWiper(KeyChannel.of(channel), 1, 0);
+			// Overlapping, touching and separate ranges.
+			wiper.add(100, 200);
+			wiper.add(250, 100);
+			wiper.add(350, 50);
+			wiper.add(5000, 1000);
+			wiper.add(7000, 0);
+			wiper.close();
+		}
+		Arrays.fill(bytes, 100, 400, (byte) 0);
+		Arrays.fill(bytes, 5000, 6000, (byte) 0);
+		assertArrayEquals(bytes, Files.readAllBytes(key.toPath()));
+	}
+
+	@Test
+	void rangesAreOverwrittenBeforeClose () throws Exception
+	{
+		byte[] bytes = randomBytes(KEY_SIZE, 1);
+		File key = write("key", bytes);
+		try (FileChannel channel = open(key))
+		{
+			KeyWiper wiper = new KeyWiper(KeyChannel.of(channel), 1, 0);
+			try
+			{
+				// A short range is overwritten once it has waited a while.
+				wiper.add(1000, 10);
+				long deadline = System.nanoTime() + 10000000000L;
+				while (!isZero(key, 1000, 10) && System.nanoTime() < deadline)
+				{
+					Thread.sleep(10);
+				}
+				assertTrue(isZero(key, 1000, 10));
+			}
+			finally
+			{
+				wiper.close();
+			}
+		}
+	}
+
+	@Test
+	void rateLimitHoldsBackWritesUntilClose () throws Exception
+	{
+		byte[] bytes = randomBytes(KEY_SIZE, 1);
+		File key = write("key", bytes);
+		try (FileChannel channel = open(key))
+		{
+			// At 100 KiB a second, the first batch takes ten seconds.
+			KeyWiper wiper = new KeyWiper(KeyChannel.of(channel), 1, 102400);
+			wiper.add(0, KEY_SIZE);
+			Thread.sleep(300);
+			assertFalse(isZero(key, 0, KeyWiper.BATCH_SIZE));
+			long start = System.nanoTime();
+			// Closing overwrites the rest at full speed.
+			wiper.close();
+			assertTrue(System.nanoTime() - start < 5000000000L);
+		}
+		assertTrue(isZero(key, 0, KEY_SIZE));
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = {1, 2, 3})
+	void everyPassButTheLastIsForced (int passes) throws IOException
+	{
+		File key = write("key", randomBytes(KEY_SIZE, 1));
+		try (FileChannel channel = open(key))
+		{
+			RecordingChannel recording = new RecordingChannel(channel, false);
+			int bytes = KeyWiper.BATCH_SIZE + 500;
+			KeyWiper.overwrite(recording, 10, bytes, passes, null);
+			assertEquals(2 * passes, recording.writes);
+			assertEquals(passes - 1, recording.forces);
+			assertEquals((long) bytes * passes, recording.written);
+		}
+		assertTrue(isZero(key, 10, KeyWiper.BATCH_SIZE + 500));
+	}
+
+	@Test
+	void failureIsReported () throws IOException
+	{
+		File key = write("key", randomBytes(KEY_SIZE, 1));
+		try (FileChannel channel = open(key))
+		{
+			KeyWiper wiper = new KeyWiper(new RecordingChannel(channel, true), 1, 0);
+			wiper.add(0, 100);
+			try
+			{
+				wiper.close();
+				fail("The failed write should be reported.");
+			}
+			catch (IOException e)
+			{
+				assertEquals(RecordingChannel.MESSAGE, e.getCause().getMessage());
+			}
+			try
+			{
+				wiper.add(0, 100);
+				fail("A closed wiper should not take more ranges.");
+			}
+			catch (IOException e)
+			{
+				// Expected.
+			}
+		}
+	}
+
+	@Test
+	void invalidSettingsAreRejected () throws IOException
+	{
+		File key = write("key", randomBytes(KEY_SIZE, 1));
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			for (long[] setting : new long[][] {{0, 0}, {1, -2}})
+			{
+				try
+				{
+					pad.setWipe((int) setting[0], setting[1]);
+					fail("Setting should be rejected: " + Arrays.toString(setting));
+				}
+				catch (IllegalArgumentException e)
+				{
+					// Expected.
+				}
+			}
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(longs = {KeyPad.FOREGROUND_WIPE, 0, 1048576})
+	void keyPadOverwritesUsedBytes (long bytesPerSecond) throws IOException
+	{
+		byte[] bytes = randomBytes(KEY_SIZE, 1);
+		File key = write("key", bytes);
+		int used = KeyWiper.BATCH_SIZE + 1000;
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			pad.setWipe(3, bytesPerSecond);
+			ByteBuffer buffer = ByteBuffer.allocate(used);
+			pad.next(buffer);
+			assertArrayEquals(Arrays.copyOfRange(bytes, 0, used), buffer.array());
+		}
+		assertTrue(isZero(key, 0, used));
+		byte[] after = Files.readAllBytes(key.toPath());
+		assertArrayEquals(Arrays.copyOfRange(bytes, used, KEY_SIZE),
+				Arrays.copyOfRange(after, used, KEY_SIZE));
+	}
+
+	private static boolean isZero (File file, long position, int length)
+			throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ))
+		{
+			ChannelIO.readFully(channel, buffer, position);
+		}
+		return Arrays.equals(new byte[length], buffer.array());
+	}
+
+	private static FileChannel open (File file) throws IOException
+	{
+		return FileChannel.open(file.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+	}
+
+	private static byte[] randomBytes (int size, long seed)
+	{
+		byte[] bytes = new byte[size];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+	private File write (String name, byte[] bytes) throws IOException
+	{
+		File file = directory.resolve(name).toFile();
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+
+	// A key channel that counts writes and forces, or fails every write.
+	private static class RecordingChannel implements KeyChannel
+	{
+		static final String MESSAGE = "The disk is gone.";
+
+		private final KeyChannel channel;
+		private final boolean failing;
+		int writes;
+		int forces;
+		long written;
+
+		RecordingChannel (FileChannel channel, boolean failing)
+		{
+			this.channel = KeyChannel.of(channel);
+			this.failing = failing;
+		}
+
+		public int read (ByteBuffer dst, long position) throws IOException
+		{
+			return channel.read(dst, position);
+		}
+
+		public int write (ByteBuffer src, long position) throws IOException
+		{
+			if (failing)
+			{
+				throw new IOException(MESSAGE);
+			}
+			writes++;
+			int length = channel.write(src, position);
+			written += length;
+			return length;
+		}
+
+		public long size () throws IOException
+		{
+			return channel.size();
+		}
+
+		public void force (boolean metaData) throws IOException
+		{
+			forces++;
+			channel.force(metaData);
+		}
+
+		public boolean isOpen ()
+		{
+			return channel.isOpen();
+		}
+
+		public FileChannel fileChannel ()
+		{
+			return channel.fileChannel();
+		}
+
+		public void close () throws IOException
+		{
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package src;
+
+/*-- MetricsTest.java ------------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the metrics of transforms, failures and key use. The metrics are
+ * shared by the whole JVM, so the tests compare counts before and after.
+ */
+class MetricsTest
+{
+	private static final int KEY_SIZE = 1048576;
+	private static final int FILE_SIZE = 300000;
+
+	@TempDir
+	Path directory;
+
+	private final Metrics metrics = Metrics.shared();
+
+	@Test
+	void transformIsCounted () throws IOException
+	{
+		File key = write("key", KEY_SIZE, 1);
+		File source = write("plain", FILE_SIZE, 2);
+		long bytes = metrics.getTransformedBytes().get("file");
+		long operations = metrics.getOperations().get("file");
+		long histogram = sum(metrics.getThroughputHistograms().get("file"));
+		double phases = sum(metrics.getPhaseSeconds());
+
+		assertTrue(Cryptomni.encryptFile(source, key,
+				directory.resolve("encrypted").toFile()));
+		assertEquals(bytes + FILE_SIZE,
+				(long) metrics.getTransformedBytes().get("file"));
+		assertEquals(operations + 1, (long) metrics.getOperations().get("file"));
+		assertEquals(histogram + 1,
+				sum(metrics.getThroughputHistograms().get("file")));
+		assertTrue(sum(metrics.getPhaseSeconds()) > phases);
+	}
+
+	@Test
+	void failuresAreCountedByCause () throws IOException
+	{
+		File key = write("key", 1000, 1);
+		File source = write("plain", FILE_SIZE, 2);
+		long exhausted = metrics.getFailures().get("key_exhausted");
+		long notFound = metrics.getFailures().get("not_found");
+
+		assertFalse(Cryptomni.encryptFile(source, key,
+				directory.resolve("encrypted").toFile()));
+		assertEquals(exhausted + 1,
+				(long) metrics.getFailures().get("key_exhausted"));
+		assertFalse(Cryptomni.encryptFile(directory.resolve("missing").toFile(),
+				key, directory.resolve("other").toFile()));
+		assertEquals(notFound + 1, (long) metrics.getFailures().get("not_found"));
+	}
+
+	@Test
+	void causeFollowsTheException ()
+	{
+		assertEquals(Metrics.Cause.CANCELLED,
+				Metrics.Cause.of(new InterruptedIOException()));
+		assertEquals(Metrics.Cause.KEY_EXHAUSTED,
+				Metrics.Cause.of(new EOFException()));
+		assertEquals(Metrics.Cause.NOT_FOUND,
+				Metrics.Cause.of(new FileNotFoundException()));
+		assertEquals(Metrics.Cause.NOT_FOUND,
+				Metrics.Cause.of(new NoSuchFileException("x")));
+		assertEquals(Metrics.Cause.IO, Metrics.Cause.of(new IOException()));
+	}
+
+	@Test
+	void keyUseIsTracked () throws IOException
+	{
+		File key = write("key", KEY_SIZE, 1);
+		String path = key.getAbsolutePath();
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			assertEquals(KEY_SIZE, (long) metrics.getKeyRemainingBytes().get(path));
+			pad.next(ByteBuffer.allocate(FILE_SIZE));
+		}
+		assertEquals(KEY_SIZE - FILE_SIZE,
+				(long) metrics.getKeyRemainingBytes().get(path));
+		assertEquals(FILE_SIZE, (long) metrics.getKeyConsumedBytes().get(path));
+		// The bytes were consumed within the last minute.
+		assertEquals(FILE_SIZE / 60.0,
+				metrics.getKeyConsumptionRates().get(path), 1e-9);
+		assertEquals((KEY_SIZE - FILE_SIZE) / (FILE_SIZE / 60.0),
+				metrics.getKeySecondsLeft().get(path), 1e-6);
+	}
+
+	@Test
+	void prometheusTextEscapesLabels () throws IOException
+	{
+		File key = write("a \"quoted\" key", KEY_SIZE, 1);
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			pad.next(ByteBuffer.allocate(100));
+		}
+		String text = metrics.prometheusText();
+		String label = key.getAbsolutePath().replace("\"", "\\\"");
+		assertTrue(text.contains("cryptomni_key_remaining_bytes{key=\"" +
+				label + "\"} " + (KEY_SIZE - 100) + "\n"), text);
+		assertTrue(text.contains("cryptomni_key_consumed_bytes_total{key=\"" +
+				label + "\"} 100\n"), text);
+		for (String family : new String[] {"cryptomni_transformed_bytes_total",
+				"cryptomni_throughput_bytes_per_second",
+				"cryptomni_phase_seconds_total", "cryptomni_failures_total",
+				"cryptomni_key_remaining_bytes",
+				"cryptomni_key_consumed_bytes_total",
+				"cryptomni_key_consumption_bytes_per_second"})
+		{
+			assertTrue(text.contains("# TYPE " + family + " "), family);
+		}
+	}
+
+	@Test
+	void histogramCountsEveryOperation () throws IOException
+	{
+		File key = write("key", KEY_SIZE, 1);
+		assertTrue(Cryptomni.encryptFile(write("plain", FILE_SIZE, 2), key,
+				directory.resolve("encrypted").toFile()));
+		String text = metrics.prometheusText();
+		long operations = metrics.getOperations().get("file");
+		assertTrue(text.contains("cryptomni_throughput_bytes_per_second_bucket{" +
+				"operation=\"file\",le=\"+Inf\"} " + operations + "\n"), text);
+		assertTrue(text.contains("cryptomni_throughput_bytes_per_second_count{" +
+				"operation=\"file\"} " + operations + "\n"), text);
+	}
+
+	@Test
+	void registeringTwiceIsHarmless () throws JMException
+	{
+		metrics.register();
+		metrics.register();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(Metrics.OBJECT_NAME);
+		assertTrue(server.isRegistered(name));
+		assertNotNull(server.getAttribute(name, "TransformedBytes"));
+	}
+
+	private static long sum (long[] values)
+	{
+		long sum = 0;
+		for (long value : values)
+		{
+			sum += value;
+		}
+		return sum;
+	}
+
+	private static double sum (Map<String, Double> values)
+	{
+		double sum = 0;
+		for (double value : values.values())
+		{
+			sum += value;
+		}
+		return sum;
+	}
+
+	private File write (String name, int size, long seed) throws IOException
+	{
+		byte[] bytes = new byte[size];
+		new Random(seed).nextBytes(bytes);
+		File file = directory.resolve(name).toFile();
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+}
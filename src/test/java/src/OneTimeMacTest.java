@@ -0,0 +1,164 @@
+package src;
+
+/*-- OneTimeMacTest.java ---------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/** Tests {@link OneTimeMac} on its own and through --mac file transforms. */
+class OneTimeMacTest
+{
+	@TempDir
+	Path directory;
+
+	@Test
+	void tagDoesNotDependOnHowMessageIsSplit () throws IOException
+	{
+		byte[] message = randomBytes(1000, 1);
+		File key = write("key", randomBytes(OneTimeMac.KEY_SIZE, 2));
+		byte[] whole = tag(key, message, message.length);
+		for (int piece : new int[] {1, 3, 7, 8, 13})
+		{
+			assertArrayEquals(whole, tag(key, message, piece));
+		}
+		assertEquals(OneTimeMac.TAG_SIZE, whole.length);
+	}
+
+	@Test
+	void tagChangesWithMessage () throws IOException
+	{
+		byte[] message = randomBytes(1000, 1);
+		File key = write("key", randomBytes(OneTimeMac.KEY_SIZE, 2));
+		byte[] original = tag(key, message, message.length);
+		byte[] changed = message.clone();
+		changed[500] ^= 1;
+		assertFalse(Arrays.equals(original, tag(key, changed, changed.length)));
+		byte[] longer = Arrays.copyOf(message, message.length + 1);
+		assertFalse(Arrays.equals(original, tag(key, longer, longer.length)));
+		byte[] shorter = Arrays.copyOf(message, message.length - 1);
+		assertFalse(Arrays.equals(original, tag(key, shorter, shorter.length)));
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {"stream", "mapped", "pipelined"})
+	void fileRoundTripWithMac (String engineName) throws IOException
+	{
+		TransformEngine engine = TransformEngine.forName(engineName);
+		byte[] plain = randomBytes(300000, 3);
+		File source = write("plain", plain);
+		File key = write("key", randomBytes(400000, 4));
+		File keyCopy = copy(key, "key copy");
+		File encrypted = directory.resolve("encrypted").toFile();
+		File decrypted = directory.resolve("decrypted").toFile();
+
+		assertTrue(Cryptomni.encryptFile(source, key, encrypted, engine,
+				Progress.NONE, true));
+		assertEquals(plain.length + OneTimeMac.TAG_SIZE, encrypted.length());
+		assertTrue(Cryptomni.decryptFile(encrypted, keyCopy, decrypted, engine,
+				Progress.NONE, true));
+		assertArrayEquals(plain, Files.readAllBytes(decrypted.toPath()));
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {"stream", "mapped", "pipelined"})
+	void tamperedFileIsRejected (String engineName) throws IOException
+	{
+		TransformEngine engine = TransformEngine.forName(engineName);
+		File source = write("plain", randomBytes(300000, 3));
+		File key = write("key", randomBytes(400000, 4));
+		File keyCopy = copy(key, "key copy");
+		File encrypted = directory.resolve("encrypted").toFile();
+		File decrypted = directory.resolve("decrypted").toFile();
+
+		assertTrue(Cryptomni.encryptFile(source, key, encrypted, engine,
+				Progress.NONE, true));
+		try (FileChannel channel = FileChannel.open(encrypted.toPath(),
+				StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			// Flip one bit in the middle of the ciphertext.
+			ByteBuffer flipped = ByteBuffer.allocate(1);
+			ChannelIO.readFully(channel, flipped, 12345);
+			flipped.put(0, (byte) (flipped.get(0) ^ 0x20)).rewind();
+			ChannelIO.writeFully(channel, flipped, 12345);
+		}
+		assertFalse(Cryptomni.decryptFile(encrypted, keyCopy, decrypted, engine,
+				Progress.NONE, true));
+		assertFalse(decrypted.exists());
+	}
+
+	// Returns the tag of a message fed to an encrypting MAC in pieces.
+	private static byte[] tag (File key, byte[] message, int piece)
+			throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(key.toPath(),
+				StandardOpenOption.READ))
+		{
+			OneTimeMac mac = OneTimeMac.forEncryption(KeyChannel.of(channel), 0);
+			for (int i = 0; i < message.length; i += piece)
+			{
+				mac.update(ByteBuffer.wrap(message, i,
+						Math.min(piece, message.length - i)));
+			}
+			return mac.tag();
+		}
+	}
+
+	private static byte[] randomBytes (int size, long seed)
+	{
+		byte[] bytes = new byte[size];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+	private File write (String name, byte[] bytes) throws IOException
+	{
+		File file = directory.resolve(name).toFile();
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+
+	private File copy (File file, String name) throws IOException
+	{
+		File copy = directory.resolve(name).toFile();
+		Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return copy;
+	}
+}
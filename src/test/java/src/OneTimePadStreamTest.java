@@ -0,0 +1,249 @@
+package src;
+
+/*-- OneTimePadStreamTest.java ---------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Tests the one-time pad streams and channels. */
+class OneTimePadStreamTest
+{
+	private static final int KEY_SIZE = 1048576;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void streamsRoundTrip () throws IOException
+	{
+		byte[] key = randomBytes(KEY_SIZE, 1);
+		File keyFile = write("key", key);
+		File keyCopy = copy(keyFile, "key copy");
+		byte[] input = randomBytes(50000, 2);
+
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		try (KeyPad pad = KeyPad.open(keyFile);
+			 OutputStream out = new OneTimePadOutputStream(encrypted, pad))
+		{
+			out.write(input);
+		}
+		byte[] ciphertext = encrypted.toByteArray();
+		for (int i = 0; i < input.length; i++)
+		{
+			assertEquals((byte) (input[i] ^ key[i]), ciphertext[i]);
+		}
+
+		byte[] decrypted = new byte[input.length];
+		try (KeyPad pad = KeyPad.open(keyCopy);
+			 InputStream in = new OneTimePadInputStream(
+					new ByteArrayInputStream(ciphertext), pad))
+		{
+			int done = 0;
+			int bytesRead;
+			while ((bytesRead = in.read(decrypted, done,
+					decrypted.length - done)) > 0)
+			{
+				done += bytesRead;
+			}
+			assertEquals(input.length, done);
+			assertEquals(-1, in.read());
+		}
+		assertArrayEquals(input, decrypted);
+	}
+
+	@Test
+	void singleBytesAreCollectedIntoBlocks () throws IOException
+	{
+		File keyFile = write("key", randomBytes(KEY_SIZE, 1));
+		File keyCopy = copy(keyFile, "key copy");
+		byte[] input = randomBytes(20000, 3);
+
+		ByteArrayOutputStream whole = new ByteArrayOutputStream();
+		try (KeyPad pad = KeyPad.open(keyFile);
+			 OutputStream out = new OneTimePadOutputStream(whole, pad))
+		{
+			out.write(input);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (KeyPad pad = KeyPad.open(keyCopy))
+		{
+			OutputStream out = new OneTimePadOutputStream(bytes, pad);
+			for (int i = 0; i < 10; i++)
+			{
+				out.write(input[i]);
+			}
+			// Nothing is encrypted until the block is passed on.
+			assertEquals(0, pad.offset());
+			assertEquals(0, bytes.size());
+			out.flush();
+			assertEquals(10, pad.offset());
+			assertEquals(10, bytes.size());
+
+			// Single bytes and arrays stay in order.
+			for (int i = 10; i < 9000; i++)
+			{
+				out.write(input[i]);
+			}
+			out.write(input, 9000, 1000);
+			for (int i = 10000; i < input.length; i++)
+			{
+				out.write(input[i]);
+			}
+			out.close();
+			assertEquals(input.length, pad.offset());
+		}
+		assertArrayEquals(whole.toByteArray(), bytes.toByteArray());
+	}
+
+	@Test
+	void singleByteReadsAndArrayReadsMix () throws IOException
+	{
+		File keyFile = write("key", randomBytes(KEY_SIZE, 1));
+		File keyCopy = copy(keyFile, "key copy");
+		byte[] input = randomBytes(30000, 4);
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		try (KeyPad pad = KeyPad.open(keyFile);
+			 OutputStream out = new OneTimePadOutputStream(encrypted, pad))
+		{
+			out.write(input);
+		}
+
+		ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+		try (KeyPad pad = KeyPad.open(keyCopy);
+			 InputStream in = new OneTimePadInputStream(
+					new ByteArrayInputStream(encrypted.toByteArray()), pad))
+		{
+			byte[] array = new byte[1000];
+			int b;
+			while ((b = in.read()) != -1)
+			{
+				decrypted.write(b);
+				int bytesRead = in.read(array, 0, array.length);
+				if (bytesRead > 0)
+				{
+					decrypted.write(array, 0, bytesRead);
+				}
+			}
+		}
+		assertArrayEquals(input, decrypted.toByteArray());
+	}
+
+	@Test
+	void channelsRoundTrip () throws IOException
+	{
+		File keyFile = write("key", randomBytes(KEY_SIZE, 1));
+		File keyCopy = copy(keyFile, "key copy");
+		byte[] input = randomBytes(200000, 5);
+
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		try (KeyPad pad = KeyPad.open(keyFile);
+			 WritableByteChannel out = PadChannels.newWritableChannel(
+					Channels.newChannel(encrypted), pad))
+		{
+			ByteBuffer source = ByteBuffer.wrap(input);
+			while (source.hasRemaining())
+			{
+				out.write(source);
+			}
+			assertEquals(input.length, pad.offset());
+		}
+		// The buffer written from is not modified.
+		assertArrayEquals(randomBytes(200000, 5), input);
+
+		ByteBuffer decrypted = ByteBuffer.allocate(input.length);
+		try (KeyPad pad = KeyPad.open(keyCopy);
+			 ReadableByteChannel in = PadChannels.newReadableChannel(
+					Channels.newChannel(new ByteArrayInputStream(
+							encrypted.toByteArray())), pad))
+		{
+			while (decrypted.hasRemaining() && in.read(decrypted) >= 0)
+			{
+				// Keep reading.
+			}
+		}
+		assertArrayEquals(input, decrypted.array());
+	}
+
+	@Test
+	void runningOutOfKeyFails () throws IOException
+	{
+		File keyFile = write("key", randomBytes(1000, 1));
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		try (KeyPad pad = KeyPad.open(keyFile))
+		{
+			OutputStream out = new OneTimePadOutputStream(encrypted, pad);
+			try
+			{
+				out.write(new byte[2000]);
+				fail("Writing past the end of the key should fail.");
+			}
+			catch (EOFException e)
+			{
+				// Expected.
+			}
+		}
+		assertEquals(0, encrypted.size());
+	}
+
+	private static byte[] randomBytes (int size, long seed)
+	{
+		byte[] bytes = new byte[size];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+	private File write (String name, byte[] bytes) throws IOException
+	{
+		File file = directory.resolve(name).toFile();
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+
+	private File copy (File file, String name) throws IOException
+	{
+		File copy = directory.resolve(name).toFile();
+		Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return copy;
+	}
+}
@@ -0,0 +1,143 @@
+package src;
+
+/*-- ProgressTest.java -----------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Tests progress reporting and cancellation. */
+class ProgressTest
+{
+	private static final int KEY_SIZE = 4 * 1048576;
+	private static final int FILE_SIZE = 3 * BufferPool.BUFFER_SIZE + 100;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void progressCountsAndReportsTheFinish ()
+	{
+		final int[] reports = new int[1];
+		Progress progress = new Progress(new ProgressListener()
+		{
+			public void progressed (Progress p)
+			{
+				reports[0]++;
+			}
+		}, null);
+		progress.start(1000);
+		assertEquals(0, progress.fraction(), 0);
+		try
+		{
+			progress.advance(250);
+		}
+		catch (InterruptedIOException e)
+		{
+			fail("A progress without a token was cancelled.");
+		}
+		assertEquals(250, progress.done());
+		assertEquals(0.25, progress.fraction(), 1e-9);
+		assertFalse(progress.isFinished());
+		progress.finish();
+		assertTrue(progress.isFinished());
+		assertTrue(reports[0] >= 1);
+	}
+
+	@Test
+	void cancelledProgressStopsTheNextAdvance ()
+	{
+		CancellationToken token = new CancellationToken();
+		Progress progress = new Progress(null, token);
+		progress.start(1000);
+		token.cancel();
+		assertTrue(progress.isCancelled());
+		try
+		{
+			progress.advance(100);
+			fail("A cancelled progress should stop the operation.");
+		}
+		catch (InterruptedIOException e)
+		{
+			// The bytes are still counted, because they were used.
+			assertEquals(100, progress.done());
+		}
+	}
+
+	@Test
+	void cancelledEncryptionKeepsOnlyTheUsedKey () throws IOException
+	{
+		File key = write("key", KEY_SIZE, 1);
+		File source = write("plain", FILE_SIZE, 2);
+		File encrypted = directory.resolve("encrypted").toFile();
+		final CancellationToken token = new CancellationToken();
+		// Cancels as soon as the first buffer has been transformed.
+		Progress progress = new Progress(null, token)
+		{
+			public void advance (long bytes) throws InterruptedIOException
+			{
+				token.cancel();
+				super.advance(bytes);
+			}
+		};
+
+		assertFalse(Cryptomni.encryptFile(source, key, encrypted,
+				TransformEngine.forName("stream"), progress));
+		assertFalse(encrypted.exists());
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			assertEquals(BufferPool.BUFFER_SIZE, pad.offset());
+		}
+	}
+
+	@Test
+	void cancelledKeyCreationDeletesTheKey ()
+	{
+		File key = directory.resolve("key").toFile();
+		CancellationToken token = new CancellationToken();
+		token.cancel();
+		assertFalse(Cryptomni.createKey(key, KEY_SIZE, 2,
+				new Progress(null, token)));
+		assertFalse(key.exists());
+	}
+
+	private File write (String name, int size, long seed) throws IOException
+	{
+		byte[] bytes = new byte[size];
+		new Random(seed).nextBytes(bytes);
+		File file = directory.resolve(name).toFile();
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+}
@@ -0,0 +1,185 @@
+package src;
+
+/*-- ShardedKeyTest.java ---------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Tests keys striped across several shard files. */
+class ShardedKeyTest
+{
+	private static final int STRIPE = ShardedKeyStore.STRIPE_SIZE;
+	private static final int KEY_SIZE = 7 * STRIPE + 12345;
+	private static final int FILE_SIZE = STRIPE + STRIPE / 2 + 77;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void shardsHoldTheStripesInTurn () throws IOException
+	{
+		File manifest = createKey(3);
+		byte[] expected = stripedBytes(manifest, 3);
+		assertEquals(KEY_SIZE, expected.length);
+		try (KeyPad pad = KeyPad.open(manifest))
+		{
+			assertEquals(KEY_SIZE, pad.length());
+			ByteBuffer bytes = ByteBuffer.allocate(KEY_SIZE);
+			ChannelIO.readFully(pad.channel(), bytes, 0);
+			assertArrayEquals(expected, bytes.array());
+		}
+	}
+
+	@Test
+	void everyEngineUsesTheStripedKey () throws IOException
+	{
+		File manifest = createKey(3);
+		byte[] key = stripedBytes(manifest, 3);
+		long offset = 0;
+		for (String engine : new String[] {"stream", "mapped", "parallel",
+				"pipelined"})
+		{
+			byte[] plain = randomBytes(FILE_SIZE, offset + 1);
+			File source = write(engine + ".plain", plain);
+			File encrypted = directory.resolve(engine + ".encrypted").toFile();
+			assertTrue(Cryptomni.encryptFile(source, manifest, encrypted,
+					TransformEngine.forName(engine)), engine);
+			byte[] cipher = Files.readAllBytes(encrypted.toPath());
+			for (int i = 0; i < FILE_SIZE; i++)
+			{
+				assertEquals((byte) (plain[i] ^ key[(int) offset + i]),
+						cipher[i], engine);
+			}
+			offset += FILE_SIZE;
+		}
+		try (KeyPad pad = KeyPad.open(manifest))
+		{
+			assertEquals(offset, pad.offset());
+		}
+	}
+
+	@Test
+	void usedUpKeyDeletesItsShards () throws IOException
+	{
+		File manifest = createKey(2);
+		try (KeyPad pad = KeyPad.open(manifest))
+		{
+			pad.consume(KEY_SIZE);
+		}
+		assertFalse(manifest.exists());
+		assertFalse(new File(shardDirectory(0), "key.shard0").exists());
+		assertFalse(new File(shardDirectory(1), "key.shard1").exists());
+	}
+
+	@Test
+	void failedShardLeavesNothingBehind () throws IOException
+	{
+		File manifest = directory.resolve("key").toFile();
+		List<File> directories = Arrays.asList(shardDirectory(0),
+				directory.resolve("missing").toFile(), shardDirectory(2));
+		try
+		{
+			ShardedKeyStore.create(manifest, KEY_SIZE, directories, 1);
+			fail("A shard in a missing directory should fail.");
+		}
+		catch (IOException e)
+		{
+			// Expected.
+		}
+		assertFalse(manifest.exists());
+		assertEquals(0, shardDirectory(0).list().length);
+		assertEquals(0, shardDirectory(2).list().length);
+	}
+
+	// Creates a key striped over shards in separate directories.
+	private File createKey (int shards) throws IOException
+	{
+		List<File> directories = new ArrayList<File>();
+		for (int i = 0; i < shards; i++)
+		{
+			directories.add(shardDirectory(i));
+		}
+		File manifest = directory.resolve("key").toFile();
+		ShardedKeyStore.create(manifest, KEY_SIZE, directories, 2);
+		assertTrue(ShardedKeyStore.isManifest(manifest));
+		return manifest;
+	}
+
+	// Puts the key back together from the shard files, one stripe from
+	// each in turn.
+	private byte[] stripedBytes (File manifest, int shards) throws IOException
+	{
+		byte[][] contents = new byte[shards][];
+		for (int i = 0; i < shards; i++)
+		{
+			contents[i] = Files.readAllBytes(new File(shardDirectory(i),
+					manifest.getName() + ".shard" + i).toPath());
+		}
+		byte[] key = new byte[KEY_SIZE];
+		for (int position = 0; position < KEY_SIZE; position += STRIPE)
+		{
+			int stripe = position / STRIPE;
+			int length = Math.min(STRIPE, KEY_SIZE - position);
+			System.arraycopy(contents[stripe % shards], stripe / shards * STRIPE,
+					key, position, length);
+		}
+		return key;
+	}
+
+	private File shardDirectory (int i) throws IOException
+	{
+		File shardDirectory = directory.resolve("disk" + i).toFile();
+		shardDirectory.mkdirs();
+		return shardDirectory;
+	}
+
+	private static byte[] randomBytes (int size, long seed)
+	{
+		byte[] bytes = new byte[size];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+	private File write (String name, byte[] bytes) throws IOException
+	{
+		File file = directory.resolve(name).toFile();
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+}
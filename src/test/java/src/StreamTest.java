@@ -0,0 +1,155 @@
+package src;
+
+/*-- StreamTest.java -------------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/** Tests encrypting and decrypting streams of unknown length. */
+class StreamTest
+{
+	private static final int KEY_SIZE = 1048576;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void roundTripConsumesTheKeyAsBytesArrive () throws IOException
+	{
+		byte[] key = randomBytes(KEY_SIZE, 1);
+		File keyFile = write("key", key);
+		File keyCopy = copy(keyFile, "key copy");
+		byte[] input = randomBytes(100000, 2);
+
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		assertTrue(Cryptomni.encryptStream(new ByteArrayInputStream(input),
+				keyFile, encrypted));
+		byte[] ciphertext = encrypted.toByteArray();
+		assertEquals(input.length, ciphertext.length);
+		for (int i = 0; i < input.length; i++)
+		{
+			assertEquals((byte) (input[i] ^ key[i]), ciphertext[i]);
+		}
+		try (KeyPad pad = KeyPad.open(keyFile))
+		{
+			assertEquals(input.length, pad.offset());
+		}
+
+		ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+		assertTrue(Cryptomni.decryptStream(new ByteArrayInputStream(ciphertext),
+				keyCopy, decrypted));
+		assertArrayEquals(input, decrypted.toByteArray());
+	}
+
+	@Test
+	void inputInSmallPiecesGivesTheSameOutput () throws IOException
+	{
+		File keyFile = write("key", randomBytes(KEY_SIZE, 1));
+		File keyCopy = copy(keyFile, "key copy");
+		byte[] input = randomBytes(20000, 3);
+
+		ByteArrayOutputStream whole = new ByteArrayOutputStream();
+		assertTrue(Cryptomni.encryptStream(new ByteArrayInputStream(input),
+				keyFile, whole));
+		ByteArrayOutputStream pieces = new ByteArrayOutputStream();
+		assertTrue(Cryptomni.encryptStream(new TrickleInputStream(input),
+				keyCopy, pieces));
+		assertArrayEquals(whole.toByteArray(), pieces.toByteArray());
+	}
+
+	@Test
+	void runningOutOfKeyFails () throws IOException
+	{
+		File keyFile = write("key", randomBytes(1000, 1));
+		byte[] input = randomBytes(5000, 4);
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+		ByteArrayOutputStream captured = new ByteArrayOutputStream();
+		PrintStream original = System.err;
+		System.setErr(new PrintStream(captured, true));
+		try
+		{
+			assertFalse(Cryptomni.encryptStream(new ByteArrayInputStream(input),
+					keyFile, encrypted));
+		}
+		finally
+		{
+			System.setErr(original);
+		}
+		String errors = new String(captured.toByteArray(),
+				StandardCharsets.UTF_8);
+		assertTrue(errors.contains("The key ran out"), errors);
+		// Nothing is passed on that the key did not cover.
+		assertTrue(encrypted.size() <= 1000);
+	}
+
+	// Hands out at most seven bytes per read, as a pipe or socket might.
+	private static class TrickleInputStream extends ByteArrayInputStream
+	{
+		TrickleInputStream (byte[] bytes)
+		{
+			super(bytes);
+		}
+
+		public int read (byte[] b, int off, int len)
+		{
+			return super.read(b, off, Math.min(len, 7));
+		}
+	}
+
+	private static byte[] randomBytes (int size, long seed)
+	{
+		byte[] bytes = new byte[size];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+	private File write (String name, byte[] bytes) throws IOException
+	{
+		File file = directory.resolve(name).toFile();
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+
+	private File copy (File file, String name) throws IOException
+	{
+		File copy = directory.resolve(name).toFile();
+		Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return copy;
+	}
+}
@@ -0,0 +1,240 @@
+package src;
+
+/*-- TransformEngineTest.java ----------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Tests that every transform engine writes the XOR of its input and key
+ * range, whatever the positions and lengths, and so gives the same output
+ * as every other engine.
+ */
+class TransformEngineTest
+{
+	private static final int[] LENGTHS = {0, 1, 4095, 4097,
+			BufferPool.BUFFER_SIZE - 1, BufferPool.BUFFER_SIZE + 1,
+			5 * BufferPool.BUFFER_SIZE + 12345,
+			(int) (2 * ParallelEngine.CHUNK_SIZE) + 12345};
+	private static final int KEY_POSITION = 1001;
+	private static final int IN_POSITION = 17;
+	private static final int OUT_POSITION = 29;
+
+	@TempDir
+	Path directory;
+
+	@ParameterizedTest
+	@ValueSource(strings = {"stream", "stream:4096", "mapped", "parallel:1",
+			"parallel:4", "pipelined", "pipelined:2"})
+	void writesXorOfInputAndKey (String spec) throws IOException
+	{
+		TransformEngine engine = engine(spec);
+		int longest = LENGTHS[LENGTHS.length - 1];
+		byte[] input = randomBytes(IN_POSITION + longest, 1);
+		byte[] key = randomBytes(KEY_POSITION + longest, 2);
+		File inFile = write("in", input);
+		File keyFile = write("key", key);
+		for (int length : LENGTHS)
+		{
+			byte[] expected = new byte[length];
+			for (int i = 0; i < length; i++)
+			{
+				expected[i] = (byte) (input[IN_POSITION + i] ^
+						key[KEY_POSITION + i]);
+			}
+			Progress progress = new Progress(null, null);
+			byte[] output = transform(engine, inFile, keyFile, length, progress);
+			assertArrayEquals(expected, Arrays.copyOfRange(output,
+					OUT_POSITION, OUT_POSITION + length), spec + ", " + length);
+			assertEquals(length, progress.done());
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {"stream", "stream:4096", "mapped", "parallel:1",
+			"parallel:4", "pipelined", "pipelined:2"})
+	void transformingTwiceRestoresInput (String spec) throws IOException
+	{
+		TransformEngine engine = engine(spec);
+		int length = 3 * BufferPool.BUFFER_SIZE + 999;
+		byte[] input = randomBytes(IN_POSITION + length, 3);
+		byte[] key = randomBytes(KEY_POSITION + length, 4);
+		File keyFile = write("key", key);
+		byte[] once = transform(engine, write("in", input), keyFile, length,
+				Progress.NONE);
+		byte[] shifted = new byte[IN_POSITION + length];
+		System.arraycopy(once, OUT_POSITION, shifted, IN_POSITION, length);
+		byte[] twice = transform(engine, write("in", shifted), keyFile, length,
+				Progress.NONE);
+		assertArrayEquals(Arrays.copyOfRange(input, IN_POSITION,
+				IN_POSITION + length), Arrays.copyOfRange(twice, OUT_POSITION,
+				OUT_POSITION + length));
+	}
+
+	@Test
+	void enginesWithMacsAgreeOnTheTag () throws IOException
+	{
+		int length = 3 * BufferPool.BUFFER_SIZE + 999;
+		File inFile = write("in", randomBytes(IN_POSITION + length, 5));
+		File keyFile = write("key", randomBytes(KEY_POSITION + length +
+				OneTimeMac.KEY_SIZE, 6));
+		byte[] expectedOutput = null;
+		byte[] expectedTag = null;
+		for (String spec : new String[] {"stream", "mapped", "pipelined"})
+		{
+			TransformEngine engine = engine(spec);
+			assertTrue(engine.supportsMac(), spec);
+			File outFile = write("out", new byte[OUT_POSITION]);
+			byte[] tag;
+			try (FileChannel in = FileChannel.open(inFile.toPath(),
+						StandardOpenOption.READ);
+				 FileChannel keyChannel = FileChannel.open(keyFile.toPath(),
+						StandardOpenOption.READ);
+				 FileChannel out = FileChannel.open(outFile.toPath(),
+						StandardOpenOption.READ, StandardOpenOption.WRITE))
+			{
+				KeyChannel key = KeyChannel.of(keyChannel);
+				OneTimeMac mac = OneTimeMac.forEncryption(key,
+						KEY_POSITION + length);
+				engine.transform(in, IN_POSITION, key, KEY_POSITION, out,
+						OUT_POSITION, length, Progress.NONE, mac);
+				tag = mac.tag();
+			}
+			byte[] output = Files.readAllBytes(outFile.toPath());
+			if (expectedTag == null)
+			{
+				expectedOutput = output;
+				expectedTag = tag;
+			}
+			assertArrayEquals(expectedOutput, output, spec);
+			assertArrayEquals(expectedTag, tag, spec);
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {"pipelined", "pipelined:2"})
+	void failedPipelineStopsAndEngineCanBeReused (String spec)
+			throws IOException
+	{
+		TransformEngine engine = engine(spec);
+		int length = 4 * BufferPool.BUFFER_SIZE;
+		File keyFile = write("key", randomBytes(KEY_POSITION + length, 7));
+		// The input ends in the middle of the range.
+		File shortFile = write("in", randomBytes(IN_POSITION + length / 2, 8));
+		try
+		{
+			transform(engine, shortFile, keyFile, length, Progress.NONE);
+			fail("A short input should fail the transform.");
+		}
+		catch (IOException e)
+		{
+			// Expected.
+		}
+
+		byte[] input = randomBytes(IN_POSITION + length, 9);
+		byte[] output = transform(engine, write("in", input), keyFile, length,
+				Progress.NONE);
+		byte[] key = randomBytes(KEY_POSITION + length, 7);
+		for (int i = 0; i < length; i++)
+		{
+			assertEquals((byte) (input[IN_POSITION + i] ^ key[KEY_POSITION + i]),
+					output[OUT_POSITION + i]);
+		}
+	}
+
+	// Returns the engine named by a spec: an engine name, optionally
+	// followed by a colon and a buffer size, thread count or depth.
+	static TransformEngine engine (String spec)
+	{
+		int colon = spec.indexOf(':');
+		if (colon < 0)
+		{
+			return TransformEngine.forName(spec);
+		}
+		String name = spec.substring(0, colon);
+		int number = Integer.parseInt(spec.substring(colon + 1));
+		if (name.equals("stream"))
+		{
+			return new StreamEngine(number);
+		}
+		if (name.equals("parallel"))
+		{
+			return new ParallelEngine(number);
+		}
+		if (name.equals("pipelined"))
+		{
+			return new PipelinedEngine(number);
+		}
+		throw new IllegalArgumentException(spec);
+	}
+
+	// Transforms length bytes of the input at IN_POSITION with the key at
+	// KEY_POSITION and returns the output file, where they start at
+	// OUT_POSITION.
+	private byte[] transform (TransformEngine engine, File inFile, File keyFile,
+			int length, Progress progress) throws IOException
+	{
+		File outFile = write("out", new byte[OUT_POSITION]);
+		try (FileChannel in = FileChannel.open(inFile.toPath(),
+					StandardOpenOption.READ);
+			 FileChannel keyChannel = FileChannel.open(keyFile.toPath(),
+					StandardOpenOption.READ);
+			 FileChannel out = FileChannel.open(outFile.toPath(),
+					StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			engine.transform(in, IN_POSITION, KeyChannel.of(keyChannel),
+					KEY_POSITION, out, OUT_POSITION, length, progress);
+		}
+		return Files.readAllBytes(outFile.toPath());
+	}
+
+	private static byte[] randomBytes (int size, long seed)
+	{
+		byte[] bytes = new byte[size];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+	private File write (String name, byte[] bytes) throws IOException
+	{
+		File file = directory.resolve(name).toFile();
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+}
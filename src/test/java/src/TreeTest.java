@@ -0,0 +1,248 @@
+package src;
+
+/*-- TreeTest.java ---------------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests encrypting and decrypting directory trees, and that decryption
+ * uses up the key only for the files it decrypts.
+ */
+class TreeTest
+{
+	private static final int KEY_SIZE = 1048576;
+	private static final String[] NAMES = {"a", "sub/b", "sub/deeper/c", "d"};
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void roundTripRestoresTheTree () throws IOException
+	{
+		Path tree = tree("tree");
+		File key = write("key", randomBytes(KEY_SIZE, 1));
+		File copy = copy(key, "copy");
+		File encrypted = directory.resolve("encrypted").toFile();
+		File decrypted = directory.resolve("decrypted").toFile();
+
+		assertEquals(NAMES.length, transform(3).encrypt(tree.toFile(), key,
+				encrypted, progress()));
+		assertEquals(NAMES.length, transform(3).decrypt(encrypted, copy,
+				decrypted, progress()));
+		long total = 0;
+		for (String name : NAMES)
+		{
+			byte[] plain = Files.readAllBytes(tree.resolve(name));
+			assertArrayEquals(plain, Files.readAllBytes(
+					decrypted.toPath().resolve(name)));
+			total += plain.length;
+		}
+		try (KeyPad pad = KeyPad.open(copy))
+		{
+			assertEquals(total, pad.offset());
+		}
+	}
+
+	@Test
+	void failedFileKeepsTheKeyOfLaterFiles () throws IOException
+	{
+		Path tree = tree("tree");
+		File key = write("key", randomBytes(KEY_SIZE, 1));
+		File copy = copy(key, "copy");
+		File encrypted = directory.resolve("encrypted").toFile();
+		File decrypted = directory.resolve("decrypted").toFile();
+		transform(1).encrypt(tree.toFile(), key, encrypted, progress());
+
+		// Cut short the file that uses the start of the key.
+		String first = null;
+		for (String line : manifest(encrypted))
+		{
+			if (line.startsWith("0 "))
+			{
+				first = line.substring(line.indexOf(' ', 2) + 1);
+			}
+		}
+		Path cut = encrypted.toPath().resolve(first);
+		byte[] whole = Files.readAllBytes(cut);
+		Files.write(cut, new byte[whole.length / 2]);
+		try
+		{
+			transform(2).decrypt(encrypted, copy, decrypted, progress());
+			fail("A file shorter than the manifest says should fail.");
+		}
+		catch (IOException e)
+		{
+			// Expected.
+		}
+		try (KeyPad pad = KeyPad.open(copy))
+		{
+			assertEquals(0, pad.offset());
+		}
+
+		// With the file restored, the tree decrypts with the same key.
+		Files.write(cut, whole);
+		assertEquals(NAMES.length, transform(2).decrypt(encrypted, copy,
+				decrypted, progress()));
+		for (String name : NAMES)
+		{
+			assertArrayEquals(Files.readAllBytes(tree.resolve(name)),
+					Files.readAllBytes(decrypted.toPath().resolve(name)));
+		}
+	}
+
+	@Test
+	void rangePastTheKeyIsRejected () throws IOException
+	{
+		File key = write("key", randomBytes(KEY_SIZE, 1));
+		File encrypted = forged(KEY_SIZE - 10 + " 20 a");
+		try
+		{
+			transform(1).decrypt(encrypted, key,
+					directory.resolve("decrypted").toFile(), progress());
+			fail("A range past the end of the key should be rejected.");
+		}
+		catch (EOFException e)
+		{
+			// Expected.
+		}
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			assertEquals(0, pad.offset());
+		}
+	}
+
+	@Test
+	void implausibleManifestsAreRejected () throws IOException
+	{
+		File key = write("key", randomBytes(KEY_SIZE, 1));
+		String[] manifests = {
+				"0 20 a\n10 20 b",			// Overlapping ranges.
+				"30 20 b\n0 40 a",			// Overlapping, out of order.
+				"0 10 a\n10 10 a",			// The same path twice.
+				Long.MAX_VALUE + " 20 a",	// A range that overflows.
+				"-5 20 a",
+				"0 20 ../a"};
+		for (int i = 0; i < manifests.length; i++)
+		{
+			File encrypted = forged(manifests[i]);
+			try
+			{
+				transform(1).decrypt(encrypted, key,
+						directory.resolve("decrypted" + i).toFile(), progress());
+				fail("Manifest should be rejected: " + manifests[i]);
+			}
+			catch (IOException e)
+			{
+				assertTrue(e.getMessage().contains("anifest"), e.getMessage());
+			}
+		}
+		try (KeyPad pad = KeyPad.open(key))
+		{
+			assertEquals(0, pad.offset());
+		}
+	}
+
+	private TreeTransform transform (int workers)
+	{
+		return new TreeTransform(TransformEngine.DEFAULT, workers,
+				TreeTransform.DEFAULT_BUDGET);
+	}
+
+	private static Progress progress ()
+	{
+		return new Progress(null, null);
+	}
+
+	// Writes a tree of files of different sizes.
+	private Path tree (String name) throws IOException
+	{
+		Path root = directory.resolve(name);
+		for (int i = 0; i < NAMES.length; i++)
+		{
+			Path file = root.resolve(NAMES[i]);
+			Files.createDirectories(file.getParent());
+			Files.write(file, randomBytes(1000 + 50000 * i, 10 + i));
+		}
+		return root;
+	}
+
+	// Returns an encrypted tree with the given manifest lines, and files
+	// named a and b long enough for any of them.
+	private File forged (String lines) throws IOException
+	{
+		Path root = Files.createTempDirectory(directory, "forged");
+		Files.write(root.resolve(TreeTransform.MANIFEST_NAME),
+				(TreeTransform.HEADER + "\n" + lines + "\n").getBytes(
+						StandardCharsets.UTF_8));
+		Files.write(root.resolve("a"), randomBytes(40, 2));
+		Files.write(root.resolve("b"), randomBytes(40, 3));
+		return root.toFile();
+	}
+
+	private static List<String> manifest (File encrypted) throws IOException
+	{
+		List<String> lines = new ArrayList<String>(Files.readAllLines(
+				encrypted.toPath().resolve(TreeTransform.MANIFEST_NAME),
+				StandardCharsets.UTF_8));
+		lines.remove(0);
+		return lines;
+	}
+
+	private static byte[] randomBytes (int size, long seed)
+	{
+		byte[] bytes = new byte[size];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+
+	private File write (String name, byte[] bytes) throws IOException
+	{
+		File file = directory.resolve(name).toFile();
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+
+	private File copy (File file, String name) throws IOException
+	{
+		File copy = directory.resolve(name).toFile();
+		Files.copy(file.toPath(), copy.toPath());
+		return copy;
+	}
+}
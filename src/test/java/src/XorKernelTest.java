@@ -0,0 +1,173 @@
+package src;
+
+/*-- XorKernelTest.java ----------------------------------------------------------
+
+Copyright (C) 2007 Byron Knoll
+
+This file is part of Cryptomni.
+
+Cryptomni is free software; you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation; either version 2 of the License, or
+(at your option) any later version.
+
+Cryptomni is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Cryptomni; if not, write to the Free Software
+Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+--------------------------------------------------------------------------------*/
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Tests every XOR kernel against a byte-by-byte XOR. The tests run with the
+ * Vector API module, so the vector kernel is tested too.
+ */
+class XorKernelTest
+{
+	private static final int[] LENGTHS = {0, 1, 7, 8, 9, 31, 32, 33, 63, 64,
+			65, 255, 256, 1031, 4099};
+
+	@ParameterizedTest
+	@ValueSource(strings = {"scalar", "long", "vector"})
+	void arraysAtAnyOffset (String name)
+	{
+		XorKernel kernel = XorKernel.forName(name);
+		assertEquals(name, kernel.name());
+		Random random = new Random(1);
+		for (int length : LENGTHS)
+		{
+			for (int dataOffset = 0; dataOffset < 9; dataOffset += 3)
+			{
+				int keyOffset = 8 - dataOffset;
+				byte[] data = randomBytes(random, dataOffset + length + 5);
+				byte[] key = randomBytes(random, keyOffset + length + 5);
+				byte[] keyBefore = key.clone();
+				byte[] expected = data.clone();
+				for (int i = 0; i < length; i++)
+				{
+					expected[dataOffset + i] ^= key[keyOffset + i];
+				}
+				kernel.xor(data, dataOffset, key, keyOffset, length);
+				assertArrayEquals(expected, data, "length " + length);
+				assertArrayEquals(keyBefore, key);
+			}
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {"scalar", "long", "vector"})
+	void buffersOfEveryKind (String name)
+	{
+		XorKernel kernel = XorKernel.forName(name);
+		Random random = new Random(2);
+		for (int length : LENGTHS)
+		{
+			for (boolean direct : new boolean[] {false, true})
+			{
+				for (ByteOrder order : new ByteOrder[] {ByteOrder.BIG_ENDIAN,
+						ByteOrder.LITTLE_ENDIAN})
+				{
+					byte[] source = randomBytes(random, length);
+					byte[] key = randomBytes(random, length);
+					byte[] expected = new byte[length];
+					for (int i = 0; i < length; i++)
+					{
+						expected[i] = (byte) (source[i] ^ key[i]);
+					}
+					// Odd positions, so that nothing is aligned.
+					ByteBuffer sourceBuffer = buffer(source, 3, direct, order);
+					ByteBuffer keyBuffer = buffer(key, 5, direct, order);
+					ByteBuffer destination = buffer(new byte[length], 1, direct,
+							order);
+					kernel.xor(sourceBuffer, keyBuffer, destination, length);
+					assertEquals(3, sourceBuffer.position());
+					assertEquals(1, destination.position());
+					assertArrayEquals(expected, contents(destination, length),
+							"length " + length);
+					assertArrayEquals(source, contents(sourceBuffer, length));
+
+					// In place.
+					kernel.xor(sourceBuffer, keyBuffer, length);
+					assertArrayEquals(expected, contents(sourceBuffer, length));
+					assertArrayEquals(key, contents(keyBuffer, length));
+				}
+			}
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {"scalar", "long", "vector"})
+	void xorTwiceRestoresData (String name)
+	{
+		XorKernel kernel = XorKernel.forName(name);
+		Random random = new Random(3);
+		byte[] data = randomBytes(random, 70000);
+		byte[] key = randomBytes(random, 70000);
+		byte[] original = data.clone();
+		kernel.xor(data, 0, key, 0, data.length);
+		kernel.xor(data, 0, key, 0, data.length);
+		assertArrayEquals(original, data);
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {"scalar", "long", "vector"})
+	void kernelsAgree (String name)
+	{
+		Random random = new Random(4);
+		byte[] key = randomBytes(random, 100000);
+		byte[] expected = randomBytes(random, 100000);
+		byte[] actual = expected.clone();
+		XorKernel.forName("scalar").xor(expected, 0, key, 0, expected.length);
+		XorKernel.forName(name).xor(actual, 0, key, 0, actual.length);
+		assertArrayEquals(expected, actual);
+	}
+
+	@Test
+	void vectorKernelIsTheDefaultWithTheModule ()
+	{
+		assertEquals("vector", XorKernel.get().name());
+	}
+
+	private static byte[] randomBytes (Random random, int size)
+	{
+		byte[] bytes = new byte[size];
+		random.nextBytes(bytes);
+		return bytes;
+	}
+
+	// Returns a buffer holding the bytes at the given position.
+	private static ByteBuffer buffer (byte[] bytes, int position, boolean direct,
+			ByteOrder order)
+	{
+		int capacity = position + bytes.length + 4;
+		ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(capacity) :
+				ByteBuffer.allocate(capacity);
+		buffer.order(order);
+		buffer.position(position);
+		buffer.put(bytes);
+		buffer.position(position);
+		return buffer;
+	}
+
+	private static byte[] contents (ByteBuffer buffer, int length)
+	{
+		byte[] bytes = new byte[length];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+}